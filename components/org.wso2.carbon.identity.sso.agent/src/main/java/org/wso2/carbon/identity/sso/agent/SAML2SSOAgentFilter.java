@@ -26,6 +26,7 @@ import org.wso2.carbon.identity.sso.agent.exception.InvalidSessionException;
 import org.wso2.carbon.identity.sso.agent.exception.SSOAgentException;
 import org.wso2.carbon.identity.sso.agent.oauth2.SAML2GrantManager;
 import org.wso2.carbon.identity.sso.agent.openid.OpenIDManager;
+import org.wso2.carbon.identity.sso.agent.saml.SAML2RedirectEncoder;
 import org.wso2.carbon.identity.sso.agent.saml.SAML2SSOManager;
 import org.wso2.carbon.identity.sso.agent.util.SSOAgentConstants;
 import org.wso2.carbon.identity.sso.agent.util.SSOAgentFilterUtils;
@@ -51,6 +52,7 @@ public class SAML2SSOAgentFilter implements Filter {
 
     private static final Logger LOGGER = Logger.getLogger(SSOAgentConstants.LOGGER_NAME);
     protected FilterConfig filterConfig = null;
+    private volatile SAML2SSOManager saml2SSOManager = null;
 
     /**
      * @see Filter#init(FilterConfig)
@@ -58,6 +60,12 @@ public class SAML2SSOAgentFilter implements Filter {
     @Override
     public void init(FilterConfig fConfig) throws ServletException {
         this.filterConfig = fConfig;
+        try {
+            getSAML2SSOManager(SSOAgentFilterUtils.getSSOAgentConfig(fConfig));
+        } catch (SSOAgentException e) {
+            // The configuration may not be available yet. The manager will be created on the first request.
+            LOGGER.log(Level.FINE, "Deferring SAML2 SSO manager initialization to the first request", e);
+        }
     }
 
     /**
@@ -70,6 +78,7 @@ public class SAML2SSOAgentFilter implements Filter {
         HttpServletRequest request = (HttpServletRequest) servletRequest;
         HttpServletResponse response = (HttpServletResponse) servletResponse;
 
+        SAML2SSOManager samlSSOManager = null;
         try {
             SSOAgentConfig ssoAgentConfig = SSOAgentFilterUtils.getSSOAgentConfig(filterConfig);
 
@@ -81,12 +90,11 @@ public class SAML2SSOAgentFilter implements Filter {
                 return;
             }
 
-            SAML2SSOManager samlSSOManager;
             SAML2GrantManager saml2GrantManager;
 
             if (resolver.isSLORequest()) {
 
-                samlSSOManager = new SAML2SSOManager(ssoAgentConfig);
+                samlSSOManager = acquireSAML2SSOManager(ssoAgentConfig);
                 LogoutResponse logoutResponse = samlSSOManager.doSLO(request);
                 String encodedRequestMessage = samlSSOManager.buildPostResponse(logoutResponse);
                 SSOAgentUtils.sendPostResponse(request, response, encodedRequestMessage);
@@ -94,7 +102,7 @@ public class SAML2SSOAgentFilter implements Filter {
                 return;
             } else if (resolver.isSAML2SSOResponse()) {
 
-                samlSSOManager = new SAML2SSOManager(ssoAgentConfig);
+                samlSSOManager = acquireSAML2SSOManager(ssoAgentConfig);
                 try {
                     samlSSOManager.processResponse(request, response);
                 } catch (SSOAgentException e) {
@@ -103,7 +111,7 @@ public class SAML2SSOAgentFilter implements Filter {
 
             } else if (resolver.isSAML2ArtifactResponse()) {
 
-                samlSSOManager = new SAML2SSOManager(ssoAgentConfig);
+                samlSSOManager = acquireSAML2SSOManager(ssoAgentConfig);
                 try {
                     samlSSOManager.processArtifactResponse(request);
                 } catch (SSOAgentException e) {
@@ -120,31 +128,22 @@ public class SAML2SSOAgentFilter implements Filter {
 
             } else if (resolver.isSLOURL()) {
 
-                samlSSOManager = new SAML2SSOManager(ssoAgentConfig);
+                samlSSOManager = acquireSAML2SSOManager(ssoAgentConfig);
                 if (resolver.isHttpPostBinding()) {
 
-                    boolean isPassiveAuth = ssoAgentConfig.getSAML2().isPassiveAuthn();
-                    ssoAgentConfig.getSAML2().setPassiveAuthn(false);
-                    String htmlPayload = samlSSOManager.buildPostRequest(request, response, true);
-                    ssoAgentConfig.getSAML2().setPassiveAuthn(isPassiveAuth);
-                    SSOAgentUtils.sendPostResponse(request, response, htmlPayload);
+                    samlSSOManager.sendPostRequest(request, response, true);
 
                 } else {
                     //if "SSOAgentConstants.HTTP_BINDING_PARAM" is not defined, default to redirect
-                    boolean isPassiveAuth = ssoAgentConfig.getSAML2().isPassiveAuthn();
-                    ssoAgentConfig.getSAML2().setPassiveAuthn(false);
-                    String redirectUrl = samlSSOManager.buildRedirectRequest(request, true);
-                    ssoAgentConfig.getSAML2().setPassiveAuthn(isPassiveAuth);
-                    response.sendRedirect(redirectUrl);
+                    response.sendRedirect(samlSSOManager.buildRedirectRequest(request, true, false));
                 }
                 return;
 
             } else if (resolver.isSAML2SSOURL()) {
 
-                samlSSOManager = new SAML2SSOManager(ssoAgentConfig);
+                samlSSOManager = acquireSAML2SSOManager(ssoAgentConfig);
                 if (resolver.isHttpPostBinding()) {
-                    String htmlPayload = samlSSOManager.buildPostRequest(request, response, false);
-                    SSOAgentUtils.sendPostResponse(request, response, htmlPayload);
+                    samlSSOManager.sendPostRequest(request, response, false);
                     return;
                 }
                 response.sendRedirect(samlSSOManager.buildRedirectRequest(request, false));
@@ -152,12 +151,8 @@ public class SAML2SSOAgentFilter implements Filter {
 
             } else if (resolver.isPassiveAuthnRequest()) {
 
-                samlSSOManager = new SAML2SSOManager(ssoAgentConfig);
-                boolean isPassiveAuth = ssoAgentConfig.getSAML2().isPassiveAuthn();
-                ssoAgentConfig.getSAML2().setPassiveAuthn(true);
-                String redirectUrl = samlSSOManager.buildRedirectRequest(request, false);
-                ssoAgentConfig.getSAML2().setPassiveAuthn(isPassiveAuth);
-                response.sendRedirect(redirectUrl);
+                samlSSOManager = acquireSAML2SSOManager(ssoAgentConfig);
+                response.sendRedirect(samlSSOManager.buildRedirectRequest(request, false, true));
                 return;
 
             } else if (resolver.isSAML2OAuth2GrantRequest()) {
@@ -178,6 +173,10 @@ public class SAML2SSOAgentFilter implements Filter {
             // Redirect to the index page when session is expired or user already logged out.
             LOGGER.log(Level.FINE, "Invalid Session!", e);
             response.sendRedirect(filterConfig.getServletContext().getContextPath());
+        } finally {
+            if (samlSSOManager != null) {
+                samlSSOManager.release();
+            }
         }
     }
 
@@ -187,7 +186,59 @@ public class SAML2SSOAgentFilter implements Filter {
      */
     @Override
     public void destroy() {
-        return;
+        SAML2RedirectEncoder.getInstance().close();
+        SAML2SSOManager manager;
+        synchronized (this) {
+            manager = saml2SSOManager;
+            saml2SSOManager = null;
+        }
+        if (manager != null) {
+            manager.close();
+        }
+    }
+
+    /**
+     * Returns the SAML2 SSO manager bound to the given configuration. The manager is created once and shared by
+     * all request threads, and is recreated only when the configuration in the servlet context is replaced, in
+     * which case the previous manager is closed in favour of the new one. The previous manager releases its
+     * resources once the requests still using it are done.
+     *
+     * @param ssoAgentConfig SSO agent configuration
+     * @return shared SAML2 SSO manager
+     * @throws SSOAgentException if the manager cannot be created
+     */
+    protected SAML2SSOManager getSAML2SSOManager(SSOAgentConfig ssoAgentConfig) throws SSOAgentException {
+
+        SAML2SSOManager manager = saml2SSOManager;
+        if (manager == null || manager.getSsoAgentConfig() != ssoAgentConfig) {
+            synchronized (this) {
+                manager = saml2SSOManager;
+                if (manager == null || manager.getSsoAgentConfig() != ssoAgentConfig) {
+                    SAML2SSOManager previous = manager;
+                    manager = new SAML2SSOManager(ssoAgentConfig);
+                    saml2SSOManager = manager;
+                    if (previous != null) {
+                        previous.close(manager);
+                    }
+                }
+            }
+        }
+        return manager;
+    }
+
+    /**
+     * Returns the SAML2 SSO manager bound to the given configuration, registered as used by the current request.
+     * The caller has to release it once the request is done.
+     */
+    private SAML2SSOManager acquireSAML2SSOManager(SSOAgentConfig ssoAgentConfig) throws SSOAgentException {
+
+        while (true) {
+            SAML2SSOManager manager = getSAML2SSOManager(ssoAgentConfig);
+            // The manager may have been replaced and closed in the meantime.
+            if (manager.acquire()) {
+                return manager;
+            }
+        }
     }
 
     protected void handleException(HttpServletRequest request, SSOAgentException e)
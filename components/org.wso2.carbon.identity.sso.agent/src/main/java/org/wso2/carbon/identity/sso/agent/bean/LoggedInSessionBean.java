@@ -25,19 +25,35 @@ import com.google.gson.annotations.SerializedName;
 import org.openid4java.discovery.DiscoveryInformation;
 import org.opensaml.saml2.core.Assertion;
 import org.opensaml.saml2.core.Response;
+import org.opensaml.xml.XMLObject;
 import org.wso2.carbon.identity.sso.agent.exception.SSOAgentException;
+import org.wso2.carbon.identity.sso.agent.util.SSOAgentConstants;
 import org.wso2.carbon.identity.sso.agent.util.SSOAgentUtils;
 
 import javax.xml.bind.annotation.XmlAttribute;
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.nio.charset.Charset;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 public class LoggedInSessionBean implements Serializable {
 
     private static final long serialVersionUID = 7762835859870143767L;
 
+    private static final Logger LOGGER = Logger.getLogger(SSOAgentConstants.LOGGER_NAME);
+    // Version 1 is the format of the plain object stream, written before the format was versioned.
+    private static final int SERIAL_FORMAT_VERSION = 2;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
     private OpenID openId;
 
     private SAML2SSO saml2SSO;
@@ -58,6 +74,61 @@ public class LoggedInSessionBean implements Serializable {
         this.openId = openId;
     }
 
+    private static void writeBytes(DataOutput out, byte[] bytes) throws IOException {
+
+        if (bytes == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private static byte[] readBytes(DataInput in) throws IOException {
+
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    private static void writeString(DataOutput out, String value) throws IOException {
+
+        writeBytes(out, value != null ? value.getBytes(UTF_8) : null);
+    }
+
+    private static String readString(DataInput in) throws IOException {
+
+        byte[] bytes = readBytes(in);
+        return bytes != null ? new String(bytes, UTF_8) : null;
+    }
+
+    /**
+     * Policy for the SAML2 objects kept in the session after login.
+     */
+    public enum SAML2RetentionPolicy {
+
+        /**
+         * Keep the Response and the Assertion, both as objects and as strings.
+         */
+        ALL,
+
+        /**
+         * Keep only the UTF-8 bytes of the Assertion. The Assertion object is rebuilt on each access, and the
+         * Response is not available.
+         */
+        ASSERTION,
+
+        /**
+         * Keep only the subject, the session index and the attributes. Neither the Response nor the Assertion is
+         * available.
+         */
+        ATTRIBUTES
+    }
+
     public static class AccessTokenResponseBean implements Serializable{
 
         @XmlAttribute(name="access_token")
@@ -155,16 +226,25 @@ public class LoggedInSessionBean implements Serializable {
 
     public class SAML2SSO implements Serializable{
 
+        // Kept from the unversioned format, so that sessions serialized by older agents can still be read.
+        private static final long serialVersionUID = -3232513631445603044L;
+
         public static final String EMPTY_STRING = "";
         private String subjectId;
 
-        private Response response;
+        private transient volatile Response response;
+
+        private volatile String responseString;
+
+        // UTF-8 form of the response as read from a serialized session, decoded only when the response is used.
+        private volatile byte[] responseBytes;
 
-        private String responseString;
+        private transient volatile Assertion assertion;
 
-        private Assertion assertion;
+        private volatile String assertionString;
 
-        private String assertionString;
+        // UTF-8 form of the assertion as read from a serialized session, decoded only when the assertion is used.
+        private volatile byte[] assertionBytes;
 
         private AccessTokenResponseBean accessTokenResponseBean;
 
@@ -172,47 +252,140 @@ public class LoggedInSessionBean implements Serializable {
 
         private Map<String, String> subjectAttributes;
 
-        private void writeObject(java.io.ObjectOutputStream stream)
-                throws IOException {
+        private SAML2RetentionPolicy retentionPolicy = SAML2RetentionPolicy.ALL;
 
-            stream.writeObject(subjectId);
+        /**
+         * Writes the session in a versioned binary format, led by a one byte array holding the format version. The
+         * fields are written as length prefixed UTF-8 bytes.
+         */
+        private void writeObject(ObjectOutputStream stream) throws IOException {
 
-            stream.writeObject(responseString);
+            stream.writeObject(new byte[]{SERIAL_FORMAT_VERSION});
+            writeTo(stream);
+        }
 
-            stream.writeObject(assertionString);
+        /**
+         * Reads the session in the versioned format, or in the unversioned format of older agents, which starts
+         * with the subject ID instead of the format version.
+         */
+        private void readObject(ObjectInputStream stream) throws IOException, ClassNotFoundException {
 
-            stream.writeObject(sessionIndex);
-            if (accessTokenResponseBean != null) {
-                stream.writeObject(accessTokenResponseBean.toString());
-            } else {
-                stream.writeObject(EMPTY_STRING);
+            retentionPolicy = SAML2RetentionPolicy.ALL;
+            Object header = stream.readObject();
+            if (!(header instanceof byte[])) {
+                readLegacyFormat(stream, (String) header);
+                return;
             }
-            stream.writeObject(subjectAttributes);
+            byte[] version = (byte[]) header;
+            if (version.length != 1 || version[0] != SERIAL_FORMAT_VERSION) {
+                throw new InvalidObjectException("Unsupported LoggedInSessionBean serial format version");
+            }
+            readFrom(stream);
         }
 
-        private void readObject(java.io.ObjectInputStream stream)
-                throws IOException, ClassNotFoundException, SSOAgentException {
-
-            subjectId = (String) stream.readObject();
+        @SuppressWarnings("unchecked")
+        private void readLegacyFormat(ObjectInputStream stream, String subjectId)
+                throws IOException, ClassNotFoundException {
 
-            responseString = (String) stream.readObject();
-            if (responseString != null && !EMPTY_STRING.equals(responseString)) {
-                response = (Response) SSOAgentUtils.unmarshall(responseString);
+            this.subjectId = subjectId;
+            responseString = emptyToNull((String) stream.readObject());
+            assertionString = emptyToNull((String) stream.readObject());
+            sessionIndex = (String) stream.readObject();
+            String accessTokenResponseBeanString = emptyToNull((String) stream.readObject());
+            if (accessTokenResponseBeanString != null) {
+                accessTokenResponseBean = new AccessTokenResponseBean().deSerialize(accessTokenResponseBeanString);
+            }
+            subjectAttributes = (Map<String, String>) stream.readObject();
+        }
+
+        private void writeTo(DataOutput out) throws IOException {
+
+            out.writeByte(retentionPolicy.ordinal());
+            writeString(out, subjectId);
+            writeString(out, sessionIndex);
+            byte[] bytes = responseBytes;
+            writeBytes(out, bytes != null ? bytes : toBytes(getResponseString()));
+            bytes = assertionBytes;
+            writeBytes(out, bytes != null ? bytes : toBytes(getAssertionString()));
+            writeString(out, accessTokenResponseBean != null ? accessTokenResponseBean.toString() : null);
+            Map<String, String> attributes = subjectAttributes;
+            if (attributes == null) {
+                out.writeInt(-1);
+            } else {
+                out.writeInt(attributes.size());
+                for (Map.Entry<String, String> attribute : attributes.entrySet()) {
+                    writeString(out, attribute.getKey());
+                    writeString(out, attribute.getValue());
+                }
             }
+        }
+
+        private void readFrom(DataInput in) throws IOException {
 
-            assertionString = (String) stream.readObject();
-            if (responseString != null && !EMPTY_STRING.equals(assertionString)) {
-                assertion = (Assertion) SSOAgentUtils.unmarshall(assertionString);
+            int policy = in.readUnsignedByte();
+            if (policy >= SAML2RetentionPolicy.values().length) {
+                throw new InvalidObjectException("Unknown SAML2 retention policy : " + policy);
+            }
+            retentionPolicy = SAML2RetentionPolicy.values()[policy];
+            subjectId = readString(in);
+            sessionIndex = readString(in);
+            // The OpenSAML objects are only rebuilt when they are asked for, so replicating or passivating a
+            // session does not pay for unmarshalling.
+            responseBytes = readBytes(in);
+            assertionBytes = readBytes(in);
+            String accessTokenResponseBeanString = readString(in);
+            if (accessTokenResponseBeanString != null) {
+                accessTokenResponseBean = new AccessTokenResponseBean().deSerialize(accessTokenResponseBeanString);
+            }
+            int attributeCount = in.readInt();
+            if (attributeCount >= 0) {
+                subjectAttributes = new HashMap<String, String>((int) (attributeCount / 0.75f) + 1);
+                for (int i = 0; i < attributeCount; i++) {
+                    subjectAttributes.put(readString(in), readString(in));
+                }
             }
+        }
 
-            sessionIndex = (String) stream.readObject();
-            String accessTokenResponseBeanString = (String) stream.readObject();
-            if (!EMPTY_STRING.equals(accessTokenResponseBeanString)) {
-                accessTokenResponseBean = accessTokenResponseBean.deSerialize(accessTokenResponseBeanString);
+        /**
+         * Applies a retention policy, dropping the SAML2 objects and strings it does not keep. Objects that are
+         * kept only in serialized form are rebuilt by the getters on each access.
+         *
+         * @param retentionPolicy retention policy
+         */
+        public void setRetentionPolicy(SAML2RetentionPolicy retentionPolicy) {
+
+            this.retentionPolicy = retentionPolicy;
+            if (retentionPolicy == SAML2RetentionPolicy.ALL) {
+                return;
+            }
+            response = null;
+            responseString = null;
+            responseBytes = null;
+            if (retentionPolicy == SAML2RetentionPolicy.ASSERTION) {
+                if (assertionBytes == null) {
+                    assertionBytes = toBytes(getAssertionString());
+                }
             } else {
-                accessTokenResponseBean = null;
+                assertionBytes = null;
             }
-            subjectAttributes = (Map) stream.readObject();
+            assertion = null;
+            assertionString = null;
+        }
+
+        public SAML2RetentionPolicy getRetentionPolicy() {
+
+            return retentionPolicy;
+        }
+
+        /**
+         * Returns whether the session holds an assertion, without unmarshalling it.
+         *
+         * @return true if an assertion or its serialized form is available
+         */
+        public boolean hasAssertion() {
+
+            return assertion != null || (assertionBytes != null && assertionBytes.length > 0) ||
+                    (assertionString != null && !EMPTY_STRING.equals(assertionString));
         }
 
         public String getSubjectId() {
@@ -240,7 +413,14 @@ public class LoggedInSessionBean implements Serializable {
         }
 
         public Response getSAMLResponse() {
-            return response;
+            Response current = response;
+            if (current == null) {
+                current = (Response) unmarshall(getResponseString());
+                if (retentionPolicy == SAML2RetentionPolicy.ALL) {
+                    response = current;
+                }
+            }
+            return current;
         }
 
         public void setSAMLResponse(Response samlResponse) {
@@ -248,15 +428,41 @@ public class LoggedInSessionBean implements Serializable {
         }
 
         public String getResponseString() {
-            return responseString;
+            String current = responseString;
+            if (current == null) {
+                current = toString(responseBytes, response);
+                if (retentionPolicy == SAML2RetentionPolicy.ALL) {
+                    responseString = current;
+                }
+            }
+            return current;
         }
 
         public void setResponseString(String responseString) {
             this.responseString = responseString;
+            this.responseBytes = null;
+        }
+
+        /**
+         * Sets the UTF-8 bytes of the response, which are decoded into the response string only when it is asked
+         * for.
+         *
+         * @param responseBytes UTF-8 bytes of the response
+         */
+        public void setResponseBytes(byte[] responseBytes) {
+            this.responseBytes = responseBytes;
+            this.responseString = null;
         }
 
         public Assertion getAssertion() {
-            return assertion;
+            Assertion current = assertion;
+            if (current == null) {
+                current = (Assertion) unmarshall(getAssertionString());
+                if (retentionPolicy == SAML2RetentionPolicy.ALL) {
+                    assertion = current;
+                }
+            }
+            return current;
         }
 
         public void setAssertion(Assertion samlAssertion) {
@@ -264,11 +470,30 @@ public class LoggedInSessionBean implements Serializable {
         }
 
         public String getAssertionString() {
-            return assertionString;
+            String current = assertionString;
+            if (current == null) {
+                current = toString(assertionBytes, assertion);
+                if (retentionPolicy == SAML2RetentionPolicy.ALL) {
+                    assertionString = current;
+                }
+            }
+            return current;
         }
 
         public void setAssertionString(String samlAssertionString) {
             this.assertionString = samlAssertionString;
+            this.assertionBytes = null;
+        }
+
+        /**
+         * Sets the UTF-8 bytes of the assertion, which are decoded into the assertion string only when it is asked
+         * for.
+         *
+         * @param samlAssertionBytes UTF-8 bytes of the assertion
+         */
+        public void setAssertionBytes(byte[] samlAssertionBytes) {
+            this.assertionBytes = samlAssertionBytes;
+            this.assertionString = null;
         }
 
         public AccessTokenResponseBean getAccessTokenResponseBean() {
@@ -278,5 +503,43 @@ public class LoggedInSessionBean implements Serializable {
         public void setAccessTokenResponseBean(AccessTokenResponseBean accessTokenResponseBean) {
             this.accessTokenResponseBean = accessTokenResponseBean;
         }
+
+        private String emptyToNull(String value) {
+            return EMPTY_STRING.equals(value) ? null : value;
+        }
+
+        private byte[] toBytes(String value) {
+            return value != null ? value.getBytes(UTF_8) : null;
+        }
+
+        /**
+         * Decodes the given bytes, or serializes the object if there are none.
+         */
+        private String toString(byte[] bytes, XMLObject xmlObject) {
+            if (bytes != null) {
+                return new String(bytes, UTF_8);
+            }
+            if (xmlObject == null) {
+                return null;
+            }
+            try {
+                return SSOAgentUtils.marshall(xmlObject);
+            } catch (SSOAgentException e) {
+                LOGGER.log(Level.WARNING, "Error occurred while marshalling the SAML2 object of the session", e);
+                return null;
+            }
+        }
+
+        private XMLObject unmarshall(String xml) {
+            if (xml == null || EMPTY_STRING.equals(xml)) {
+                return null;
+            }
+            try {
+                return SSOAgentUtils.unmarshall(xml);
+            } catch (SSOAgentException e) {
+                LOGGER.log(Level.WARNING, "Error occurred while unmarshalling the SAML2 object of the session", e);
+                return null;
+            }
+        }
     }
 }
@@ -22,11 +22,15 @@ package org.wso2.carbon.identity.sso.agent.bean;
 
 import org.apache.commons.lang.ArrayUtils;
 import org.apache.commons.lang.StringUtils;
+import org.apache.xml.security.signature.XMLSignature;
 import org.opensaml.common.xml.SAMLConstants;
 import org.wso2.carbon.identity.sso.agent.AESDecryptor;
 import org.wso2.carbon.identity.sso.agent.util.SSOAgentConstants;
+import org.wso2.carbon.identity.sso.agent.util.SSOAgentSingleFlight;
 import org.wso2.carbon.identity.sso.agent.exception.SSOAgentException;
 import org.wso2.carbon.identity.sso.agent.openid.AttributesRequestor;
+import org.wso2.carbon.identity.sso.agent.saml.artifact.SAMLSSOArtifactResolutionEndpoint;
+import org.wso2.carbon.identity.sso.agent.saml.artifact.SAMLSSOHttpClientPool;
 import org.wso2.carbon.identity.sso.agent.security.SSOAgentCarbonX509Credential;
 import org.wso2.carbon.identity.sso.agent.security.SSOAgentX509Credential;
 
@@ -45,6 +49,7 @@ import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
@@ -472,8 +477,111 @@ public class SSOAgentConfig {
         saml2.postBindingRequestHTMLPayload = properties.getProperty(
                 SSOAgentConstants.SSOAgentConfig.SAML2.POST_BINDING_REQUEST_HTML_PAYLOAD);
         saml2.artifactResolveURL = properties.getProperty(SSOAgentConstants.SSOAgentConfig.SAML2.ARTIFACT_RESOLVE_URL);
+        String artifactResolveURLPrefix = SSOAgentConstants.SSOAgentConfig.SAML2.ARTIFACT_RESOLVE_URL_PREFIX;
+        for (String name : properties.stringPropertyNames()) {
+            if (name.startsWith(artifactResolveURLPrefix)) {
+                saml2.artifactResolveURLs.put(name.substring(artifactResolveURLPrefix.length()).trim()
+                        .toLowerCase(Locale.ENGLISH), properties.getProperty(name).trim());
+            }
+        }
         saml2.enableArtifactResolveSigning = StringUtils.equals(
                 properties.getProperty(SSOAgentConstants.SSOAgentConfig.SAML2.ENABLE_ARTIFACT_RESOLVE_SIGNING), "true");
+        String artifactResolveMaxConnectionsPerRoute = properties.getProperty(
+                SSOAgentConstants.SSOAgentConfig.SAML2.ARTIFACT_RESOLVE_MAX_CONNECTIONS_PER_ROUTE);
+        if (artifactResolveMaxConnectionsPerRoute != null) {
+            saml2.artifactResolveMaxConnectionsPerRoute =
+                    Integer.parseInt(artifactResolveMaxConnectionsPerRoute.trim());
+        }
+        String artifactResolveMaxConnections = properties.getProperty(
+                SSOAgentConstants.SSOAgentConfig.SAML2.ARTIFACT_RESOLVE_MAX_CONNECTIONS);
+        if (artifactResolveMaxConnections != null) {
+            saml2.artifactResolveMaxConnections = Integer.parseInt(artifactResolveMaxConnections.trim());
+        }
+        String artifactResolveConnectTimeout = properties.getProperty(
+                SSOAgentConstants.SSOAgentConfig.SAML2.ARTIFACT_RESOLVE_CONNECT_TIMEOUT);
+        if (artifactResolveConnectTimeout != null) {
+            saml2.artifactResolveConnectTimeout = Integer.parseInt(artifactResolveConnectTimeout.trim());
+        }
+        String artifactResolveReadTimeout = properties.getProperty(
+                SSOAgentConstants.SSOAgentConfig.SAML2.ARTIFACT_RESOLVE_READ_TIMEOUT);
+        if (artifactResolveReadTimeout != null) {
+            saml2.artifactResolveReadTimeout = Integer.parseInt(artifactResolveReadTimeout.trim());
+        }
+        String artifactResolveTimeout = properties.getProperty(
+                SSOAgentConstants.SSOAgentConfig.SAML2.ARTIFACT_RESOLVE_TIMEOUT);
+        if (artifactResolveTimeout != null) {
+            saml2.artifactResolveTimeout = Integer.parseInt(artifactResolveTimeout.trim());
+        }
+        String artifactResolveMaxConcurrency = properties.getProperty(
+                SSOAgentConstants.SSOAgentConfig.SAML2.ARTIFACT_RESOLVE_MAX_CONCURRENCY);
+        if (artifactResolveMaxConcurrency != null) {
+            saml2.artifactResolveMaxConcurrency = Integer.parseInt(artifactResolveMaxConcurrency.trim());
+        }
+        String artifactResolveCircuitBreakerFailureThreshold = properties.getProperty(
+                SSOAgentConstants.SSOAgentConfig.SAML2.ARTIFACT_RESOLVE_CIRCUIT_BREAKER_FAILURE_THRESHOLD);
+        if (artifactResolveCircuitBreakerFailureThreshold != null) {
+            saml2.artifactResolveCircuitBreakerFailureThreshold =
+                    Integer.parseInt(artifactResolveCircuitBreakerFailureThreshold.trim());
+        }
+        String artifactResolveCircuitBreakerOpenDuration = properties.getProperty(
+                SSOAgentConstants.SSOAgentConfig.SAML2.ARTIFACT_RESOLVE_CIRCUIT_BREAKER_OPEN_DURATION);
+        if (artifactResolveCircuitBreakerOpenDuration != null) {
+            saml2.artifactResolveCircuitBreakerOpenDuration =
+                    Integer.parseInt(artifactResolveCircuitBreakerOpenDuration.trim());
+        }
+        String duplicateResponseTimeout = properties.getProperty(
+                SSOAgentConstants.SSOAgentConfig.SAML2.DUPLICATE_RESPONSE_TIMEOUT);
+        if (duplicateResponseTimeout != null) {
+            saml2.duplicateResponseTimeout = Integer.parseInt(duplicateResponseTimeout.trim());
+        }
+        String duplicateResponseMaxEntries = properties.getProperty(
+                SSOAgentConstants.SSOAgentConfig.SAML2.DUPLICATE_RESPONSE_MAX_ENTRIES);
+        if (duplicateResponseMaxEntries != null) {
+            saml2.duplicateResponseMaxEntries = Integer.parseInt(duplicateResponseMaxEntries.trim());
+        }
+        saml2.isAuthnRequestTemplateEnabled = Boolean.parseBoolean(
+                properties.getProperty(SSOAgentConstants.SSOAgentConfig.SAML2.ENABLE_AUTHN_REQUEST_TEMPLATE));
+        saml2.isOmitOptionalAuthnRequestElements = Boolean.parseBoolean(
+                properties.getProperty(SSOAgentConstants.SSOAgentConfig.SAML2.OMIT_OPTIONAL_AUTHN_REQUEST_ELEMENTS));
+        String signatureAlgorithm = properties.getProperty(SSOAgentConstants.SSOAgentConfig.SAML2.SIGNATURE_ALGORITHM);
+        if (StringUtils.isNotBlank(signatureAlgorithm)) {
+            saml2.signatureAlgorithm = signatureAlgorithm.trim();
+        } else {
+            LOGGER.log(Level.FINE, SSOAgentConstants.SSOAgentConfig.SAML2.SIGNATURE_ALGORITHM +
+                    " not configured. Defaulting to " + XMLSignature.ALGO_ID_SIGNATURE_RSA);
+        }
+        saml2.isOmitSignatureKeyInfo = Boolean.parseBoolean(
+                properties.getProperty(SSOAgentConstants.SSOAgentConfig.SAML2.OMIT_SIGNATURE_KEY_INFO));
+        saml2.isWeakSessionIndexEnabled = Boolean.parseBoolean(
+                properties.getProperty(SSOAgentConstants.SSOAgentConfig.SAML2.ENABLE_WEAK_SESSION_INDEX));
+        saml2.isSessionNotOnOrAfterEnforced = Boolean.parseBoolean(
+                properties.getProperty(SSOAgentConstants.SSOAgentConfig.SAML2.ENFORCE_SESSION_NOT_ON_OR_AFTER));
+        String sessionRetentionPolicy = properties.getProperty(
+                SSOAgentConstants.SSOAgentConfig.SAML2.SESSION_RETENTION_POLICY);
+        if (StringUtils.isNotBlank(sessionRetentionPolicy)) {
+            try {
+                saml2.sessionRetentionPolicy = LoggedInSessionBean.SAML2RetentionPolicy.valueOf(
+                        sessionRetentionPolicy.trim().toUpperCase(Locale.ENGLISH));
+            } catch (IllegalArgumentException e) {
+                throw new SSOAgentException("Invalid value configured for \'" +
+                        SSOAgentConstants.SSOAgentConfig.SAML2.SESSION_RETENTION_POLICY + "\' : " +
+                        sessionRetentionPolicy, e);
+            }
+        } else {
+            LOGGER.log(Level.FINE, SSOAgentConstants.SSOAgentConfig.SAML2.SESSION_RETENTION_POLICY +
+                    " not configured. Defaulting to " + LoggedInSessionBean.SAML2RetentionPolicy.ALL);
+        }
+        saml2.sessionIndexStoreImplClass = StringUtils.trimToNull(
+                properties.getProperty(SSOAgentConstants.SSOAgentConfig.SAML2.SESSION_INDEX_STORE));
+        saml2.sessionLogoutBroadcasterImplClass = StringUtils.trimToNull(
+                properties.getProperty(SSOAgentConstants.SSOAgentConfig.SAML2.SESSION_LOGOUT_BROADCASTER));
+        String sessionIndexStorePrefix = SSOAgentConstants.SSOAgentConfig.SAML2.SESSION_INDEX_STORE_PROPERTY_PREFIX;
+        for (String name : properties.stringPropertyNames()) {
+            if (name.startsWith(sessionIndexStorePrefix)) {
+                saml2.sessionIndexStoreProperties.setProperty(name.substring(sessionIndexStorePrefix.length()),
+                        properties.getProperty(name));
+            }
+        }
 
         oauth2.tokenURL = properties.getProperty(
                 SSOAgentConstants.SSOAgentConfig.OAuth2.TOKEN_URL);
@@ -574,6 +682,12 @@ public class SSOAgentConfig {
                     SSOAgentConstants.SSOAgentConfig.OAUTH2_SAML2_GRANT_URL + "\' not configured");
         }
 
+        if (isSAML2SSOLoginEnabled && isOAuth2SAML2GrantEnabled &&
+                saml2.sessionRetentionPolicy == LoggedInSessionBean.SAML2RetentionPolicy.ATTRIBUTES) {
+            throw new SSOAgentException("\'" + SSOAgentConstants.SSOAgentConfig.SAML2.SESSION_RETENTION_POLICY +
+                    "\' does not keep the SAML2 Assertion. Cannot use SAML2 Bearer Grant type for OAuth2");
+        }
+
         if (isSAML2SSOLoginEnabled && saml2.spEntityId == null) {
             throw new SSOAgentException("\'" +
                     SSOAgentConstants.SSOAgentConfig.SAML2.SP_ENTITY_ID + "\' not configured");
@@ -746,7 +860,30 @@ public class SSOAgentConfig {
         private String signatureValidatorImplClass = null;
         private int timeStampSkewInSeconds = 300;
         private String artifactResolveURL = null;
+        private Map<String, String> artifactResolveURLs = new HashMap<String, String>();
         private boolean enableArtifactResolveSigning;
+        private int artifactResolveMaxConnectionsPerRoute = SAMLSSOHttpClientPool.DEFAULT_MAX_CONNECTIONS_PER_ROUTE;
+        private int artifactResolveMaxConnections = SAMLSSOHttpClientPool.DEFAULT_MAX_CONNECTIONS;
+        private int artifactResolveConnectTimeout = SAMLSSOHttpClientPool.DEFAULT_CONNECT_TIMEOUT;
+        private int artifactResolveReadTimeout = SAMLSSOHttpClientPool.DEFAULT_READ_TIMEOUT;
+        private int artifactResolveTimeout = SAMLSSOArtifactResolutionEndpoint.DEFAULT_TIMEOUT;
+        private int artifactResolveMaxConcurrency = SAMLSSOArtifactResolutionEndpoint.DEFAULT_MAX_CONCURRENCY;
+        private int artifactResolveCircuitBreakerFailureThreshold =
+                SAMLSSOArtifactResolutionEndpoint.DEFAULT_FAILURE_THRESHOLD;
+        private int artifactResolveCircuitBreakerOpenDuration = SAMLSSOArtifactResolutionEndpoint.DEFAULT_OPEN_DURATION;
+        private int duplicateResponseTimeout = SSOAgentSingleFlight.DEFAULT_MAX_WAIT;
+        private int duplicateResponseMaxEntries = SSOAgentSingleFlight.DEFAULT_MAX_ENTRIES;
+        private boolean isAuthnRequestTemplateEnabled = false;
+        private boolean isOmitOptionalAuthnRequestElements = false;
+        private String signatureAlgorithm = XMLSignature.ALGO_ID_SIGNATURE_RSA;
+        private boolean isOmitSignatureKeyInfo = false;
+        private boolean isWeakSessionIndexEnabled = false;
+        private boolean isSessionNotOnOrAfterEnforced = false;
+        private LoggedInSessionBean.SAML2RetentionPolicy sessionRetentionPolicy =
+                LoggedInSessionBean.SAML2RetentionPolicy.ALL;
+        private String sessionIndexStoreImplClass = null;
+        private String sessionLogoutBroadcasterImplClass = null;
+        private Properties sessionIndexStoreProperties = new Properties();
 
         public void setArtifactResolveURL(String artifactResolveURL) {
 
@@ -763,11 +900,298 @@ public class SSOAgentConfig {
             this.enableArtifactResolveSigning = enableArtifactResolveSigning;
         }
 
+        /**
+         * The Artifact Resolve URLs keyed by the SourceID of the type 0x0004 artifacts they resolve, as 40 lower case
+         * hex characters. Artifacts from other sources are resolved at the Artifact Resolve URL.
+         */
+        public Map<String, String> getArtifactResolveURLs() {
+
+            return artifactResolveURLs;
+        }
+
+        public void setArtifactResolveURLs(Map<String, String> artifactResolveURLs) {
+
+            this.artifactResolveURLs = artifactResolveURLs;
+        }
+
         public boolean isEnableArtifactResolveSigning() {
 
             return enableArtifactResolveSigning;
         }
 
+        /**
+         * The maximum number of pooled connections to the Artifact Resolve URL.
+         */
+        public int getArtifactResolveMaxConnectionsPerRoute() {
+
+            return artifactResolveMaxConnectionsPerRoute;
+        }
+
+        public void setArtifactResolveMaxConnectionsPerRoute(int artifactResolveMaxConnectionsPerRoute) {
+
+            this.artifactResolveMaxConnectionsPerRoute = artifactResolveMaxConnectionsPerRoute;
+        }
+
+        /**
+         * The maximum number of pooled connections of the artifact resolution HTTP client.
+         */
+        public int getArtifactResolveMaxConnections() {
+
+            return artifactResolveMaxConnections;
+        }
+
+        public void setArtifactResolveMaxConnections(int artifactResolveMaxConnections) {
+
+            this.artifactResolveMaxConnections = artifactResolveMaxConnections;
+        }
+
+        /**
+         * The connect timeout of artifact resolution requests in milliseconds, also used as the timeout for
+         * waiting on a pooled connection.
+         */
+        public int getArtifactResolveConnectTimeout() {
+
+            return artifactResolveConnectTimeout;
+        }
+
+        public void setArtifactResolveConnectTimeout(int artifactResolveConnectTimeout) {
+
+            this.artifactResolveConnectTimeout = artifactResolveConnectTimeout;
+        }
+
+        /**
+         * The read timeout of artifact resolution requests in milliseconds.
+         */
+        public int getArtifactResolveReadTimeout() {
+
+            return artifactResolveReadTimeout;
+        }
+
+        public void setArtifactResolveReadTimeout(int artifactResolveReadTimeout) {
+
+            this.artifactResolveReadTimeout = artifactResolveReadTimeout;
+        }
+
+        /**
+         * The deadline for resolving an artifact in milliseconds, after which the login fails.
+         */
+        public int getArtifactResolveTimeout() {
+
+            return artifactResolveTimeout;
+        }
+
+        public void setArtifactResolveTimeout(int artifactResolveTimeout) {
+
+            this.artifactResolveTimeout = artifactResolveTimeout;
+        }
+
+        /**
+         * The maximum number of artifact resolutions in progress to the Artifact Resolve URL. Further
+         * resolutions are rejected.
+         */
+        public int getArtifactResolveMaxConcurrency() {
+
+            return artifactResolveMaxConcurrency;
+        }
+
+        public void setArtifactResolveMaxConcurrency(int artifactResolveMaxConcurrency) {
+
+            this.artifactResolveMaxConcurrency = artifactResolveMaxConcurrency;
+        }
+
+        /**
+         * The number of consecutive failed artifact resolutions after which further resolutions are
+         * rejected for a while. 0 disables the circuit breaker.
+         */
+        public int getArtifactResolveCircuitBreakerFailureThreshold() {
+
+            return artifactResolveCircuitBreakerFailureThreshold;
+        }
+
+        public void setArtifactResolveCircuitBreakerFailureThreshold(
+                int artifactResolveCircuitBreakerFailureThreshold) {
+
+            this.artifactResolveCircuitBreakerFailureThreshold = artifactResolveCircuitBreakerFailureThreshold;
+        }
+
+        /**
+         * The time in milliseconds for which artifact resolutions are rejected once the circuit breaker
+         * has opened.
+         */
+        public int getArtifactResolveCircuitBreakerOpenDuration() {
+
+            return artifactResolveCircuitBreakerOpenDuration;
+        }
+
+        public void setArtifactResolveCircuitBreakerOpenDuration(int artifactResolveCircuitBreakerOpenDuration) {
+
+            this.artifactResolveCircuitBreakerOpenDuration = artifactResolveCircuitBreakerOpenDuration;
+        }
+
+        /**
+         * The maximum time in milliseconds a duplicate post of a SAML2 Response waits for the copy in progress.
+         */
+        public int getDuplicateResponseTimeout() {
+
+            return duplicateResponseTimeout;
+        }
+
+        public void setDuplicateResponseTimeout(int duplicateResponseTimeout) {
+
+            this.duplicateResponseTimeout = duplicateResponseTimeout;
+        }
+
+        /**
+         * The maximum number of SAML2 Responses and artifacts in progress tracked for de-duplication at a time.
+         * 0 disables the de-duplication.
+         */
+        public int getDuplicateResponseMaxEntries() {
+
+            return duplicateResponseMaxEntries;
+        }
+
+        public void setDuplicateResponseMaxEntries(int duplicateResponseMaxEntries) {
+
+            this.duplicateResponseMaxEntries = duplicateResponseMaxEntries;
+        }
+
+        /**
+         * Whether unsigned redirect binding AuthnRequests without Extensions are serialized directly from a
+         * pre-encoded template instead of being marshalled through OpenSAML.
+         */
+        public boolean isAuthnRequestTemplateEnabled() {
+
+            return isAuthnRequestTemplateEnabled;
+        }
+
+        public void setAuthnRequestTemplateEnabled(boolean isAuthnRequestTemplateEnabled) {
+
+            this.isAuthnRequestTemplateEnabled = isAuthnRequestTemplateEnabled;
+        }
+
+        /**
+         * Whether the optional NameIDPolicy and RequestedAuthnContext elements are left out of AuthnRequests.
+         */
+        public boolean isOmitOptionalAuthnRequestElements() {
+
+            return isOmitOptionalAuthnRequestElements;
+        }
+
+        public void setOmitOptionalAuthnRequestElements(boolean isOmitOptionalAuthnRequestElements) {
+
+            this.isOmitOptionalAuthnRequestElements = isOmitOptionalAuthnRequestElements;
+        }
+
+        /**
+         * The XML signature algorithm URI used to sign requests and the SigAlg of redirect binding messages.
+         */
+        public String getSignatureAlgorithm() {
+
+            return signatureAlgorithm;
+        }
+
+        public void setSignatureAlgorithm(String signatureAlgorithm) {
+
+            this.signatureAlgorithm = signatureAlgorithm;
+        }
+
+        /**
+         * Whether the ds:KeyInfo with the SP certificate is left out of signed requests. The IdP then has to
+         * know the SP certificate from its metadata.
+         */
+        public boolean isOmitSignatureKeyInfo() {
+
+            return isOmitSignatureKeyInfo;
+        }
+
+        public void setOmitSignatureKeyInfo(boolean isOmitSignatureKeyInfo) {
+
+            this.isOmitSignatureKeyInfo = isOmitSignatureKeyInfo;
+        }
+
+        /**
+         * Whether the single logout session index holds the HTTP sessions through weak references, so that sessions
+         * dropped by the container without a session destroyed event can be garbage collected.
+         */
+        public boolean isWeakSessionIndexEnabled() {
+
+            return isWeakSessionIndexEnabled;
+        }
+
+        public void setWeakSessionIndexEnabled(boolean isWeakSessionIndexEnabled) {
+
+            this.isWeakSessionIndexEnabled = isWeakSessionIndexEnabled;
+        }
+
+        /**
+         * Whether the HTTP session is invalidated once the SessionNotOnOrAfter of the AuthnStatement has passed.
+         * Otherwise the session is left to the container timeout.
+         */
+        public boolean isSessionNotOnOrAfterEnforced() {
+
+            return isSessionNotOnOrAfterEnforced;
+        }
+
+        public void setSessionNotOnOrAfterEnforced(boolean isSessionNotOnOrAfterEnforced) {
+
+            this.isSessionNotOnOrAfterEnforced = isSessionNotOnOrAfterEnforced;
+        }
+
+        /**
+         * Which SAML2 objects are kept in the session after login. The SAML2 Bearer Grant for OAuth2 needs the
+         * assertion, hence it cannot be used with {@link LoggedInSessionBean.SAML2RetentionPolicy#ATTRIBUTES}.
+         */
+        public LoggedInSessionBean.SAML2RetentionPolicy getSessionRetentionPolicy() {
+
+            return sessionRetentionPolicy;
+        }
+
+        public void setSessionRetentionPolicy(LoggedInSessionBean.SAML2RetentionPolicy sessionRetentionPolicy) {
+
+            this.sessionRetentionPolicy = sessionRetentionPolicy;
+        }
+
+        /**
+         * The class of the store that shares the single logout session index between the nodes of a cluster. If
+         * not configured, the session index is local to this node.
+         */
+        public String getSessionIndexStoreImplClass() {
+
+            return sessionIndexStoreImplClass;
+        }
+
+        public void setSessionIndexStoreImplClass(String sessionIndexStoreImplClass) {
+
+            this.sessionIndexStoreImplClass = sessionIndexStoreImplClass;
+        }
+
+        /**
+         * The class that notifies the other nodes of a cluster of single logouts, in addition to polling the
+         * session index store.
+         */
+        public String getSessionLogoutBroadcasterImplClass() {
+
+            return sessionLogoutBroadcasterImplClass;
+        }
+
+        public void setSessionLogoutBroadcasterImplClass(String sessionLogoutBroadcasterImplClass) {
+
+            this.sessionLogoutBroadcasterImplClass = sessionLogoutBroadcasterImplClass;
+        }
+
+        /**
+         * The 'SAML2.SessionIndexStore.*' properties, with the prefix removed.
+         */
+        public Properties getSessionIndexStoreProperties() {
+
+            return sessionIndexStoreProperties;
+        }
+
+        public void setSessionIndexStoreProperties(Properties sessionIndexStoreProperties) {
+
+            this.sessionIndexStoreProperties = sessionIndexStoreProperties;
+        }
+
         /**
          * The html page that will auto-submit the SAML2 to the IdP.
          * This should be in valid HTML syntax, with following section within the
@@ -21,6 +21,10 @@ package org.wso2.carbon.identity.sso.agent.internal;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.osgi.service.component.ComponentContext;
+import org.wso2.carbon.base.MultitenantConstants;
+import org.wso2.carbon.identity.core.util.IdentityCoreConstants;
+import org.wso2.carbon.user.api.UserStoreException;
+import org.wso2.carbon.user.core.UserStoreManager;
 import org.wso2.carbon.user.core.service.RealmService;
 
 /**
@@ -34,18 +38,56 @@ public class SSOAgentServiceComponent {
 
     private static Log log = LogFactory.getLog(SSOAgentServiceComponent.class);
     private static RealmService realmService;
+    private static volatile String multiAttributeSeparator;
+    private static volatile boolean isMultiAttributeSeparatorLoaded = false;
 
     public static RealmService getRealmService() {
 
         return SSOAgentServiceComponent.realmService;
     }
 
+    /**
+     * Returns the MultiAttributeSeparator of the primary user store. The value is read from the realm
+     * configuration once and kept until the realm service is bound or unbound again.
+     *
+     * @param defaultSeparator separator to return if the realm service is not available or cannot be read
+     * @return configured separator, which is null if the user store configures none
+     */
+    public static String getMultiAttributeSeparator(String defaultSeparator) {
+
+        if (isMultiAttributeSeparatorLoaded) {
+            return multiAttributeSeparator;
+        }
+        RealmService currentRealmService = realmService;
+        if (currentRealmService == null) {
+            return defaultSeparator;
+        }
+        try {
+            UserStoreManager userStoreManager = (UserStoreManager) currentRealmService.getTenantUserRealm(
+                    MultitenantConstants.SUPER_TENANT_ID).getUserStoreManager();
+            multiAttributeSeparator = userStoreManager.getRealmConfiguration().getUserStoreProperty(
+                    IdentityCoreConstants.MULTI_ATTRIBUTE_SEPARATOR);
+            isMultiAttributeSeparatorLoaded = currentRealmService == realmService;
+        } catch (UserStoreException e) {
+            log.warn("Error while reading MultiAttributeSeparator value from primary user store ", e);
+            return defaultSeparator;
+        }
+        return multiAttributeSeparator;
+    }
+
+    private static void clearMultiAttributeSeparator() {
+
+        isMultiAttributeSeparatorLoaded = false;
+        multiAttributeSeparator = null;
+    }
+
     protected void setRealmService(RealmService realmService) {
 
         if (log.isDebugEnabled()) {
             log.debug("RealmService is set in the SSO agent bundle");
         }
         SSOAgentServiceComponent.realmService = realmService;
+        clearMultiAttributeSeparator();
     }
 
     protected void activate(ComponentContext ctxt) {
@@ -68,5 +110,6 @@ public class SSOAgentServiceComponent {
             log.debug("RealmService is unset in the SSO Agent bundle");
         }
         SSOAgentServiceComponent.realmService = null;
+        clearMultiAttributeSeparator();
     }
 }
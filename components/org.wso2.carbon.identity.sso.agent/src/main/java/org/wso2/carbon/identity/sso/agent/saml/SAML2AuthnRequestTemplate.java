@@ -0,0 +1,242 @@
+/*
+ * Copyright (c) 2018, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.identity.sso.agent.saml;
+
+import org.apache.commons.lang.StringUtils;
+import org.joda.time.DateTime;
+import org.opensaml.Configuration;
+import org.opensaml.common.SAMLVersion;
+import org.opensaml.common.xml.SAMLConstants;
+import org.opensaml.saml2.common.Extensions;
+import org.opensaml.saml2.core.AuthnContextClassRef;
+import org.opensaml.saml2.core.AuthnContextComparisonTypeEnumeration;
+import org.opensaml.saml2.core.AuthnRequest;
+import org.opensaml.saml2.core.Issuer;
+import org.opensaml.saml2.core.NameIDPolicy;
+import org.opensaml.saml2.core.RequestedAuthnContext;
+import org.opensaml.saml2.core.impl.AuthnContextClassRefBuilder;
+import org.opensaml.saml2.core.impl.AuthnRequestBuilder;
+import org.opensaml.saml2.core.impl.IssuerBuilder;
+import org.opensaml.saml2.core.impl.NameIDPolicyBuilder;
+import org.opensaml.saml2.core.impl.RequestedAuthnContextBuilder;
+import org.owasp.encoder.Encode;
+import org.wso2.carbon.identity.sso.agent.bean.SSOAgentConfig;
+import org.wso2.carbon.identity.sso.agent.exception.SSOAgentException;
+import org.wso2.carbon.identity.sso.agent.util.SSOAgentConstants;
+
+import java.nio.charset.Charset;
+
+/**
+ * Prepared SAML2 AuthnRequest built from the SAML2 configuration.
+ * <p/>
+ * Everything in an AuthnRequest except the ID, the IssueInstant, the IsPassive and ForceAuthn flags and the
+ * optional Extensions is derived from the configuration. These invariant parts are resolved once, and the OpenSAML
+ * builders are shared, so a request only fills in the variable fields. For unsigned requests without Extensions
+ * the serialized XML can also be emitted directly from a pre-encoded byte template, skipping the OpenSAML
+ * marshaller.
+ * <p/>
+ * If optional elements are omitted, the NameIDPolicy and RequestedAuthnContext elements are left out, so that the
+ * IdP defaults apply. This shrinks the redirect URL.
+ */
+public class SAML2AuthnRequestTemplate {
+
+    private static final String NAME_ID_FORMAT_PERSISTENT = "urn:oasis:names:tc:SAML:2.0:nameid-format:persistent";
+    private static final String SP_NAME_QUALIFIER = "Issuer";
+    private static final String PASSWORD_PROTECTED_TRANSPORT =
+            "urn:oasis:names:tc:SAML:2.0:ac:classes:PasswordProtectedTransport";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final IssuerBuilder ISSUER_BUILDER = new IssuerBuilder();
+    private static final NameIDPolicyBuilder NAME_ID_POLICY_BUILDER = new NameIDPolicyBuilder();
+    private static final AuthnContextClassRefBuilder AUTHN_CONTEXT_CLASS_REF_BUILDER =
+            new AuthnContextClassRefBuilder();
+    private static final RequestedAuthnContextBuilder REQUESTED_AUTHN_CONTEXT_BUILDER =
+            new RequestedAuthnContextBuilder();
+    private static final AuthnRequestBuilder AUTHN_REQUEST_BUILDER = new AuthnRequestBuilder();
+
+    private final String spEntityId;
+    private final String acsURL;
+    private final String idPURL;
+    private final String protocolBinding;
+    private final Integer attributeConsumingServiceIndex;
+    private final boolean omitOptionalElements;
+
+    private final byte[] templateHead;
+    private final byte[] templateTail;
+
+    public SAML2AuthnRequestTemplate(SSOAgentConfig.SAML2 saml2) throws SSOAgentException {
+
+        this.spEntityId = saml2.getSPEntityId();
+        this.acsURL = saml2.getACSURL();
+        this.idPURL = saml2.getIdPURL();
+        this.protocolBinding = saml2.getHttpBinding();
+        this.omitOptionalElements = saml2.isOmitOptionalAuthnRequestElements();
+
+        /* Requesting Attributes. This Index value is registered in the IDP */
+        String index = saml2.getAttributeConsumingServiceIndex();
+        if (StringUtils.isNotBlank(index)) {
+            try {
+                this.attributeConsumingServiceIndex = Integer.parseInt(index.trim());
+            } catch (NumberFormatException e) {
+                throw new SSOAgentException("Invalid value configured for '" +
+                        SSOAgentConstants.SSOAgentConfig.SAML2.ATTRIBUTE_CONSUMING_SERVICE_INDEX + "'", e);
+            }
+        } else {
+            this.attributeConsumingServiceIndex = null;
+        }
+
+        this.templateHead = buildTemplateHead().getBytes(UTF_8);
+        this.templateTail = buildTemplateTail().getBytes(UTF_8);
+    }
+
+    /**
+     * Builds an AuthnRequest object with the invariant parts taken from the configuration.
+     *
+     * @param id           request ID
+     * @param issueInstant request issue instant
+     * @param isForceAuthn whether the IdP should force authentication
+     * @param isPassive    whether the IdP should authenticate passively
+     * @param extensions   optional extensions, may be null
+     * @return AuthnRequest
+     */
+    public AuthnRequest buildAuthnRequest(String id, DateTime issueInstant, boolean isForceAuthn, boolean isPassive,
+                                          Extensions extensions) {
+
+        Issuer issuer = ISSUER_BUILDER.buildObject(SAMLConstants.SAML20_NS, Issuer.DEFAULT_ELEMENT_LOCAL_NAME,
+                "samlp");
+        issuer.setValue(spEntityId);
+
+        /* Creation of AuthRequestObject */
+        AuthnRequest authRequest = AUTHN_REQUEST_BUILDER.buildObject(SAMLConstants.SAML20P_NS,
+                AuthnRequest.DEFAULT_ELEMENT_LOCAL_NAME, "samlp");
+
+        authRequest.setForceAuthn(isForceAuthn);
+        authRequest.setIsPassive(isPassive);
+        authRequest.setIssueInstant(issueInstant);
+        authRequest.setProtocolBinding(protocolBinding);
+        authRequest.setAssertionConsumerServiceURL(acsURL);
+        authRequest.setIssuer(issuer);
+        if (!omitOptionalElements) {
+            authRequest.setNameIDPolicy(buildNameIDPolicy());
+            authRequest.setRequestedAuthnContext(buildRequestedAuthnContext());
+        }
+        authRequest.setID(id);
+        authRequest.setVersion(SAMLVersion.VERSION_20);
+        authRequest.setDestination(idPURL);
+        if (extensions != null) {
+            authRequest.setExtensions(extensions);
+        }
+        if (attributeConsumingServiceIndex != null) {
+            authRequest.setAttributeConsumingServiceIndex(attributeConsumingServiceIndex);
+        }
+        return authRequest;
+    }
+
+    /**
+     * Serializes an unsigned AuthnRequest without Extensions directly from the byte template.
+     *
+     * @param id           request ID
+     * @param issueInstant request issue instant
+     * @param isForceAuthn whether the IdP should force authentication
+     * @param isPassive    whether the IdP should authenticate passively
+     * @return UTF-8 encoded AuthnRequest XML
+     */
+    public byte[] buildAuthnRequestXML(String id, DateTime issueInstant, boolean isForceAuthn, boolean isPassive) {
+
+        StringBuilder variablePart = new StringBuilder(128);
+        variablePart.append(isForceAuthn).append("\" ID=\"").append(Encode.forXmlAttribute(id))
+                .append("\" IsPassive=\"").append(isPassive)
+                .append("\" IssueInstant=\"").append(Configuration.getSAMLDateFormatter().print(issueInstant))
+                .append('"');
+        byte[] variableBytes = variablePart.toString().getBytes(UTF_8);
+
+        byte[] xml = new byte[templateHead.length + variableBytes.length + templateTail.length];
+        System.arraycopy(templateHead, 0, xml, 0, templateHead.length);
+        System.arraycopy(variableBytes, 0, xml, templateHead.length, variableBytes.length);
+        System.arraycopy(templateTail, 0, xml, templateHead.length + variableBytes.length, templateTail.length);
+        return xml;
+    }
+
+    private String buildTemplateHead() {
+
+        StringBuilder head = new StringBuilder(512);
+        head.append("<samlp:AuthnRequest xmlns:samlp=\"").append(SAMLConstants.SAML20P_NS).append('"');
+        appendAttribute(head, "AssertionConsumerServiceURL", acsURL);
+        if (attributeConsumingServiceIndex != null) {
+            appendAttribute(head, "AttributeConsumingServiceIndex", String.valueOf(attributeConsumingServiceIndex));
+        }
+        appendAttribute(head, "Destination", idPURL);
+        head.append(" ForceAuthn=\"");
+        return head.toString();
+    }
+
+    private String buildTemplateTail() {
+
+        StringBuilder tail = new StringBuilder(512);
+        appendAttribute(tail, "ProtocolBinding", protocolBinding);
+        tail.append(" Version=\"").append(SAMLVersion.VERSION_20.toString()).append("\">");
+        tail.append("<saml:Issuer xmlns:saml=\"").append(SAMLConstants.SAML20_NS).append("\">");
+        if (spEntityId != null) {
+            tail.append(Encode.forXmlContent(spEntityId));
+        }
+        tail.append("</saml:Issuer>");
+        if (!omitOptionalElements) {
+            tail.append("<samlp:NameIDPolicy AllowCreate=\"true\" Format=\"").append(NAME_ID_FORMAT_PERSISTENT)
+                    .append("\" SPNameQualifier=\"").append(SP_NAME_QUALIFIER).append("\"/>");
+            tail.append("<samlp:RequestedAuthnContext Comparison=\"")
+                    .append(AuthnContextComparisonTypeEnumeration.EXACT.toString()).append("\">");
+            tail.append("<saml:AuthnContextClassRef xmlns:saml=\"").append(SAMLConstants.SAML20_NS).append("\">")
+                    .append(PASSWORD_PROTECTED_TRANSPORT).append("</saml:AuthnContextClassRef>");
+            tail.append("</samlp:RequestedAuthnContext>");
+        }
+        tail.append("</samlp:AuthnRequest>");
+        return tail.toString();
+    }
+
+    private static void appendAttribute(StringBuilder builder, String name, String value) {
+
+        if (value != null) {
+            builder.append(' ').append(name).append("=\"").append(Encode.forXmlAttribute(value)).append('"');
+        }
+    }
+
+    private static NameIDPolicy buildNameIDPolicy() {
+
+        /* NameIDPolicy */
+        NameIDPolicy nameIdPolicy = NAME_ID_POLICY_BUILDER.buildObject();
+        nameIdPolicy.setFormat(NAME_ID_FORMAT_PERSISTENT);
+        nameIdPolicy.setSPNameQualifier(SP_NAME_QUALIFIER);
+        nameIdPolicy.setAllowCreate(true);
+        return nameIdPolicy;
+    }
+
+    private static RequestedAuthnContext buildRequestedAuthnContext() {
+
+        /* AuthnContextClass */
+        AuthnContextClassRef authnContextClassRef = AUTHN_CONTEXT_CLASS_REF_BUILDER.buildObject(
+                SAMLConstants.SAML20_NS, AuthnContextClassRef.DEFAULT_ELEMENT_LOCAL_NAME, "saml");
+        authnContextClassRef.setAuthnContextClassRef(PASSWORD_PROTECTED_TRANSPORT);
+
+        /* AuthnContex */
+        RequestedAuthnContext requestedAuthnContext = REQUESTED_AUTHN_CONTEXT_BUILDER.buildObject();
+        requestedAuthnContext.setComparison(AuthnContextComparisonTypeEnumeration.EXACT);
+        requestedAuthnContext.getAuthnContextClassRefs().add(authnContextClassRef);
+        return requestedAuthnContext;
+    }
+}
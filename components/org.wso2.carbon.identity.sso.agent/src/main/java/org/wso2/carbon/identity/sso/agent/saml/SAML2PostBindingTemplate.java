@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) 2018, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.identity.sso.agent.saml;
+
+import org.owasp.encoder.Encode;
+import org.wso2.carbon.identity.sso.agent.bean.SSOAgentConfig;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Precompiled HTML page for the SAML2 HTTP-POST binding.
+ * <p/>
+ * The configured 'SAML2.PostBindingRequestHTMLPayload' template, or the default auto submitting form, is split
+ * once at the '&lt;!--$saml_params--&gt;' placeholders into UTF-8 encoded byte segments. A page is rendered by
+ * writing these segments to the response stream, with the hidden form inputs streamed in between, so the full page
+ * is never built in memory.
+ */
+public class SAML2PostBindingTemplate {
+
+    public static final String SAML_PARAMS_PLACEHOLDER = "<!--$saml_params-->";
+    public static final String CONTENT_TYPE = "text/html";
+    public static final String CHARACTER_ENCODING = "UTF-8";
+
+    private static final Charset UTF_8 = Charset.forName(CHARACTER_ENCODING);
+    private static final byte[] INPUT_NAME = "<input type='hidden' name='".getBytes(UTF_8);
+    private static final byte[] INPUT_VALUE = "' value='".getBytes(UTF_8);
+    private static final byte[] INPUT_END = "'>\n".getBytes(UTF_8);
+
+    private final byte[][] segments;
+
+    public SAML2PostBindingTemplate(SSOAgentConfig.SAML2 saml2) {
+
+        String htmlPayload = saml2.getPostBindingRequestHTMLPayload();
+        List<byte[]> segmentList = new ArrayList<byte[]>();
+        if (htmlPayload == null || !htmlPayload.contains(SAML_PARAMS_PLACEHOLDER)) {
+            String idPURL = saml2.getIdPURL();
+            segmentList.add(("<html>\n" +
+                    "<body>\n" +
+                    "<p>You are now redirected back to " + Encode.forHtml(idPURL) + " \n" +
+                    "If the redirection fails, please click the post button.</p>\n" +
+                    "<form method='post' action='" + Encode.forHtmlAttribute(idPURL) + "'>\n" +
+                    "<p>\n").getBytes(UTF_8));
+            segmentList.add(("<button type='submit'>POST</button>\n" +
+                    "</p>\n" +
+                    "</form>\n" +
+                    "<script type='text/javascript'>\n" +
+                    "document.forms[0].submit();\n" +
+                    "</script>\n" +
+                    "</body>\n" +
+                    "</html>").getBytes(UTF_8));
+        } else {
+            int start = 0;
+            int index;
+            while ((index = htmlPayload.indexOf(SAML_PARAMS_PLACEHOLDER, start)) >= 0) {
+                segmentList.add(htmlPayload.substring(start, index).getBytes(UTF_8));
+                start = index + SAML_PARAMS_PLACEHOLDER.length();
+            }
+            segmentList.add(htmlPayload.substring(start).getBytes(UTF_8));
+        }
+        this.segments = segmentList.toArray(new byte[segmentList.size()][]);
+    }
+
+    /**
+     * Renders the page with the given parameters as hidden form inputs.
+     *
+     * @param outputStream stream to write the UTF-8 encoded page to
+     * @param params       form parameters
+     * @throws IOException if the stream cannot be written
+     */
+    public void writeTo(OutputStream outputStream, Map<String, String[]> params) throws IOException {
+
+        outputStream.write(segments[0]);
+        for (int i = 1; i < segments.length; i++) {
+            writeParams(outputStream, params);
+            outputStream.write(segments[i]);
+        }
+        outputStream.flush();
+    }
+
+    private static void writeParams(OutputStream outputStream, Map<String, String[]> params) throws IOException {
+
+        for (Map.Entry<String, String[]> entry : params.entrySet()) {
+            if (entry.getKey() != null && entry.getValue() != null && entry.getValue().length > 0) {
+                byte[] name = entry.getKey().getBytes(UTF_8);
+                for (String param : entry.getValue()) {
+                    outputStream.write(INPUT_NAME);
+                    outputStream.write(name);
+                    outputStream.write(INPUT_VALUE);
+                    outputStream.write(Encode.forHtmlAttribute(param).getBytes(UTF_8));
+                    outputStream.write(INPUT_END);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright (c) 2018, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.identity.sso.agent.saml;
+
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.Deflater;
+
+/**
+ * Encoder for the SAML2 HTTP-Redirect binding.
+ * <p/>
+ * The serialized message is raw deflated, Base64 encoded and URL encoded in a single pass into one pre-sized
+ * buffer, without the intermediate streams and Strings of the generic encoders. Deflater instances are pooled and
+ * reset between messages, and are ended when they are discarded so that their native memory is released
+ * immediately instead of at garbage collection.
+ */
+public class SAML2RedirectEncoder {
+
+    private static final int DEFAULT_MAX_IDLE_DEFLATERS = 32;
+    private static final char[] BASE64_ALPHABET =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+
+    private static final SAML2RedirectEncoder INSTANCE = new SAML2RedirectEncoder(DEFAULT_MAX_IDLE_DEFLATERS);
+
+    private final BlockingQueue<Deflater> idleDeflaters;
+
+    public SAML2RedirectEncoder(int maxIdleDeflaters) {
+
+        this.idleDeflaters = new ArrayBlockingQueue<Deflater>(maxIdleDeflaters);
+    }
+
+    public static SAML2RedirectEncoder getInstance() {
+
+        return INSTANCE;
+    }
+
+    /**
+     * Deflate, Base64 encode and URL encode a serialized SAML2 message.
+     *
+     * @param message UTF-8 encoded SAML2 message
+     * @return value of the SAMLRequest or SAMLResponse query parameter
+     */
+    public String encode(byte[] message) {
+
+        Deflater deflater = borrow();
+        byte[] deflated;
+        int deflatedLength = 0;
+        try {
+            deflater.setInput(message);
+            deflater.finish();
+            deflated = new byte[message.length / 2 + 64];
+            while (!deflater.finished()) {
+                if (deflatedLength == deflated.length) {
+                    deflated = Arrays.copyOf(deflated, deflated.length * 2);
+                }
+                deflatedLength += deflater.deflate(deflated, deflatedLength, deflated.length - deflatedLength);
+            }
+        } catch (RuntimeException e) {
+            deflater.end();
+            throw e;
+        }
+        release(deflater);
+        return base64URLEncode(deflated, deflatedLength);
+    }
+
+    /**
+     * Base64 encodes the given bytes without line breaks and URL encodes the result in the same pass. Only '+',
+     * '/' and '=' of the Base64 alphabet need URL encoding.
+     */
+    static String base64URLEncode(byte[] data, int length) {
+
+        int base64Length = (length + 2) / 3 * 4;
+        StringBuilder encoded = new StringBuilder(base64Length + base64Length / 8 + 8);
+        int i = 0;
+        for (; i + 2 < length; i += 3) {
+            int block = ((data[i] & 0xff) << 16) | ((data[i + 1] & 0xff) << 8) | (data[i + 2] & 0xff);
+            appendURLEncoded(encoded, BASE64_ALPHABET[(block >>> 18) & 0x3f]);
+            appendURLEncoded(encoded, BASE64_ALPHABET[(block >>> 12) & 0x3f]);
+            appendURLEncoded(encoded, BASE64_ALPHABET[(block >>> 6) & 0x3f]);
+            appendURLEncoded(encoded, BASE64_ALPHABET[block & 0x3f]);
+        }
+        int remaining = length - i;
+        if (remaining > 0) {
+            int block = (data[i] & 0xff) << 16;
+            if (remaining == 2) {
+                block |= (data[i + 1] & 0xff) << 8;
+            }
+            appendURLEncoded(encoded, BASE64_ALPHABET[(block >>> 18) & 0x3f]);
+            appendURLEncoded(encoded, BASE64_ALPHABET[(block >>> 12) & 0x3f]);
+            if (remaining == 2) {
+                appendURLEncoded(encoded, BASE64_ALPHABET[(block >>> 6) & 0x3f]);
+            } else {
+                appendURLEncoded(encoded, '=');
+            }
+            appendURLEncoded(encoded, '=');
+        }
+        return encoded.toString();
+    }
+
+    private static void appendURLEncoded(StringBuilder builder, char c) {
+
+        switch (c) {
+            case '+':
+                builder.append("%2B");
+                break;
+            case '/':
+                builder.append("%2F");
+                break;
+            case '=':
+                builder.append("%3D");
+                break;
+            default:
+                builder.append(c);
+        }
+    }
+
+    private Deflater borrow() {
+
+        Deflater deflater = idleDeflaters.poll();
+        if (deflater == null) {
+            deflater = new Deflater(Deflater.DEFLATED, true);
+        }
+        return deflater;
+    }
+
+    private void release(Deflater deflater) {
+
+        deflater.reset();
+        if (!idleDeflaters.offer(deflater)) {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Releases the native memory of all idle Deflater instances.
+     */
+    public void close() {
+
+        Deflater deflater;
+        while ((deflater = idleDeflaters.poll()) != null) {
+            deflater.end();
+        }
+    }
+}
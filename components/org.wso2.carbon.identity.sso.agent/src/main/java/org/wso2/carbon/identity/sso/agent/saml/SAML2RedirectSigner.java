@@ -0,0 +1,176 @@
+/*
+ * Copyright (c) 2018, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.identity.sso.agent.saml;
+
+import org.apache.xml.security.signature.XMLSignature;
+import org.wso2.carbon.identity.sso.agent.exception.SSOAgentException;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.PrivateKey;
+import java.security.Signature;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Signer for the query string of SAML2 HTTP-Redirect binding messages.
+ * <p/>
+ * A signer is bound to the SP private key and one SigAlg. {@link Signature} objects are initialized for signing
+ * once and kept in a bounded pool, as a Signature returns to its initialized state after each
+ * {@link Signature#sign()}. The query string is fed to the Signature in chunks straight from the StringBuilder.
+ */
+public class SAML2RedirectSigner {
+
+    private static final int DEFAULT_MAX_IDLE_SIGNATURES = 32;
+    private static final int CHUNK_SIZE = 1024;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final Map<String, String> JCA_ALGORITHMS = new HashMap<String, String>();
+
+    static {
+        JCA_ALGORITHMS.put(XMLSignature.ALGO_ID_SIGNATURE_RSA_SHA1, "SHA1withRSA");
+        JCA_ALGORITHMS.put(XMLSignature.ALGO_ID_SIGNATURE_RSA_SHA256, "SHA256withRSA");
+        JCA_ALGORITHMS.put(XMLSignature.ALGO_ID_SIGNATURE_RSA_SHA384, "SHA384withRSA");
+        JCA_ALGORITHMS.put(XMLSignature.ALGO_ID_SIGNATURE_RSA_SHA512, "SHA512withRSA");
+    }
+
+    private final PrivateKey privateKey;
+    private final String signatureAlgorithm;
+    private final String jcaAlgorithm;
+    private final String sigAlgParam;
+    private final BlockingQueue<Signature> idleSignatures;
+
+    public SAML2RedirectSigner(PrivateKey privateKey, String signatureAlgorithm) throws SSOAgentException {
+
+        this(privateKey, signatureAlgorithm, DEFAULT_MAX_IDLE_SIGNATURES);
+    }
+
+    public SAML2RedirectSigner(PrivateKey privateKey, String signatureAlgorithm, int maxIdleSignatures)
+            throws SSOAgentException {
+
+        this.jcaAlgorithm = JCA_ALGORITHMS.get(signatureAlgorithm);
+        if (jcaAlgorithm == null) {
+            throw new SSOAgentException("Unsupported SAML2 Redirect Binding signature algorithm : " +
+                    signatureAlgorithm);
+        }
+        if (privateKey == null) {
+            throw new SSOAgentException("Private key of SP not configured");
+        }
+        this.privateKey = privateKey;
+        this.signatureAlgorithm = signatureAlgorithm;
+        try {
+            this.sigAlgParam = "&SigAlg=" + URLEncoder.encode(signatureAlgorithm, "UTF-8").trim();
+        } catch (UnsupportedEncodingException e) {
+            throw new SSOAgentException("Error occurred while URLEncoding SigAlg", e);
+        }
+        this.idleSignatures = new ArrayBlockingQueue<Signature>(maxIdleSignatures);
+        // Fail fast on a key that does not match the algorithm.
+        release(borrow());
+    }
+
+    /**
+     * Returns whether the given SigAlg URI can be used for redirect binding signatures.
+     *
+     * @param signatureAlgorithm SigAlg URI
+     * @return true if the algorithm is supported
+     */
+    public static boolean isSupported(String signatureAlgorithm) {
+
+        return JCA_ALGORITHMS.containsKey(signatureAlgorithm);
+    }
+
+    /**
+     * Returns whether this signer was built for the given key and algorithm.
+     *
+     * @param privateKey         SP private key
+     * @param signatureAlgorithm SigAlg URI
+     * @return true if the signer can be reused
+     */
+    public boolean isBoundTo(PrivateKey privateKey, String signatureAlgorithm) {
+
+        return this.privateKey == privateKey && this.signatureAlgorithm.equals(signatureAlgorithm);
+    }
+
+    /**
+     * Appends the SigAlg and Signature parameters to the given query string.
+     *
+     * @param httpQueryString query string holding the SAMLRequest or SAMLResponse and the RelayState
+     * @throws SSOAgentException if the query string cannot be signed
+     */
+    public void sign(StringBuilder httpQueryString) throws SSOAgentException {
+
+        httpQueryString.append(sigAlgParam);
+        Signature signature = borrow();
+        byte[] signatureValue;
+        try {
+            update(signature, httpQueryString);
+            signatureValue = signature.sign();
+        } catch (GeneralSecurityException e) {
+            // The state of the Signature is undefined after a failure, hence it is not reused.
+            throw new SSOAgentException("Error applying SAML2 Redirect Binding signature", e);
+        }
+        release(signature);
+        httpQueryString.append("&Signature=")
+                .append(SAML2RedirectEncoder.base64URLEncode(signatureValue, signatureValue.length));
+    }
+
+    private static void update(Signature signature, CharSequence data) throws GeneralSecurityException {
+
+        byte[] chunk = new byte[Math.min(CHUNK_SIZE, data.length())];
+        int chunkLength = 0;
+        for (int i = 0; i < data.length(); i++) {
+            char c = data.charAt(i);
+            if (c >= 0x80) {
+                // Encoded query strings are ASCII. Anything else is signed over its UTF-8 form.
+                signature.update(chunk, 0, chunkLength);
+                signature.update(data.subSequence(i, data.length()).toString().getBytes(UTF_8));
+                return;
+            }
+            if (chunkLength == chunk.length) {
+                signature.update(chunk, 0, chunkLength);
+                chunkLength = 0;
+            }
+            chunk[chunkLength++] = (byte) c;
+        }
+        signature.update(chunk, 0, chunkLength);
+    }
+
+    private Signature borrow() throws SSOAgentException {
+
+        Signature signature = idleSignatures.poll();
+        if (signature != null) {
+            return signature;
+        }
+        try {
+            signature = Signature.getInstance(jcaAlgorithm);
+            signature.initSign(privateKey);
+            return signature;
+        } catch (GeneralSecurityException e) {
+            throw new SSOAgentException("Error initializing SAML2 Redirect Binding signature", e);
+        }
+    }
+
+    private void release(Signature signature) {
+
+        idleSignatures.offer(signature);
+    }
+}
@@ -24,10 +24,8 @@ import org.apache.commons.collections.CollectionUtils;
 import org.apache.commons.lang.StringUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.apache.xml.security.signature.XMLSignature;
 import org.joda.time.DateTime;
 import org.opensaml.Configuration;
-import org.opensaml.common.SAMLVersion;
 import org.opensaml.common.SignableSAMLObject;
 import org.opensaml.common.xml.SAMLConstants;
 import org.opensaml.saml2.common.Extensions;
@@ -37,38 +35,30 @@ import org.opensaml.saml2.core.Attribute;
 import org.opensaml.saml2.core.AttributeStatement;
 import org.opensaml.saml2.core.Audience;
 import org.opensaml.saml2.core.AudienceRestriction;
-import org.opensaml.saml2.core.AuthnContextClassRef;
-import org.opensaml.saml2.core.AuthnContextComparisonTypeEnumeration;
 import org.opensaml.saml2.core.AuthnRequest;
+import org.opensaml.saml2.core.AuthnStatement;
 import org.opensaml.saml2.core.Conditions;
 import org.opensaml.saml2.core.EncryptedAssertion;
 import org.opensaml.saml2.core.Issuer;
 import org.opensaml.saml2.core.LogoutRequest;
 import org.opensaml.saml2.core.LogoutResponse;
 import org.opensaml.saml2.core.NameID;
-import org.opensaml.saml2.core.NameIDPolicy;
 import org.opensaml.saml2.core.RequestAbstractType;
-import org.opensaml.saml2.core.RequestedAuthnContext;
 import org.opensaml.saml2.core.Response;
 import org.opensaml.saml2.core.SessionIndex;
 import org.opensaml.saml2.core.Status;
 import org.opensaml.saml2.core.StatusCode;
 import org.opensaml.saml2.core.StatusMessage;
-import org.opensaml.saml2.core.impl.AuthnContextClassRefBuilder;
-import org.opensaml.saml2.core.impl.AuthnRequestBuilder;
 import org.opensaml.saml2.core.impl.IssuerBuilder;
 import org.opensaml.saml2.core.impl.LogoutRequestBuilder;
 import org.opensaml.saml2.core.impl.LogoutResponseBuilder;
 import org.opensaml.saml2.core.impl.NameIDBuilder;
-import org.opensaml.saml2.core.impl.NameIDPolicyBuilder;
-import org.opensaml.saml2.core.impl.RequestedAuthnContextBuilder;
 import org.opensaml.saml2.core.impl.SessionIndexBuilder;
 import org.opensaml.saml2.core.impl.StatusBuilder;
 import org.opensaml.saml2.core.impl.StatusCodeBuilder;
 import org.opensaml.saml2.core.impl.StatusMessageBuilder;
 import org.opensaml.saml2.ecp.RelayState;
 import org.opensaml.saml2.encryption.Decrypter;
-import org.opensaml.security.SAMLSignatureProfileValidator;
 import org.opensaml.xml.XMLObject;
 import org.opensaml.xml.encryption.EncryptedKey;
 import org.opensaml.xml.io.Marshaller;
@@ -78,18 +68,11 @@ import org.opensaml.xml.security.SecurityHelper;
 import org.opensaml.xml.security.credential.Credential;
 import org.opensaml.xml.security.keyinfo.KeyInfoCredentialResolver;
 import org.opensaml.xml.security.keyinfo.StaticKeyInfoCredentialResolver;
-import org.opensaml.xml.signature.SignatureValidator;
-import org.opensaml.xml.signature.impl.SignatureImpl;
+import org.opensaml.xml.signature.Signature;
 import org.opensaml.xml.util.Base64;
 import org.opensaml.xml.util.XMLHelper;
-import org.opensaml.xml.validation.ValidationException;
-import org.owasp.encoder.Encode;
 import org.w3c.dom.Element;
 import org.w3c.dom.NodeList;
-import org.w3c.dom.bootstrap.DOMImplementationRegistry;
-import org.w3c.dom.ls.DOMImplementationLS;
-import org.w3c.dom.ls.LSOutput;
-import org.w3c.dom.ls.LSSerializer;
 import org.wso2.carbon.identity.sso.agent.util.SSOAgentConstants;
 import org.wso2.carbon.identity.sso.agent.bean.LoggedInSessionBean;
 import org.wso2.carbon.identity.sso.agent.bean.SSOAgentConfig;
@@ -97,38 +80,43 @@ import org.wso2.carbon.identity.sso.agent.exception.ArtifactResolutionException;
 import org.wso2.carbon.identity.sso.agent.exception.InvalidSessionException;
 import org.wso2.carbon.identity.sso.agent.exception.SSOAgentException;
 import org.wso2.carbon.identity.sso.agent.internal.SSOAgentServiceComponent;
+import org.wso2.carbon.identity.sso.agent.saml.artifact.SAMLSSOArtifactResolutionEndpoint;
 import org.wso2.carbon.identity.sso.agent.saml.artifact.SAMLSSOArtifactResolutionService;
+import org.wso2.carbon.identity.sso.agent.saml.artifact.SAMLSSOHttpClientPool;
+import org.wso2.carbon.identity.sso.agent.security.SSOAgentX509Credential;
 import org.wso2.carbon.identity.sso.agent.security.X509CredentialImpl;
 import org.wso2.carbon.identity.sso.agent.session.management.SSOAgentSessionManager;
+import org.wso2.carbon.identity.sso.agent.session.management.cluster.ClusterSessionIndex;
 import org.wso2.carbon.identity.sso.agent.util.SSOAgentDataHolder;
+import org.wso2.carbon.identity.sso.agent.util.SSOAgentElementExtractor;
+import org.wso2.carbon.identity.sso.agent.util.SSOAgentSingleFlight;
 import org.wso2.carbon.identity.sso.agent.util.SSOAgentUtils;
-import org.wso2.carbon.user.api.UserRealm;
-import org.wso2.carbon.user.api.UserStoreException;
-import org.wso2.carbon.user.core.UserStoreManager;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.StringWriter;
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
 import java.nio.charset.Charset;
-import java.util.ArrayList;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.zip.Deflater;
-import java.util.zip.DeflaterOutputStream;
 import javax.crypto.SecretKey;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.HttpSession;
 
-import static org.wso2.carbon.CarbonConstants.AUDIT_LOG;
-import static org.wso2.carbon.identity.core.util.IdentityCoreConstants.MULTI_ATTRIBUTE_SEPARATOR;
-
 /**
  * TODO: Need to have mechanism to map SP initiated SAML2 Request to SAML2 Responses and validate.
  * TODO: Still however IdP initiated SSO also should be possible through configuration
@@ -140,18 +128,138 @@ public class SAML2SSOManager {
 
 
     private static final Logger LOGGER = Logger.getLogger(SSOAgentConstants.LOGGER_NAME);
-    private SSOAgentConfig ssoAgentConfig = null;
+    private static final String SAML_RESPONSE_DIGEST_ALGORITHM = "SHA-256";
+
+    static {
+        // OpenSAML marshallers create new DOM documents through the JAXP DocumentBuilderFactory.
+        System.setProperty("javax.xml.parsers.DocumentBuilderFactory",
+                "org.apache.xerces.jaxp.DocumentBuilderFactoryImpl");
+    }
+
+    private final SSOAgentConfig ssoAgentConfig;
+    private final SAMLSignatureValidator signatureValidator;
+    private final SAML2AuthnRequestTemplate authnRequestTemplate;
+    private final SAML2PostBindingTemplate postBindingTemplate;
+    private final SAMLSSOArtifactResolutionService artifactResolutionService;
+    private final SSOAgentSingleFlight<String, SAML2LoginResult> responseFlights;
+    private final SSOAgentSingleFlight<String, SAML2LoginResult> artifactFlights;
+    private final ClusterSessionIndex clusterSessionIndex;
+    private volatile SAML2RedirectSigner redirectSigner = null;
+    private volatile SAMLSignatureVerificationContext signatureVerificationContext = null;
+    private volatile X509CredentialImpl signingCredential = null;
+    private final AtomicBoolean closed = new AtomicBoolean();
+    // Requests in progress, plus one for the owner until the manager is closed.
+    private final AtomicInteger users = new AtomicInteger(1);
+    private volatile SAML2SSOManager successor;
 
+    /**
+     * Creates a SAML2 SSO manager bound to the given configuration. The manager holds no per request state,
+     * hence a single instance can be created per {@link SSOAgentConfig} and shared by all request threads.
+     *
+     * @param ssoAgentConfig SSO agent configuration
+     * @throws SSOAgentException if the custom signature validator or the cluster session index cannot be loaded
+     */
     public SAML2SSOManager(SSOAgentConfig ssoAgentConfig) throws SSOAgentException {
 
 		/* Initializing the OpenSAML library, loading default configurations */
         this.ssoAgentConfig = ssoAgentConfig;
         //load custom Signature Validator Class
-        String signerClassName = ssoAgentConfig.getSAML2().getSignatureValidatorImplClass();
-        try {
-            if (signerClassName != null) {
-                SSOAgentDataHolder.getInstance().setSignatureValidator(Class.forName(signerClassName).newInstance());
+        this.signatureValidator = loadSignatureValidator(ssoAgentConfig.getSAML2().getSignatureValidatorImplClass());
+        SSOAgentUtils.doBootstrap();
+        this.authnRequestTemplate = new SAML2AuthnRequestTemplate(ssoAgentConfig.getSAML2());
+        this.postBindingTemplate = new SAML2PostBindingTemplate(ssoAgentConfig.getSAML2());
+        this.artifactResolutionService = new SAMLSSOArtifactResolutionService(ssoAgentConfig);
+        SSOAgentConfig.SAML2 saml2 = ssoAgentConfig.getSAML2();
+        this.responseFlights = new SSOAgentSingleFlight<String, SAML2LoginResult>(
+                saml2.getDuplicateResponseMaxEntries(), saml2.getDuplicateResponseTimeout());
+        this.artifactFlights = new SSOAgentSingleFlight<String, SAML2LoginResult>(
+                saml2.getDuplicateResponseMaxEntries(), saml2.getArtifactResolveTimeout());
+        if (ssoAgentConfig.getSAML2().isRequestSigned() &&
+                !SAML2RedirectSigner.isSupported(ssoAgentConfig.getSAML2().getSignatureAlgorithm())) {
+            throw new SSOAgentException("Unsupported value configured for '" +
+                    SSOAgentConstants.SSOAgentConfig.SAML2.SIGNATURE_ALGORITHM + "' : " +
+                    ssoAgentConfig.getSAML2().getSignatureAlgorithm());
+        }
+        this.clusterSessionIndex = ClusterSessionIndex.create(saml2);
+        SSOAgentSessionManager.acquire();
+        SAMLSSOHttpClientPool.acquire();
+        SAMLSSOArtifactResolutionEndpoint.acquire();
+    }
+
+    /**
+     * Registers a request using this manager, so that its resources are not released while the request is in
+     * progress.
+     *
+     * @return false if the manager has been closed, in which case the request must not use it
+     */
+    public boolean acquire() {
+
+        while (true) {
+            int current = users.get();
+            if (current == 0 || closed.get()) {
+                return false;
             }
+            if (users.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Unregisters a request registered by {@link #acquire()}.
+     */
+    public void release() {
+
+        if (users.decrementAndGet() == 0) {
+            releaseResources();
+        }
+    }
+
+    /**
+     * Closes this manager. The cluster session index of this manager and the shared resources it uses are
+     * released once the requests in progress are done. Resources shared with other managers are only released
+     * when the last of them is closed.
+     */
+    public void close() {
+
+        close(null);
+    }
+
+    /**
+     * Closes this manager in favour of the given manager, which replaces it for the same application. The sessions
+     * recorded in the cluster session index of this manager are moved to the index of the given manager, so they
+     * stay reachable by single logout requests.
+     *
+     * @param successor manager replacing this one, or null
+     */
+    public void close(SAML2SSOManager successor) {
+
+        if (closed.compareAndSet(false, true)) {
+            this.successor = successor;
+            release();
+        }
+    }
+
+    private void releaseResources() {
+
+        if (clusterSessionIndex != null) {
+            SSOAgentSessionManager.moveClusterSessions(clusterSessionIndex,
+                    successor != null ? successor.clusterSessionIndex : null);
+            clusterSessionIndex.close();
+        }
+        SSOAgentSessionManager.release();
+        SAMLSSOHttpClientPool.release();
+        SAMLSSOArtifactResolutionEndpoint.release();
+    }
+
+    private static SAMLSignatureValidator loadSignatureValidator(String signerClassName) throws SSOAgentException {
+
+        if (signerClassName == null) {
+            return null;
+        }
+        Object validator;
+        try {
+            validator = Class.forName(signerClassName).newInstance();
         } catch (ClassNotFoundException e) {
             throw new SSOAgentException("Error loading custom signature validator class", e);
         } catch (IllegalAccessException e) {
@@ -159,7 +267,12 @@ public class SAML2SSOManager {
         } catch (InstantiationException e) {
             throw new SSOAgentException("Error loading custom signature validator class", e);
         }
-        SSOAgentUtils.doBootstrap();
+        if (!(validator instanceof SAMLSignatureValidator)) {
+            throw new SSOAgentException("Custom signature validator class " + signerClassName + " does not implement "
+                    + SAMLSignatureValidator.class.getName());
+        }
+        SSOAgentDataHolder.getInstance().setSignatureValidator(validator);
+        return (SAMLSignatureValidator) validator;
     }
 
     /**
@@ -171,34 +284,58 @@ public class SAML2SSOManager {
      */
     public String buildRedirectRequest(HttpServletRequest request, boolean isLogout) throws SSOAgentException {
 
-        RequestAbstractType requestMessage = null;
-        if (!isLogout) {
-            requestMessage = buildAuthnRequest(request);
-        } else {
-            HttpSession httpSession = request.getSession(false);
-            if (httpSession == null) {
-                throw new InvalidSessionException("Session is expired or user already logged out.");
-            }
+        return buildRedirectRequest(request, isLogout, ssoAgentConfig.getSAML2().isPassiveAuthn());
+    }
 
-            LoggedInSessionBean sessionBean = (LoggedInSessionBean) httpSession.getAttribute(SSOAgentConstants
-                    .SESSION_BEAN_NAME);
-            if (sessionBean != null) {
-                requestMessage = buildLogoutRequest(sessionBean.getSAML2SSO().getSubjectId(),
-                        sessionBean.getSAML2SSO().getSessionIndex());
+    /**
+     * Returns the redirection URL with the appended SAML2 Request message, overriding the configured IsPassive
+     * value for this request only.
+     *
+     * @param request   SAML 2 request
+     * @param isLogout  Whether the request is a logout request
+     * @param isPassive Value of the IsPassive attribute of the AuthnRequest
+     * @return redirectionUrl
+     */
+    public String buildRedirectRequest(HttpServletRequest request, boolean isLogout, boolean isPassive)
+            throws SSOAgentException {
+
+        String encodedRequestMessage;
+        if (!isLogout && ssoAgentConfig.getSAML2().isAuthnRequestTemplateEnabled() &&
+                request.getAttribute(Extensions.LOCAL_NAME) == null) {
+            // Redirect binding requests are signed over the query string, hence the XML can be
+            // emitted straight from the template without building and marshalling the object tree.
+            encodedRequestMessage = encodeRequestMessage(authnRequestTemplate.buildAuthnRequestXML(
+                    SSOAgentUtils.createID(), new DateTime(), ssoAgentConfig.getSAML2().isForceAuthn(), isPassive),
+                    SAMLConstants.SAML2_REDIRECT_BINDING_URI);
+        } else {
+            RequestAbstractType requestMessage = null;
+            if (!isLogout) {
+                requestMessage = buildAuthnRequest(request, isPassive);
             } else {
-                throw new SSOAgentException("SLO Request can not be built. SSO Session is NULL");
+                HttpSession httpSession = request.getSession(false);
+                if (httpSession == null) {
+                    throw new InvalidSessionException("Session is expired or user already logged out.");
+                }
+
+                LoggedInSessionBean sessionBean = (LoggedInSessionBean) httpSession.getAttribute(SSOAgentConstants
+                        .SESSION_BEAN_NAME);
+                if (sessionBean != null) {
+                    requestMessage = buildLogoutRequest(sessionBean.getSAML2SSO().getSubjectId(),
+                            sessionBean.getSAML2SSO().getSessionIndex());
+                } else {
+                    throw new SSOAgentException("SLO Request can not be built. SSO Session is NULL");
+                }
             }
+            encodedRequestMessage = encodeRequestMessage(requestMessage, SAMLConstants.SAML2_REDIRECT_BINDING_URI);
         }
         String idpUrl = null;
 
-        String encodedRequestMessage = encodeRequestMessage(
-                requestMessage, SAMLConstants.SAML2_REDIRECT_BINDING_URI);
         StringBuilder httpQueryString = new StringBuilder(
                 SSOAgentConstants.SAML2SSO.HTTP_POST_PARAM_SAML2_AUTH_REQ +
                         "=" + encodedRequestMessage);
 
         String relayState = request.getParameter(RelayState.DEFAULT_ELEMENT_LOCAL_NAME);
-        if (StringUtils.isNotEmpty(relayState)) {
+        if (StringUtils.isEmpty(relayState)) {
             relayState = ssoAgentConfig.getSAML2().getRelayState();
         }
         if (relayState != null) {
@@ -212,8 +349,7 @@ public class SAML2SSOManager {
         }
 
         if (ssoAgentConfig.getSAML2().isRequestSigned()) {
-            SSOAgentUtils.addDeflateSignatureToHTTPQueryString(httpQueryString,
-                    new X509CredentialImpl(ssoAgentConfig.getSAML2().getSSOAgentX509Credential()));
+            getRedirectSigner().sign(httpQueryString);
         }
 
         if (ssoAgentConfig.getQueryParams() != null && !ssoAgentConfig.getQueryParams().isEmpty()) {
@@ -254,13 +390,48 @@ public class SAML2SSOManager {
     public String buildPostRequest(HttpServletRequest request, HttpServletResponse response,
                                    boolean isLogout) throws SSOAgentException {
 
+        ByteArrayOutputStream htmlPayload = new ByteArrayOutputStream();
+        try {
+            postBindingTemplate.writeTo(htmlPayload, buildPostRequestParams(request, isLogout));
+        } catch (IOException e) {
+            throw new SSOAgentException("Error occurred while building the HTTP POST binding page", e);
+        }
+        return new String(htmlPayload.toByteArray(), Charset.forName(SAML2PostBindingTemplate.CHARACTER_ENCODING));
+    }
+
+    /**
+     * Handles the request for http post binding by streaming the auto submitting form directly to the response.
+     *
+     * @param request  The HTTP request with SAML2 message
+     * @param response The HTTP response
+     * @param isLogout Whether the request is a logout request
+     * @throws SSOAgentException if the request cannot be built or the response cannot be written
+     */
+    public void sendPostRequest(HttpServletRequest request, HttpServletResponse response,
+                                boolean isLogout) throws SSOAgentException {
+
+        Map<String, String[]> paramsMap = buildPostRequestParams(request, isLogout);
+        try {
+            response.setContentType(SAML2PostBindingTemplate.CONTENT_TYPE);
+            response.setCharacterEncoding(SAML2PostBindingTemplate.CHARACTER_ENCODING);
+            postBindingTemplate.writeTo(response.getOutputStream(), paramsMap);
+            response.flushBuffer();
+        } catch (IOException e) {
+            throw new SSOAgentException("Error occurred while writing to HttpServletResponse", e);
+        }
+    }
+
+    private Map<String, String[]> buildPostRequestParams(HttpServletRequest request, boolean isLogout)
+            throws SSOAgentException {
+
         RequestAbstractType requestMessage = null;
         if (!isLogout) {
-            requestMessage = buildAuthnRequest(request);
+            requestMessage = buildAuthnRequest(request, ssoAgentConfig.getSAML2().isPassiveAuthn());
             if (ssoAgentConfig.getSAML2().isRequestSigned()) {
-                requestMessage = SSOAgentUtils.setSignature((AuthnRequest) requestMessage,
-                        XMLSignature.ALGO_ID_SIGNATURE_RSA,
-                        new X509CredentialImpl(ssoAgentConfig.getSAML2().getSSOAgentX509Credential()));
+                requestMessage = SSOAgentUtils.setSignatureValue((AuthnRequest) requestMessage,
+                        ssoAgentConfig.getSAML2().getSignatureAlgorithm(),
+                        getSigningCredential(),
+                        !ssoAgentConfig.getSAML2().isOmitSignatureKeyInfo());
             }
 
         } else {
@@ -275,9 +446,10 @@ public class SAML2SSOManager {
                 requestMessage = buildLogoutRequest(sessionBean.getSAML2SSO()
                         .getSubjectId(), sessionBean.getSAML2SSO().getSessionIndex());
                 if (ssoAgentConfig.getSAML2().isRequestSigned()) {
-                    requestMessage = SSOAgentUtils.setSignature((LogoutRequest) requestMessage,
-                            XMLSignature.ALGO_ID_SIGNATURE_RSA,
-                            new X509CredentialImpl(ssoAgentConfig.getSAML2().getSSOAgentX509Credential()));
+                    requestMessage = SSOAgentUtils.setSignatureValue((LogoutRequest) requestMessage,
+                            ssoAgentConfig.getSAML2().getSignatureAlgorithm(),
+                            getSigningCredential(),
+                            !ssoAgentConfig.getSAML2().isOmitSignatureKeyInfo());
                 }
             } else {
                 throw new SSOAgentException("SLO Request can not be built. SSO Session is null");
@@ -301,39 +473,7 @@ public class SAML2SSOManager {
             paramsMap.putAll(ssoAgentConfig.getQueryParams());
         }
 
-        StringBuilder htmlParams = new StringBuilder();
-        for (Map.Entry<String, String[]> entry : paramsMap.entrySet()) {
-            if (entry.getKey() != null && entry.getValue() != null && entry.getValue().length > 0) {
-                for (String param : entry.getValue()) {
-                    htmlParams.append("<input type='hidden' name='").append(entry.getKey())
-                            .append("' value='").append(Encode.forHtmlAttribute(param)).append("'>\n");
-                }
-            }
-
-        }
-        String htmlPayload = ssoAgentConfig.getSAML2().getPostBindingRequestHTMLPayload();
-        if (htmlPayload == null || !htmlPayload.contains("<!--$saml_params-->")) {
-            htmlPayload = "<html>\n" +
-                    "<body>\n" +
-                    "<p>You are now redirected back to " + ssoAgentConfig.getSAML2().getIdPURL() + " \n" +
-                    "If the redirection fails, please click the post button.</p>\n" +
-                    "<form method='post' action='" + ssoAgentConfig.getSAML2().getIdPURL() + "'>\n" +
-                    "<p>\n" +
-                    htmlParams.toString() +
-                    "<button type='submit'>POST</button>\n" +
-                    "</p>\n" +
-                    "</form>\n" +
-                    "<script type='text/javascript'>\n" +
-                    "document.forms[0].submit();\n" +
-                    "</script>\n" +
-                    "</body>\n" +
-                    "</html>";
-        } else {
-            htmlPayload = htmlPayload.replace("<!--$saml_params-->",
-                    htmlParams.toString());
-        }
-        return htmlPayload;
-
+        return paramsMap;
     }
 
     public String buildPostResponse(SignableSAMLObject requestMessage) throws SSOAgentException {
@@ -347,20 +487,35 @@ public class SAML2SSOManager {
         String saml2SSOResponse = request.getParameter(SSOAgentConstants.SAML2SSO.HTTP_POST_PARAM_SAML2_RESP);
 
         if (saml2SSOResponse != null) {
-            String decodedResponse = new String(Base64.decode(saml2SSOResponse), Charset.forName("UTF-8"));
-            XMLObject samlObject = SSOAgentUtils.unmarshall(decodedResponse);
-            if (samlObject instanceof LogoutResponse) {
+            // Decode and parse the response only once. The parsed object is passed down to the
+            // LogoutResponse and Response processing branches.
+            final byte[] samlBytes = Base64.decode(saml2SSOResponse);
+            // A Response posted again while the first copy is in progress waits for its outcome instead of being
+            // parsed and verified again.
+            SAML2LoginResult loginResult = responseFlights.execute(digest(samlBytes),
+                    new SSOAgentSingleFlight.Work<SAML2LoginResult>() {
+                        @Override
+                        public SAML2LoginResult execute() throws SSOAgentException {
+
+                            XMLObject samlObject = SSOAgentUtils.unmarshall(samlBytes);
+                            if (samlObject instanceof LogoutResponse) {
+                                return new SAML2LoginResult((LogoutResponse) samlObject);
+                            }
+                            return processSSOResponse(samlObject, samlBytes);
+                        }
+                    });
+            login(request, loginResult);
+            if (loginResult.logoutResponse != null) {
                 //This is a SAML response for a single logout request from the SP
-                doSLO(request);
                 request.setAttribute(org.wso2.carbon.identity.sso.agent.util.SSOAgentConstants.SHOULD_GO_TO_WELCOME_PAGE, "true");
-            } else {
-                processSSOResponse(request);
             }
             String relayState = request.getParameter(RelayState.DEFAULT_ELEMENT_LOCAL_NAME);
 
             if (relayState != null && !relayState.isEmpty() && !"null".equalsIgnoreCase(relayState)) { //additional
-                // checks for incompetent IdPs
-                ssoAgentConfig.getSAML2().setRelayState(relayState);
+                // checks for incompetent IdPs. The RelayState belongs to this response only, hence it is handed
+                // to the application as a request attribute rather than stored in the shared configuration.
+                request.setAttribute(org.wso2.carbon.identity.sso.agent.util.SSOAgentConstants.RELAY_STATE_NAME,
+                        relayState);
             }
 
         } else {
@@ -376,11 +531,27 @@ public class SAML2SSOManager {
      */
     public void processArtifactResponse(HttpServletRequest request) throws SSOAgentException {
 
-        SAMLSSOArtifactResolutionService artifactResolutionService =
-                new SAMLSSOArtifactResolutionService(ssoAgentConfig);
+        final String samlArt = request.getParameter(SSOAgentConstants.SAML2SSO.SAML2_ARTIFACT_RESP);
+        if (samlArt == null) {
+            throw new SSOAgentException("Invalid SAML2 Artifact. SAML2 Artifact can not be null.");
+        }
+        // An artifact can be resolved only once, hence a reloaded artifact URL waits for the outcome of the
+        // resolution in progress instead of sending a second one that the IdP would reject.
+        login(request, artifactFlights.execute(samlArt, new SSOAgentSingleFlight.Work<SAML2LoginResult>() {
+            @Override
+            public SAML2LoginResult execute() throws SSOAgentException {
+
+                return resolveArtifact(samlArt);
+            }
+        }));
+    }
+
+    private SAML2LoginResult resolveArtifact(String samlArt) throws SSOAgentException {
+
         try {
-            ArtifactResponse artifactResponse = artifactResolutionService.getSAMLArtifactResponse(
-                    request.getParameter(SSOAgentConstants.SAML2SSO.SAML2_ARTIFACT_RESP));
+            // The container thread only waits until the configured deadline, and a failing IdP is rejected up front.
+            ArtifactResponse artifactResponse = artifactResolutionService.awaitArtifactResponse(
+                    artifactResolutionService.resolveArtifact(samlArt));
 
             if (!StringUtils.equals(artifactResponse.getStatus().getStatusCode().getValue(), StatusCode.SUCCESS_URI)) {
                 throw new SSOAgentException("Received an invalid SAML response with status code: " +
@@ -392,7 +563,7 @@ public class SAML2SSOManager {
             XMLObject xmlObject = artifactResponse.getMessage();
             if (xmlObject instanceof Response || xmlObject instanceof LogoutResponse) {
                 validateSAMLResponseInArtifactResponse(xmlObject);
-                executeSAMLResponse(request, xmlObject);
+                return executeSAMLResponse(xmlObject);
             } else {
                 throw new SSOAgentException("Received incorrect Artifact Response message with type: " +
                         xmlObject.getClass());
@@ -426,18 +597,18 @@ public class SAML2SSOManager {
     }
 
     /**
-     * Redirect SAML response received via artifact resolution.
+     * Process SAML response received via artifact resolution.
      *
-     * @param request    Initial authentication request.
      * @param samlObject Response received via artifact resolution.
+     * @return outcome to apply to the request
      * @throws SSOAgentException
      */
-    private void executeSAMLResponse(HttpServletRequest request, XMLObject samlObject) throws SSOAgentException {
+    private SAML2LoginResult executeSAMLResponse(XMLObject samlObject) throws SSOAgentException {
         if (samlObject instanceof LogoutResponse) {
             // This is a SAML response for a single logout request from the SP.
-            doSLO(request);
+            return new SAML2LoginResult((LogoutResponse) samlObject);
         } else if (samlObject instanceof Response) {
-            processSSOResponse(request, (Response) samlObject);
+            return processSSOResponse((Response) samlObject, null);
         } else {
             throw new SSOAgentException("Unable to process unknown SAML object of type: " + samlObject.getClass());
         }
@@ -455,13 +626,26 @@ public class SAML2SSOManager {
 
         XMLObject saml2Object = null;
         if (request.getParameter(SSOAgentConstants.SAML2SSO.HTTP_POST_PARAM_SAML2_AUTH_REQ) != null) {
-            saml2Object = SSOAgentUtils.unmarshall(new String(Base64.decode(request.getParameter(
-                    SSOAgentConstants.SAML2SSO.HTTP_POST_PARAM_SAML2_AUTH_REQ)), Charset.forName("UTF-8")));
+            saml2Object = SSOAgentUtils.unmarshall(Base64.decode(request.getParameter(
+                    SSOAgentConstants.SAML2SSO.HTTP_POST_PARAM_SAML2_AUTH_REQ)));
         }
         if (saml2Object == null) {
-            saml2Object = SSOAgentUtils.unmarshall(new String(Base64.decode(request.getParameter(
-                    SSOAgentConstants.SAML2SSO.HTTP_POST_PARAM_SAML2_RESP)), Charset.forName("UTF-8")));
+            saml2Object = SSOAgentUtils.unmarshall(Base64.decode(request.getParameter(
+                    SSOAgentConstants.SAML2SSO.HTTP_POST_PARAM_SAML2_RESP)));
         }
+        return doSLO(request, saml2Object);
+    }
+
+    /**
+     * Handles an already unmarshalled single logout request or response.
+     *
+     * @param request     HTTP request that carried the SAML2 message
+     * @param saml2Object unmarshalled LogoutRequest or LogoutResponse
+     * @return the LogoutResponse to be sent, or the received LogoutResponse
+     * @throws SSOAgentException if the message is not a single logout message
+     */
+    private LogoutResponse doSLO(HttpServletRequest request, XMLObject saml2Object) throws SSOAgentException {
+
         if (saml2Object instanceof LogoutRequest) {
             LogoutRequest logoutRequest = (LogoutRequest) saml2Object;
             String sessionIndex = logoutRequest.getSessionIndexes().get(0).getSessionIndex();
@@ -469,6 +653,7 @@ public class SAML2SSOManager {
             for (HttpSession session : sessions) {
                 session.invalidate();
             }
+            SSOAgentSessionManager.logoutClusterSessions(clusterSessionIndex, sessionIndex);
             return buildLogoutResponse(logoutRequest.getID(), SSOAgentConstants.SAML2SSO
                     .SUCCESS_CODE, null);
         } else if (saml2Object instanceof LogoutResponse) {
@@ -478,6 +663,7 @@ public class SAML2SSOManager {
                  * still waiting to get triggered and at the end of the chain session needs to be
                  * invalidated by the system
                  */
+                SSOAgentSessionManager.logoutClusterSessions(clusterSessionIndex, request.getSession(false));
                 Set<HttpSession> sessions =
                         SSOAgentSessionManager.invalidateAllSessions(request.getSession(false));
                 for (HttpSession session : sessions) {
@@ -499,12 +685,7 @@ public class SAML2SSOManager {
         }
     }
 
-    private void processSSOResponse(HttpServletRequest servletRequest) throws SSOAgentException {
-
-        String saml2ResponseString =
-                new String(Base64.decode(servletRequest.getParameter(
-                        SSOAgentConstants.SAML2SSO.HTTP_POST_PARAM_SAML2_RESP)), Charset.forName("UTF-8"));
-        XMLObject response = SSOAgentUtils.unmarshall(saml2ResponseString);
+    private SAML2LoginResult processSSOResponse(XMLObject response, byte[] samlBytes) throws SSOAgentException {
 
         // Check for duplicate samlp:Response
         NodeList list = response.getDOM().getElementsByTagNameNS(SAMLConstants.SAML20P_NS, "Response");
@@ -520,15 +701,28 @@ public class SAML2SSOManager {
             throw new SSOAgentException("Error occurred while processing SAML2 response.");
         }
 
-        Response saml2Response = (Response) response;
-        processSSOResponse(servletRequest, saml2Response);
+        if (!(response instanceof Response)) {
+            throw new SSOAgentException("Unable to process unknown SAML object of type: " + response.getClass());
+        }
+        return processSSOResponse((Response) response, samlBytes);
     }
 
-    private void processSSOResponse(HttpServletRequest servletRequest, Response saml2Response) throws SSOAgentException {
+    /**
+     * Validates the SAML2 Response and builds the login to store in the session. Nothing here depends on the
+     * request, so that the outcome can be shared with duplicates of the request.
+     *
+     * @param saml2Response SAML2 Response
+     * @param samlBytes     decoded bytes the Response was unmarshalled from, or null if they are not available
+     * @return login to apply to the request
+     * @throws SSOAgentException if the Response is not valid
+     */
+    private SAML2LoginResult processSSOResponse(Response saml2Response, byte[] samlBytes) throws SSOAgentException {
 
         LoggedInSessionBean sessionBean = new LoggedInSessionBean();
         sessionBean.setSAML2SSO(sessionBean.new SAML2SSO());
-        sessionBean.getSAML2SSO().setResponseString(saml2Response.toString());
+        // The response and assertion strings are produced from these bytes, or from the DOM of the objects, only
+        // when they are asked for.
+        sessionBean.getSAML2SSO().setResponseBytes(samlBytes);
         sessionBean.getSAML2SSO().setSAMLResponse(saml2Response);
 
         Assertion assertion = null;
@@ -555,8 +749,7 @@ public class SAML2SSOManager {
         if (assertion == null) {
             if (isNoPassive(saml2Response)) {
                 LOGGER.log(Level.FINE, "Cannot authenticate in passive mode");
-                servletRequest.setAttribute(org.wso2.carbon.identity.sso.agent.util.SSOAgentConstants.SHOULD_GO_TO_WELCOME_PAGE, "true");
-                return;
+                return new SAML2LoginResult(null, null, -1L, Long.MAX_VALUE);
             }
             throw new SSOAgentException("SAML2 Assertion not found in the Response");
         }
@@ -589,30 +782,88 @@ public class SAML2SSOManager {
             throw new SSOAgentException("SAML2 Response does not contain the name of the subject");
         }
 
-        // This should be the only time where a new session can be created.
-        // Thus in latter places servletRequest.getSession(false) should be used.
         sessionBean.getSAML2SSO().setSubjectId(subject); // set the subject
-        servletRequest.getSession().setAttribute(SSOAgentConstants.SESSION_BEAN_NAME, sessionBean);
 
-        // Marshalling SAML2 assertion after signature validation due to a weird issue in OpenSAML
-        sessionBean.getSAML2SSO().setAssertionString(marshall(assertion));
+        LoggedInSessionBean.SAML2RetentionPolicy retentionPolicy =
+                ssoAgentConfig.getSAML2().getSessionRetentionPolicy();
+        if (retentionPolicy != LoggedInSessionBean.SAML2RetentionPolicy.ATTRIBUTES && samlBytes != null &&
+                !ssoAgentConfig.getSAML2().isAssertionEncrypted() && assertion.getDOM() != null) {
+            // A plain assertion is taken verbatim from the received message. Otherwise it is serialized from its
+            // DOM on first use, which is after signature validation due to a weird issue in OpenSAML.
+            sessionBean.getSAML2SSO().setAssertionBytes(
+                    SSOAgentElementExtractor.extract(samlBytes, assertion.getDOM()));
+        }
 
-        ((LoggedInSessionBean) servletRequest.getSession(false).getAttribute(
-                SSOAgentConstants.SESSION_BEAN_NAME)).getSAML2SSO().
-                setSubjectAttributes(getAssertionStatements(assertion));
+        sessionBean.getSAML2SSO().setSubjectAttributes(getAssertionStatements(assertion));
 
         //For removing the session when the single sign out request made by the SP itself
+        long sessionNotOnOrAfter = -1L;
         if (ssoAgentConfig.getSAML2().isSLOEnabled()) {
-            String sessionId = assertion.getAuthnStatements().get(0).getSessionIndex();
+            AuthnStatement authnStatement = assertion.getAuthnStatements().get(0);
+            String sessionId = authnStatement.getSessionIndex();
             if (sessionId == null) {
                 throw new SSOAgentException("Single Logout is enabled but IdP Session ID not found in SAML2 Assertion");
             }
-            ((LoggedInSessionBean) servletRequest.getSession(false).getAttribute(
-                    SSOAgentConstants.SESSION_BEAN_NAME)).getSAML2SSO().setSessionIndex(sessionId);
-            SSOAgentSessionManager.addAuthenticatedSession(servletRequest.getSession(false));
+            sessionBean.getSAML2SSO().setSessionIndex(sessionId);
+            if (authnStatement.getSessionNotOnOrAfter() != null) {
+                sessionNotOnOrAfter = authnStatement.getSessionNotOnOrAfter().getMillis();
+            }
+        }
+
+        // A duplicate of the request may reuse the login only while the assertion is valid.
+        long validUntil = Long.MAX_VALUE;
+        if (assertion.getConditions() != null && assertion.getConditions().getNotOnOrAfter() != null) {
+            validUntil = assertion.getConditions().getNotOnOrAfter()
+                    .plusSeconds(ssoAgentConfig.getSAML2().getTimeStampSkewInSeconds()).getMillis();
+        }
+
+        // Drop the SAML2 objects the session does not need to keep, now that everything has been read from them.
+        sessionBean.getSAML2SSO().setRetentionPolicy(retentionPolicy);
+        return new SAML2LoginResult(null, sessionBean, sessionNotOnOrAfter, validUntil);
+    }
+
+    /**
+     * Applies the outcome of a SAML2 Response to the request. This runs for every copy of a duplicated request.
+     *
+     * @param servletRequest HTTP request
+     * @param loginResult    outcome of the SAML2 Response
+     * @throws SSOAgentException if the login can no longer be accepted
+     */
+    private void login(HttpServletRequest servletRequest, SAML2LoginResult loginResult) throws SSOAgentException {
+
+        if (loginResult.logoutResponse != null) {
+            doSLO(servletRequest, loginResult.logoutResponse);
+            return;
+        }
+        if (loginResult.sessionBean == null) {
+            servletRequest.setAttribute(org.wso2.carbon.identity.sso.agent.util.SSOAgentConstants.SHOULD_GO_TO_WELCOME_PAGE, "true");
+            return;
+        }
+        if (System.currentTimeMillis() >= loginResult.validUntil) {
+            throw new SSOAgentException("Failed to meet SAML Assertion Condition 'Not On Or After'");
+        }
+
+        // This should be the only time where a new session can be created.
+        // Thus in latter places servletRequest.getSession(false) should be used.
+        HttpSession session = servletRequest.getSession();
+        session.setAttribute(SSOAgentConstants.SESSION_BEAN_NAME, loginResult.claimSessionBean());
+        if (ssoAgentConfig.getSAML2().isSLOEnabled()) {
+            // Unless it is enforced, the end of the IdP session does not end the session at the SP.
+            long sessionNotOnOrAfter = ssoAgentConfig.getSAML2().isSessionNotOnOrAfterEnforced() ?
+                    loginResult.sessionNotOnOrAfter : -1L;
+            SSOAgentSessionManager.addAuthenticatedSession(session, sessionNotOnOrAfter,
+                    ssoAgentConfig.getSAML2().isWeakSessionIndexEnabled(), clusterSessionIndex);
         }
+    }
+
+    private static String digest(byte[] samlBytes) throws SSOAgentException {
 
-        servletRequest.getSession(false).setAttribute(SSOAgentConstants.SESSION_BEAN_NAME, sessionBean);
+        try {
+            return Base64.encodeBytes(MessageDigest.getInstance(SAML_RESPONSE_DIGEST_ALGORITHM).digest(samlBytes),
+                    Base64.DONT_BREAK_LINES);
+        } catch (NoSuchAlgorithmException e) {
+            throw new SSOAgentException("Error while computing the digest of the SAML2 Response", e);
+        }
     }
 
     protected LogoutRequest buildLogoutRequest(String user, String sessionIdx) throws SSOAgentException {
@@ -661,73 +912,24 @@ public class SAML2SSOManager {
         logoutResp.setIssueInstant(new DateTime());
         logoutResp.setDestination(ssoAgentConfig.getSAML2().getIdPURL());
 
-        SSOAgentUtils.setSignatureValue(logoutResp, XMLSignature.ALGO_ID_SIGNATURE_RSA,
-                new X509CredentialImpl(ssoAgentConfig.getSAML2().getSSOAgentX509Credential()));
+        SSOAgentUtils.setSignatureValue(logoutResp, ssoAgentConfig.getSAML2().getSignatureAlgorithm(),
+                getSigningCredential(),
+                !ssoAgentConfig.getSAML2().isOmitSignatureKeyInfo());
 
         return logoutResp;
     }
 
     protected AuthnRequest buildAuthnRequest(HttpServletRequest request) throws SSOAgentException {
 
-        IssuerBuilder issuerBuilder = new IssuerBuilder();
-        Issuer issuer =
-                issuerBuilder.buildObject("urn:oasis:names:tc:SAML:2.0:assertion",
-                        "Issuer", "samlp");
-        issuer.setValue(ssoAgentConfig.getSAML2().getSPEntityId());
-
-		/* NameIDPolicy */
-        NameIDPolicyBuilder nameIdPolicyBuilder = new NameIDPolicyBuilder();
-        NameIDPolicy nameIdPolicy = nameIdPolicyBuilder.buildObject();
-        nameIdPolicy.setFormat("urn:oasis:names:tc:SAML:2.0:nameid-format:persistent");
-        nameIdPolicy.setSPNameQualifier("Issuer");
-        nameIdPolicy.setAllowCreate(true);
-
-		/* AuthnContextClass */
-        AuthnContextClassRefBuilder authnContextClassRefBuilder = new AuthnContextClassRefBuilder();
-        AuthnContextClassRef authnContextClassRef =
-                authnContextClassRefBuilder.buildObject("urn:oasis:names:tc:SAML:2.0:assertion",
-                        "AuthnContextClassRef",
-                        "saml");
-        authnContextClassRef.setAuthnContextClassRef("urn:oasis:names:tc:SAML:2.0:ac:classes:PasswordProtectedTransport");
-
-		/* AuthnContex */
-        RequestedAuthnContextBuilder requestedAuthnContextBuilder =
-                new RequestedAuthnContextBuilder();
-        RequestedAuthnContext requestedAuthnContext = requestedAuthnContextBuilder.buildObject();
-        requestedAuthnContext.setComparison(AuthnContextComparisonTypeEnumeration.EXACT);
-        requestedAuthnContext.getAuthnContextClassRefs().add(authnContextClassRef);
-
-        DateTime issueInstant = new DateTime();
-
-		/* Creation of AuthRequestObject */
-        AuthnRequestBuilder authRequestBuilder = new AuthnRequestBuilder();
-        AuthnRequest authRequest =
-                authRequestBuilder.buildObject("urn:oasis:names:tc:SAML:2.0:protocol",
-                        "AuthnRequest", "samlp");
-
-        authRequest.setForceAuthn(ssoAgentConfig.getSAML2().isForceAuthn());
-        authRequest.setIsPassive(ssoAgentConfig.getSAML2().isPassiveAuthn());
-        authRequest.setIssueInstant(issueInstant);
-        authRequest.setProtocolBinding(ssoAgentConfig.getSAML2().getHttpBinding());
-        authRequest.setAssertionConsumerServiceURL(ssoAgentConfig.getSAML2().getACSURL());
-        authRequest.setIssuer(issuer);
-        authRequest.setNameIDPolicy(nameIdPolicy);
-        authRequest.setRequestedAuthnContext(requestedAuthnContext);
-        authRequest.setID(SSOAgentUtils.createID());
-        authRequest.setVersion(SAMLVersion.VERSION_20);
-        authRequest.setDestination(ssoAgentConfig.getSAML2().getIdPURL());
-        if (request.getAttribute(Extensions.LOCAL_NAME) != null) {
-            authRequest.setExtensions((Extensions) request.getAttribute(Extensions.LOCAL_NAME));
-        }
+        return buildAuthnRequest(request, ssoAgentConfig.getSAML2().isPassiveAuthn());
+    }
 
-		/* Requesting Attributes. This Index value is registered in the IDP */
-        if (ssoAgentConfig.getSAML2().getAttributeConsumingServiceIndex() != null &&
-                ssoAgentConfig.getSAML2().getAttributeConsumingServiceIndex().trim().length() > 0) {
-            authRequest.setAttributeConsumingServiceIndex(Integer.parseInt(
-                    ssoAgentConfig.getSAML2().getAttributeConsumingServiceIndex()));
-        }
+    protected AuthnRequest buildAuthnRequest(HttpServletRequest request, boolean isPassive)
+            throws SSOAgentException {
 
-        return authRequest;
+        return authnRequestTemplate.buildAuthnRequest(SSOAgentUtils.createID(), new DateTime(),
+                ssoAgentConfig.getSAML2().isForceAuthn(), isPassive,
+                (Extensions) request.getAttribute(Extensions.LOCAL_NAME));
     }
 
     protected String encodeRequestMessage(SignableSAMLObject requestMessage, String binding)
@@ -739,32 +941,31 @@ public class SAML2SSOManager {
             authDOM = marshaller.marshall(requestMessage);
             StringWriter rspWrt = new StringWriter();
             XMLHelper.writeNode(authDOM, rspWrt);
-            if (SAMLConstants.SAML2_REDIRECT_BINDING_URI.equals(binding)) {
-                //Compress the message, Base 64 encode and URL encode
-                Deflater deflater = new Deflater(Deflater.DEFLATED, true);
-                ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-                DeflaterOutputStream deflaterOutputStream = new DeflaterOutputStream
-                        (byteArrayOutputStream, deflater);
-                deflaterOutputStream.write(rspWrt.toString().getBytes(Charset.forName("UTF-8")));
-                deflaterOutputStream.close();
-                String encodedRequestMessage = Base64.encodeBytes(byteArrayOutputStream
-                        .toByteArray(), Base64.DONT_BREAK_LINES);
-                return URLEncoder.encode(encodedRequestMessage, "UTF-8").trim();
-            } else if (SAMLConstants.SAML2_POST_BINDING_URI.equals(binding)) {
-                return Base64.encodeBytes(rspWrt.toString().getBytes(),
-                        Base64.DONT_BREAK_LINES);
-            } else {
-                LOGGER.log(Level.FINE, "Unsupported SAML2 HTTP Binding. Defaulting to " +
-                        SAMLConstants.SAML2_POST_BINDING_URI);
-                return Base64.encodeBytes(rspWrt.toString().getBytes(),
-                        Base64.DONT_BREAK_LINES);
-            }
+            return encodeRequestMessage(rspWrt.toString().getBytes(Charset.forName("UTF-8")), binding);
         } catch (MarshallingException e) {
             throw new SSOAgentException("Error occurred while encoding SAML2 request", e);
-        } catch (UnsupportedEncodingException e) {
-            throw new SSOAgentException("Error occurred while encoding SAML2 request", e);
-        } catch (IOException e) {
-            throw new SSOAgentException("Error occurred while encoding SAML2 request", e);
+        }
+    }
+
+    /**
+     * Encodes a serialized SAML2 message for the given binding.
+     *
+     * @param requestMessage UTF-8 encoded SAML2 message
+     * @param binding        SAML2 HTTP binding
+     * @return encoded message
+     * @throws SSOAgentException if the message cannot be encoded
+     */
+    protected String encodeRequestMessage(byte[] requestMessage, String binding) throws SSOAgentException {
+
+        if (SAMLConstants.SAML2_REDIRECT_BINDING_URI.equals(binding)) {
+            //Compress the message, Base 64 encode and URL encode
+            return SAML2RedirectEncoder.getInstance().encode(requestMessage);
+        } else if (SAMLConstants.SAML2_POST_BINDING_URI.equals(binding)) {
+            return Base64.encodeBytes(requestMessage, Base64.DONT_BREAK_LINES);
+        } else {
+            LOGGER.log(Level.FINE, "Unsupported SAML2 HTTP Binding. Defaulting to " +
+                    SAMLConstants.SAML2_POST_BINDING_URI);
+            return Base64.encodeBytes(requestMessage, Base64.DONT_BREAK_LINES);
         }
     }
 
@@ -774,44 +975,49 @@ public class SAML2SSOManager {
      */
     private Map<String, String> getAssertionStatements(Assertion assertion) {
 
-        Map<String, String> results = new HashMap<String, String>();
-        String multiAttributeSeparator = DEFAULT_MULTI_ATTRIBUTE_SEPARATOR;
-
-        UserRealm realm;
-        try {
-            if (SSOAgentServiceComponent.getRealmService() != null) {
-                realm = SSOAgentServiceComponent.getRealmService().getTenantUserRealm
-                        (org.wso2.carbon.base.MultitenantConstants.SUPER_TENANT_ID);
-                UserStoreManager userStoreManager = (UserStoreManager) realm.getUserStoreManager();
-
-                multiAttributeSeparator = userStoreManager.
-                        getRealmConfiguration().getUserStoreProperty(MULTI_ATTRIBUTE_SEPARATOR);
-            }
-        } catch (UserStoreException e) {
-            log.warn("Error while reading MultiAttributeSeparator value from primary user store ", e);
+        if (assertion == null || assertion.getAttributeStatements() == null) {
+            return new HashMap<String, String>();
         }
-
-        if (assertion != null && assertion.getAttributeStatements() != null) {
-
-            List<AttributeStatement> attributeStatementList = assertion.getAttributeStatements();
-
-
-            for (AttributeStatement statement : attributeStatementList) {
-                List<Attribute> attributesList = statement.getAttributes();
-                for (Attribute attribute : attributesList) {
-                    List<XMLObject> multipleAttributeValues = attribute.getAttributeValues();
-                    if (CollectionUtils.isNotEmpty(multipleAttributeValues)) {
-                        List<String> valueList = new ArrayList<>();
-                        for (XMLObject attributeVal : multipleAttributeValues) {
-                            Element value = attributeVal.getDOM();
-                            valueList.add(value.getTextContent());
+        List<AttributeStatement> attributeStatementList = assertion.getAttributeStatements();
+        int attributeCount = 0;
+        for (AttributeStatement statement : attributeStatementList) {
+            attributeCount += statement.getAttributes().size();
+        }
+        Map<String, String> results = new HashMap<String, String>((int) (attributeCount / 0.75f) + 1);
+        String multiAttributeSeparator = null;
+        boolean isMultiAttributeSeparatorLoaded = false;
+
+        for (AttributeStatement statement : attributeStatementList) {
+            for (Attribute attribute : statement.getAttributes()) {
+                List<XMLObject> multipleAttributeValues = attribute.getAttributeValues();
+                if (CollectionUtils.isEmpty(multipleAttributeValues)) {
+                    continue;
+                }
+                String attributeValue;
+                if (multipleAttributeValues.size() == 1) {
+                    String value = multipleAttributeValues.get(0).getDOM().getTextContent();
+                    attributeValue = value != null ? value : "";
+                } else {
+                    if (!isMultiAttributeSeparatorLoaded) {
+                        multiAttributeSeparator = SSOAgentServiceComponent.getMultiAttributeSeparator(
+                                DEFAULT_MULTI_ATTRIBUTE_SEPARATOR);
+                        isMultiAttributeSeparatorLoaded = true;
+                    }
+                    // Joined as StringUtils.join does, so a user store without a separator concatenates the values.
+                    StringBuilder valueBuilder = new StringBuilder();
+                    for (int i = 0; i < multipleAttributeValues.size(); i++) {
+                        if (i > 0 && multiAttributeSeparator != null) {
+                            valueBuilder.append(multiAttributeSeparator);
+                        }
+                        String value = multipleAttributeValues.get(i).getDOM().getTextContent();
+                        if (value != null) {
+                            valueBuilder.append(value);
                         }
-                        String attributeValue = StringUtils.join(valueList.iterator(), multiAttributeSeparator);
-                        results.put(attribute.getName(), attributeValue);
                     }
+                    attributeValue = valueBuilder.toString();
                 }
+                results.put(attribute.getName(), attributeValue);
             }
-
         }
         return results;
     }
@@ -865,11 +1071,9 @@ public class SAML2SSOManager {
      */
     protected void validateSignature(Response response, Assertion assertion) throws SSOAgentException {
 
-        if (SSOAgentDataHolder.getInstance().getSignatureValidator() != null) {
+        if (signatureValidator != null) {
             //Custom implemetation of signature validation
-            SAMLSignatureValidator signatureValidatorUtility = (SAMLSignatureValidator) SSOAgentDataHolder
-                    .getInstance().getSignatureValidator();
-            signatureValidatorUtility.validateSignature(response, assertion, ssoAgentConfig);
+            signatureValidator.validateSignature(response, assertion, ssoAgentConfig);
         } else {
             //If custom implementation not found, Execute the default implementation
             if (ssoAgentConfig.getSAML2().isResponseSigned()) {
@@ -898,28 +1102,13 @@ public class SAML2SSOManager {
     protected String marshall(XMLObject xmlObject) throws SSOAgentException {
 
         try {
-            System.setProperty("javax.xml.parsers.DocumentBuilderFactory",
-                    "org.apache.xerces.jaxp.DocumentBuilderFactoryImpl");
             MarshallerFactory marshallerFactory =
                     org.opensaml.xml.Configuration.getMarshallerFactory();
             Marshaller marshaller = marshallerFactory.getMarshaller(xmlObject);
             Element element = marshaller.marshall(xmlObject);
-            ByteArrayOutputStream byteArrayOutputStrm = new ByteArrayOutputStream();
-            DOMImplementationRegistry registry = DOMImplementationRegistry.newInstance();
-            DOMImplementationLS impl = (DOMImplementationLS) registry.getDOMImplementation("LS");
-            LSSerializer writer = impl.createLSSerializer();
-            LSOutput output = impl.createLSOutput();
-            output.setByteStream(byteArrayOutputStrm);
-            writer.write(element, output);
-            return new String(byteArrayOutputStrm.toByteArray(), Charset.forName("UTF-8"));
-        } catch (ClassNotFoundException e) {
-            throw new SSOAgentException("Error in marshalling SAML2 Assertion", e);
-        } catch (InstantiationException e) {
-            throw new SSOAgentException("Error in marshalling SAML2 Assertion", e);
+            return new String(SSOAgentUtils.serialize(element), Charset.forName("UTF-8"));
         } catch (MarshallingException e) {
             throw new SSOAgentException("Error in marshalling SAML2 Assertion", e);
-        } catch (IllegalAccessException e) {
-            throw new SSOAgentException("Error in marshalling SAML2 Assertion", e);
         }
     }
 
@@ -933,8 +1122,7 @@ public class SAML2SSOManager {
     protected Assertion getDecryptedAssertion(EncryptedAssertion encryptedAssertion) throws SSOAgentException {
 
         try {
-            KeyInfoCredentialResolver keyResolver = new StaticKeyInfoCredentialResolver(
-                    new X509CredentialImpl(ssoAgentConfig.getSAML2().getSSOAgentX509Credential()));
+            KeyInfoCredentialResolver keyResolver = new StaticKeyInfoCredentialResolver(getSigningCredential());
 
             EncryptedKey key = encryptedAssertion.getEncryptedData().
                     getKeyInfo().getEncryptedKeys().get(0);
@@ -1001,32 +1189,64 @@ public class SAML2SSOManager {
      * @throws SSOAgentException
      */
 
-    private void validateSignature(XMLObject signature) throws SSOAgentException{
+    private void validateSignature(Signature signature) throws SSOAgentException{
 
-        SignatureImpl signImpl = (SignatureImpl) signature;
-        try {
-            SAMLSignatureProfileValidator signatureProfileValidator = new SAMLSignatureProfileValidator();
-            signatureProfileValidator.validate(signImpl);
-        } catch (ValidationException ex) {
-            String logMsg = "Signature do not confirm to SAML signature profile. Possible XML Signature " +
-                    "Wrapping  Attack!";
-            AUDIT_LOG.warn(logMsg);
-            if (log.isDebugEnabled()) {
-                log.debug(logMsg, ex);
-            }
-            throw new SSOAgentException(logMsg, ex);
+        getSignatureVerificationContext().validate(signature);
+    }
+
+    /**
+     * Returns the verification context for the configured IdP credential. The context is built once and reused
+     * until the credential in the configuration changes.
+     *
+     * @return signature verification context
+     * @throws SSOAgentException if the credential cannot be read
+     */
+    public SAMLSignatureVerificationContext getSignatureVerificationContext() throws SSOAgentException {
+
+        SAMLSignatureVerificationContext current = signatureVerificationContext;
+        SAMLSignatureVerificationContext context = SAMLSignatureVerificationContext.forCredential(current,
+                ssoAgentConfig.getSAML2().getSSOAgentX509Credential());
+        if (context != current) {
+            signatureVerificationContext = context;
         }
+        return context;
+    }
 
-        try {
-            SignatureValidator validator = new SignatureValidator(
-                    new X509CredentialImpl(ssoAgentConfig.getSAML2().getSSOAgentX509Credential()));
-            validator.validate(signImpl);
-        } catch (ValidationException e) {
-            if (log.isDebugEnabled()) {
-                log.debug("Validation exception : ", e);
-            }
-            throw new SSOAgentException("Signature validation failed for SAML2 Element");
+    /**
+     * Returns the SP credential used to sign outbound messages and to decrypt assertions. It is built once, together
+     * with its cached certificate encoding, and reused until the credential in the configuration changes.
+     *
+     * @return SP credential
+     * @throws SSOAgentException if the credential cannot be read
+     */
+    public X509CredentialImpl getSigningCredential() throws SSOAgentException {
+
+        SSOAgentX509Credential credential = ssoAgentConfig.getSAML2().getSSOAgentX509Credential();
+        X509CredentialImpl current = signingCredential;
+        if (current == null || !current.isBuiltFrom(credential)) {
+            current = new X509CredentialImpl(credential);
+            signingCredential = current;
+        }
+        return current;
+    }
+
+    /**
+     * Returns the signer for redirect binding query strings, bound to the current SP private key and the
+     * configured signature algorithm.
+     *
+     * @return redirect binding signer
+     * @throws SSOAgentException if the private key cannot be read or does not match the algorithm
+     */
+    public SAML2RedirectSigner getRedirectSigner() throws SSOAgentException {
+
+        PrivateKey privateKey = ssoAgentConfig.getSAML2().getSSOAgentX509Credential().getPrivateKey();
+        String signatureAlgorithm = ssoAgentConfig.getSAML2().getSignatureAlgorithm();
+        SAML2RedirectSigner signer = redirectSigner;
+        if (signer == null || !signer.isBoundTo(privateKey, signatureAlgorithm)) {
+            signer = new SAML2RedirectSigner(privateKey, signatureAlgorithm);
+            redirectSigner = signer;
         }
+        return signer;
     }
 
     private Status buildStatus(String status, String statMsg) {
@@ -1047,4 +1267,54 @@ public class SAML2SSOManager {
 
         return stat;
     }
+
+    /**
+     * Outcome of processing a SAML2 Response or LogoutResponse, shared by all copies of a duplicated request.
+     */
+    private static final class SAML2LoginResult {
+
+        private final LogoutResponse logoutResponse;
+        // Null if passive authentication did not log the user in.
+        private final LoggedInSessionBean sessionBean;
+        private final long sessionNotOnOrAfter;
+        private final long validUntil;
+        private final AtomicBoolean sessionBeanClaimed = new AtomicBoolean();
+
+        SAML2LoginResult(LogoutResponse logoutResponse) {
+
+            this(logoutResponse, null, -1L, Long.MAX_VALUE);
+        }
+
+        SAML2LoginResult(LogoutResponse logoutResponse, LoggedInSessionBean sessionBean, long sessionNotOnOrAfter,
+                         long validUntil) {
+
+            this.logoutResponse = logoutResponse;
+            this.sessionBean = sessionBean;
+            this.sessionNotOnOrAfter = sessionNotOnOrAfter;
+            this.validUntil = validUntil;
+        }
+
+        /**
+         * Returns the session bean to store in a session logged in with this result. The first session gets the
+         * bean itself, and sessions that waited for the same Response or artifact get a copy of their own, so no
+         * two sessions share a mutable bean.
+         */
+        LoggedInSessionBean claimSessionBean() throws SSOAgentException {
+
+            if (sessionBeanClaimed.compareAndSet(false, true)) {
+                return sessionBean;
+            }
+            try {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                try (ObjectOutputStream output = new ObjectOutputStream(bytes)) {
+                    output.writeObject(sessionBean);
+                }
+                try (ObjectInputStream input = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+                    return (LoggedInSessionBean) input.readObject();
+                }
+            } catch (IOException | ClassNotFoundException e) {
+                throw new SSOAgentException("Error while copying the session bean", e);
+            }
+        }
+    }
 }
@@ -0,0 +1,163 @@
+/*
+ * Copyright (c) 2018, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.identity.sso.agent.saml;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.opensaml.security.SAMLSignatureProfileValidator;
+import org.opensaml.xml.signature.Signature;
+import org.opensaml.xml.signature.SignatureValidator;
+import org.opensaml.xml.validation.ValidationException;
+import org.wso2.carbon.identity.sso.agent.exception.SSOAgentException;
+import org.wso2.carbon.identity.sso.agent.security.SSOAgentX509Credential;
+import org.wso2.carbon.identity.sso.agent.security.X509CredentialImpl;
+
+import java.security.PublicKey;
+import java.security.cert.X509Certificate;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.wso2.carbon.CarbonConstants.AUDIT_LOG;
+
+/**
+ * Verification context for SAML2 signatures issued by the IdP.
+ * <p/>
+ * The IdP credential, the SAML signature profile validator and the signature validator are created once and shared
+ * by all request threads. A context is bound to a single {@link SSOAgentX509Credential}, and has to be rebuilt
+ * when that credential or its certificate changes.
+ */
+public class SAMLSignatureVerificationContext {
+
+    private static final Log log = LogFactory.getLog(SAMLSignatureVerificationContext.class);
+
+    private final SSOAgentX509Credential ssoAgentX509Credential;
+    private final X509Certificate entityCertificate;
+    private final PublicKey publicKey;
+    private final SAMLSignatureProfileValidator signatureProfileValidator;
+    private final SignatureValidator signatureValidator;
+    private final AtomicLong verificationCount;
+    private final AtomicLong failureCount;
+
+    public SAMLSignatureVerificationContext(SSOAgentX509Credential ssoAgentX509Credential)
+            throws SSOAgentException {
+
+        this(ssoAgentX509Credential, new AtomicLong(), new AtomicLong());
+    }
+
+    private SAMLSignatureVerificationContext(SSOAgentX509Credential ssoAgentX509Credential,
+                                             AtomicLong verificationCount, AtomicLong failureCount)
+            throws SSOAgentException {
+
+        X509CredentialImpl credential = new X509CredentialImpl(ssoAgentX509Credential);
+        this.ssoAgentX509Credential = ssoAgentX509Credential;
+        this.entityCertificate = credential.getEntityCertificate();
+        this.publicKey = credential.getPublicKey();
+        this.signatureProfileValidator = new SAMLSignatureProfileValidator();
+        this.signatureValidator = new SignatureValidator(credential);
+        this.verificationCount = verificationCount;
+        this.failureCount = failureCount;
+    }
+
+    /**
+     * Returns a context for the given credential. The current context is returned if it was built from the same
+     * credential, otherwise a new context is built which carries over the counters of the current one.
+     *
+     * @param current                current context, may be null
+     * @param ssoAgentX509Credential credential to verify signatures with
+     * @return verification context bound to the given credential
+     * @throws SSOAgentException if the credential cannot be read
+     */
+    public static SAMLSignatureVerificationContext forCredential(SAMLSignatureVerificationContext current,
+                                                                 SSOAgentX509Credential ssoAgentX509Credential)
+            throws SSOAgentException {
+
+        if (current == null) {
+            return new SAMLSignatureVerificationContext(ssoAgentX509Credential);
+        }
+        if (current.isBuiltFrom(ssoAgentX509Credential)) {
+            return current;
+        }
+        return new SAMLSignatureVerificationContext(ssoAgentX509Credential, current.verificationCount,
+                current.failureCount);
+    }
+
+    /**
+     * Returns whether this context was built from the given credential and its current certificate.
+     *
+     * @param credential credential to compare with
+     * @return true if the context can be reused for the credential
+     * @throws SSOAgentException if the credential cannot be read
+     */
+    public boolean isBuiltFrom(SSOAgentX509Credential credential) throws SSOAgentException {
+
+        return credential == ssoAgentX509Credential &&
+                credential.getEntityCertificate() == entityCertificate &&
+                credential.getPublicKey() == publicKey;
+    }
+
+    /**
+     * Validates the signature against the SAML signature profile and the IdP credential.
+     *
+     * @param signature signature of a SAML2 element
+     * @throws SSOAgentException if the signature is not valid
+     */
+    public void validate(Signature signature) throws SSOAgentException {
+
+        verificationCount.incrementAndGet();
+        try {
+            signatureProfileValidator.validate(signature);
+        } catch (ValidationException ex) {
+            failureCount.incrementAndGet();
+            String logMsg = "Signature do not confirm to SAML signature profile. Possible XML Signature " +
+                    "Wrapping  Attack!";
+            AUDIT_LOG.warn(logMsg);
+            if (log.isDebugEnabled()) {
+                log.debug(logMsg, ex);
+            }
+            throw new SSOAgentException(logMsg, ex);
+        }
+
+        try {
+            signatureValidator.validate(signature);
+        } catch (ValidationException e) {
+            failureCount.incrementAndGet();
+            if (log.isDebugEnabled()) {
+                log.debug("Validation exception : ", e);
+            }
+            throw new SSOAgentException("Signature validation failed for SAML2 Element");
+        }
+    }
+
+    public PublicKey getPublicKey() {
+        return publicKey;
+    }
+
+    /**
+     * @return number of signatures verified through this context and the contexts it replaced
+     */
+    public long getVerificationCount() {
+        return verificationCount.get();
+    }
+
+    /**
+     * @return number of signatures that failed verification through this context and the contexts it replaced
+     */
+    public long getFailureCount() {
+        return failureCount.get();
+    }
+}
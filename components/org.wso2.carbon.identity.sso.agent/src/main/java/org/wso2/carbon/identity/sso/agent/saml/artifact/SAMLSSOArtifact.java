@@ -0,0 +1,94 @@
+/*
+ * Copyright (c) 2018, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.identity.sso.agent.saml.artifact;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.codec.binary.Hex;
+import org.wso2.carbon.identity.sso.agent.exception.ArtifactResolutionException;
+
+/**
+ * Decoded SAML2 artifact of type 0x0004.
+ * <p/>
+ * A type 0x0004 artifact is the base64 encoding of a 2 byte TypeCode, a 2 byte EndpointIndex, a 20 byte SourceID
+ * and a 20 byte MessageHandle. The SourceID identifies the issuer of the artifact, which lets the artifact be sent
+ * to the resolution service of the node that issued it.
+ */
+public class SAMLSSOArtifact {
+
+    public static final int TYPE_CODE = 0x0004;
+
+    private static final int SOURCE_ID_LENGTH = 20;
+    private static final int MESSAGE_HANDLE_LENGTH = 20;
+    private static final int LENGTH = 4 + SOURCE_ID_LENGTH + MESSAGE_HANDLE_LENGTH;
+
+    private final int endpointIndex;
+    private final String sourceId;
+
+    private SAMLSSOArtifact(int endpointIndex, String sourceId) {
+
+        this.endpointIndex = endpointIndex;
+        this.sourceId = sourceId;
+    }
+
+    /**
+     * Decodes the given artifact.
+     *
+     * @param samlArt base64 encoded SAML2 artifact
+     * @return decoded artifact, or null if the artifact is of another type
+     * @throws ArtifactResolutionException if the artifact cannot be decoded
+     */
+    public static SAMLSSOArtifact parse(String samlArt) throws ArtifactResolutionException {
+
+        if (samlArt == null || !Base64.isBase64(samlArt)) {
+            throw new ArtifactResolutionException("Received SAML2 artifact is not base64 encoded.");
+        }
+        byte[] bytes = Base64.decodeBase64(samlArt);
+        if (bytes.length < 2) {
+            throw new ArtifactResolutionException("Received SAML2 artifact is too short.");
+        }
+        int typeCode = ((bytes[0] & 0xff) << 8) | (bytes[1] & 0xff);
+        if (typeCode != TYPE_CODE) {
+            return null;
+        }
+        if (bytes.length != LENGTH) {
+            throw new ArtifactResolutionException("Received SAML2 artifact of type 0x0004 has an invalid length: " +
+                    bytes.length);
+        }
+        int endpointIndex = ((bytes[2] & 0xff) << 8) | (bytes[3] & 0xff);
+        byte[] sourceId = new byte[SOURCE_ID_LENGTH];
+        System.arraycopy(bytes, 4, sourceId, 0, SOURCE_ID_LENGTH);
+        return new SAMLSSOArtifact(endpointIndex, new String(Hex.encodeHex(sourceId)));
+    }
+
+    /**
+     * @return index of the artifact resolution endpoint of the issuer
+     */
+    public int getEndpointIndex() {
+
+        return endpointIndex;
+    }
+
+    /**
+     * @return SourceID of the issuer as 40 lower case hex characters
+     */
+    public String getSourceId() {
+
+        return sourceId;
+    }
+}
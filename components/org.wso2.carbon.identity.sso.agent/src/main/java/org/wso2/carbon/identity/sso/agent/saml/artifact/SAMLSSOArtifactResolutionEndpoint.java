@@ -0,0 +1,508 @@
+/*
+ * Copyright (c) 2018, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.identity.sso.agent.saml.artifact;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.opensaml.saml2.core.ArtifactResponse;
+import org.wso2.carbon.identity.sso.agent.bean.SSOAgentConfig;
+import org.wso2.carbon.identity.sso.agent.exception.ArtifactResolutionException;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Guards the artifact resolutions sent to one Artifact Resolve URL.
+ * <p/>
+ * Resolutions run on a shared pool of daemon threads, so that the calling thread only waits up to its deadline.
+ * A bulkhead bounds the number of resolutions in flight per endpoint and rejects further resolutions straight away
+ * instead of queueing them. A circuit breaker opens after a number of consecutive transport failures or timeouts
+ * and rejects resolutions until the open duration has passed. It then lets one probe resolution through per open
+ * duration, and closes again when a probe succeeds. Exactly one outcome is recorded per resolution, so a
+ * resolution that completes after its caller gave up at the deadline is not counted again. Queue time and latency
+ * are collected per endpoint.
+ * <p/>
+ * Endpoints are shared per Artifact Resolve URL and settings, so agents configured with other settings for the
+ * same URL do not reset each other's permits and circuit state. The endpoints and the resolution threads are
+ * released by {@link #release()} when the last user registered with {@link #acquire()} is gone.
+ */
+public class SAMLSSOArtifactResolutionEndpoint {
+
+    public static final int DEFAULT_TIMEOUT = 30000;
+    public static final int DEFAULT_MAX_CONCURRENCY = SAMLSSOHttpClientPool.DEFAULT_MAX_CONNECTIONS_PER_ROUTE;
+    public static final int DEFAULT_FAILURE_THRESHOLD = 5;
+    public static final int DEFAULT_OPEN_DURATION = 30000;
+
+    private static final Log log = LogFactory.getLog(SAMLSSOArtifactResolutionEndpoint.class);
+
+    private static final ConcurrentMap<EndpointKey, SAMLSSOArtifactResolutionEndpoint> endpoints =
+            new ConcurrentHashMap<EndpointKey, SAMLSSOArtifactResolutionEndpoint>();
+    private static ExecutorService executor = null;
+    private static int users = 0;
+
+    private final String url;
+    private final int maxConcurrency;
+    private final int failureThreshold;
+    private final long openDurationMillis;
+    private final Semaphore bulkhead;
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+    // Time until which the circuit is open, or 0 while it is closed.
+    private final AtomicLong openUntil = new AtomicLong();
+
+    private final AtomicLong resolutions = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+    private final AtomicLong rejections = new AtomicLong();
+    private final AtomicLong totalQueueNanos = new AtomicLong();
+    private final AtomicLong totalLatencyNanos = new AtomicLong();
+    private final AtomicLong maxLatencyNanos = new AtomicLong();
+
+    private SAMLSSOArtifactResolutionEndpoint(String url, int maxConcurrency, int failureThreshold,
+                                              long openDurationMillis) {
+
+        this.url = url;
+        this.maxConcurrency = maxConcurrency;
+        this.failureThreshold = failureThreshold;
+        this.openDurationMillis = openDurationMillis;
+        this.bulkhead = new Semaphore(maxConcurrency);
+    }
+
+    /**
+     * Returns the shared endpoint for the Artifact Resolve URL and settings of the given configuration.
+     *
+     * @param saml2 SAML2 configuration
+     * @return shared endpoint
+     */
+    public static SAMLSSOArtifactResolutionEndpoint getInstance(SSOAgentConfig.SAML2 saml2) {
+
+        return getInstance(saml2.getArtifactResolveURL(), saml2);
+    }
+
+    /**
+     * Returns the shared endpoint for the given Artifact Resolve URL, guarded with the settings of the given
+     * configuration.
+     *
+     * @param url   Artifact Resolve URL
+     * @param saml2 SAML2 configuration
+     * @return shared endpoint
+     */
+    public static SAMLSSOArtifactResolutionEndpoint getInstance(String url, SSOAgentConfig.SAML2 saml2) {
+
+        int maxConcurrency = saml2.getArtifactResolveMaxConcurrency();
+        int failureThreshold = saml2.getArtifactResolveCircuitBreakerFailureThreshold();
+        long openDurationMillis = saml2.getArtifactResolveCircuitBreakerOpenDuration();
+
+        EndpointKey key = new EndpointKey(url, maxConcurrency, failureThreshold, openDurationMillis);
+        SAMLSSOArtifactResolutionEndpoint endpoint = endpoints.get(key);
+        if (endpoint != null) {
+            return endpoint;
+        }
+        synchronized (endpoints) {
+            endpoint = endpoints.get(key);
+            if (endpoint == null) {
+                endpoint = new SAMLSSOArtifactResolutionEndpoint(url, maxConcurrency, failureThreshold,
+                        openDurationMillis);
+                endpoints.put(key, endpoint);
+            }
+            return endpoint;
+        }
+    }
+
+    /**
+     * Returns the outcome of the given resolution.
+     *
+     * @param resolution pending artifact response returned by {@link #submit(Callable, Outcome)}
+     * @return outcome of the resolution, or null if it was not submitted to an endpoint
+     */
+    public static Outcome getOutcome(Future<ArtifactResponse> resolution) {
+
+        if (resolution instanceof ResolutionTask) {
+            return ((ResolutionTask) resolution).outcome;
+        }
+        return null;
+    }
+
+    /**
+     * Registers a user of the endpoints, such as a SAML2 SSO manager.
+     */
+    public static void acquire() {
+
+        synchronized (endpoints) {
+            users++;
+        }
+    }
+
+    /**
+     * Unregisters a user registered by {@link #acquire()}. When the last user is gone, the resolution threads are
+     * stopped and the endpoints are dropped. Both are created again when they are next needed.
+     */
+    public static void release() {
+
+        ExecutorService stopped;
+        synchronized (endpoints) {
+            if (users == 0 || --users > 0) {
+                return;
+            }
+            endpoints.clear();
+            stopped = executor;
+            executor = null;
+        }
+        if (stopped != null) {
+            stopped.shutdownNow();
+        }
+    }
+
+    /**
+     * Creates the outcome of a new resolution to this endpoint.
+     *
+     * @return outcome to record the resolution with
+     */
+    public Outcome newOutcome() {
+
+        return new Outcome();
+    }
+
+    /**
+     * Runs the given resolution on the shared resolution threads.
+     *
+     * @param resolution artifact resolution
+     * @param outcome    outcome the resolution is recorded with, created by {@link #newOutcome()}
+     * @return pending artifact response
+     * @throws ArtifactResolutionException if the circuit is open or the bulkhead is full
+     */
+    public Future<ArtifactResponse> submit(Callable<ArtifactResponse> resolution, Outcome outcome)
+            throws ArtifactResolutionException {
+
+        if (!bulkhead.tryAcquire()) {
+            rejections.incrementAndGet();
+            throw new ArtifactResolutionException("Rejected artifact resolution to " + url + ". " + maxConcurrency +
+                    " resolutions are already in progress.");
+        }
+        if (!allowRequest()) {
+            bulkhead.release();
+            rejections.incrementAndGet();
+            throw new ArtifactResolutionException("Rejected artifact resolution to " + url +
+                    ". The endpoint is failing and the circuit breaker is open.");
+        }
+        ResolutionTask task = new ResolutionTask(resolution, outcome);
+        try {
+            getExecutor().execute(task);
+        } catch (RejectedExecutionException e) {
+            bulkhead.release();
+            throw new ArtifactResolutionException("Artifact resolution to " + url + " could not be started.", e);
+        }
+        return task;
+    }
+
+    /**
+     * Records a resolution for which the endpoint answered, which closes the circuit.
+     */
+    private void recordSuccess() {
+
+        consecutiveFailures.set(0);
+        if (openUntil.getAndSet(0) != 0) {
+            log.info("Artifact resolution endpoint " + url + " recovered. Closing the circuit breaker.");
+        }
+    }
+
+    /**
+     * Records a resolution for which the endpoint could not be reached or did not answer successfully.
+     */
+    private void recordFailure() {
+
+        failures.incrementAndGet();
+        if (failureThreshold <= 0) {
+            return;
+        }
+        boolean halfOpen = openUntil.get() != 0;
+        if (halfOpen || consecutiveFailures.incrementAndGet() >= failureThreshold) {
+            openUntil.set(System.currentTimeMillis() + openDurationMillis);
+            if (!halfOpen) {
+                log.warn("Artifact resolution endpoint " + url + " failed " + failureThreshold + " consecutive " +
+                        "times. Opening the circuit breaker for " + openDurationMillis + " ms.");
+            }
+        }
+    }
+
+    /**
+     * Records a resolution that did not complete before its deadline.
+     */
+    private void recordTimeout() {
+
+        timeouts.incrementAndGet();
+        recordFailure();
+    }
+
+    /**
+     * @return whether the circuit breaker currently rejects resolutions
+     */
+    public boolean isOpen() {
+
+        long until = openUntil.get();
+        return until != 0 && System.currentTimeMillis() < until;
+    }
+
+    /**
+     * @return number of resolutions started
+     */
+    public long getResolutionCount() {
+
+        return resolutions.get();
+    }
+
+    /**
+     * @return number of failed resolutions, including timeouts
+     */
+    public long getFailureCount() {
+
+        return failures.get();
+    }
+
+    /**
+     * @return number of resolutions that did not complete before their deadline
+     */
+    public long getTimeoutCount() {
+
+        return timeouts.get();
+    }
+
+    /**
+     * @return number of resolutions rejected by the bulkhead or the circuit breaker
+     */
+    public long getRejectionCount() {
+
+        return rejections.get();
+    }
+
+    /**
+     * @return average time between submitting a resolution and starting it, in milliseconds
+     */
+    public double getAverageQueueTime() {
+
+        long count = resolutions.get();
+        return count == 0 ? 0 : totalQueueNanos.get() / (count * 1000000.0);
+    }
+
+    /**
+     * @return average time taken by a resolution once started, in milliseconds
+     */
+    public double getAverageLatency() {
+
+        long count = resolutions.get();
+        return count == 0 ? 0 : totalLatencyNanos.get() / (count * 1000000.0);
+    }
+
+    /**
+     * @return longest time taken by a resolution once started, in milliseconds
+     */
+    public double getMaxLatency() {
+
+        return maxLatencyNanos.get() / 1000000.0;
+    }
+
+    private boolean allowRequest() {
+
+        long until = openUntil.get();
+        if (until == 0) {
+            return true;
+        }
+        long now = System.currentTimeMillis();
+        // Once the open duration has passed, a single caller wins the right to probe the endpoint.
+        return now >= until && openUntil.compareAndSet(until, now + openDurationMillis);
+    }
+
+    private static ExecutorService getExecutor() {
+
+        synchronized (endpoints) {
+            if (executor == null) {
+                // The bulkheads bound the number of resolutions, hence the pool itself is unbounded.
+                executor = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS,
+                        new SynchronousQueue<Runnable>(), new ResolutionThreadFactory());
+            }
+            return executor;
+        }
+    }
+
+    private void recordLatency(long queueNanos, long latencyNanos) {
+
+        resolutions.incrementAndGet();
+        totalQueueNanos.addAndGet(queueNanos);
+        totalLatencyNanos.addAndGet(latencyNanos);
+        long max = maxLatencyNanos.get();
+        while (latencyNanos > max && !maxLatencyNanos.compareAndSet(max, latencyNanos)) {
+            max = maxLatencyNanos.get();
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("Artifact resolution to " + url + " queued for " + queueNanos / 1000000.0 + " ms and took " +
+                    latencyNanos / 1000000.0 + " ms.");
+        }
+    }
+
+    /**
+     * Resolution task holding a bulkhead permit until it has run. A task cancelled at its deadline keeps the permit
+     * while its thread is still blocked on the endpoint, and a task cancelled before it started returns it at once.
+     */
+    private class ResolutionTask extends FutureTask<ArtifactResponse> {
+
+        private final long submittedAt = System.nanoTime();
+        private final AtomicBoolean claimed = new AtomicBoolean();
+        private final Outcome outcome;
+
+        ResolutionTask(Callable<ArtifactResponse> resolution, Outcome outcome) {
+
+            super(resolution);
+            this.outcome = outcome;
+        }
+
+        @Override
+        public void run() {
+
+            if (!claimed.compareAndSet(false, true)) {
+                return;
+            }
+            long startedAt = System.nanoTime();
+            try {
+                super.run();
+            } finally {
+                bulkhead.release();
+                recordLatency(startedAt - submittedAt, System.nanoTime() - startedAt);
+            }
+        }
+
+        @Override
+        protected void done() {
+
+            if (claimed.compareAndSet(false, true)) {
+                bulkhead.release();
+            }
+        }
+    }
+
+    /**
+     * Outcome of a single resolution. Only the first of success, failure or timeout is recorded on the endpoint.
+     */
+    public final class Outcome {
+
+        private final AtomicBoolean recorded = new AtomicBoolean();
+
+        private Outcome() {
+
+        }
+
+        /**
+         * Records that the endpoint answered, unless an outcome was already recorded.
+         */
+        public void success() {
+
+            if (recorded.compareAndSet(false, true)) {
+                recordSuccess();
+            }
+        }
+
+        /**
+         * Records that the endpoint could not be reached or did not answer successfully, unless an outcome was
+         * already recorded.
+         */
+        public void failure() {
+
+            if (recorded.compareAndSet(false, true)) {
+                recordFailure();
+            }
+        }
+
+        /**
+         * Records that the resolution did not complete before its deadline, unless an outcome was already recorded.
+         * A result that arrives afterwards is not recorded.
+         */
+        public void timeout() {
+
+            if (recorded.compareAndSet(false, true)) {
+                recordTimeout();
+            }
+        }
+    }
+
+    /**
+     * Artifact Resolve URL and the settings an endpoint is guarded with.
+     */
+    private static class EndpointKey {
+
+        private final String url;
+        private final int maxConcurrency;
+        private final int failureThreshold;
+        private final long openDurationMillis;
+
+        EndpointKey(String url, int maxConcurrency, int failureThreshold, long openDurationMillis) {
+
+            this.url = url;
+            this.maxConcurrency = maxConcurrency;
+            this.failureThreshold = failureThreshold;
+            this.openDurationMillis = openDurationMillis;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof EndpointKey)) {
+                return false;
+            }
+            EndpointKey other = (EndpointKey) o;
+            return url.equals(other.url) && maxConcurrency == other.maxConcurrency &&
+                    failureThreshold == other.failureThreshold && openDurationMillis == other.openDurationMillis;
+        }
+
+        @Override
+        public int hashCode() {
+
+            int result = url.hashCode();
+            result = 31 * result + maxConcurrency;
+            result = 31 * result + failureThreshold;
+            return 31 * result + (int) (openDurationMillis ^ (openDurationMillis >>> 32));
+        }
+    }
+
+    private static class ResolutionThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger threadCount = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+
+            Thread thread = new Thread(runnable, "SAML2-ArtifactResolution-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -21,43 +21,37 @@ package org.wso2.carbon.identity.sso.agent.saml.artifact;
 import org.apache.commons.lang.StringUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.apache.xml.security.signature.XMLSignature;
+import org.apache.http.HttpEntity;
+import org.apache.http.util.EntityUtils;
 import org.joda.time.DateTime;
-import org.opensaml.Configuration;
 import org.opensaml.common.SAMLObject;
-import org.opensaml.common.SAMLObjectBuilder;
-import org.opensaml.common.SAMLVersion;
 import org.opensaml.common.xml.SAMLConstants;
-import org.opensaml.saml2.core.Artifact;
 import org.opensaml.saml2.core.ArtifactResolve;
 import org.opensaml.saml2.core.ArtifactResponse;
-import org.opensaml.saml2.core.Issuer;
 import org.opensaml.saml2.core.StatusCode;
+import org.opensaml.ws.soap.soap11.Body;
 import org.opensaml.ws.soap.soap11.Envelope;
-import org.opensaml.xml.XMLObjectBuilderFactory;
+import org.opensaml.ws.soap.util.SOAPConstants;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
 import org.wso2.carbon.identity.sso.agent.bean.SSOAgentConfig;
 import org.wso2.carbon.identity.sso.agent.exception.ArtifactResolutionException;
 import org.wso2.carbon.identity.sso.agent.exception.SSOAgentException;
+import org.wso2.carbon.identity.sso.agent.security.SSOAgentX509Credential;
 import org.wso2.carbon.identity.sso.agent.security.X509CredentialImpl;
 import org.wso2.carbon.identity.sso.agent.util.SSOAgentUtils;
 
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.StringWriter;
 import java.nio.charset.StandardCharsets;
-import java.util.Iterator;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.UUID;
-import javax.xml.soap.MessageFactory;
-import javax.xml.soap.MimeHeaders;
-import javax.xml.soap.SOAPBody;
-import javax.xml.soap.SOAPBodyElement;
-import javax.xml.soap.SOAPException;
-import javax.xml.soap.SOAPMessage;
-import javax.xml.transform.TransformerException;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
  * This class is used for handling SAML2 Artifact Binding.
@@ -66,11 +60,25 @@ public class SAMLSSOArtifactResolutionService {
 
     private static Log log = LogFactory.getLog(SAMLSSOArtifactResolutionService.class);
 
-    private SSOAgentConfig ssoAgentConfig;
+    private final SSOAgentConfig ssoAgentConfig;
+    private final SAMLSSOArtifactResolveTemplate artifactResolveTemplate;
+    private final SAMLSSOSoapMessageService soapMessageService;
+    // Artifact Resolve URLs keyed by the hex SourceID of the artifacts they resolve.
+    private final Map<String, String> artifactResolveURLs;
+    private volatile X509CredentialImpl signingCredential = null;
 
+    /**
+     * Creates an artifact resolution service bound to the given configuration. The service holds no per request
+     * state, hence a single instance can be shared by all request threads.
+     *
+     * @param ssoAgentConfig SSO agent configuration
+     */
     public SAMLSSOArtifactResolutionService(SSOAgentConfig ssoAgentConfig) {
 
         this.ssoAgentConfig = ssoAgentConfig;
+        this.artifactResolveTemplate = new SAMLSSOArtifactResolveTemplate(ssoAgentConfig.getSAML2());
+        this.soapMessageService = new SAMLSSOSoapMessageService(ssoAgentConfig.getSAML2());
+        this.artifactResolveURLs = new HashMap<String, String>(ssoAgentConfig.getSAML2().getArtifactResolveURLs());
     }
 
     /**
@@ -83,8 +91,120 @@ public class SAMLSSOArtifactResolutionService {
     public ArtifactResponse getSAMLArtifactResponse(String samlArtReceived) throws ArtifactResolutionException {
 
         validateArtifactResolveConfig();
-        ArtifactResolve artifactResolve = generateArtifactResolveReq(samlArtReceived);
-        return sendArtifactResolveRequest(artifactResolve);
+        String artifactResolveURL = getArtifactResolveURL(samlArtReceived);
+        return getSAMLArtifactResponse(samlArtReceived, artifactResolveURL,
+                getEndpoint(artifactResolveURL).newOutcome());
+    }
+
+    private ArtifactResponse getSAMLArtifactResponse(String samlArtReceived, String artifactResolveURL,
+                                                     SAMLSSOArtifactResolutionEndpoint.Outcome outcome)
+            throws ArtifactResolutionException {
+
+        if (ssoAgentConfig.getSAML2().isEnableArtifactResolveSigning()) {
+            ArtifactResolve artifactResolve = generateArtifactResolveReq(samlArtReceived);
+            return sendArtifactResolveRequest(artifactResolve.getID(),
+                    artifactResolveTemplate.createEntity(artifactResolve), artifactResolveURL, outcome);
+        }
+        // Unsigned requests are written straight from the template without building OpenSAML objects.
+        String artifactResolveId = UUID.randomUUID().toString();
+        return sendArtifactResolveRequest(artifactResolveId,
+                artifactResolveTemplate.createEntity(artifactResolveId, new DateTime(), samlArtReceived),
+                artifactResolveURL, outcome);
+    }
+
+    /**
+     * Find the Artifact Resolve URL of the node that issued the given artifact. Type 0x0004 artifacts are routed
+     * by their SourceID when Artifact Resolve URLs are configured per SourceID. All other artifacts are resolved
+     * at the Artifact Resolve URL.
+     *
+     * @param samlArtReceived SAML Artifact reference needed to get the actual data
+     * @return Artifact Resolve URL
+     * @throws ArtifactResolutionException if the artifact is malformed or no URL is configured for its source
+     */
+    public String getArtifactResolveURL(String samlArtReceived) throws ArtifactResolutionException {
+
+        String artifactResolveURL = ssoAgentConfig.getSAML2().getArtifactResolveURL();
+        SAMLSSOArtifact artifact = null;
+        if (!artifactResolveURLs.isEmpty()) {
+            artifact = SAMLSSOArtifact.parse(samlArtReceived);
+            if (artifact != null && artifactResolveURLs.containsKey(artifact.getSourceId())) {
+                artifactResolveURL = artifactResolveURLs.get(artifact.getSourceId());
+            }
+            if (artifact != null && log.isDebugEnabled()) {
+                log.debug("Received SAML artifact with SourceID: " + artifact.getSourceId() + " and EndpointIndex: " +
+                        artifact.getEndpointIndex() + ". Resolving at: " + artifactResolveURL);
+            }
+        }
+        if (StringUtils.isEmpty(artifactResolveURL)) {
+            throw new ArtifactResolutionException("Artifact Resolve Url is not configured" +
+                    (artifact != null ? " for the SourceID: " + artifact.getSourceId() : "."));
+        }
+        return artifactResolveURL;
+    }
+
+    /**
+     * Start resolving the given artifact on the artifact resolution threads, guarded by the bulkhead and circuit
+     * breaker of the Artifact Resolve URL. Wait for the result with {@link #awaitArtifactResponse(Future)}.
+     *
+     * @param samlArtReceived SAML Artifact reference needed to get the actual data
+     * @return pending ArtifactResponse
+     * @throws ArtifactResolutionException if the configuration is invalid or the endpoint rejects the resolution
+     */
+    public Future<ArtifactResponse> resolveArtifact(final String samlArtReceived)
+            throws ArtifactResolutionException {
+
+        validateArtifactResolveConfig();
+        final String artifactResolveURL = getArtifactResolveURL(samlArtReceived);
+        SAMLSSOArtifactResolutionEndpoint endpoint = getEndpoint(artifactResolveURL);
+        final SAMLSSOArtifactResolutionEndpoint.Outcome outcome = endpoint.newOutcome();
+        return endpoint.submit(new Callable<ArtifactResponse>() {
+            @Override
+            public ArtifactResponse call() throws ArtifactResolutionException {
+
+                return getSAMLArtifactResponse(samlArtReceived, artifactResolveURL, outcome);
+            }
+        }, outcome);
+    }
+
+    /**
+     * Wait for an artifact resolution started by {@link #resolveArtifact(String)} until the configured deadline.
+     * A resolution that misses the deadline is cancelled and counted as a failure of the endpoint, unless it
+     * recorded its outcome in the meantime. A result that arrives after the deadline is not counted.
+     *
+     * @param resolution pending ArtifactResponse
+     * @return ArtifactResponse
+     * @throws ArtifactResolutionException if the resolution failed or did not complete in time
+     */
+    public ArtifactResponse awaitArtifactResponse(Future<ArtifactResponse> resolution)
+            throws ArtifactResolutionException {
+
+        int timeout = ssoAgentConfig.getSAML2().getArtifactResolveTimeout();
+        try {
+            return resolution.get(timeout, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            resolution.cancel(true);
+            SAMLSSOArtifactResolutionEndpoint.Outcome outcome = SAMLSSOArtifactResolutionEndpoint.getOutcome(
+                    resolution);
+            if (outcome != null) {
+                outcome.timeout();
+            }
+            throw new ArtifactResolutionException("Artifact resolution did not complete within " + timeout + " ms.",
+                    e);
+        } catch (InterruptedException e) {
+            resolution.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new ArtifactResolutionException("Interrupted while waiting for the artifact resolution.", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof ArtifactResolutionException) {
+                throw (ArtifactResolutionException) e.getCause();
+            }
+            throw new ArtifactResolutionException("Encountered error while resolving the artifact.", e.getCause());
+        }
+    }
+
+    private SAMLSSOArtifactResolutionEndpoint getEndpoint(String artifactResolveURL) {
+
+        return SAMLSSOArtifactResolutionEndpoint.getInstance(artifactResolveURL, ssoAgentConfig.getSAML2());
     }
 
     /**
@@ -95,7 +215,8 @@ public class SAMLSSOArtifactResolutionService {
      */
     public ArtifactResolve generateArtifactResolveReq(String samlArtReceived) throws ArtifactResolutionException {
 
-        ArtifactResolve artifactResolve = createArtifactResolveObject(samlArtReceived);
+        ArtifactResolve artifactResolve = artifactResolveTemplate.buildArtifactResolve(UUID.randomUUID().toString(),
+                new DateTime(), samlArtReceived);
         if (ssoAgentConfig.getSAML2().isEnableArtifactResolveSigning()) {
             if (log.isDebugEnabled()) {
                 log.debug("Signing artifact resolve request for the received SAML artifact: " + samlArtReceived);
@@ -120,27 +241,38 @@ public class SAMLSSOArtifactResolutionService {
     public ArtifactResponse sendArtifactResolveRequest(ArtifactResolve artifactResolve)
             throws ArtifactResolutionException {
 
-        SAMLSSOSoapMessageService soapMessageService = new SAMLSSOSoapMessageService();
-        Envelope envelope = soapMessageService.buildSOAPMessage(artifactResolve);
-        String envelopeElement;
-        try {
-            envelopeElement = SSOAgentUtils.marshall(envelope);
-        } catch (SSOAgentException e) {
-            throw new ArtifactResolutionException("Encountered error marshalling SOAP message with artifact " +
-                    "resolve, into its DOM representation", e);
-        }
+        String samlArt = artifactResolve.getArtifact() != null ? artifactResolve.getArtifact().getArtifact() : null;
+        String artifactResolveURL = getArtifactResolveURL(samlArt);
+        return sendArtifactResolveRequest(artifactResolve.getID(),
+                artifactResolveTemplate.createEntity(artifactResolve), artifactResolveURL,
+                getEndpoint(artifactResolveURL).newOutcome());
+    }
+
+    private ArtifactResponse sendArtifactResolveRequest(String artifactResolveId, HttpEntity soapRequest,
+                                                        String artifactResolveURL,
+                                                        SAMLSSOArtifactResolutionEndpoint.Outcome outcome)
+            throws ArtifactResolutionException {
 
         if (log.isDebugEnabled()) {
-            log.debug("Artifact Resolve Request as a SOAP Message: " + envelopeElement);
+            try {
+                log.debug("Artifact Resolve Request as a SOAP Message: " + EntityUtils.toString(soapRequest));
+            } catch (IOException e) {
+                log.debug("Error while logging the Artifact Resolve Request", e);
+            }
         }
 
-        String artifactResponseString = soapMessageService.sendSOAP(envelopeElement,
-                ssoAgentConfig.getSAML2().getArtifactResolveURL());
-        if (log.isDebugEnabled()) {
-            log.debug("Received artifact response string: " + artifactResponseString);
+        // Only transport failures count against the endpoint. Invalid artifacts sent by clients must not open the
+        // circuit.
+        byte[] artifactResponseBytes;
+        try {
+            artifactResponseBytes = soapMessageService.sendSOAPRequest(soapRequest, artifactResolveURL);
+        } catch (ArtifactResolutionException e) {
+            outcome.failure();
+            throw e;
         }
-        ArtifactResponse artifactResponse = extractArtifactResponse(artifactResponseString);
-        validateArtifactResponse(artifactResolve, artifactResponse);
+        outcome.success();
+        ArtifactResponse artifactResponse = extractArtifactResponse(artifactResponseBytes);
+        validateArtifactResponse(artifactResolveId, artifactResponse);
         return artifactResponse;
     }
 
@@ -154,51 +286,80 @@ public class SAMLSSOArtifactResolutionService {
     public ArtifactResponse extractArtifactResponse(String artifactResponseString)
             throws ArtifactResolutionException {
 
-        ArtifactResponse artifactResponse = null;
-        InputStream stream = new ByteArrayInputStream(artifactResponseString.getBytes(StandardCharsets.UTF_8));
+        return extractArtifactResponse(artifactResponseString.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Extract Artifact response object from the bytes of a SOAP message. The envelope is parsed once and the
+     * Artifact response is unmarshalled straight from its element in the parsed document. Return null if the
+     * SOAP body is empty.
+     *
+     * @param artifactResponseBytes Response bytes from artifact resolver.
+     * @return Extracted artifact response object.
+     * @throws ArtifactResolutionException
+     */
+    public ArtifactResponse extractArtifactResponse(byte[] artifactResponseBytes)
+            throws ArtifactResolutionException {
+
+        Document document;
         try {
-            MessageFactory messageFactory = MessageFactory.newInstance();
-            SOAPMessage soapMessage = messageFactory.createMessage(new MimeHeaders(), stream);
-            SOAPBody soapBody = soapMessage.getSOAPBody();
-            Iterator iterator = soapBody.getChildElements();
-
-            while (iterator.hasNext()) {
-                SOAPBodyElement artifactResponseElement = (SOAPBodyElement) iterator.next();
-
-                if (StringUtils.equals(SAMLConstants.SAML20P_NS, artifactResponseElement.getNamespaceURI()) &&
-                        StringUtils.equals(ArtifactResponse.DEFAULT_ELEMENT_LOCAL_NAME,
-                                artifactResponseElement.getLocalName())) {
-
-                    DOMSource source = new DOMSource(artifactResponseElement);
-                    StringWriter stringResult = new StringWriter();
-                    TransformerFactory.newInstance().newTransformer().transform(
-                            source, new StreamResult(stringResult));
-                    artifactResponse = (ArtifactResponse) SSOAgentUtils.unmarshall(stringResult.toString());
-                    if (log.isDebugEnabled()) {
-                        log.debug("Extracted Artifact Response: " + stringResult);
-                    }
-                } else {
-                    throw new ArtifactResolutionException("Received invalid artifact response with nameSpaceURI: " +
-                            artifactResponseElement.getNamespaceURI() + " and localName: " +
-                            artifactResponseElement.getLocalName());
+            document = SSOAgentUtils.parse(artifactResponseBytes);
+        } catch (SSOAgentException e) {
+            throw new ArtifactResolutionException("Didn't receive valid artifact response.", e);
+        }
+
+        Element soapBody = getSOAPBody(document.getDocumentElement());
+        ArtifactResponse artifactResponse = null;
+        for (Node node = soapBody.getFirstChild(); node != null; node = node.getNextSibling()) {
+            if (node.getNodeType() != Node.ELEMENT_NODE) {
+                continue;
+            }
+            if (StringUtils.equals(SAMLConstants.SAML20P_NS, node.getNamespaceURI()) &&
+                    StringUtils.equals(ArtifactResponse.DEFAULT_ELEMENT_LOCAL_NAME, node.getLocalName())) {
+                if (artifactResponse != null) {
+                    throw new ArtifactResolutionException("Received multiple artifact responses in the SOAP body.");
                 }
+                try {
+                    artifactResponse = (ArtifactResponse) SSOAgentUtils.unmarshall((Element) node);
+                } catch (SSOAgentException e) {
+                    throw new ArtifactResolutionException("Encountered error unmarshalling response into SAML2 " +
+                            "object", e);
+                }
+                if (log.isDebugEnabled()) {
+                    log.debug("Extracted Artifact Response with ID: " + artifactResponse.getID());
+                }
+            } else {
+                throw new ArtifactResolutionException("Received invalid artifact response with nameSpaceURI: " +
+                        node.getNamespaceURI() + " and localName: " + node.getLocalName());
             }
-        } catch (SOAPException | IOException | TransformerException e) {
-            throw new ArtifactResolutionException("Didn't receive valid artifact response.", e);
-        } catch (SSOAgentException e) {
-            throw new ArtifactResolutionException("Encountered error unmarshalling response into SAML2 object", e);
         }
         return artifactResponse;
     }
 
-    private void validateArtifactResponse(ArtifactResolve artifactResolve, ArtifactResponse artifactResponse)
+    private static Element getSOAPBody(Element envelope) throws ArtifactResolutionException {
+
+        if (!StringUtils.equals(SOAPConstants.SOAP11_NS, envelope.getNamespaceURI()) ||
+                !StringUtils.equals(Envelope.DEFAULT_ELEMENT_LOCAL_NAME, envelope.getLocalName())) {
+            throw new ArtifactResolutionException("Didn't receive valid artifact response. Expected a SOAP 1.1 " +
+                    "envelope but received: " + envelope.getNamespaceURI() + ":" + envelope.getLocalName());
+        }
+        for (Node node = envelope.getFirstChild(); node != null; node = node.getNextSibling()) {
+            if (node.getNodeType() == Node.ELEMENT_NODE && StringUtils.equals(SOAPConstants.SOAP11_NS,
+                    node.getNamespaceURI()) && StringUtils.equals(Body.DEFAULT_ELEMENT_LOCAL_NAME,
+                    node.getLocalName())) {
+                return (Element) node;
+            }
+        }
+        throw new ArtifactResolutionException("Didn't receive valid artifact response. SOAP body not found.");
+    }
+
+    private void validateArtifactResponse(String artifactResolveId, ArtifactResponse artifactResponse)
             throws ArtifactResolutionException {
 
         if (artifactResponse == null) {
             throw new ArtifactResolutionException("Received artifact response message was null.");
         }
 
-        String artifactResolveId = artifactResolve.getID();
         String artifactResponseInResponseTo = artifactResponse.getInResponseTo();
         if (!artifactResolveId.equals(artifactResponseInResponseTo)) {
             throw new ArtifactResolutionException("Artifact resolve ID: " + artifactResolveId + " is not equal to " +
@@ -219,7 +380,7 @@ public class SAMLSSOArtifactResolutionService {
 
     private void validateArtifactResolveConfig() throws ArtifactResolutionException {
 
-        if (StringUtils.isEmpty(ssoAgentConfig.getSAML2().getArtifactResolveURL())) {
+        if (StringUtils.isEmpty(ssoAgentConfig.getSAML2().getArtifactResolveURL()) && artifactResolveURLs.isEmpty()) {
             throw new ArtifactResolutionException("Artifact Resolve Url is not configured.");
         }
         if (StringUtils.isEmpty(ssoAgentConfig.getSAML2().getSPEntityId())) {
@@ -227,38 +388,28 @@ public class SAMLSSOArtifactResolutionService {
         }
     }
 
-    private ArtifactResolve createArtifactResolveObject(String samlArtReceived) {
-
-        XMLObjectBuilderFactory builderFactory = Configuration.getBuilderFactory();
-
-        SAMLObjectBuilder<ArtifactResolve> artifactResolveBuilder =
-                (SAMLObjectBuilder<ArtifactResolve>) builderFactory.getBuilder(ArtifactResolve.DEFAULT_ELEMENT_NAME);
-        ArtifactResolve artifactResolve = artifactResolveBuilder.buildObject();
-        artifactResolve.setVersion(SAMLVersion.VERSION_20);
-        artifactResolve.setID(UUID.randomUUID().toString());
-        artifactResolve.setIssueInstant(new DateTime());
-
-        SAMLObjectBuilder<Artifact> artifactBuilder =
-                (SAMLObjectBuilder<Artifact>) builderFactory.getBuilder(Artifact.DEFAULT_ELEMENT_NAME);
-        Artifact artifact = artifactBuilder.buildObject();
-        artifact.setArtifact(samlArtReceived);
-
-        SAMLObjectBuilder<Issuer> issuerBuilder = (SAMLObjectBuilder<Issuer>) builderFactory.getBuilder(Issuer.DEFAULT_ELEMENT_NAME);
-        Issuer issuer = issuerBuilder.buildObject();
-        issuer.setValue(ssoAgentConfig.getSAML2().getSPEntityId());
-
-        artifactResolve.setIssuer(issuer);
-        artifactResolve.setArtifact(artifact);
+    /**
+     * Returns the SP credential for signing ArtifactResolve requests, rebuilt only when the credential in the
+     * configuration changes.
+     */
+    private X509CredentialImpl getSigningCredential() throws SSOAgentException {
 
-        return artifactResolve;
+        SSOAgentX509Credential credential = ssoAgentConfig.getSAML2().getSSOAgentX509Credential();
+        X509CredentialImpl current = signingCredential;
+        if (current == null || !current.isBuiltFrom(credential)) {
+            current = new X509CredentialImpl(credential);
+            signingCredential = current;
+        }
+        return current;
     }
 
     private ArtifactResolve signArtifactResolveReq(ArtifactResolve artifactResolve)
             throws ArtifactResolutionException {
 
         try {
-            return SSOAgentUtils.setSignature(artifactResolve, XMLSignature.ALGO_ID_SIGNATURE_RSA,
-                    new X509CredentialImpl(ssoAgentConfig.getSAML2().getSSOAgentX509Credential()));
+            return SSOAgentUtils.setSignatureValue(artifactResolve, ssoAgentConfig.getSAML2().getSignatureAlgorithm(),
+                    getSigningCredential(),
+                    !ssoAgentConfig.getSAML2().isOmitSignatureKeyInfo());
         } catch (SSOAgentException e) {
             throw new ArtifactResolutionException("Error in signing the Artifact Resolve request", e);
         }
@@ -0,0 +1,222 @@
+/*
+ * Copyright (c) 2018, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.identity.sso.agent.saml.artifact;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.AbstractHttpEntity;
+import org.joda.time.DateTime;
+import org.opensaml.Configuration;
+import org.opensaml.common.SAMLVersion;
+import org.opensaml.common.xml.SAMLConstants;
+import org.opensaml.saml2.core.Artifact;
+import org.opensaml.saml2.core.ArtifactResolve;
+import org.opensaml.saml2.core.Issuer;
+import org.opensaml.saml2.core.impl.ArtifactBuilder;
+import org.opensaml.saml2.core.impl.ArtifactResolveBuilder;
+import org.opensaml.saml2.core.impl.IssuerBuilder;
+import org.opensaml.ws.soap.util.SOAPConstants;
+import org.opensaml.xml.io.MarshallingException;
+import org.owasp.encoder.Encode;
+import org.w3c.dom.Element;
+import org.wso2.carbon.identity.sso.agent.bean.SSOAgentConfig;
+import org.wso2.carbon.identity.sso.agent.exception.ArtifactResolutionException;
+import org.wso2.carbon.identity.sso.agent.exception.SSOAgentException;
+import org.wso2.carbon.identity.sso.agent.util.SSOAgentUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+
+/**
+ * Prepared SOAP message for SAML2 ArtifactResolve requests.
+ * <p/>
+ * The SOAP envelope around the request is invariant and is encoded once. An unsigned ArtifactResolve only varies
+ * in its ID, IssueInstant and Artifact, so it is written from pre-encoded byte segments around these fields without
+ * building OpenSAML objects. A signed ArtifactResolve is built with the shared OpenSAML builders, and its signed DOM
+ * is serialized straight into the HTTP entity stream.
+ */
+public class SAMLSSOArtifactResolveTemplate {
+
+    private static final String CONTENT_TYPE = "text/xml; charset=utf-8";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final ArtifactResolveBuilder ARTIFACT_RESOLVE_BUILDER = new ArtifactResolveBuilder();
+    private static final ArtifactBuilder ARTIFACT_BUILDER = new ArtifactBuilder();
+    private static final IssuerBuilder ISSUER_BUILDER = new IssuerBuilder();
+
+    private static final byte[] ENVELOPE_HEAD = ("<soap11:Envelope xmlns:soap11=\"" + SOAPConstants.SOAP11_NS +
+            "\"><soap11:Body>").getBytes(UTF_8);
+    private static final byte[] ENVELOPE_TAIL = "</soap11:Body></soap11:Envelope>".getBytes(UTF_8);
+    private static final byte[] ARTIFACT_RESOLVE_TAIL = "</samlp:Artifact></samlp:ArtifactResolve>".getBytes(UTF_8);
+
+    private final String spEntityId;
+    private final byte[] artifactResolveHead;
+    private final byte[] issuerPart;
+
+    public SAMLSSOArtifactResolveTemplate(SSOAgentConfig.SAML2 saml2) {
+
+        this.spEntityId = saml2.getSPEntityId();
+        this.artifactResolveHead = ("<samlp:ArtifactResolve xmlns:samlp=\"" + SAMLConstants.SAML20P_NS +
+                "\" ID=\"").getBytes(UTF_8);
+        StringBuilder issuer = new StringBuilder(256);
+        issuer.append("\" Version=\"").append(SAMLVersion.VERSION_20.toString()).append("\">");
+        issuer.append("<saml:Issuer xmlns:saml=\"").append(SAMLConstants.SAML20_NS).append("\">");
+        if (spEntityId != null) {
+            issuer.append(Encode.forXmlContent(spEntityId));
+        }
+        issuer.append("</saml:Issuer><samlp:Artifact>");
+        this.issuerPart = issuer.toString().getBytes(UTF_8);
+    }
+
+    /**
+     * Builds an ArtifactResolve object with the issuer taken from the configuration.
+     *
+     * @param id           request ID
+     * @param issueInstant request issue instant
+     * @param samlArt      received SAML artifact
+     * @return ArtifactResolve
+     */
+    public ArtifactResolve buildArtifactResolve(String id, DateTime issueInstant, String samlArt) {
+
+        ArtifactResolve artifactResolve = ARTIFACT_RESOLVE_BUILDER.buildObject();
+        artifactResolve.setVersion(SAMLVersion.VERSION_20);
+        artifactResolve.setID(id);
+        artifactResolve.setIssueInstant(issueInstant);
+
+        Artifact artifact = ARTIFACT_BUILDER.buildObject();
+        artifact.setArtifact(samlArt);
+
+        Issuer issuer = ISSUER_BUILDER.buildObject();
+        issuer.setValue(spEntityId);
+
+        artifactResolve.setIssuer(issuer);
+        artifactResolve.setArtifact(artifact);
+        return artifactResolve;
+    }
+
+    /**
+     * Creates the SOAP request entity for an unsigned ArtifactResolve directly from the byte template.
+     *
+     * @param id           request ID
+     * @param issueInstant request issue instant
+     * @param samlArt      received SAML artifact
+     * @return SOAP request entity
+     */
+    public HttpEntity createEntity(String id, DateTime issueInstant, String samlArt) {
+
+        StringBuilder variablePart = new StringBuilder(96);
+        variablePart.append(Encode.forXmlAttribute(id)).append("\" IssueInstant=\"")
+                .append(Configuration.getSAMLDateFormatter().print(issueInstant));
+        return new SOAPEntity(null, ENVELOPE_HEAD, artifactResolveHead, variablePart.toString().getBytes(UTF_8),
+                issuerPart, Encode.forXmlContent(samlArt).getBytes(UTF_8), ARTIFACT_RESOLVE_TAIL, ENVELOPE_TAIL);
+    }
+
+    /**
+     * Creates the SOAP request entity for the given ArtifactResolve. A signed request is written from its signed
+     * DOM, an unsigned one is marshalled first.
+     *
+     * @param artifactResolve ArtifactResolve request
+     * @return SOAP request entity
+     * @throws ArtifactResolutionException if the request cannot be marshalled
+     */
+    public HttpEntity createEntity(ArtifactResolve artifactResolve) throws ArtifactResolutionException {
+
+        Element element = artifactResolve.getDOM();
+        if (element == null) {
+            try {
+                element = org.opensaml.xml.Configuration.getMarshallerFactory().getMarshaller(artifactResolve)
+                        .marshall(artifactResolve);
+            } catch (MarshallingException e) {
+                throw new ArtifactResolutionException("Encountered error marshalling SOAP message with artifact " +
+                        "resolve, into its DOM representation", e);
+            }
+        }
+        return new SOAPEntity(element, ENVELOPE_HEAD, ENVELOPE_TAIL);
+    }
+
+    /**
+     * Repeatable entity writing a SOAP message from byte segments, with an optional DOM element serialized after
+     * the first segment. The content length is known up front only if there is no element.
+     */
+    private static class SOAPEntity extends AbstractHttpEntity {
+
+        private final Element element;
+        private final byte[][] segments;
+        private final long contentLength;
+
+        SOAPEntity(Element element, byte[]... segments) {
+
+            this.element = element;
+            this.segments = segments;
+            long length = 0;
+            for (byte[] segment : segments) {
+                length += segment.length;
+            }
+            this.contentLength = element == null ? length : -1;
+            setContentType(CONTENT_TYPE);
+        }
+
+        @Override
+        public boolean isRepeatable() {
+
+            return true;
+        }
+
+        @Override
+        public long getContentLength() {
+
+            return contentLength;
+        }
+
+        @Override
+        public InputStream getContent() throws IOException {
+
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream(
+                    contentLength > 0 ? (int) contentLength : 4096);
+            writeTo(outputStream);
+            return new ByteArrayInputStream(outputStream.toByteArray());
+        }
+
+        @Override
+        public void writeTo(OutputStream outputStream) throws IOException {
+
+            outputStream.write(segments[0]);
+            if (element != null) {
+                try {
+                    SSOAgentUtils.serialize(element, outputStream, false);
+                } catch (SSOAgentException e) {
+                    throw new IOException("Error serializing the Artifact Resolve request", e);
+                }
+            }
+            for (int i = 1; i < segments.length; i++) {
+                outputStream.write(segments[i]);
+            }
+            outputStream.flush();
+        }
+
+        @Override
+        public boolean isStreaming() {
+
+            return false;
+        }
+    }
+}
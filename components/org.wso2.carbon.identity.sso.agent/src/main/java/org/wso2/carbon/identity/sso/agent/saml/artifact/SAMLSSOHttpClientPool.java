@@ -0,0 +1,231 @@
+/*
+ * Copyright (c) 2018, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.identity.sso.agent.saml.artifact;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLContextBuilder;
+import org.apache.http.conn.ssl.TrustSelfSignedStrategy;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.wso2.carbon.identity.sso.agent.exception.ArtifactResolutionException;
+
+import java.io.IOException;
+import java.security.KeyManagementException;
+import java.security.KeyStoreException;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Shared HTTP clients for the SAML2 SOAP binding, one per Artifact Resolve URL and connection settings.
+ * <p/>
+ * Each client has its own pooling connection manager and SSL context. Connections are kept alive between artifact
+ * resolutions, and new connections to the same endpoint resume the TLS session cached by the SSL context, so an
+ * artifact login does not pay for a full TCP and TLS handshake. Agents configured with other settings for the same
+ * URL get a client of their own, so a client is never closed while another agent may be using it. The clients are
+ * closed by {@link #release()} when the last user registered with {@link #acquire()} is gone.
+ */
+public class SAMLSSOHttpClientPool {
+
+    public static final int DEFAULT_MAX_CONNECTIONS_PER_ROUTE = 20;
+    public static final int DEFAULT_MAX_CONNECTIONS = 50;
+    public static final int DEFAULT_CONNECT_TIMEOUT = 10000;
+    public static final int DEFAULT_READ_TIMEOUT = 30000;
+
+    private static final Log log = LogFactory.getLog(SAMLSSOHttpClientPool.class);
+
+    private static final ConcurrentMap<ClientKey, PooledClient> clients =
+            new ConcurrentHashMap<ClientKey, PooledClient>();
+    private static int users = 0;
+
+    private SAMLSSOHttpClientPool() {
+    }
+
+    /**
+     * Returns the shared client for the given URL and settings.
+     *
+     * @param url                     Artifact Resolve URL
+     * @param maxConnectionsPerRoute  maximum number of connections to the endpoint
+     * @param maxConnections          maximum number of connections of the client
+     * @param connectTimeoutMillis    connect timeout, also used as the timeout for leasing a pooled connection
+     * @param readTimeoutMillis       socket read timeout
+     * @return shared HTTP client
+     * @throws ArtifactResolutionException if the SSL context cannot be built
+     */
+    public static CloseableHttpClient getHttpClient(String url, int maxConnectionsPerRoute, int maxConnections,
+                                                    int connectTimeoutMillis, int readTimeoutMillis)
+            throws ArtifactResolutionException {
+
+        ClientKey key = new ClientKey(url, maxConnectionsPerRoute, maxConnections, connectTimeoutMillis,
+                readTimeoutMillis);
+        PooledClient client = clients.get(key);
+        if (client != null) {
+            return client.httpClient;
+        }
+        synchronized (clients) {
+            client = clients.get(key);
+            if (client == null) {
+                client = new PooledClient(maxConnectionsPerRoute, maxConnections, connectTimeoutMillis,
+                        readTimeoutMillis);
+                clients.put(key, client);
+            }
+            return client.httpClient;
+        }
+    }
+
+    /**
+     * Registers a user of the shared clients, such as a SAML2 SSO manager.
+     */
+    public static void acquire() {
+
+        synchronized (clients) {
+            users++;
+        }
+    }
+
+    /**
+     * Unregisters a user registered by {@link #acquire()}. When the last user is gone, all clients and their pooled
+     * connections are closed. Clients are built again when they are next asked for.
+     */
+    public static void release() {
+
+        List<PooledClient> closed;
+        synchronized (clients) {
+            if (users == 0 || --users > 0) {
+                return;
+            }
+            closed = new ArrayList<PooledClient>(clients.values());
+            clients.clear();
+        }
+        for (PooledClient client : closed) {
+            client.close();
+        }
+    }
+
+    static int getClientCount() {
+
+        return clients.size();
+    }
+
+    /**
+     * Artifact Resolve URL and the connection settings a client is built with.
+     */
+    private static class ClientKey {
+
+        private final String url;
+        private final int maxConnectionsPerRoute;
+        private final int maxConnections;
+        private final int connectTimeoutMillis;
+        private final int readTimeoutMillis;
+
+        ClientKey(String url, int maxConnectionsPerRoute, int maxConnections, int connectTimeoutMillis,
+                  int readTimeoutMillis) {
+
+            this.url = url;
+            this.maxConnectionsPerRoute = maxConnectionsPerRoute;
+            this.maxConnections = maxConnections;
+            this.connectTimeoutMillis = connectTimeoutMillis;
+            this.readTimeoutMillis = readTimeoutMillis;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof ClientKey)) {
+                return false;
+            }
+            ClientKey other = (ClientKey) o;
+            return url.equals(other.url) && maxConnectionsPerRoute == other.maxConnectionsPerRoute &&
+                    maxConnections == other.maxConnections && connectTimeoutMillis == other.connectTimeoutMillis &&
+                    readTimeoutMillis == other.readTimeoutMillis;
+        }
+
+        @Override
+        public int hashCode() {
+
+            int result = url.hashCode();
+            result = 31 * result + maxConnectionsPerRoute;
+            result = 31 * result + maxConnections;
+            result = 31 * result + connectTimeoutMillis;
+            return 31 * result + readTimeoutMillis;
+        }
+    }
+
+    private static class PooledClient {
+
+        private final PoolingHttpClientConnectionManager connectionManager;
+        private final CloseableHttpClient httpClient;
+
+        PooledClient(int maxConnectionsPerRoute, int maxConnections, int connectTimeoutMillis,
+                     int readTimeoutMillis) throws ArtifactResolutionException {
+
+            SSLConnectionSocketFactory sslsf;
+            try {
+                sslsf = new SSLConnectionSocketFactory(
+                        new SSLContextBuilder().loadTrustMaterial(null, new TrustSelfSignedStrategy()).build());
+            } catch (NoSuchAlgorithmException | KeyStoreException e) {
+                throw new ArtifactResolutionException("Error while building trust store.", e);
+            } catch (KeyManagementException e) {
+                throw new ArtifactResolutionException("Error while building socket factory.", e);
+            }
+            Registry<ConnectionSocketFactory> socketFactoryRegistry = RegistryBuilder.<ConnectionSocketFactory>create()
+                    .register("http", PlainConnectionSocketFactory.getSocketFactory())
+                    .register("https", sslsf)
+                    .build();
+            this.connectionManager = new PoolingHttpClientConnectionManager(socketFactoryRegistry);
+            connectionManager.setDefaultMaxPerRoute(maxConnectionsPerRoute);
+            connectionManager.setMaxTotal(Math.max(maxConnections, maxConnectionsPerRoute));
+
+            RequestConfig requestConfig = RequestConfig.custom()
+                    .setConnectTimeout(connectTimeoutMillis)
+                    .setConnectionRequestTimeout(connectTimeoutMillis)
+                    .setSocketTimeout(readTimeoutMillis)
+                    // Pooled connections may have been closed by the IdP while idle.
+                    .setStaleConnectionCheckEnabled(true)
+                    .build();
+            this.httpClient = HttpClients.custom()
+                    .setConnectionManager(connectionManager)
+                    .setDefaultRequestConfig(requestConfig)
+                    .build();
+        }
+
+        void close() {
+
+            try {
+                httpClient.close();
+            } catch (IOException e) {
+                log.warn("Error while closing the artifact resolution HTTP client.", e);
+            }
+            connectionManager.shutdown();
+        }
+    }
+}
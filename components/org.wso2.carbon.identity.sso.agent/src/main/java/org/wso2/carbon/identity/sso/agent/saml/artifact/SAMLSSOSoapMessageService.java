@@ -20,33 +20,26 @@ package org.wso2.carbon.identity.sso.agent.saml.artifact;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 import org.apache.http.client.HttpClient;
-import org.apache.http.client.ResponseHandler;
 import org.apache.http.client.methods.HttpPost;
-import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
-import org.apache.http.conn.ssl.SSLContextBuilder;
-import org.apache.http.conn.ssl.TrustSelfSignedStrategy;
 import org.apache.http.entity.ContentType;
 import org.apache.http.entity.StringEntity;
-import org.apache.http.impl.client.BasicResponseHandler;
-import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClients;
+import org.apache.http.util.EntityUtils;
 import org.opensaml.common.SAMLObject;
 import org.opensaml.ws.soap.common.SOAPObjectBuilder;
 import org.opensaml.ws.soap.soap11.Body;
 import org.opensaml.ws.soap.soap11.Envelope;
 import org.opensaml.xml.Configuration;
 import org.opensaml.xml.XMLObjectBuilderFactory;
+import org.wso2.carbon.identity.sso.agent.bean.SSOAgentConfig;
 import org.wso2.carbon.identity.sso.agent.exception.ArtifactResolutionException;
 import org.wso2.carbon.identity.sso.agent.util.SSOAgentConstants;
 
 import java.io.IOException;
 import java.net.UnknownHostException;
 import java.nio.charset.StandardCharsets;
-import java.security.KeyManagementException;
-import java.security.KeyStoreException;
-import java.security.NoSuchAlgorithmException;
 
 /**
  * This class is used for handling SAML SOAP Binding
@@ -57,6 +50,32 @@ public class SAMLSSOSoapMessageService {
     private static final String MIME_TYPE = "text/xml";
     private static Log log = LogFactory.getLog(SAMLSSOSoapMessageService.class);
 
+    private final int maxConnectionsPerRoute;
+    private final int maxConnections;
+    private final int connectTimeout;
+    private final int readTimeout;
+
+    public SAMLSSOSoapMessageService() {
+
+        this.maxConnectionsPerRoute = SAMLSSOHttpClientPool.DEFAULT_MAX_CONNECTIONS_PER_ROUTE;
+        this.maxConnections = SAMLSSOHttpClientPool.DEFAULT_MAX_CONNECTIONS;
+        this.connectTimeout = SAMLSSOHttpClientPool.DEFAULT_CONNECT_TIMEOUT;
+        this.readTimeout = SAMLSSOHttpClientPool.DEFAULT_READ_TIMEOUT;
+    }
+
+    /**
+     * Creates a SOAP message service using the connection limits and timeouts of the given configuration.
+     *
+     * @param saml2 SAML2 configuration
+     */
+    public SAMLSSOSoapMessageService(SSOAgentConfig.SAML2 saml2) {
+
+        this.maxConnectionsPerRoute = saml2.getArtifactResolveMaxConnectionsPerRoute();
+        this.maxConnections = saml2.getArtifactResolveMaxConnections();
+        this.connectTimeout = saml2.getArtifactResolveConnectTimeout();
+        this.readTimeout = saml2.getArtifactResolveReadTimeout();
+    }
+
     /**
      * Build a SOAP Message.
      *
@@ -89,6 +108,38 @@ public class SAMLSSOSoapMessageService {
      */
     public String sendSOAP(String message, String url) throws ArtifactResolutionException {
 
+        return new String(sendSOAPRequest(message, url), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Send SOAP message and return the raw bytes of the response, so that it can be parsed without decoding it
+     * into a String first.
+     *
+     * @param message message that needs to be send
+     * @param url     url that the artifact resolve request should be sent
+     * @return response body of invoking artifact resolve endpoint
+     * @throws ArtifactResolutionException
+     */
+    public byte[] sendSOAPRequest(String message, String url) throws ArtifactResolutionException {
+
+        if (message == null) {
+            throw new ArtifactResolutionException("Cannot send null SOAP message.");
+        }
+        return sendSOAPRequest(new StringEntity(message, ContentType.create(MIME_TYPE, StandardCharsets.UTF_8)),
+                url);
+    }
+
+    /**
+     * Send the SOAP message written by the given entity, which lets the caller stream the message into the
+     * request instead of building it as a String.
+     *
+     * @param message entity writing the message that needs to be send
+     * @param url     url that the artifact resolve request should be sent
+     * @return response body of invoking artifact resolve endpoint
+     * @throws ArtifactResolutionException
+     */
+    public byte[] sendSOAPRequest(HttpEntity message, String url) throws ArtifactResolutionException {
+
         if (message == null) {
             throw new ArtifactResolutionException("Cannot send null SOAP message.");
         }
@@ -100,30 +151,32 @@ public class SAMLSSOSoapMessageService {
             log.debug("Sending SOAP message to the URL: " + url);
         }
 
-        StringBuilder soapResponse = new StringBuilder();
         try {
             HttpPost httpPost = new HttpPost(url);
             setRequestProperties(url, message, httpPost);
-            HttpClient httpClient = getHttpClient();
+            HttpClient httpClient = getHttpClient(url);
             HttpResponse httpResponse = httpClient.execute(httpPost);
 
-            int responseCode = httpResponse.getStatusLine().getStatusCode();
-            if (responseCode != 200) {
-                throw new ArtifactResolutionException("Problem in communicating with: " + url + ". Received response: "
-                        + responseCode);
-            } else {
+            try {
+                int responseCode = httpResponse.getStatusLine().getStatusCode();
+                if (responseCode != 200) {
+                    throw new ArtifactResolutionException("Problem in communicating with: " + url +
+                            ". Received response: " + responseCode);
+                }
                 log.info("Successful response from the URL: " + url);
-                soapResponse.append(getResponseBody(httpResponse));
+                return getResponseBody(httpResponse);
+            } finally {
+                // Releases the pooled connection if the body was not read.
+                EntityUtils.consumeQuietly(httpResponse.getEntity());
             }
         } catch (UnknownHostException e) {
             throw new ArtifactResolutionException("Unknown targeted host: " + url, e);
         } catch (IOException e) {
             throw new ArtifactResolutionException("Could not open connection with host: " + url, e);
         }
-        return soapResponse.toString();
     }
 
-    private void setRequestProperties(String url, String message, HttpPost httpPost) {
+    private void setRequestProperties(String url, HttpEntity message, HttpPost httpPost) {
 
         httpPost.addHeader(SSOAgentConstants.SSOAgentConfig.SAML2.CONTENT_TYPE_PARAM_KEY, CONTENT_TYPE);
         httpPost.addHeader(SSOAgentConstants.SSOAgentConfig.SAML2.ACCEPT_PARAM_KEY, CONTENT_TYPE);
@@ -132,40 +185,30 @@ public class SAMLSSOSoapMessageService {
         httpPost.addHeader(SSOAgentConstants.SSOAgentConfig.SAML2.PRAGMA_PARAM_KEY, "no-cache");
         httpPost.addHeader(SSOAgentConstants.SSOAgentConfig.SAML2.CACHE_CONTROL_PARAM_KEY, "no-cache, no-store");
 
-        httpPost.setEntity(new StringEntity(message, ContentType.create(MIME_TYPE, StandardCharsets.UTF_8)));
+        httpPost.setEntity(message);
     }
 
-    private static String getResponseBody(HttpResponse response) throws ArtifactResolutionException {
+    private static byte[] getResponseBody(HttpResponse response) throws ArtifactResolutionException {
 
-        ResponseHandler<String> responseHandler = new BasicResponseHandler();
-        String responseBody;
+        HttpEntity entity = response.getEntity();
+        if (entity == null) {
+            throw new ArtifactResolutionException("Received an empty HTTP response body.");
+        }
+        byte[] responseBody;
         try {
-            responseBody = responseHandler.handleResponse(response);
+            responseBody = EntityUtils.toByteArray(entity);
         } catch (IOException e) {
             throw new ArtifactResolutionException("Error when retrieving the HTTP response body.", e);
         }
         if (log.isDebugEnabled()) {
-            log.debug("Response Body:" + responseBody);
+            log.debug("Response Body:" + new String(responseBody, StandardCharsets.UTF_8));
         }
         return responseBody;
     }
 
-    private HttpClient getHttpClient() throws ArtifactResolutionException {
-
-        CloseableHttpClient httpClient = null;
-        SSLContextBuilder builder = new SSLContextBuilder();
-        try {
-            builder.loadTrustMaterial(null, new TrustSelfSignedStrategy());
-            SSLConnectionSocketFactory sslsf = new SSLConnectionSocketFactory(
-                    builder.build());
-            httpClient = HttpClients.custom().setSSLSocketFactory(
-                    sslsf).build();
-        } catch (NoSuchAlgorithmException | KeyStoreException e) {
-            throw new ArtifactResolutionException("Error while building trust store.", e);
-        } catch (KeyManagementException e) {
-            throw new ArtifactResolutionException("Error while building socket factory.", e);
-        }
+    private HttpClient getHttpClient(String url) throws ArtifactResolutionException {
 
-        return httpClient;
+        return SAMLSSOHttpClientPool.getHttpClient(url, maxConnectionsPerRoute, maxConnections, connectTimeout,
+                readTimeout);
     }
 }
@@ -20,6 +20,7 @@
 
 package org.wso2.carbon.identity.sso.agent.security;
 
+import org.apache.xml.security.utils.Base64;
 import org.opensaml.xml.security.credential.Credential;
 import org.opensaml.xml.security.credential.CredentialContextSet;
 import org.opensaml.xml.security.credential.UsageType;
@@ -30,6 +31,7 @@ import org.wso2.carbon.identity.sso.agent.security.SSOAgentX509Credential;
 import javax.crypto.SecretKey;
 import java.security.PrivateKey;
 import java.security.PublicKey;
+import java.security.cert.CertificateEncodingException;
 import java.security.cert.X509CRL;
 import java.security.cert.X509Certificate;
 import java.util.ArrayList;
@@ -43,11 +45,45 @@ public class X509CredentialImpl implements X509Credential {
     private PublicKey publicKey = null;
     private X509Certificate entityCertificate = null;
     private PrivateKey privateKey = null;
+    private SSOAgentX509Credential ssoAgentX509Credential = null;
+    private volatile String encodedEntityCertificate = null;
 
     public X509CredentialImpl(SSOAgentX509Credential credential) throws SSOAgentException {
         publicKey = credential.getPublicKey();
         this.entityCertificate = credential.getEntityCertificate();
         this.privateKey = credential.getPrivateKey();
+        this.ssoAgentX509Credential = credential;
+    }
+
+    /**
+     * Returns whether this credential was built from the given credential and its current key and certificate.
+     *
+     * @param credential SSO agent credential
+     * @return true if this credential can be used in place of the given one
+     * @throws SSOAgentException if the credential cannot be read
+     */
+    public boolean isBuiltFrom(SSOAgentX509Credential credential) throws SSOAgentException {
+
+        return credential == ssoAgentX509Credential &&
+                credential.getEntityCertificate() == entityCertificate &&
+                credential.getPrivateKey() == privateKey &&
+                credential.getPublicKey() == publicKey;
+    }
+
+    /**
+     * Returns the Base64 encoded DER form of the entity certificate, as used in ds:X509Certificate.
+     *
+     * @return encoded certificate, computed once
+     * @throws CertificateEncodingException if the certificate cannot be encoded
+     */
+    public String getEncodedEntityCertificate() throws CertificateEncodingException {
+
+        String encoded = encodedEntityCertificate;
+        if (encoded == null) {
+            encoded = Base64.encode(entityCertificate.getEncoded());
+            encodedEntityCertificate = encoded;
+        }
+        return encoded;
     }
 
     /**
@@ -20,51 +20,101 @@
 
 package org.wso2.carbon.identity.sso.agent.session.management;
 
+import org.wso2.carbon.identity.sso.agent.exception.SSOAgentException;
+import org.wso2.carbon.identity.sso.agent.session.management.cluster.ClusterSessionIndex;
 import org.wso2.carbon.identity.sso.agent.util.SSOAgentConstants;
 import org.wso2.carbon.identity.sso.agent.bean.LoggedInSessionBean;
 
 import javax.servlet.http.HttpSession;
-import java.util.HashMap;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 
 public class SSOAgentSessionManager {
 
+    private static final Logger LOGGER = Logger.getLogger(SSOAgentConstants.LOGGER_NAME);
+
+    private static final int LOCK_STRIPES = 64;
+    private static final long SWEEP_TICK_MILLIS = 1000L;
+    // Sessions that never time out are still checked this often, to drop them once they are invalidated.
+    private static final long RECHECK_INTERVAL_MILLIS = TimeUnit.HOURS.toMillis(1);
+
     /*
      * Session Index at the IdP is mapped to the session at the SP so that a single logout request
      * can be handled by invalidating the SP session mapped to IdP Session Index.
+     *
+     * Lookups are lock free. Updates of a session index are serialized on the lock stripe of that index, so that
+     * adding a session and removing the last session of an index cannot interleave and lose the added session.
+     *
+     * Every indexed session is also scheduled on a timing wheel at the earlier of the SessionNotOnOrAfter of its
+     * assertion and its container timeout. A background sweeper drops sessions that have timed out or were
+     * invalidated without the container notifying the session listener, so the index stays bounded even if the
+     * IdP never sends a logout request. SessionNotOnOrAfter is only given for configurations that enforce it. A
+     * session whose IdP session has ended at SessionNotOnOrAfter is still alive in the container, hence it is
+     * invalidated by the sweeper rather than only dropped from the index, where it would no longer be reachable by
+     * a single logout request.
+     *
+     * Sessions are keyed by identity. Sessions added in weak reference mode, which is chosen per configuration by
+     * the caller, are only held through weak references, so a session the container dropped without notifying the
+     * session listener is garbage collected, and its entry is removed when the reference queue is drained.
+     *
+     * If the configuration a session was authenticated with has a cluster session index, the addition and removal
+     * of the session are also queued to that index, and logouts are recorded in it so that the sessions of the same
+     * index on the other nodes are invalidated too.
      */
-    private static Map<String, Set<HttpSession>> ssoSessionsMap =
-            new HashMap<String, Set<HttpSession>>();
+    private static final ConcurrentMap<String, ConcurrentMap<SessionKey, SessionEntry>> ssoSessionsMap =
+            new ConcurrentHashMap<String, ConcurrentMap<SessionKey, SessionEntry>>();
+
+    private static final ReferenceQueue<HttpSession> collectedSessions = new ReferenceQueue<HttpSession>();
+
+    private static final Object[] locks = new Object[LOCK_STRIPES];
+
+    private static final SSOAgentTimingWheel<SessionEntry> expiryWheel =
+            new SSOAgentTimingWheel<SessionEntry>(SWEEP_TICK_MILLIS, System.currentTimeMillis());
+
+    private static final AtomicLong sessionCount = new AtomicLong();
+    private static final AtomicLong expiredEvictionCount = new AtomicLong();
+    private static final AtomicLong invalidatedEvictionCount = new AtomicLong();
+    private static final AtomicLong collectedEvictionCount = new AtomicLong();
+
+    private static ScheduledExecutorService sweeper = null;
+    private static int users = 0;
+
+    static {
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            locks[i] = new Object();
+        }
+    }
 
     private SSOAgentSessionManager() {
     }
 
     public static void invalidateSession(HttpSession session) {
-        LoggedInSessionBean sessionBean = (LoggedInSessionBean) session.getAttribute(
-                SSOAgentConstants.SESSION_BEAN_NAME);
-        if (sessionBean != null && sessionBean.getSAML2SSO() != null) {
-            String sessionIndex = sessionBean.getSAML2SSO().getSessionIndex();
-            if (sessionIndex != null) {
-                Set<HttpSession> sessions = ssoSessionsMap.get(sessionIndex);
-                if (sessions != null) {
-                    sessions.remove(session);
-                }
-            }
+        String sessionIndex = getSessionIndex(session);
+        if (sessionIndex != null) {
+            removeSession(sessionIndex, new SessionKey(session), null);
         }
     }
 
     public static Set<HttpSession> invalidateAllSessions(HttpSession session) {
-        LoggedInSessionBean sessionBean = (LoggedInSessionBean) session.getAttribute(
-                SSOAgentConstants.SESSION_BEAN_NAME);
-        Set<HttpSession> sessions = new HashSet<HttpSession>();
-        if (sessionBean != null && sessionBean.getSAML2SSO() != null) {
-            String sessionIndex = sessionBean.getSAML2SSO().getSessionIndex();
-            if (sessionIndex != null) {
-                sessions = ssoSessionsMap.remove(sessionIndex);
-            }
+        String sessionIndex = getSessionIndex(session);
+        Set<HttpSession> sessions = null;
+        if (sessionIndex != null) {
+            sessions = invalidateAllSessions(sessionIndex);
         }
         if (sessions == null) {
             sessions = new HashSet<HttpSession>();
@@ -73,22 +123,478 @@ public class SSOAgentSessionManager {
     }
 
     public static Set<HttpSession> invalidateAllSessions(String sessionIndex) {
-        Set<HttpSession> sessions = ssoSessionsMap.remove(sessionIndex);
-        if (sessions == null) {
-            sessions = new HashSet<HttpSession>();
+        Map<SessionKey, SessionEntry> entries = null;
+        if (sessionIndex != null) {
+            synchronized (lockFor(sessionIndex)) {
+                entries = ssoSessionsMap.remove(sessionIndex);
+            }
+        }
+        Set<HttpSession> sessions = new HashSet<HttpSession>();
+        if (entries != null) {
+            for (SessionEntry entry : entries.values()) {
+                HttpSession session = entry.key.get();
+                if (session != null) {
+                    sessions.add(session);
+                }
+                entry.cancel();
+            }
+            sessionCount.addAndGet(-entries.size());
         }
         return sessions;
     }
 
     public static void addAuthenticatedSession(HttpSession session) {
+        addAuthenticatedSession(session, -1L);
+    }
+
+    public static void addAuthenticatedSession(HttpSession session, long sessionNotOnOrAfterMillis) {
+        addAuthenticatedSession(session, sessionNotOnOrAfterMillis, false, null);
+    }
+
+    /**
+     * Maps the session to the IdP session index held in its session bean.
+     *
+     * @param session                  authenticated session
+     * @param sessionNotOnOrAfterMillis SessionNotOnOrAfter of the assertion in milliseconds since the epoch, at
+     *                                  which the session is invalidated, or a negative value to leave the
+     *                                  session to the container timeout
+     * @param weakReference            true to hold the session through a weak reference
+     * @param clusterIndex             cluster session index of the configuration the session was authenticated
+     *                                  with, or null to keep the session local to this node
+     */
+    public static void addAuthenticatedSession(HttpSession session, long sessionNotOnOrAfterMillis,
+                                               boolean weakReference, ClusterSessionIndex clusterIndex) {
         String sessionIndex = ((LoggedInSessionBean) session.getAttribute(
                 SSOAgentConstants.SESSION_BEAN_NAME)).getSAML2SSO().getSessionIndex();
-        if (ssoSessionsMap.get(sessionIndex) != null) {
-            ssoSessionsMap.get(sessionIndex).add(session);
+        if (sessionIndex == null) {
+            // Without a session index the session cannot be the target of a single logout request.
+            return;
+        }
+        drainCollectedSessions();
+        SessionKey key = weakReference ?
+                new WeakSessionKey(session, sessionIndex, collectedSessions) : new SessionKey(session);
+        SessionEntry entry = new SessionEntry(sessionIndex, session.getId(), key, sessionNotOnOrAfterMillis,
+                clusterIndex);
+        entry.setExpiresAt(entry.nextCheck(System.currentTimeMillis()));
+        SessionEntry replaced;
+        synchronized (lockFor(sessionIndex)) {
+            ConcurrentMap<SessionKey, SessionEntry> sessions = ssoSessionsMap.get(sessionIndex);
+            if (sessions == null) {
+                sessions = new ConcurrentHashMap<SessionKey, SessionEntry>();
+                ssoSessionsMap.put(sessionIndex, sessions);
+            }
+            replaced = sessions.remove(key);
+            sessions.put(key, entry);
+        }
+        if (replaced != null) {
+            replaced.cancel();
         } else {
-            Set<HttpSession> sessions = new HashSet<HttpSession>();
-            sessions.add(session);
-            ssoSessionsMap.put(sessionIndex, sessions);
+            sessionCount.incrementAndGet();
+            if (clusterIndex != null) {
+                clusterIndex.sessionAdded(sessionIndex, entry.sessionId);
+            }
+        }
+        startSweeper();
+        expiryWheel.schedule(entry);
+    }
+
+    /**
+     * Records the logout of a session index in the cluster session index, so that the sessions of the index on
+     * the other nodes are invalidated as well.
+     *
+     * @param clusterIndex cluster session index, or null if none is configured
+     * @param sessionIndex IdP session index
+     * @throws SSOAgentException if the logout cannot be recorded
+     */
+    public static void logoutClusterSessions(ClusterSessionIndex clusterIndex, String sessionIndex)
+            throws SSOAgentException {
+        if (clusterIndex != null && sessionIndex != null) {
+            clusterIndex.logout(sessionIndex);
+        }
+    }
+
+    /**
+     * Records the logout of the session index of the given session in the cluster session index.
+     *
+     * @param clusterIndex cluster session index, or null if none is configured
+     * @param session      session holding the session bean
+     * @throws SSOAgentException if the logout cannot be recorded
+     */
+    public static void logoutClusterSessions(ClusterSessionIndex clusterIndex, HttpSession session)
+            throws SSOAgentException {
+        logoutClusterSessions(clusterIndex, getSessionIndex(session));
+    }
+
+    /**
+     * Moves the sessions recorded in a cluster session index to another one. This is used when the configuration
+     * the sessions were authenticated with is replaced, so that they stay reachable by single logout requests
+     * after the previous index is closed.
+     *
+     * @param from cluster session index the sessions are recorded in
+     * @param to   cluster session index to record the sessions in, or null to keep them local to this node
+     */
+    public static void moveClusterSessions(ClusterSessionIndex from, ClusterSessionIndex to) {
+        if (from == null || from == to) {
+            return;
+        }
+        for (Map.Entry<String, ConcurrentMap<SessionKey, SessionEntry>> sessions : ssoSessionsMap.entrySet()) {
+            synchronized (lockFor(sessions.getKey())) {
+                for (SessionEntry entry : sessions.getValue().values()) {
+                    if (entry.clusterIndex == from) {
+                        entry.clusterIndex = to;
+                        from.sessionRemoved(entry.sessionIndex, entry.sessionId);
+                        if (to != null) {
+                            to.sessionAdded(entry.sessionIndex, entry.sessionId);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the number of IdP session indexes that currently have SP sessions mapped to them.
+     *
+     * @return number of session indexes
+     */
+    public static int getSessionIndexCount() {
+        return ssoSessionsMap.size();
+    }
+
+    /**
+     * @return number of SP sessions currently held in the index
+     */
+    public static long getSessionCount() {
+        return sessionCount.get();
+    }
+
+    /**
+     * @return number of sessions dropped from the index because their IdP session or container timeout expired.
+     * Sessions whose IdP session expired are invalidated as well.
+     */
+    public static long getExpiredEvictionCount() {
+        return expiredEvictionCount.get();
+    }
+
+    /**
+     * @return number of sessions dropped from the index because they were invalidated without a logout
+     */
+    public static long getInvalidatedEvictionCount() {
+        return invalidatedEvictionCount.get();
+    }
+
+    /**
+     * @return number of sessions dropped from the index because they were garbage collected in weak reference mode
+     */
+    public static long getCollectedEvictionCount() {
+        return collectedEvictionCount.get();
+    }
+
+    /**
+     * Removes the entries of the weakly referenced sessions that have been garbage collected.
+     */
+    public static void drainCollectedSessions() {
+        Reference<? extends HttpSession> reference;
+        while ((reference = collectedSessions.poll()) != null) {
+            WeakSessionKey key = ((SessionReference) reference).key;
+            if (removeSession(key.sessionIndex, key, null)) {
+                collectedEvictionCount.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Evicts the sessions that are due at the given time. This is run periodically by the background sweeper.
+     *
+     * @param nowMillis current time
+     */
+    public static void sweep(long nowMillis) {
+        drainCollectedSessions();
+        List<SessionEntry> dueEntries = expiryWheel.advance(nowMillis);
+        for (SessionEntry entry : dueEntries) {
+            if (entry.isCancelled() || entry.key.get() == null) {
+                continue;
+            }
+            long nextCheck;
+            try {
+                nextCheck = entry.nextCheck(nowMillis);
+            } catch (IllegalStateException e) {
+                // The session was invalidated but the session listener was not notified.
+                if (removeSession(entry.sessionIndex, entry.key, entry)) {
+                    invalidatedEvictionCount.incrementAndGet();
+                }
+                continue;
+            }
+            if (nextCheck > nowMillis) {
+                entry.setExpiresAt(nextCheck);
+                expiryWheel.schedule(entry);
+                continue;
+            }
+            // Removing the entry releases its session, hence it is read first.
+            HttpSession session = entry.key.get();
+            if (removeSession(entry.sessionIndex, entry.key, entry)) {
+                expiredEvictionCount.incrementAndGet();
+                if (entry.isIdPSessionEnded(nowMillis)) {
+                    invalidate(session);
+                }
+            }
+        }
+    }
+
+    /**
+     * Registers a user of the session index, such as a SAML2 SSO manager. The background sweeper is shared by all
+     * users in the class loader, hence it is only stopped by {@link #release()} when the last user is gone.
+     */
+    public static synchronized void acquire() {
+        users++;
+    }
+
+    /**
+     * Unregisters a user of the session index registered by {@link #acquire()}. When the last user is gone, the
+     * background sweeper is stopped. The sweeper is restarted when the next session is added.
+     */
+    public static synchronized void release() {
+        if (users == 0) {
+            return;
+        }
+        if (--users > 0) {
+            return;
+        }
+        if (sweeper != null) {
+            sweeper.shutdownNow();
+            sweeper = null;
+        }
+    }
+
+    static synchronized boolean isSweeperRunning() {
+        return sweeper != null;
+    }
+
+    private static synchronized void startSweeper() {
+        if (sweeper != null) {
+            return;
+        }
+        sweeper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "SSOAgentSessionSweeper");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        sweeper.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    sweep(System.currentTimeMillis());
+                } catch (RuntimeException e) {
+                    LOGGER.log(Level.WARNING, "Error occurred while sweeping expired SSO sessions", e);
+                }
+            }
+        }, SWEEP_TICK_MILLIS, SWEEP_TICK_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Removes the session from the index. If an entry is given, the session is only removed while it is still
+     * mapped to that entry.
+     */
+    private static boolean removeSession(String sessionIndex, SessionKey key, SessionEntry expected) {
+        SessionEntry removed = null;
+        ClusterSessionIndex clusterIndex = null;
+        synchronized (lockFor(sessionIndex)) {
+            ConcurrentMap<SessionKey, SessionEntry> sessions = ssoSessionsMap.get(sessionIndex);
+            if (sessions != null) {
+                if (expected == null) {
+                    removed = sessions.remove(key);
+                } else if (sessions.remove(key, expected)) {
+                    removed = expected;
+                }
+                if (sessions.isEmpty()) {
+                    ssoSessionsMap.remove(sessionIndex, sessions);
+                }
+                if (removed != null) {
+                    clusterIndex = removed.clusterIndex;
+                }
+            }
+        }
+        if (removed == null) {
+            return false;
+        }
+        removed.cancel();
+        sessionCount.decrementAndGet();
+        if (clusterIndex != null) {
+            clusterIndex.sessionRemoved(sessionIndex, removed.sessionId);
+        }
+        return true;
+    }
+
+    private static void invalidate(HttpSession session) {
+        if (session == null) {
+            return;
+        }
+        try {
+            session.invalidate();
+        } catch (IllegalStateException e) {
+            // The session has been invalidated in the meantime.
+            LOGGER.log(Level.FINE, "Session is already invalidated", e);
+        }
+    }
+
+    private static String getSessionIndex(HttpSession session) {
+        LoggedInSessionBean sessionBean = (LoggedInSessionBean) session.getAttribute(
+                SSOAgentConstants.SESSION_BEAN_NAME);
+        if (sessionBean != null && sessionBean.getSAML2SSO() != null) {
+            return sessionBean.getSAML2SSO().getSessionIndex();
+        }
+        return null;
+    }
+
+    private static Object lockFor(String sessionIndex) {
+        int hash = sessionIndex.hashCode();
+        hash ^= (hash >>> 16);
+        return locks[hash & (LOCK_STRIPES - 1)];
+    }
+
+    /**
+     * Identity key of an indexed session. Two keys are equal if they refer to the same session, and a key whose
+     * session has been cleared is only equal to itself.
+     */
+    private static class SessionKey {
+
+        private final int hash;
+        private volatile HttpSession session;
+
+        SessionKey(HttpSession session) {
+            this(session, System.identityHashCode(session));
+        }
+
+        SessionKey(HttpSession session, int hash) {
+            this.session = session;
+            this.hash = hash;
+        }
+
+        HttpSession get() {
+            return session;
+        }
+
+        void clear() {
+            session = null;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (this == other) {
+                return true;
+            }
+            if (!(other instanceof SessionKey)) {
+                return false;
+            }
+            HttpSession session = get();
+            return session != null && session == ((SessionKey) other).get();
+        }
+    }
+
+    /**
+     * Session key that holds its session through a weak reference.
+     */
+    private static class WeakSessionKey extends SessionKey {
+
+        private final SessionReference reference;
+        private final String sessionIndex;
+
+        WeakSessionKey(HttpSession session, String sessionIndex, ReferenceQueue<HttpSession> queue) {
+            super(null, System.identityHashCode(session));
+            this.reference = new SessionReference(session, queue, this);
+            this.sessionIndex = sessionIndex;
+        }
+
+        @Override
+        HttpSession get() {
+            return reference.get();
+        }
+
+        @Override
+        void clear() {
+            reference.clear();
+        }
+    }
+
+    /**
+     * Weak reference to a session that leads back to its key when it is enqueued.
+     */
+    private static class SessionReference extends WeakReference<HttpSession> {
+
+        private final WeakSessionKey key;
+
+        SessionReference(HttpSession session, ReferenceQueue<HttpSession> queue, WeakSessionKey key) {
+            super(session, queue);
+            this.key = key;
+        }
+    }
+
+    /**
+     * Index entry of a session, scheduled on the expiry wheel.
+     */
+    private static class SessionEntry extends SSOAgentTimingWheel.Entry {
+
+        private final String sessionIndex;
+        // Captured when the session is added, as the ID cannot be read once the session is invalidated.
+        private final String sessionId;
+        private final SessionKey key;
+        private final long sessionNotOnOrAfter;
+        // Updated under the lock of the session index when the sessions are moved to another cluster session index.
+        private ClusterSessionIndex clusterIndex;
+
+        SessionEntry(String sessionIndex, String sessionId, SessionKey key, long sessionNotOnOrAfter,
+                     ClusterSessionIndex clusterIndex) {
+            super(Long.MAX_VALUE);
+            this.sessionIndex = sessionIndex;
+            this.sessionId = sessionId;
+            this.key = key;
+            this.sessionNotOnOrAfter = sessionNotOnOrAfter;
+            this.clusterIndex = clusterIndex;
+        }
+
+        /**
+         * Returns the next time the session has to be checked: the end of its IdP session or its container
+         * timeout, whichever comes first.
+         *
+         * @throws IllegalStateException if the session has been invalidated
+         */
+        long nextCheck(long nowMillis) {
+            HttpSession current = key.get();
+            if (current == null) {
+                return nowMillis;
+            }
+            // Throws IllegalStateException once the session has been invalidated.
+            long lastAccessedTime = current.getLastAccessedTime();
+            int maxInactiveInterval = current.getMaxInactiveInterval();
+            long next = maxInactiveInterval > 0 ?
+                    lastAccessedTime + TimeUnit.SECONDS.toMillis(maxInactiveInterval) :
+                    nowMillis + RECHECK_INTERVAL_MILLIS;
+            if (sessionNotOnOrAfter >= 0 && sessionNotOnOrAfter < next) {
+                next = sessionNotOnOrAfter;
+            }
+            return next;
+        }
+
+        /**
+         * Returns whether the IdP session of the assertion has ended at the given time.
+         */
+        boolean isIdPSessionEnded(long nowMillis) {
+            return sessionNotOnOrAfter >= 0 && sessionNotOnOrAfter <= nowMillis;
+        }
+
+        @Override
+        void cancel() {
+            super.cancel();
+            // Release the session right away, the wheel drops the entry when it reaches its slot.
+            key.clear();
         }
     }
 }
@@ -0,0 +1,178 @@
+/*
+ * Copyright (c) 2018, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.identity.sso.agent.session.management;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Hierarchical timing wheel for expiring entries.
+ * <p/>
+ * The wheel has {@link #LEVELS} levels of {@link #SLOTS} slots each. A slot of the lowest level spans one tick, and
+ * a slot of each higher level spans a full rotation of the level below it. Scheduling an entry is constant time.
+ * When the wheel advances past a slot of a higher level, its entries are cascaded into the lower levels, so every
+ * entry is touched at most once per level. Entries further in the future than the wheel can hold are parked in the
+ * top level and re-placed when they are cascaded.
+ *
+ * @param <E> entry type
+ */
+class SSOAgentTimingWheel<E extends SSOAgentTimingWheel.Entry> {
+
+    static final int LEVELS = 3;
+    static final int SLOTS = 64;
+    private static final int SLOT_BITS = 6;
+    private static final int SLOT_MASK = SLOTS - 1;
+    private static final long MAX_TICKS = 1L << (SLOT_BITS * LEVELS);
+
+    private final long tickMillis;
+    private final List<List<E>> slots;
+    private final List<E> overdue = new ArrayList<E>();
+    private long currentTick;
+    private int size;
+
+    SSOAgentTimingWheel(long tickMillis, long startMillis) {
+
+        this.tickMillis = tickMillis;
+        this.currentTick = startMillis / tickMillis;
+        this.slots = new ArrayList<List<E>>(LEVELS * SLOTS);
+        for (int i = 0; i < LEVELS * SLOTS; i++) {
+            slots.add(new ArrayList<E>());
+        }
+    }
+
+    /**
+     * Schedules the entry to expire at its {@link Entry#getExpiresAt()} time.
+     *
+     * @param entry entry to schedule
+     */
+    synchronized void schedule(E entry) {
+
+        place(entry);
+        size++;
+    }
+
+    /**
+     * Advances the wheel to the given time and removes the entries that are due.
+     *
+     * @param nowMillis current time
+     * @return entries whose expiry time has been reached, excluding cancelled entries
+     */
+    synchronized List<E> advance(long nowMillis) {
+
+        List<E> due = new ArrayList<E>();
+        long targetTick = nowMillis / tickMillis;
+        while (currentTick < targetTick) {
+            currentTick++;
+            for (int level = LEVELS - 1; level > 0; level--) {
+                if ((currentTick & ((1L << (SLOT_BITS * level)) - 1)) == 0) {
+                    collect(slot(level, currentTick), nowMillis, due);
+                }
+            }
+            collect(slot(0, currentTick), nowMillis, due);
+        }
+        collect(overdue, nowMillis, due);
+        return due;
+    }
+
+    /**
+     * @return number of scheduled entries, including cancelled entries that have not been swept yet
+     */
+    synchronized int size() {
+
+        return size;
+    }
+
+    private void collect(List<E> slot, long nowMillis, List<E> due) {
+
+        if (slot.isEmpty()) {
+            return;
+        }
+        List<E> entries = new ArrayList<E>(slot);
+        slot.clear();
+        for (E entry : entries) {
+            if (entry.isCancelled()) {
+                size--;
+            } else if (entry.getExpiresAt() <= nowMillis) {
+                size--;
+                due.add(entry);
+            } else {
+                place(entry);
+            }
+        }
+    }
+
+    private void place(E entry) {
+
+        long expiryTick = (entry.getExpiresAt() + tickMillis - 1) / tickMillis;
+        long delta = expiryTick - currentTick;
+        if (delta <= 0) {
+            overdue.add(entry);
+            return;
+        }
+        if (delta >= MAX_TICKS) {
+            expiryTick = currentTick + MAX_TICKS - 1;
+            delta = MAX_TICKS - 1;
+        }
+        int level = 0;
+        while (delta >= (1L << (SLOT_BITS * (level + 1)))) {
+            level++;
+        }
+        slot(level, expiryTick).add(entry);
+    }
+
+    private List<E> slot(int level, long tick) {
+
+        int index = (int) ((tick >>> (SLOT_BITS * level)) & SLOT_MASK);
+        return slots.get(level * SLOTS + index);
+    }
+
+    /**
+     * Entry of a timing wheel.
+     */
+    abstract static class Entry {
+
+        private volatile long expiresAt;
+        private volatile boolean cancelled;
+
+        Entry(long expiresAt) {
+
+            this.expiresAt = expiresAt;
+        }
+
+        long getExpiresAt() {
+
+            return expiresAt;
+        }
+
+        void setExpiresAt(long expiresAt) {
+
+            this.expiresAt = expiresAt;
+        }
+
+        boolean isCancelled() {
+
+            return cancelled;
+        }
+
+        void cancel() {
+
+            cancelled = true;
+        }
+    }
+}
@@ -0,0 +1,403 @@
+/*
+ * Copyright (c) 2018, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.identity.sso.agent.session.management.cluster;
+
+import org.apache.commons.lang.StringUtils;
+import org.wso2.carbon.identity.sso.agent.bean.SSOAgentConfig;
+import org.wso2.carbon.identity.sso.agent.exception.SSOAgentException;
+import org.wso2.carbon.identity.sso.agent.session.management.SSOAgentSessionManager;
+import org.wso2.carbon.identity.sso.agent.util.SSOAgentConstants;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.servlet.http.HttpSession;
+
+/**
+ * Cluster wide view of the single logout session index.
+ * <p/>
+ * Each node records its SP sessions in a shared {@link SessionIndexStore}. The records are queued and written in
+ * batches by a background thread, so request threads never wait on the store. A logout request received by any
+ * node is recorded in the store synchronously. The other nodes learn about it by polling the store for logouts
+ * and, if a {@link SessionLogoutBroadcaster} is configured, right away through {@link #onRemoteLogout(String)}.
+ * <p/>
+ * The index is configured with the following 'SAML2.SessionIndexStore.*' properties.
+ * <ul>
+ * <li>NodeId - ID of this node, defaults to a random UUID</li>
+ * <li>PollInterval - seconds between polls for logouts, defaults to 5</li>
+ * <li>LogoutRetention - seconds recorded logouts are kept, defaults to a day</li>
+ * <li>WriteQueueSize - maximum number of session records waiting to be written, defaults to 10000</li>
+ * <li>WriteBatchSize - maximum number of session records written at once, defaults to 500</li>
+ * </ul>
+ */
+public class ClusterSessionIndex {
+
+    public static final String NODE_ID = "NodeId";
+    public static final String POLL_INTERVAL = "PollInterval";
+    public static final String LOGOUT_RETENTION = "LogoutRetention";
+    public static final String WRITE_QUEUE_SIZE = "WriteQueueSize";
+    public static final String WRITE_BATCH_SIZE = "WriteBatchSize";
+
+    private static final Logger LOGGER = Logger.getLogger(SSOAgentConstants.LOGGER_NAME);
+
+    private static final long DEFAULT_POLL_INTERVAL_SECONDS = 5L;
+    private static final long DEFAULT_LOGOUT_RETENTION_SECONDS = TimeUnit.DAYS.toSeconds(1);
+    private static final int DEFAULT_WRITE_QUEUE_SIZE = 10000;
+    private static final int DEFAULT_WRITE_BATCH_SIZE = 500;
+
+    private final SessionIndexStore store;
+    private final SessionLogoutBroadcaster broadcaster;
+    private final String nodeId;
+    private final long pollIntervalMillis;
+    private final long logoutRetentionMillis;
+    private final int writeBatchSize;
+    private final BlockingQueue<Update> updates;
+    private final ScheduledExecutorService executor;
+    private volatile boolean closed;
+    private long lastPollTime;
+    private long lastPurgeTime;
+
+    public ClusterSessionIndex(SessionIndexStore store, SessionLogoutBroadcaster broadcaster,
+                               Properties properties) {
+
+        this.store = store;
+        this.broadcaster = broadcaster;
+        String configuredNodeId = properties.getProperty(NODE_ID);
+        this.nodeId = StringUtils.isNotBlank(configuredNodeId) ? configuredNodeId.trim() : UUID.randomUUID().toString();
+        this.pollIntervalMillis = TimeUnit.SECONDS.toMillis(
+                getLong(properties, POLL_INTERVAL, DEFAULT_POLL_INTERVAL_SECONDS));
+        this.logoutRetentionMillis = TimeUnit.SECONDS.toMillis(
+                getLong(properties, LOGOUT_RETENTION, DEFAULT_LOGOUT_RETENTION_SECONDS));
+        this.writeBatchSize = (int) getLong(properties, WRITE_BATCH_SIZE, DEFAULT_WRITE_BATCH_SIZE);
+        this.updates = new ArrayBlockingQueue<Update>(
+                (int) getLong(properties, WRITE_QUEUE_SIZE, DEFAULT_WRITE_QUEUE_SIZE));
+        this.lastPollTime = System.currentTimeMillis();
+        this.lastPurgeTime = lastPollTime;
+
+        this.executor = Executors.newScheduledThreadPool(2, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "SSOAgentClusterSessionIndex");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                writeUpdates();
+            }
+        });
+        executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    poll(System.currentTimeMillis());
+                } catch (RuntimeException e) {
+                    LOGGER.log(Level.WARNING, "Error occurred while polling the session index store", e);
+                }
+            }
+        }, pollIntervalMillis, pollIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Creates the cluster session index configured with 'SAML2.SessionIndexStoreImplClass'.
+     *
+     * @param saml2 SAML2 configuration
+     * @return cluster session index, or null if no session index store is configured
+     * @throws SSOAgentException if the store or the broadcaster cannot be loaded or initialized
+     */
+    public static ClusterSessionIndex create(SSOAgentConfig.SAML2 saml2) throws SSOAgentException {
+
+        if (saml2.getSessionIndexStoreImplClass() == null) {
+            return null;
+        }
+        Properties properties = saml2.getSessionIndexStoreProperties();
+        SessionIndexStore store = newInstance(saml2.getSessionIndexStoreImplClass(), SessionIndexStore.class);
+        store.init(properties);
+        SessionLogoutBroadcaster broadcaster = null;
+        if (saml2.getSessionLogoutBroadcasterImplClass() != null) {
+            try {
+                broadcaster = newInstance(saml2.getSessionLogoutBroadcasterImplClass(),
+                        SessionLogoutBroadcaster.class);
+            } catch (SSOAgentException e) {
+                store.close();
+                throw e;
+            }
+        }
+        ClusterSessionIndex clusterIndex = new ClusterSessionIndex(store, broadcaster, properties);
+        if (broadcaster != null) {
+            // The broadcaster delivers the logouts of other nodes to the index, hence it is initialized with it.
+            try {
+                broadcaster.init(properties, clusterIndex);
+            } catch (SSOAgentException e) {
+                clusterIndex.close();
+                throw e;
+            }
+        }
+        return clusterIndex;
+    }
+
+    /**
+     * @return ID of this node
+     */
+    public String getNodeId() {
+
+        return nodeId;
+    }
+
+    /**
+     * Queues the recording of a session of this node. Records that do not fit the write queue are dropped, the
+     * session is then only reachable from other nodes through a logout poll.
+     *
+     * @param sessionIndex IdP session index
+     * @param sessionId    ID of the HTTP session
+     */
+    public void sessionAdded(String sessionIndex, String sessionId) {
+
+        enqueue(new Update(true, new SessionIndexRecord(sessionIndex, nodeId, sessionId, System.currentTimeMillis())));
+    }
+
+    /**
+     * Queues the removal of a session of this node.
+     *
+     * @param sessionIndex IdP session index
+     * @param sessionId    ID of the HTTP session
+     */
+    public void sessionRemoved(String sessionIndex, String sessionId) {
+
+        enqueue(new Update(false, new SessionIndexRecord(sessionIndex, nodeId, sessionId, 0L)));
+    }
+
+    /**
+     * Records the logout of an IdP session index and notifies the other nodes that had sessions of it. The local
+     * sessions are expected to be invalidated by the caller.
+     *
+     * @param sessionIndex IdP session index
+     * @throws SSOAgentException if the logout cannot be recorded
+     */
+    public void logout(String sessionIndex) throws SSOAgentException {
+
+        Set<String> nodeIds = store.logout(sessionIndex, System.currentTimeMillis());
+        nodeIds.remove(nodeId);
+        if (broadcaster != null && !nodeIds.isEmpty()) {
+            try {
+                broadcaster.broadcast(sessionIndex, nodeIds);
+            } catch (SSOAgentException e) {
+                LOGGER.log(Level.WARNING, "Error occurred while broadcasting the logout of session index " +
+                        sessionIndex + ". The other nodes will find it on their next poll", e);
+            }
+        }
+    }
+
+    /**
+     * Invalidates the local sessions of an IdP session index that was logged out on another node.
+     *
+     * @param sessionIndex IdP session index
+     */
+    public void onRemoteLogout(String sessionIndex) {
+
+        for (HttpSession session : SSOAgentSessionManager.invalidateAllSessions(sessionIndex)) {
+            try {
+                session.invalidate();
+            } catch (IllegalStateException ignore) {
+                // Session is already invalidated.
+            }
+        }
+    }
+
+    /**
+     * Invalidates the local sessions of the session indexes logged out since the last poll and purges the logouts
+     * older than the retention period. This is run periodically by a background thread.
+     *
+     * @param nowMillis current time
+     */
+    public synchronized void poll(long nowMillis) {
+
+        // Polls overlap by one interval to tolerate clock differences between the nodes. Logging out an index
+        // twice is harmless.
+        List<String> sessionIndexes;
+        try {
+            sessionIndexes = store.getLoggedOutSessionIndexes(lastPollTime - pollIntervalMillis);
+        } catch (SSOAgentException e) {
+            LOGGER.log(Level.WARNING, "Error occurred while reading logouts from the session index store", e);
+            return;
+        }
+        lastPollTime = nowMillis;
+        for (String sessionIndex : sessionIndexes) {
+            onRemoteLogout(sessionIndex);
+        }
+        if (nowMillis - lastPurgeTime >= logoutRetentionMillis / 10) {
+            try {
+                store.purgeLogouts(nowMillis - logoutRetentionMillis);
+                lastPurgeTime = nowMillis;
+            } catch (SSOAgentException e) {
+                LOGGER.log(Level.WARNING, "Error occurred while purging logouts from the session index store", e);
+            }
+        }
+    }
+
+    /**
+     * Stops the background threads, writes the queued session records and releases the store and the
+     * broadcaster. Sessions added or removed afterwards are no longer recorded.
+     */
+    public void close() {
+
+        closed = true;
+        executor.shutdownNow();
+        try {
+            executor.awaitTermination(pollIntervalMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        List<Update> pending = new ArrayList<Update>();
+        updates.drainTo(pending);
+        write(pending);
+        if (broadcaster != null) {
+            broadcaster.close();
+        }
+        store.close();
+    }
+
+    private void enqueue(Update update) {
+
+        if (closed) {
+            return;
+        }
+        if (!updates.offer(update)) {
+            LOGGER.log(Level.WARNING, "Session index store write queue is full. Dropping the record of session index "
+                    + update.record.getSessionIndex());
+        }
+    }
+
+    private void writeUpdates() {
+
+        List<Update> batch = new ArrayList<Update>(writeBatchSize);
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                batch.add(updates.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            updates.drainTo(batch, writeBatchSize - 1);
+            write(batch);
+            batch.clear();
+        }
+    }
+
+    /**
+     * Writes the updates in order, grouping consecutive additions and removals into one store call each.
+     */
+    private void write(List<Update> batch) {
+
+        List<SessionIndexRecord> records = new ArrayList<SessionIndexRecord>(batch.size());
+        boolean add = false;
+        for (Update update : batch) {
+            if (update.add != add && !records.isEmpty()) {
+                write(add, records);
+                records.clear();
+            }
+            add = update.add;
+            records.add(update.record);
+        }
+        if (!records.isEmpty()) {
+            write(add, records);
+        }
+    }
+
+    private void write(boolean add, List<SessionIndexRecord> records) {
+
+        try {
+            if (add) {
+                store.addSessions(records);
+            } else {
+                store.removeSessions(records);
+            }
+        } catch (SSOAgentException e) {
+            LOGGER.log(Level.WARNING, "Error occurred while writing " + records.size() +
+                    " records to the session index store", e);
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Error occurred while writing " + records.size() +
+                    " records to the session index store", e);
+        }
+    }
+
+    private static long getLong(Properties properties, String name, long defaultValue) {
+
+        String value = properties.getProperty(name);
+        if (StringUtils.isBlank(value)) {
+            return defaultValue;
+        }
+        try {
+            long parsed = Long.parseLong(value.trim());
+            if (parsed > 0) {
+                return parsed;
+            }
+        } catch (NumberFormatException e) {
+            // Fall through to the default.
+        }
+        LOGGER.log(Level.WARNING, "Invalid value configured for 'SAML2.SessionIndexStore." + name + "' : " + value +
+                ". Defaulting to " + defaultValue);
+        return defaultValue;
+    }
+
+    private static <T> T newInstance(String className, Class<T> type) throws SSOAgentException {
+
+        Object instance;
+        try {
+            instance = Class.forName(className).newInstance();
+        } catch (ClassNotFoundException e) {
+            throw new SSOAgentException("Error loading " + type.getSimpleName() + " class " + className, e);
+        } catch (IllegalAccessException e) {
+            throw new SSOAgentException("Error loading " + type.getSimpleName() + " class " + className, e);
+        } catch (InstantiationException e) {
+            throw new SSOAgentException("Error loading " + type.getSimpleName() + " class " + className, e);
+        }
+        if (!type.isInstance(instance)) {
+            throw new SSOAgentException(type.getSimpleName() + " class " + className + " does not implement " +
+                    type.getName());
+        }
+        return type.cast(instance);
+    }
+
+    /**
+     * Queued addition or removal of a session record.
+     */
+    private static class Update {
+
+        private final boolean add;
+        private final SessionIndexRecord record;
+
+        Update(boolean add, SessionIndexRecord record) {
+
+            this.add = add;
+            this.record = record;
+        }
+    }
+}
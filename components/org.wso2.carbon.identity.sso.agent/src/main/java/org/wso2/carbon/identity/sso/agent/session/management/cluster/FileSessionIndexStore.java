@@ -0,0 +1,240 @@
+/*
+ * Copyright (c) 2018, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.identity.sso.agent.session.management.cluster;
+
+import org.apache.commons.lang.StringUtils;
+import org.wso2.carbon.identity.sso.agent.exception.SSOAgentException;
+import org.wso2.carbon.identity.sso.agent.util.SSOAgentConstants;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Session index store kept in a directory shared by the nodes of a cluster, for example on a network file system.
+ * <p/>
+ * Each recorded session is an empty file named after its node and session ID, in a directory per session index.
+ * Each logout is a file per session index that holds the logout time. Names are hex encoded, so that any session
+ * index or session ID is a valid file name. Logouts are written to a temporary file and moved into place, so
+ * readers never see a partially written logout.
+ * <p/>
+ * The directory is configured with 'SAML2.SessionIndexStore.Directory'.
+ */
+public class FileSessionIndexStore implements SessionIndexStore {
+
+    public static final String DIRECTORY = "Directory";
+
+    private static final Logger LOGGER = Logger.getLogger(SSOAgentConstants.LOGGER_NAME);
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    private static final String SESSIONS = "sessions";
+    private static final String LOGOUTS = "logouts";
+    private static final String NAME_SEPARATOR = ".";
+    private static final String TEMP_FILE_SUFFIX = ".tmp";
+
+    private Path sessionsDirectory;
+    private Path logoutsDirectory;
+
+    @Override
+    public void init(Properties properties) throws SSOAgentException {
+
+        String directory = properties.getProperty(DIRECTORY);
+        if (StringUtils.isBlank(directory)) {
+            throw new SSOAgentException("'SAML2.SessionIndexStore." + DIRECTORY + "' not configured");
+        }
+        Path root = Paths.get(directory.trim());
+        sessionsDirectory = root.resolve(SESSIONS);
+        logoutsDirectory = root.resolve(LOGOUTS);
+        try {
+            Files.createDirectories(sessionsDirectory);
+            Files.createDirectories(logoutsDirectory);
+        } catch (IOException e) {
+            throw new SSOAgentException("Error occurred while creating the session index store directory " +
+                    directory, e);
+        }
+    }
+
+    @Override
+    public void addSessions(List<SessionIndexRecord> records) throws SSOAgentException {
+
+        for (SessionIndexRecord record : records) {
+            Path sessionIndexDirectory = sessionsDirectory.resolve(encode(record.getSessionIndex()));
+            try {
+                Files.createDirectories(sessionIndexDirectory);
+                Path sessionFile = sessionIndexDirectory.resolve(sessionFileName(record));
+                if (!Files.exists(sessionFile)) {
+                    Files.createFile(sessionFile);
+                }
+            } catch (IOException e) {
+                throw new SSOAgentException("Error occurred while recording a session of session index " +
+                        record.getSessionIndex(), e);
+            }
+        }
+    }
+
+    @Override
+    public void removeSessions(List<SessionIndexRecord> records) throws SSOAgentException {
+
+        for (SessionIndexRecord record : records) {
+            Path sessionIndexDirectory = sessionsDirectory.resolve(encode(record.getSessionIndex()));
+            try {
+                Files.deleteIfExists(sessionIndexDirectory.resolve(sessionFileName(record)));
+                deleteIfEmpty(sessionIndexDirectory);
+            } catch (IOException e) {
+                throw new SSOAgentException("Error occurred while removing a session of session index " +
+                        record.getSessionIndex(), e);
+            }
+        }
+    }
+
+    @Override
+    public Set<String> logout(String sessionIndex, long logoutTime) throws SSOAgentException {
+
+        String encodedSessionIndex = encode(sessionIndex);
+        Set<String> nodeIds = new HashSet<String>();
+        Path sessionIndexDirectory = sessionsDirectory.resolve(encodedSessionIndex);
+        try {
+            Path logoutFile = logoutsDirectory.resolve(encodedSessionIndex);
+            Path tempFile = Files.createTempFile(logoutsDirectory, encodedSessionIndex, TEMP_FILE_SUFFIX);
+            Files.write(tempFile, Long.toString(logoutTime).getBytes(UTF_8));
+            Files.move(tempFile, logoutFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+            if (Files.isDirectory(sessionIndexDirectory)) {
+                try (DirectoryStream<Path> sessionFiles = Files.newDirectoryStream(sessionIndexDirectory)) {
+                    for (Path sessionFile : sessionFiles) {
+                        String name = sessionFile.getFileName().toString();
+                        int separator = name.indexOf(NAME_SEPARATOR);
+                        if (separator > 0) {
+                            nodeIds.add(decode(name.substring(0, separator)));
+                        }
+                        Files.deleteIfExists(sessionFile);
+                    }
+                }
+                deleteIfEmpty(sessionIndexDirectory);
+            }
+        } catch (IOException e) {
+            throw new SSOAgentException("Error occurred while logging out session index " + sessionIndex, e);
+        }
+        return nodeIds;
+    }
+
+    @Override
+    public List<String> getLoggedOutSessionIndexes(long since) throws SSOAgentException {
+
+        List<String> sessionIndexes = new ArrayList<String>();
+        try (DirectoryStream<Path> logoutFiles = Files.newDirectoryStream(logoutsDirectory)) {
+            for (Path logoutFile : logoutFiles) {
+                String name = logoutFile.getFileName().toString();
+                if (name.endsWith(TEMP_FILE_SUFFIX)) {
+                    continue;
+                }
+                Long logoutTime = readLogoutTime(logoutFile);
+                if (logoutTime != null && logoutTime >= since) {
+                    sessionIndexes.add(decode(name));
+                }
+            }
+        } catch (IOException e) {
+            throw new SSOAgentException("Error occurred while reading the logged out session indexes", e);
+        }
+        return sessionIndexes;
+    }
+
+    @Override
+    public void purgeLogouts(long before) throws SSOAgentException {
+
+        try (DirectoryStream<Path> logoutFiles = Files.newDirectoryStream(logoutsDirectory)) {
+            for (Path logoutFile : logoutFiles) {
+                if (logoutFile.getFileName().toString().endsWith(TEMP_FILE_SUFFIX)) {
+                    continue;
+                }
+                Long logoutTime = readLogoutTime(logoutFile);
+                if (logoutTime != null && logoutTime < before) {
+                    Files.deleteIfExists(logoutFile);
+                }
+            }
+        } catch (IOException e) {
+            throw new SSOAgentException("Error occurred while purging the logged out session indexes", e);
+        }
+    }
+
+    @Override
+    public void close() {
+
+    }
+
+    private static Long readLogoutTime(Path logoutFile) throws IOException {
+
+        try {
+            return Long.valueOf(new String(Files.readAllBytes(logoutFile), UTF_8).trim());
+        } catch (NoSuchFileException e) {
+            // Purged by another node in the meantime.
+            return null;
+        } catch (NumberFormatException e) {
+            LOGGER.log(Level.WARNING, "Ignoring malformed session index logout file " + logoutFile);
+            return null;
+        }
+    }
+
+    private static void deleteIfEmpty(Path directory) {
+
+        try {
+            Files.deleteIfExists(directory);
+        } catch (IOException e) {
+            // Not empty, or already removed by another node.
+            LOGGER.log(Level.FINEST, "Session index directory not removed : " + directory);
+        }
+    }
+
+    private static String sessionFileName(SessionIndexRecord record) {
+
+        return encode(record.getNodeId()) + NAME_SEPARATOR + encode(record.getSessionId());
+    }
+
+    private static String encode(String value) {
+
+        byte[] bytes = value.getBytes(UTF_8);
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[i * 2] = HEX[(bytes[i] >> 4) & 0x0f];
+            chars[i * 2 + 1] = HEX[bytes[i] & 0x0f];
+        }
+        return new String(chars);
+    }
+
+    private static String decode(String value) {
+
+        byte[] bytes = new byte[value.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(value.substring(i * 2, i * 2 + 2), 16);
+        }
+        return new String(bytes, UTF_8);
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright (c) 2018, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.identity.sso.agent.session.management.cluster;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+/**
+ * Session index store held in the memory of a single JVM.
+ * <p/>
+ * This is the local stand-in for a shared store, for single node deployments and for development. It does not
+ * propagate logouts between JVMs.
+ */
+public class InMemorySessionIndexStore implements SessionIndexStore {
+
+    private final Map<String, Map<String, String>> sessions = new HashMap<String, Map<String, String>>();
+    private final Map<String, Long> logouts = new LinkedHashMap<String, Long>();
+
+    @Override
+    public void init(Properties properties) {
+
+    }
+
+    @Override
+    public synchronized void addSessions(List<SessionIndexRecord> records) {
+
+        for (SessionIndexRecord record : records) {
+            Map<String, String> nodeSessions = sessions.get(record.getSessionIndex());
+            if (nodeSessions == null) {
+                nodeSessions = new HashMap<String, String>();
+                sessions.put(record.getSessionIndex(), nodeSessions);
+            }
+            nodeSessions.put(record.getSessionId(), record.getNodeId());
+        }
+    }
+
+    @Override
+    public synchronized void removeSessions(List<SessionIndexRecord> records) {
+
+        for (SessionIndexRecord record : records) {
+            Map<String, String> nodeSessions = sessions.get(record.getSessionIndex());
+            if (nodeSessions != null) {
+                nodeSessions.remove(record.getSessionId());
+                if (nodeSessions.isEmpty()) {
+                    sessions.remove(record.getSessionIndex());
+                }
+            }
+        }
+    }
+
+    @Override
+    public synchronized Set<String> logout(String sessionIndex, long logoutTime) {
+
+        Set<String> nodeIds = new HashSet<String>();
+        Map<String, String> nodeSessions = sessions.remove(sessionIndex);
+        if (nodeSessions != null) {
+            nodeIds.addAll(nodeSessions.values());
+        }
+        // Re-inserting keeps the logouts ordered by time.
+        logouts.remove(sessionIndex);
+        logouts.put(sessionIndex, logoutTime);
+        return nodeIds;
+    }
+
+    @Override
+    public synchronized List<String> getLoggedOutSessionIndexes(long since) {
+
+        List<String> sessionIndexes = new ArrayList<String>();
+        for (Map.Entry<String, Long> logout : logouts.entrySet()) {
+            if (logout.getValue() >= since) {
+                sessionIndexes.add(logout.getKey());
+            }
+        }
+        return sessionIndexes;
+    }
+
+    @Override
+    public synchronized void purgeLogouts(long before) {
+
+        Iterator<Map.Entry<String, Long>> iterator = logouts.entrySet().iterator();
+        while (iterator.hasNext() && iterator.next().getValue() < before) {
+            iterator.remove();
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+
+        sessions.clear();
+        logouts.clear();
+    }
+}
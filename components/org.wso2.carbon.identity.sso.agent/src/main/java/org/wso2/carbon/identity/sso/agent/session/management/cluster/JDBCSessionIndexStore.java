@@ -0,0 +1,311 @@
+/*
+ * Copyright (c) 2018, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.identity.sso.agent.session.management.cluster;
+
+import org.apache.commons.lang.StringUtils;
+import org.wso2.carbon.identity.sso.agent.exception.SSOAgentException;
+import org.wso2.carbon.identity.sso.agent.util.SSOAgentConstants;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLIntegrityConstraintViolationException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.naming.InitialContext;
+import javax.naming.NamingException;
+import javax.sql.DataSource;
+
+/**
+ * Session index store kept in a relational database shared by the nodes of a cluster.
+ * <p/>
+ * The database is either a JNDI data source, configured with 'SAML2.SessionIndexStore.JDBC.DataSource', or a JDBC
+ * URL configured with 'SAML2.SessionIndexStore.JDBC.URL', '.Username', '.Password' and optionally '.Driver'. The
+ * tables are created on initialization unless 'SAML2.SessionIndexStore.JDBC.CreateTables' is false. Records are
+ * written in JDBC batches, one transaction per batch.
+ */
+public class JDBCSessionIndexStore implements SessionIndexStore {
+
+    public static final String DATA_SOURCE = "JDBC.DataSource";
+    public static final String URL = "JDBC.URL";
+    public static final String USERNAME = "JDBC.Username";
+    public static final String PASSWORD = "JDBC.Password";
+    public static final String DRIVER = "JDBC.Driver";
+    public static final String CREATE_TABLES = "JDBC.CreateTables";
+
+    private static final Logger LOGGER = Logger.getLogger(SSOAgentConstants.LOGGER_NAME);
+
+    private static final String SESSION_TABLE = "SSO_AGENT_SESSION_INDEX";
+    private static final String LOGOUT_TABLE = "SSO_AGENT_SESSION_LOGOUT";
+
+    private static final String CREATE_SESSION_TABLE = "CREATE TABLE " + SESSION_TABLE + " (" +
+            "SESSION_INDEX VARCHAR(255) NOT NULL, NODE_ID VARCHAR(255) NOT NULL, SESSION_ID VARCHAR(255) NOT NULL, " +
+            "CREATED_TIME BIGINT NOT NULL, PRIMARY KEY (SESSION_INDEX, NODE_ID, SESSION_ID))";
+    private static final String CREATE_LOGOUT_TABLE = "CREATE TABLE " + LOGOUT_TABLE + " (" +
+            "SESSION_INDEX VARCHAR(255) NOT NULL, LOGOUT_TIME BIGINT NOT NULL, PRIMARY KEY (SESSION_INDEX))";
+
+    private static final String INSERT_SESSION = "INSERT INTO " + SESSION_TABLE +
+            " (SESSION_INDEX, NODE_ID, SESSION_ID, CREATED_TIME) VALUES (?, ?, ?, ?)";
+    private static final String DELETE_SESSION = "DELETE FROM " + SESSION_TABLE +
+            " WHERE SESSION_INDEX = ? AND NODE_ID = ? AND SESSION_ID = ?";
+    private static final String SELECT_NODES = "SELECT DISTINCT NODE_ID FROM " + SESSION_TABLE +
+            " WHERE SESSION_INDEX = ?";
+    private static final String DELETE_SESSION_INDEX = "DELETE FROM " + SESSION_TABLE + " WHERE SESSION_INDEX = ?";
+    private static final String UPDATE_LOGOUT = "UPDATE " + LOGOUT_TABLE + " SET LOGOUT_TIME = ?" +
+            " WHERE SESSION_INDEX = ?";
+    private static final String INSERT_LOGOUT = "INSERT INTO " + LOGOUT_TABLE +
+            " (SESSION_INDEX, LOGOUT_TIME) VALUES (?, ?)";
+    private static final String SELECT_LOGOUTS = "SELECT SESSION_INDEX FROM " + LOGOUT_TABLE +
+            " WHERE LOGOUT_TIME >= ?";
+    private static final String PURGE_LOGOUTS = "DELETE FROM " + LOGOUT_TABLE + " WHERE LOGOUT_TIME < ?";
+
+    private DataSource dataSource;
+    private String url;
+    private String username;
+    private String password;
+
+    @Override
+    public void init(Properties properties) throws SSOAgentException {
+
+        String dataSourceName = properties.getProperty(DATA_SOURCE);
+        if (StringUtils.isNotBlank(dataSourceName)) {
+            try {
+                dataSource = (DataSource) new InitialContext().lookup(dataSourceName.trim());
+            } catch (NamingException e) {
+                throw new SSOAgentException("Error occurred while looking up the data source " + dataSourceName, e);
+            }
+        } else {
+            url = properties.getProperty(URL);
+            if (StringUtils.isBlank(url)) {
+                throw new SSOAgentException("Neither 'SAML2.SessionIndexStore." + DATA_SOURCE +
+                        "' nor 'SAML2.SessionIndexStore." + URL + "' configured");
+            }
+            username = properties.getProperty(USERNAME);
+            password = properties.getProperty(PASSWORD);
+            String driver = properties.getProperty(DRIVER);
+            if (StringUtils.isNotBlank(driver)) {
+                try {
+                    Class.forName(driver.trim());
+                } catch (ClassNotFoundException e) {
+                    throw new SSOAgentException("JDBC driver " + driver + " not found", e);
+                }
+            }
+        }
+
+        if (!"false".equalsIgnoreCase(StringUtils.trim(properties.getProperty(CREATE_TABLES)))) {
+            try (Connection connection = getConnection()) {
+                createTableIfMissing(connection, SESSION_TABLE, CREATE_SESSION_TABLE);
+                createTableIfMissing(connection, LOGOUT_TABLE, CREATE_LOGOUT_TABLE);
+            } catch (SQLException e) {
+                throw new SSOAgentException("Error occurred while creating the session index tables", e);
+            }
+        }
+    }
+
+    @Override
+    public void addSessions(List<SessionIndexRecord> records) throws SSOAgentException {
+
+        try (Connection connection = getConnection()) {
+            connection.setAutoCommit(false);
+            try (PreparedStatement delete = connection.prepareStatement(DELETE_SESSION);
+                 PreparedStatement insert = connection.prepareStatement(INSERT_SESSION)) {
+                // Deleting first makes re-recording a session idempotent without a vendor specific upsert.
+                for (SessionIndexRecord record : records) {
+                    setKey(delete, record);
+                    delete.addBatch();
+                    setKey(insert, record);
+                    insert.setLong(4, record.getCreatedTime());
+                    insert.addBatch();
+                }
+                delete.executeBatch();
+                insert.executeBatch();
+                connection.commit();
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            }
+        } catch (SQLException e) {
+            throw new SSOAgentException("Error occurred while recording sessions in the session index store", e);
+        }
+    }
+
+    @Override
+    public void removeSessions(List<SessionIndexRecord> records) throws SSOAgentException {
+
+        try (Connection connection = getConnection()) {
+            connection.setAutoCommit(false);
+            try (PreparedStatement delete = connection.prepareStatement(DELETE_SESSION)) {
+                for (SessionIndexRecord record : records) {
+                    setKey(delete, record);
+                    delete.addBatch();
+                }
+                delete.executeBatch();
+                connection.commit();
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            }
+        } catch (SQLException e) {
+            throw new SSOAgentException("Error occurred while removing sessions from the session index store", e);
+        }
+    }
+
+    @Override
+    public Set<String> logout(String sessionIndex, long logoutTime) throws SSOAgentException {
+
+        Set<String> nodeIds = new HashSet<String>();
+        try (Connection connection = getConnection()) {
+            // The logout is recorded first, so that the other nodes learn about it even if the sessions of the
+            // index cannot be removed.
+            recordLogout(connection, sessionIndex, logoutTime);
+            connection.setAutoCommit(false);
+            try {
+                try (PreparedStatement select = connection.prepareStatement(SELECT_NODES)) {
+                    select.setString(1, sessionIndex);
+                    try (ResultSet resultSet = select.executeQuery()) {
+                        while (resultSet.next()) {
+                            nodeIds.add(resultSet.getString(1));
+                        }
+                    }
+                }
+                executeUpdate(connection, DELETE_SESSION_INDEX, sessionIndex);
+                connection.commit();
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            }
+        } catch (SQLException e) {
+            throw new SSOAgentException("Error occurred while logging out session index " + sessionIndex, e);
+        }
+        return nodeIds;
+    }
+
+    @Override
+    public List<String> getLoggedOutSessionIndexes(long since) throws SSOAgentException {
+
+        List<String> sessionIndexes = new ArrayList<String>();
+        try (Connection connection = getConnection();
+             PreparedStatement select = connection.prepareStatement(SELECT_LOGOUTS)) {
+            select.setLong(1, since);
+            try (ResultSet resultSet = select.executeQuery()) {
+                while (resultSet.next()) {
+                    sessionIndexes.add(resultSet.getString(1));
+                }
+            }
+        } catch (SQLException e) {
+            throw new SSOAgentException("Error occurred while reading the logged out session indexes", e);
+        }
+        return sessionIndexes;
+    }
+
+    @Override
+    public void purgeLogouts(long before) throws SSOAgentException {
+
+        try (Connection connection = getConnection();
+             PreparedStatement purge = connection.prepareStatement(PURGE_LOGOUTS)) {
+            purge.setLong(1, before);
+            purge.executeUpdate();
+        } catch (SQLException e) {
+            throw new SSOAgentException("Error occurred while purging the logged out session indexes", e);
+        }
+    }
+
+    @Override
+    public void close() {
+
+    }
+
+    private Connection getConnection() throws SQLException {
+
+        if (dataSource != null) {
+            return dataSource.getConnection();
+        }
+        return DriverManager.getConnection(url, username, password);
+    }
+
+    private static void setKey(PreparedStatement statement, SessionIndexRecord record) throws SQLException {
+
+        statement.setString(1, record.getSessionIndex());
+        statement.setString(2, record.getNodeId());
+        statement.setString(3, record.getSessionId());
+    }
+
+    private static void executeUpdate(Connection connection, String sql, String sessionIndex) throws SQLException {
+
+        try (PreparedStatement statement = connection.prepareStatement(sql)) {
+            statement.setString(1, sessionIndex);
+            statement.executeUpdate();
+        }
+    }
+
+    /**
+     * Records the logout of a session index, inserting it if it is absent. Two nodes can log out the same index at
+     * the same time. The node that loses the race to insert finds the logout recorded by the other node, which is
+     * as good as its own.
+     */
+    private static void recordLogout(Connection connection, String sessionIndex, long logoutTime)
+            throws SQLException {
+
+        try (PreparedStatement update = connection.prepareStatement(UPDATE_LOGOUT)) {
+            update.setLong(1, logoutTime);
+            update.setString(2, sessionIndex);
+            if (update.executeUpdate() > 0) {
+                return;
+            }
+        }
+        try (PreparedStatement insert = connection.prepareStatement(INSERT_LOGOUT)) {
+            insert.setString(1, sessionIndex);
+            insert.setLong(2, logoutTime);
+            insert.executeUpdate();
+        } catch (SQLException e) {
+            if (!isDuplicateKey(e)) {
+                throw e;
+            }
+            LOGGER.log(Level.FINE, "Session index " + sessionIndex + " was logged out by another node meanwhile");
+        }
+    }
+
+    private static boolean isDuplicateKey(SQLException e) {
+
+        // SQLState class 23 is an integrity constraint violation, which an insert can only cause on the key here.
+        return e instanceof SQLIntegrityConstraintViolationException ||
+                (e.getSQLState() != null && e.getSQLState().startsWith("23"));
+    }
+
+    private static void createTableIfMissing(Connection connection, String table, String ddl) throws SQLException {
+
+        try (Statement statement = connection.createStatement()) {
+            statement.executeQuery("SELECT 1 FROM " + table + " WHERE 1 = 0").close();
+            return;
+        } catch (SQLException e) {
+            LOGGER.log(Level.FINE, "Creating session index table " + table);
+        }
+        try (Statement statement = connection.createStatement()) {
+            statement.executeUpdate(ddl);
+        }
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright (c) 2018, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.identity.sso.agent.session.management.cluster;
+
+/**
+ * Record of an SP session in the {@link SessionIndexStore}.
+ */
+public class SessionIndexRecord {
+
+    private final String sessionIndex;
+    private final String nodeId;
+    private final String sessionId;
+    private final long createdTime;
+
+    public SessionIndexRecord(String sessionIndex, String nodeId, String sessionId, long createdTime) {
+
+        this.sessionIndex = sessionIndex;
+        this.nodeId = nodeId;
+        this.sessionId = sessionId;
+        this.createdTime = createdTime;
+    }
+
+    public String getSessionIndex() {
+
+        return sessionIndex;
+    }
+
+    public String getNodeId() {
+
+        return nodeId;
+    }
+
+    public String getSessionId() {
+
+        return sessionId;
+    }
+
+    public long getCreatedTime() {
+
+        return createdTime;
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2018, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.identity.sso.agent.session.management.cluster;
+
+import org.wso2.carbon.identity.sso.agent.exception.SSOAgentException;
+
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+
+/**
+ * Shared store of the IdP session indexes of the SP sessions of all nodes in a cluster.
+ * <p/>
+ * Nodes record which of their sessions belong to which IdP session index. When a single logout request arrives at
+ * any node, the session index is logged out in the store, and every other node learns about it by polling
+ * {@link #getLoggedOutSessionIndexes(long)} or through a {@link SessionLogoutBroadcaster}, and invalidates its own
+ * sessions of that index.
+ * <p/>
+ * Implementations are configured with 'SAML2.SessionIndexStoreImplClass' and must have a public no argument
+ * constructor. They are called from a single background thread, except for {@link #logout(String, long)}.
+ */
+public interface SessionIndexStore {
+
+    /**
+     * Initializes the store.
+     *
+     * @param properties the 'SAML2.SessionIndexStore.*' properties of the agent configuration, with the prefix
+     *                   removed
+     * @throws SSOAgentException if the store cannot be initialized
+     */
+    void init(Properties properties) throws SSOAgentException;
+
+    /**
+     * Records sessions of this or another node.
+     *
+     * @param records sessions to record
+     * @throws SSOAgentException if the records cannot be written
+     */
+    void addSessions(List<SessionIndexRecord> records) throws SSOAgentException;
+
+    /**
+     * Removes recorded sessions.
+     *
+     * @param records sessions to remove
+     * @throws SSOAgentException if the records cannot be removed
+     */
+    void removeSessions(List<SessionIndexRecord> records) throws SSOAgentException;
+
+    /**
+     * Logs out an IdP session index. The sessions recorded for the index are removed, and the logout is recorded so
+     * that other nodes can find it through {@link #getLoggedOutSessionIndexes(long)}.
+     *
+     * @param sessionIndex IdP session index
+     * @param logoutTime   time of the logout in milliseconds since the epoch
+     * @return IDs of the nodes that had sessions recorded for the index
+     * @throws SSOAgentException if the logout cannot be recorded
+     */
+    Set<String> logout(String sessionIndex, long logoutTime) throws SSOAgentException;
+
+    /**
+     * Returns the session indexes logged out at or after the given time.
+     *
+     * @param since time in milliseconds since the epoch
+     * @return logged out session indexes
+     * @throws SSOAgentException if the store cannot be read
+     */
+    List<String> getLoggedOutSessionIndexes(long since) throws SSOAgentException;
+
+    /**
+     * Removes the logouts recorded before the given time.
+     *
+     * @param before time in milliseconds since the epoch
+     * @throws SSOAgentException if the logouts cannot be removed
+     */
+    void purgeLogouts(long before) throws SSOAgentException;
+
+    /**
+     * Releases the resources held by the store.
+     */
+    void close();
+}
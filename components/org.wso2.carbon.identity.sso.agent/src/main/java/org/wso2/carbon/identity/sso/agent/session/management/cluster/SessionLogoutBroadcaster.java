@@ -0,0 +1,60 @@
+/*
+ * Copyright (c) 2018, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.identity.sso.agent.session.management.cluster;
+
+import org.wso2.carbon.identity.sso.agent.exception.SSOAgentException;
+
+import java.util.Properties;
+import java.util.Set;
+
+/**
+ * Hook to push single logouts to the other nodes of a cluster, configured with
+ * 'SAML2.SessionLogoutBroadcasterImplClass'.
+ * <p/>
+ * Without a broadcaster, nodes pick up logouts by polling the {@link SessionIndexStore}. A broadcaster lets them
+ * react immediately. Each node initializes its broadcaster with its own {@link ClusterSessionIndex}, and a
+ * broadcaster that receives a logout from another node delivers it with
+ * {@link ClusterSessionIndex#onRemoteLogout(String)}.
+ */
+public interface SessionLogoutBroadcaster {
+
+    /**
+     * Initializes the broadcaster.
+     *
+     * @param properties   the 'SAML2.SessionIndexStore.*' properties of the agent configuration, with the prefix
+     *                     removed
+     * @param clusterIndex cluster session index of this node, to deliver the logouts received from other nodes to
+     * @throws SSOAgentException if the broadcaster cannot be initialized
+     */
+    void init(Properties properties, ClusterSessionIndex clusterIndex) throws SSOAgentException;
+
+    /**
+     * Notifies the given nodes that an IdP session index was logged out.
+     *
+     * @param sessionIndex IdP session index
+     * @param nodeIds      IDs of the nodes that had sessions of the index, excluding this node
+     * @throws SSOAgentException if the logout cannot be broadcast
+     */
+    void broadcast(String sessionIndex, Set<String> nodeIds) throws SSOAgentException;
+
+    /**
+     * Releases the resources held by the broadcaster.
+     */
+    void close();
+}
@@ -29,6 +29,7 @@ public class SSOAgentConstants {
 
     public static final String SESSION_BEAN_NAME = "org.wso2.carbon.identity.sso.agent.LoggedInSessionBean";
     public static final String CONFIG_BEAN_NAME = "org.wso2.carbon.identity.sso.agent.SSOAgentConfig";
+    public static final String RELAY_STATE_NAME = "org.wso2.carbon.identity.sso.agent.RelayState";
 
     public static final String SHOULD_GO_TO_WELCOME_PAGE = "shouldGoToWelcomePage";
     public static final String PROPERTY_FILE_PARAMETER_NAME = "property-file";
@@ -109,7 +110,32 @@ public class SSOAgentConstants {
             public static final String CACHE_CONTROL_PARAM_KEY = "Cache-Control";
             public static final String IS_ARTIFACT_RESOLVE_REQ_SIGNED = "ISArtifactResolveReqSigned";
             public static final String ARTIFACT_RESOLVE_URL = "SAML2.ArtifactResolveUrl";
+            public static final String ARTIFACT_RESOLVE_URL_PREFIX = "SAML2.ArtifactResolveUrl.";
             public static final String ENABLE_ARTIFACT_RESOLVE_SIGNING = "SAML2.EnableArtifactResolveSigning";
+            public static final String ENABLE_AUTHN_REQUEST_TEMPLATE = "SAML2.EnableAuthnRequestTemplate";
+            public static final String OMIT_OPTIONAL_AUTHN_REQUEST_ELEMENTS =
+                    "SAML2.OmitOptionalAuthnRequestElements";
+            public static final String SIGNATURE_ALGORITHM = "SAML2.SignatureAlgorithm";
+            public static final String OMIT_SIGNATURE_KEY_INFO = "SAML2.OmitSignatureKeyInfo";
+            public static final String ENABLE_WEAK_SESSION_INDEX = "SAML2.EnableWeakSessionIndex";
+            public static final String ENFORCE_SESSION_NOT_ON_OR_AFTER = "SAML2.EnforceSessionNotOnOrAfter";
+            public static final String SESSION_INDEX_STORE = "SAML2.SessionIndexStoreImplClass";
+            public static final String SESSION_LOGOUT_BROADCASTER = "SAML2.SessionLogoutBroadcasterImplClass";
+            public static final String SESSION_INDEX_STORE_PROPERTY_PREFIX = "SAML2.SessionIndexStore.";
+            public static final String SESSION_RETENTION_POLICY = "SAML2.SessionRetentionPolicy";
+            public static final String ARTIFACT_RESOLVE_MAX_CONNECTIONS_PER_ROUTE =
+                    "SAML2.ArtifactResolveMaxConnectionsPerRoute";
+            public static final String ARTIFACT_RESOLVE_MAX_CONNECTIONS = "SAML2.ArtifactResolveMaxConnections";
+            public static final String ARTIFACT_RESOLVE_CONNECT_TIMEOUT = "SAML2.ArtifactResolveConnectTimeout";
+            public static final String ARTIFACT_RESOLVE_READ_TIMEOUT = "SAML2.ArtifactResolveReadTimeout";
+            public static final String ARTIFACT_RESOLVE_TIMEOUT = "SAML2.ArtifactResolveTimeout";
+            public static final String ARTIFACT_RESOLVE_MAX_CONCURRENCY = "SAML2.ArtifactResolveMaxConcurrency";
+            public static final String ARTIFACT_RESOLVE_CIRCUIT_BREAKER_FAILURE_THRESHOLD =
+                    "SAML2.ArtifactResolveCircuitBreakerFailureThreshold";
+            public static final String ARTIFACT_RESOLVE_CIRCUIT_BREAKER_OPEN_DURATION =
+                    "SAML2.ArtifactResolveCircuitBreakerOpenDuration";
+            public static final String DUPLICATE_RESPONSE_TIMEOUT = "SAML2.DuplicateResponseTimeout";
+            public static final String DUPLICATE_RESPONSE_MAX_ENTRIES = "SAML2.DuplicateResponseMaxEntries";
 
             private SAML2() {}
         }
@@ -0,0 +1,157 @@
+/*
+ * Copyright (c) 2018, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.identity.sso.agent.util;
+
+import org.apache.xerces.impl.Constants;
+import org.apache.xerces.util.SecurityManager;
+import org.w3c.dom.Document;
+import org.xml.sax.SAXException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+/**
+ * Bounded pool of secure {@link DocumentBuilder} instances.
+ * <p/>
+ * The underlying factory is configured once with the XXE and entity expansion hardening required for SAML
+ * messages. Builders are reset and returned to the pool after each parse, so that the cost of creating a secure
+ * parser is not paid per message. If the pool is empty a new builder is created, and if it is full the returned
+ * builder is discarded.
+ */
+public class SSOAgentDocumentBuilderPool {
+
+    private static final Logger LOGGER = Logger.getLogger(SSOAgentConstants.LOGGER_NAME);
+    private static final int ENTITY_EXPANSION_LIMIT = 0;
+    private static final int DEFAULT_MAX_IDLE_BUILDERS = 64;
+
+    private static final SSOAgentDocumentBuilderPool IGNORING_COMMENTS_POOL =
+            new SSOAgentDocumentBuilderPool(true, DEFAULT_MAX_IDLE_BUILDERS);
+    private static final SSOAgentDocumentBuilderPool PRESERVING_COMMENTS_POOL =
+            new SSOAgentDocumentBuilderPool(false, DEFAULT_MAX_IDLE_BUILDERS);
+
+    private final DocumentBuilderFactory documentBuilderFactory;
+    private final BlockingQueue<DocumentBuilder> idleBuilders;
+
+    public SSOAgentDocumentBuilderPool(boolean ignoringComments, int maxIdleBuilders) {
+
+        this.documentBuilderFactory = createSecureDocumentBuilderFactory(ignoringComments);
+        this.idleBuilders = new ArrayBlockingQueue<DocumentBuilder>(maxIdleBuilders);
+    }
+
+    /**
+     * Returns the shared pool for the given comment handling mode.
+     *
+     * @param ignoringComments whether the parsed documents should drop comment nodes
+     * @return shared document builder pool
+     */
+    public static SSOAgentDocumentBuilderPool getInstance(boolean ignoringComments) {
+
+        return ignoringComments ? IGNORING_COMMENTS_POOL : PRESERVING_COMMENTS_POOL;
+    }
+
+    /**
+     * Parse the given stream into a DOM document using a pooled secure document builder.
+     *
+     * @param inputStream XML input stream
+     * @return parsed document
+     * @throws ParserConfigurationException if a new document builder cannot be created
+     * @throws SAXException                 if the input is not well formed
+     * @throws IOException                  if the stream cannot be read
+     */
+    public Document parse(InputStream inputStream) throws ParserConfigurationException, SAXException, IOException {
+
+        DocumentBuilder documentBuilder = borrow();
+        try {
+            return documentBuilder.parse(inputStream);
+        } finally {
+            release(documentBuilder);
+        }
+    }
+
+    /**
+     * Returns the number of idle builders currently held by the pool.
+     *
+     * @return idle builder count
+     */
+    public int getIdleCount() {
+
+        return idleBuilders.size();
+    }
+
+    private DocumentBuilder borrow() throws ParserConfigurationException {
+
+        DocumentBuilder documentBuilder = idleBuilders.poll();
+        if (documentBuilder != null) {
+            return documentBuilder;
+        }
+        // DocumentBuilderFactory implementations are not guaranteed to be thread safe.
+        synchronized (documentBuilderFactory) {
+            return documentBuilderFactory.newDocumentBuilder();
+        }
+    }
+
+    private void release(DocumentBuilder documentBuilder) {
+
+        try {
+            documentBuilder.reset();
+        } catch (UnsupportedOperationException e) {
+            // The builder cannot be restored to its initial state, hence it is not reused.
+            return;
+        }
+        idleBuilders.offer(documentBuilder);
+    }
+
+    private static DocumentBuilderFactory createSecureDocumentBuilderFactory(boolean ignoringComments) {
+
+        DocumentBuilderFactory documentBuilderFactory = DocumentBuilderFactory.newInstance();
+        documentBuilderFactory.setNamespaceAware(true);
+        documentBuilderFactory.setXIncludeAware(false);
+        documentBuilderFactory.setExpandEntityReferences(false);
+        documentBuilderFactory.setIgnoringComments(ignoringComments);
+        try {
+            documentBuilderFactory
+                    .setFeature(Constants.SAX_FEATURE_PREFIX + Constants.EXTERNAL_GENERAL_ENTITIES_FEATURE, false);
+            documentBuilderFactory
+                    .setFeature(Constants.SAX_FEATURE_PREFIX + Constants.EXTERNAL_PARAMETER_ENTITIES_FEATURE, false);
+            documentBuilderFactory
+                    .setFeature(Constants.XERCES_FEATURE_PREFIX + Constants.LOAD_EXTERNAL_DTD_FEATURE, false);
+            documentBuilderFactory.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+
+        } catch (ParserConfigurationException e) {
+            LOGGER.log(Level.SEVERE,
+                       "Failed to load XML Processor Feature " + Constants.EXTERNAL_GENERAL_ENTITIES_FEATURE + " or " +
+                       Constants.EXTERNAL_PARAMETER_ENTITIES_FEATURE + " or " + Constants.LOAD_EXTERNAL_DTD_FEATURE +
+                       " or secure-processing.");
+        }
+
+        SecurityManager securityManager = new SecurityManager();
+        securityManager.setEntityExpansionLimit(ENTITY_EXPANSION_LIMIT);
+        documentBuilderFactory
+                .setAttribute(Constants.XERCES_PROPERTY_PREFIX + Constants.SECURITY_MANAGER_PROPERTY, securityManager);
+        return documentBuilderFactory;
+    }
+}
@@ -0,0 +1,253 @@
+/*
+ * Copyright (c) 2018, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.identity.sso.agent.util;
+
+import org.w3c.dom.Attr;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.xml.XMLConstants;
+
+/**
+ * Extracts the bytes of an element from the message its DOM was parsed from.
+ * <p/>
+ * The element is located in the original UTF-8 bytes by counting the start tags with its qualified name, skipping
+ * comments, CDATA sections and processing instructions. The namespace declarations the element inherits from its
+ * ancestors are added to its start tag, so the result is a standalone document with the same in-scope namespaces.
+ * No part of the element is re-serialized, hence the bytes are exactly what the issuer signed.
+ */
+public class SSOAgentElementExtractor {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String UTF_8_NAME = "UTF-8";
+
+    private SSOAgentElementExtractor() {
+    }
+
+    /**
+     * Returns the bytes of the element as they appear in the message.
+     *
+     * @param message decoded message the DOM of the element was parsed from
+     * @param element element to extract
+     * @return standalone UTF-8 bytes of the element, or null if the element cannot be located in the message
+     */
+    public static byte[] extract(byte[] message, Element element) {
+
+        Document document = element.getOwnerDocument();
+        if (!isUTF8(document.getXmlEncoding()) || !isUTF8(document.getInputEncoding())) {
+            return null;
+        }
+        String tagName = element.getTagName();
+        int occurrence = indexOf(document.getElementsByTagName(tagName), element);
+        if (occurrence < 0) {
+            return null;
+        }
+        byte[] name = tagName.getBytes(UTF_8);
+
+        int start = -1;
+        int depth = 0;
+        int position = 0;
+        while ((position = nextMarkup(message, position)) >= 0) {
+            if (start < 0) {
+                if (matchesName(message, position + 1, name)) {
+                    int tagEnd = endOfTag(message, position);
+                    if (tagEnd < 0) {
+                        return null;
+                    }
+                    if (occurrence-- == 0) {
+                        start = position;
+                        if (message[tagEnd - 1] == '/') {
+                            return build(message, start, tagEnd + 1, name.length, element);
+                        }
+                        depth = 1;
+                    }
+                    position = tagEnd + 1;
+                } else {
+                    position++;
+                }
+            } else if (message[position + 1] == '/' && matchesName(message, position + 2, name)) {
+                int tagEnd = endOfTag(message, position);
+                if (tagEnd < 0) {
+                    return null;
+                }
+                if (--depth == 0) {
+                    return build(message, start, tagEnd + 1, name.length, element);
+                }
+                position = tagEnd + 1;
+            } else if (matchesName(message, position + 1, name)) {
+                int tagEnd = endOfTag(message, position);
+                if (tagEnd < 0) {
+                    return null;
+                }
+                if (message[tagEnd - 1] != '/') {
+                    depth++;
+                }
+                position = tagEnd + 1;
+            } else {
+                position++;
+            }
+        }
+        return null;
+    }
+
+    private static byte[] build(byte[] message, int start, int end, int nameLength, Element element) {
+
+        byte[] declarations = inheritedNamespaceDeclarations(element).getBytes(UTF_8);
+        int nameEnd = start + 1 + nameLength;
+        ByteArrayOutputStream out = new ByteArrayOutputStream(end - start + declarations.length);
+        out.write(message, start, nameEnd - start);
+        out.write(declarations, 0, declarations.length);
+        out.write(message, nameEnd, end - nameEnd);
+        return out.toByteArray();
+    }
+
+    private static String inheritedNamespaceDeclarations(Element element) {
+
+        Map<String, String> declarations = new LinkedHashMap<String, String>();
+        for (Node parent = element.getParentNode(); parent instanceof Element; parent = parent.getParentNode()) {
+            NamedNodeMap attributes = parent.getAttributes();
+            for (int i = 0; i < attributes.getLength(); i++) {
+                Attr attribute = (Attr) attributes.item(i);
+                String name = attribute.getName();
+                if (XMLConstants.XMLNS_ATTRIBUTE_NS_URI.equals(attribute.getNamespaceURI()) &&
+                        !declarations.containsKey(name) && !element.hasAttribute(name)) {
+                    declarations.put(name, attribute.getValue());
+                }
+            }
+        }
+        StringBuilder builder = new StringBuilder();
+        for (Map.Entry<String, String> declaration : declarations.entrySet()) {
+            builder.append(' ').append(declaration.getKey()).append("=\"")
+                    .append(declaration.getValue().replace("&", "&amp;").replace("<", "&lt;")
+                            .replace("\"", "&quot;"))
+                    .append('"');
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Returns the position of the next '&lt;' that starts an element tag, skipping comments, CDATA sections,
+     * processing instructions and the document type declaration.
+     */
+    private static int nextMarkup(byte[] message, int from) {
+
+        int position = from;
+        while (position < message.length - 1) {
+            if (message[position] != '<') {
+                position++;
+            } else if (startsWith(message, position, "<!--")) {
+                position = skipPast(message, position + 4, "-->");
+            } else if (startsWith(message, position, "<![CDATA[")) {
+                position = skipPast(message, position + 9, "]]>");
+            } else if (message[position + 1] == '?') {
+                position = skipPast(message, position + 2, "?>");
+            } else if (message[position + 1] == '!') {
+                position = skipPast(message, position + 2, ">");
+            } else {
+                return position;
+            }
+            if (position < 0) {
+                return -1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the position of the '&gt;' that closes the tag starting at the given position, ignoring any
+     * '&gt;' within quoted attribute values.
+     */
+    private static int endOfTag(byte[] message, int start) {
+
+        byte quote = 0;
+        for (int i = start + 1; i < message.length; i++) {
+            byte b = message[i];
+            if (quote != 0) {
+                if (b == quote) {
+                    quote = 0;
+                }
+            } else if (b == '"' || b == '\'') {
+                quote = b;
+            } else if (b == '>') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean matchesName(byte[] message, int position, byte[] name) {
+
+        int end = position + name.length;
+        if (end >= message.length) {
+            return false;
+        }
+        for (int i = 0; i < name.length; i++) {
+            if (message[position + i] != name[i]) {
+                return false;
+            }
+        }
+        byte next = message[end];
+        return next == '>' || next == '/' || next == ' ' || next == '\t' || next == '\r' || next == '\n';
+    }
+
+    private static boolean startsWith(byte[] message, int position, String prefix) {
+
+        if (position + prefix.length() > message.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length(); i++) {
+            if (message[position + i] != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int skipPast(byte[] message, int from, String terminator) {
+
+        for (int i = from; i <= message.length - terminator.length(); i++) {
+            if (startsWith(message, i, terminator)) {
+                return i + terminator.length();
+            }
+        }
+        return -1;
+    }
+
+    private static int indexOf(NodeList nodes, Element element) {
+
+        for (int i = 0; i < nodes.getLength(); i++) {
+            if (nodes.item(i) == element) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean isUTF8(String encoding) {
+
+        return encoding == null || UTF_8_NAME.equalsIgnoreCase(encoding) || "UTF8".equalsIgnoreCase(encoding);
+    }
+}
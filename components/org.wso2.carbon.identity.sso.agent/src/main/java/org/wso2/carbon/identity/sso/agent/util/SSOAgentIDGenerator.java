@@ -0,0 +1,120 @@
+/*
+ * Copyright (c) 2018, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.identity.sso.agent.util;
+
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Generator of random identifiers for SAML2 messages.
+ * <p/>
+ * Identifiers carry 160 bits drawn from a cryptographically strong random source. To keep request threads from
+ * contending on a single generator, the work is striped over several independently seeded {@link SecureRandom}
+ * instances selected by thread. Each stripe draws random bytes in batches and encodes into its own reused
+ * character buffer.
+ */
+public class SSOAgentIDGenerator {
+
+    private static final Logger LOGGER = Logger.getLogger(SSOAgentConstants.LOGGER_NAME);
+
+    private static final int ID_BYTES = 20; // 160 bit
+    private static final int IDS_PER_BATCH = 32;
+    private static final String PRNG_ALGORITHM = "SHA1PRNG";
+    // Identifiers have to be valid xs:ID values, hence every character is a letter.
+    private static final char[] CHAR_MAPPING =
+            {'a', 'b', 'c', 'd', 'e', 'f', 'g', 'h', 'i', 'j', 'k', 'l', 'm', 'n', 'o', 'p'};
+
+    private static final SSOAgentIDGenerator INSTANCE =
+            new SSOAgentIDGenerator(Runtime.getRuntime().availableProcessors() * 2);
+
+    private final Stripe[] stripes;
+    private final int stripeMask;
+
+    public SSOAgentIDGenerator(int concurrencyLevel) {
+
+        int stripeCount = 1;
+        while (stripeCount < concurrencyLevel) {
+            stripeCount <<= 1;
+        }
+        this.stripes = new Stripe[stripeCount];
+        for (int i = 0; i < stripeCount; i++) {
+            stripes[i] = new Stripe(createSecureRandom());
+        }
+        this.stripeMask = stripeCount - 1;
+    }
+
+    public static SSOAgentIDGenerator getInstance() {
+
+        return INSTANCE;
+    }
+
+    /**
+     * Generates a unique Id for SAML2 messages.
+     *
+     * @return 40 character identifier
+     */
+    public String generateID() {
+
+        long threadId = Thread.currentThread().getId();
+        return stripes[(int) (threadId ^ (threadId >>> 16)) & stripeMask].nextID();
+    }
+
+    private static SecureRandom createSecureRandom() {
+
+        // SHA1PRNG instances do not share state, unlike the default NativePRNG which serializes all callers on one
+        // lock. Each instance seeds itself from the system entropy source on first use.
+        try {
+            return SecureRandom.getInstance(PRNG_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            LOGGER.log(Level.FINE, PRNG_ALGORITHM + " is not available. Defaulting to the platform SecureRandom");
+            return new SecureRandom();
+        }
+    }
+
+    private static class Stripe {
+
+        private final SecureRandom secureRandom;
+        private final byte[] randomBytes = new byte[ID_BYTES * IDS_PER_BATCH];
+        private final char[] chars = new char[ID_BYTES * 2];
+        private int position = randomBytes.length;
+
+        Stripe(SecureRandom secureRandom) {
+
+            this.secureRandom = secureRandom;
+        }
+
+        synchronized String nextID() {
+
+            if (position == randomBytes.length) {
+                secureRandom.nextBytes(randomBytes);
+                position = 0;
+            }
+            for (int i = 0; i < ID_BYTES; i++) {
+                byte b = randomBytes[position];
+                // Used bytes are cleared so that an identifier cannot be recovered from the buffer later.
+                randomBytes[position++] = 0;
+                chars[i * 2] = CHAR_MAPPING[(b >> 4) & 0x0f];
+                chars[i * 2 + 1] = CHAR_MAPPING[b & 0x0f];
+            }
+            return new String(chars);
+        }
+    }
+}
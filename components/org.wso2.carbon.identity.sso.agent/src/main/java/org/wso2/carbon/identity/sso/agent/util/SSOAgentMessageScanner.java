@@ -0,0 +1,168 @@
+/*
+ * Copyright (c) 2018, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.identity.sso.agent.util;
+
+import org.wso2.carbon.identity.sso.agent.exception.SSOAgentException;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Streaming pre-scan of a SAML2 message.
+ * <p/>
+ * A single StAX pass collects the information needed before the message is parsed into a DOM: the ID of the
+ * first Assertion and whether that Assertion is signed with the
+ * 'http://www.w3.org/2001/10/xml-exc-c14n#WithComments' transform. This lets the caller choose the parser mode up
+ * front so that each message is parsed into a DOM only once. Checks on the structure of the message are left to
+ * the DOM that is unmarshalled and validated.
+ */
+public class SSOAgentMessageScanner {
+
+    private static final Logger LOGGER = Logger.getLogger(SSOAgentConstants.LOGGER_NAME);
+
+    private static final String EXC_C14N_WITH_COMMENTS = "http://www.w3.org/2001/10/xml-exc-c14n#WithComments";
+    private static final String ASSERTION = "Assertion";
+    private static final String ID = "ID";
+    private static final String URI = "URI";
+    private static final String ALGORITHM = "Algorithm";
+    private static final String[] TRANSFORM_PATH =
+            {ASSERTION, "Signature", "SignedInfo", "Reference", "Transforms", "Transform"};
+
+    private static final XMLInputFactory XML_INPUT_FACTORY = createXMLInputFactory();
+
+    private SSOAgentMessageScanner() {
+    }
+
+    /**
+     * Scan the given SAML2 message.
+     *
+     * @param samlBytes decoded SAML2 message
+     * @return scan result
+     * @throws SSOAgentException if the message is not well formed
+     */
+    public static ScanResult scan(byte[] samlBytes) throws SSOAgentException {
+
+        ScanResult result = new ScanResult();
+        List<String> path = new ArrayList<String>();
+        Set<String> referencesWithComments = new HashSet<String>();
+        String currentReferenceURI = null;
+
+        XMLStreamReader reader = null;
+        try {
+            reader = XML_INPUT_FACTORY.createXMLStreamReader(new ByteArrayInputStream(samlBytes));
+            while (reader.hasNext()) {
+                int event = reader.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    String localName = reader.getLocalName();
+                    path.add(localName);
+
+                    if (ASSERTION.equals(localName)) {
+                        if (result.assertionId == null) {
+                            result.assertionId = reader.getAttributeValue(null, ID);
+                        }
+                    } else if (endsWith(path, TRANSFORM_PATH, TRANSFORM_PATH.length - 2)) {
+                        currentReferenceURI = reader.getAttributeValue(null, URI);
+                    } else if (endsWith(path, TRANSFORM_PATH, TRANSFORM_PATH.length) &&
+                            EXC_C14N_WITH_COMMENTS.equals(reader.getAttributeValue(null, ALGORITHM)) &&
+                            currentReferenceURI != null) {
+                        referencesWithComments.add(currentReferenceURI);
+                    }
+                } else if (event == XMLStreamConstants.END_ELEMENT) {
+                    path.remove(path.size() - 1);
+                }
+            }
+        } catch (XMLStreamException e) {
+            // Parsing the message anyway in a default mode would let a message only one of the parsers accepts
+            // through, hence it is rejected.
+            throw new SSOAgentException("Error in scanning the SAML2 message", e);
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (XMLStreamException e) {
+                    LOGGER.log(Level.FINE, "Error occurred while closing XMLStreamReader", e);
+                }
+            }
+        }
+
+        result.signedWithComments = result.assertionId != null && !result.assertionId.trim().isEmpty() &&
+                referencesWithComments.contains("#" + result.assertionId);
+        return result;
+    }
+
+    /**
+     * Returns whether the element path ends with the first {@code length} names of the expected path.
+     */
+    private static boolean endsWith(List<String> path, String[] expected, int length) {
+
+        int offset = path.size() - length;
+        if (offset < 0) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (!expected[i].equals(path.get(offset + i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static XMLInputFactory createXMLInputFactory() {
+
+        XMLInputFactory xmlInputFactory = XMLInputFactory.newInstance();
+        xmlInputFactory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, true);
+        xmlInputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        xmlInputFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        xmlInputFactory.setProperty(XMLInputFactory.IS_REPLACING_ENTITY_REFERENCES, false);
+        return xmlInputFactory;
+    }
+
+    /**
+     * Result of a SAML2 message pre-scan.
+     */
+    public static class ScanResult {
+
+        private String assertionId;
+        private boolean signedWithComments;
+
+        /**
+         * @return ID of the first Assertion element, or null if there is none
+         */
+        public String getAssertionId() {
+            return assertionId;
+        }
+
+        /**
+         * @return true if the first Assertion is signed with the
+         * 'http://www.w3.org/2001/10/xml-exc-c14n#WithComments' transform
+         */
+        public boolean isSignedWithComments() {
+            return signedWithComments;
+        }
+    }
+}
@@ -106,7 +106,7 @@ public class SSOAgentRequestResolver {
                         SSOAgentConstants.SESSION_BEAN_NAME)).getSAML2SSO() != null &&
                 ((LoggedInSessionBean) request.getSession(false).getAttribute(
                         SSOAgentConstants.SESSION_BEAN_NAME)).getSAML2SSO()
-                        .getAssertion() != null;
+                        .hasAssertion();
     }
 
     public boolean isURLToSkip() {
@@ -0,0 +1,153 @@
+/*
+ * Copyright (c) 2018, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.identity.sso.agent.util;
+
+import org.wso2.carbon.identity.sso.agent.exception.SSOAgentException;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded de-duplication of identical work in progress.
+ * <p/>
+ * The first caller for a key runs the work, and callers arriving with the same key while it is in flight wait for
+ * its outcome instead of repeating it. The key is forgotten as soon as the work completes, so a caller arriving
+ * afterwards runs the work again and is never handed an earlier result. When the map is full, callers run the work
+ * without de-duplication.
+ *
+ * @param <K> key type
+ * @param <V> result type
+ */
+public class SSOAgentSingleFlight<K, V> {
+
+    public static final int DEFAULT_MAX_ENTRIES = 1024;
+    public static final int DEFAULT_MAX_WAIT = 10000;
+
+    private final ConcurrentMap<K, Flight<V>> flights = new ConcurrentHashMap<K, Flight<V>>();
+    private final int maxEntries;
+    private final long maxWaitMillis;
+
+    /**
+     * @param maxEntries    maximum number of keys in flight at a time
+     * @param maxWaitMillis maximum time a caller waits for the work of another caller
+     */
+    public SSOAgentSingleFlight(int maxEntries, long maxWaitMillis) {
+
+        this.maxEntries = maxEntries;
+        this.maxWaitMillis = maxWaitMillis;
+    }
+
+    /**
+     * Returns the result of the work for the given key, running it unless it is already in flight.
+     *
+     * @param key  key identifying the work
+     * @param work work to run
+     * @return result of the work
+     * @throws SSOAgentException if the work fails, or waiting for another caller times out
+     */
+    public V execute(K key, Work<V> work) throws SSOAgentException {
+
+        if (maxEntries <= 0) {
+            return work.execute();
+        }
+        Flight<V> flight = flights.get(key);
+        if (flight != null) {
+            return flight.await(maxWaitMillis);
+        }
+        if (flights.size() >= maxEntries) {
+            return work.execute();
+        }
+        Flight<V> ownFlight = new Flight<V>();
+        flight = flights.putIfAbsent(key, ownFlight);
+        if (flight != null) {
+            return flight.await(maxWaitMillis);
+        }
+        V result = null;
+        SSOAgentException failure = null;
+        boolean completed = false;
+        try {
+            result = work.execute();
+            completed = true;
+            return result;
+        } catch (SSOAgentException e) {
+            failure = e;
+            throw e;
+        } finally {
+            // The key is removed before the outcome is published, so callers arriving afterwards run the work
+            // again instead of being handed this result.
+            flights.remove(key, ownFlight);
+            if (completed) {
+                ownFlight.complete(result, null);
+            } else {
+                ownFlight.complete(null, failure != null ? failure :
+                        new SSOAgentException("Error occurred while processing an identical request"));
+            }
+        }
+    }
+
+    /**
+     * @return number of keys currently in flight
+     */
+    public int size() {
+
+        return flights.size();
+    }
+
+    /**
+     * Work de-duplicated by a single flight.
+     *
+     * @param <V> result type
+     */
+    public interface Work<V> {
+
+        V execute() throws SSOAgentException;
+    }
+
+    private static class Flight<V> {
+
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile V result;
+        private volatile SSOAgentException failure;
+
+        void complete(V result, SSOAgentException failure) {
+
+            this.result = result;
+            this.failure = failure;
+            done.countDown();
+        }
+
+        V await(long maxWaitMillis) throws SSOAgentException {
+
+            try {
+                if (!done.await(maxWaitMillis, TimeUnit.MILLISECONDS)) {
+                    throw new SSOAgentException("Timed out waiting for an identical request in progress");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SSOAgentException("Interrupted while waiting for an identical request in progress", e);
+            }
+            if (failure != null) {
+                throw failure;
+            }
+            return result;
+        }
+    }
+}
@@ -20,9 +20,6 @@
 
 package org.wso2.carbon.identity.sso.agent.util;
 
-import org.apache.commons.lang.StringUtils;
-import org.apache.xerces.impl.Constants;
-import org.apache.xerces.util.SecurityManager;
 import org.apache.xml.security.c14n.Canonicalizer;
 import org.apache.xml.security.signature.XMLSignature;
 import org.opensaml.Configuration;
@@ -44,48 +41,50 @@ import org.opensaml.xml.signature.SignableXMLObject;
 import org.opensaml.xml.signature.Signature;
 import org.opensaml.xml.signature.Signer;
 import org.opensaml.xml.signature.X509Data;
-import org.opensaml.xml.util.Base64;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
-import org.w3c.dom.NodeList;
 import org.w3c.dom.bootstrap.DOMImplementationRegistry;
 import org.w3c.dom.ls.DOMImplementationLS;
 import org.w3c.dom.ls.LSOutput;
 import org.w3c.dom.ls.LSSerializer;
 import org.wso2.carbon.identity.sso.agent.exception.SSOAgentException;
+import org.wso2.carbon.identity.sso.agent.saml.SAML2RedirectSigner;
+import org.wso2.carbon.identity.sso.agent.security.X509CredentialImpl;
 import org.xml.sax.SAXException;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.Writer;
-import java.net.URLEncoder;
 import java.nio.charset.Charset;
+import java.security.PrivateKey;
 import java.security.cert.CertificateEncodingException;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import javax.xml.XMLConstants;
 import javax.xml.namespace.QName;
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.xpath.XPath;
-import javax.xml.xpath.XPathConstants;
-import javax.xml.xpath.XPathExpressionException;
-import javax.xml.xpath.XPathFactory;
 
 public class SSOAgentUtils {
 
     private static Logger LOGGER = Logger.getLogger(SSOAgentConstants.LOGGER_NAME);
-    private static boolean isBootStrapped = false;
-
-    private static Random random = new Random();
-    private static final int ENTITY_EXPANSION_LIMIT = 0;
+    private static volatile boolean isBootStrapped = false;
+    private static volatile DOMImplementationLS domImplementationLS = null;
+    private static final int MAX_IDLE_LS_SERIALIZERS = 64;
+    // LSSerializers are not thread safe, but can be reused for any number of documents one at a time.
+    private static final BlockingQueue<LSSerializer> idleLSSerializers =
+            new ArrayBlockingQueue<LSSerializer>(MAX_IDLE_LS_SERIALIZERS);
+    // Redirect binding signers of addDeflateSignatureToHTTPQueryString, per SigAlg.
+    private static final ConcurrentMap<String, SAML2RedirectSigner> redirectSigners =
+            new ConcurrentHashMap<String, SAML2RedirectSigner>();
 
     private SSOAgentUtils() {
     }
@@ -98,31 +97,21 @@ public class SSOAgentUtils {
 
     public static String createID() {
 
-        byte[] bytes = new byte[20]; // 160 bit
-
-        random.nextBytes(bytes);
-
-        char[] charMapping = {'a', 'b', 'c', 'd', 'e', 'f', 'g', 'h', 'i', 'j', 'k', 'l', 'm', 'n', 'o', 'p'};
-
-        char[] chars = new char[40];
-
-        for (int i = 0; i < bytes.length; i++) {
-            int left = (bytes[i] >> 4) & 0x0f;
-            int right = bytes[i] & 0x0f;
-            chars[i * 2] = charMapping[left];
-            chars[i * 2 + 1] = charMapping[right];
-        }
-
-        return String.valueOf(chars);
+        return SSOAgentIDGenerator.getInstance().generateID();
     }
 
     public static void doBootstrap() throws SSOAgentException {
         if (!isBootStrapped) {
-            try {
-                DefaultBootstrap.bootstrap();
-                isBootStrapped = true;
-            } catch (ConfigurationException e) {
-                throw new SSOAgentException("Error in bootstrapping the OpenSAML2 library", e);
+            synchronized (SSOAgentUtils.class) {
+                if (!isBootStrapped) {
+                    try {
+                        DefaultBootstrap.bootstrap();
+                        org.apache.xml.security.Init.init();
+                        isBootStrapped = true;
+                    } catch (ConfigurationException e) {
+                        throw new SSOAgentException("Error in bootstrapping the OpenSAML2 library", e);
+                    }
+                }
             }
         }
     }
@@ -185,8 +174,26 @@ public class SSOAgentUtils {
                                                                     X509Credential cred)
             throws SSOAgentException {
 
+        return setSignatureValue(xmlObject, signatureAlgorithm, cred, true);
+    }
+
+    /**
+     * Add signature to any singable XML object.
+     * @param xmlObject Singable xml object.
+     * @param signatureAlgorithm Signature algorithm to be used.
+     * @param cred X509 Credentials.
+     * @param includeKeyInfo Whether the signing certificate is embedded as ds:KeyInfo.
+     * @param <T> Singable XML object with signature.
+     * @return Singable XML object with signature.
+     * @throws SSOAgentException If error occurred.
+     */
+    public static <T extends SignableXMLObject> T setSignatureValue(T xmlObject, String signatureAlgorithm,
+                                                                    X509Credential cred, boolean includeKeyInfo)
+            throws SSOAgentException {
+
+        doBootstrap();
         try {
-            Signature signature = setSignatureRaw(signatureAlgorithm, cred);
+            Signature signature = setSignatureRaw(signatureAlgorithm, cred, includeKeyInfo);
             xmlObject.setSignature(signature);
 
             List<Signature> signatureList = new ArrayList<>();
@@ -199,7 +206,6 @@ public class SSOAgentUtils {
 
             marshaller.marshall(xmlObject);
 
-            org.apache.xml.security.Init.init();
             Signer.signObjects(signatureList);
             return xmlObject;
         } catch (Exception e) {
@@ -207,19 +213,27 @@ public class SSOAgentUtils {
         }
     }
 
-    private static Signature setSignatureRaw(String signatureAlgorithm, X509Credential cred) throws SSOAgentException {
+    private static Signature setSignatureRaw(String signatureAlgorithm, X509Credential cred, boolean includeKeyInfo)
+            throws SSOAgentException {
         Signature signature = (Signature) buildXMLObject(Signature.DEFAULT_ELEMENT_NAME);
         signature.setSigningCredential(cred);
         signature.setSignatureAlgorithm(signatureAlgorithm);
         signature.setCanonicalizationAlgorithm(Canonicalizer.ALGO_ID_C14N_EXCL_OMIT_COMMENTS);
+        if (!includeKeyInfo) {
+            return signature;
+        }
 
         try {
             KeyInfo keyInfo = (KeyInfo) buildXMLObject(KeyInfo.DEFAULT_ELEMENT_NAME);
             X509Data data = (X509Data) buildXMLObject(X509Data.DEFAULT_ELEMENT_NAME);
             org.opensaml.xml.signature.X509Certificate cert =
                     (org.opensaml.xml.signature.X509Certificate) buildXMLObject(org.opensaml.xml.signature.X509Certificate.DEFAULT_ELEMENT_NAME);
-            String value =
-                    org.apache.xml.security.utils.Base64.encode(cred.getEntityCertificate().getEncoded());
+            String value;
+            if (cred instanceof X509CredentialImpl) {
+                value = ((X509CredentialImpl) cred).getEncodedEntityCertificate();
+            } else {
+                value = org.apache.xml.security.utils.Base64.encode(cred.getEntityCertificate().getEncoded());
+            }
             cert.setValue(value);
             data.getX509Certificates().add(cert);
             keyInfo.getX509Datas().add(data);
@@ -231,25 +245,46 @@ public class SSOAgentUtils {
         }
     }
 
+    /**
+     * Appends an RSA-SHA1 SigAlg and Signature to a redirect binding query string.
+     *
+     * @param httpQueryString query string to sign
+     * @param cred            SP credential
+     * @throws SSOAgentException if the query string cannot be signed
+     * @deprecated use {@link #addDeflateSignatureToHTTPQueryString(StringBuilder, X509Credential, String)} with the
+     * configured signature algorithm, or the signer of
+     * {@link org.wso2.carbon.identity.sso.agent.saml.SAML2SSOManager#getRedirectSigner()}
+     */
+    @Deprecated
     public static void addDeflateSignatureToHTTPQueryString(StringBuilder httpQueryString,
                                                             X509Credential cred) throws SSOAgentException {
+        addDeflateSignatureToHTTPQueryString(httpQueryString, cred, XMLSignature.ALGO_ID_SIGNATURE_RSA);
+    }
+
+    /**
+     * Appends the SigAlg and Signature to a redirect binding query string. The signer of each algorithm is kept
+     * and reused for as long as it is asked for with the same private key.
+     *
+     * @param httpQueryString    query string to sign
+     * @param cred               SP credential
+     * @param signatureAlgorithm SigAlg URI
+     * @throws SSOAgentException if the algorithm is not supported or the query string cannot be signed
+     */
+    public static void addDeflateSignatureToHTTPQueryString(StringBuilder httpQueryString, X509Credential cred,
+                                                            String signatureAlgorithm) throws SSOAgentException {
         doBootstrap();
-        try {
-            httpQueryString.append("&SigAlg="
-                    + URLEncoder.encode(XMLSignature.ALGO_ID_SIGNATURE_RSA, "UTF-8").trim());
-
-            java.security.Signature signature = java.security.Signature.getInstance("SHA1withRSA");
-            signature.initSign(cred.getPrivateKey());
-            signature.update(httpQueryString.toString().getBytes(Charset.forName("UTF-8")));
-            byte[] signatureByteArray = signature.sign();
-
-            String signatureBase64encodedString = Base64.encodeBytes(signatureByteArray,
-                    Base64.DONT_BREAK_LINES);
-            httpQueryString.append("&Signature="
-                    + URLEncoder.encode(signatureBase64encodedString, "UTF-8").trim());
-        } catch (Exception e) {
-            throw new SSOAgentException("Error applying SAML2 Redirect Binding signature", e);
+        getRedirectSigner(cred.getPrivateKey(), signatureAlgorithm).sign(httpQueryString);
+    }
+
+    static SAML2RedirectSigner getRedirectSigner(PrivateKey privateKey, String signatureAlgorithm)
+            throws SSOAgentException {
+        SAML2RedirectSigner signer = redirectSigners.get(signatureAlgorithm);
+        if (signer == null || !signer.isBoundTo(privateKey, signatureAlgorithm)) {
+            // The constructor rejects unsupported algorithms, so the map holds at most one signer per SigAlg.
+            signer = new SAML2RedirectSigner(privateKey, signatureAlgorithm);
+            redirectSigners.put(signatureAlgorithm, signer);
         }
+        return signer;
     }
 
     /**
@@ -308,113 +343,147 @@ public class SSOAgentUtils {
                     .getMarshallerFactory();
             Marshaller marshaller = marshallerFactory.getMarshaller(xmlObject);
             Element element = marshaller.marshall(xmlObject);
-
-            ByteArrayOutputStream byteArrayOutputStrm = new ByteArrayOutputStream();
-            DOMImplementationRegistry registry = DOMImplementationRegistry.newInstance();
-            DOMImplementationLS impl = (DOMImplementationLS) registry.getDOMImplementation("LS");
-            LSSerializer writer = impl.createLSSerializer();
-            LSOutput output = impl.createLSOutput();
-            output.setByteStream(byteArrayOutputStrm);
-            writer.write(element, output);
-            return byteArrayOutputStrm.toString();
+            return new String(serialize(element), Charset.forName("UTF-8"));
         } catch (Exception e) {
             throw new SSOAgentException("Error Serializing the SAML Response", e);
         }
     }
 
-    public static XMLObject unmarshall(String saml2SSOString) throws SSOAgentException {
+    /**
+     * Serializes a DOM element into UTF-8 bytes. The DOM implementation is looked up once and LSSerializers are
+     * taken from a bounded pool of idle serializers.
+     *
+     * @param element element to serialize
+     * @return serialized element
+     * @throws SSOAgentException if the LS DOM implementation cannot be loaded
+     */
+    public static byte[] serialize(Element element) throws SSOAgentException {
 
-        doBootstrap();
+        ByteArrayOutputStream byteArrayOutputStrm = new ByteArrayOutputStream();
+        serialize(element, byteArrayOutputStrm, true);
+        return byteArrayOutputStrm.toByteArray();
+    }
 
-        DocumentBuilderFactory documentBuilderFactory = DocumentBuilderFactory.newInstance();
-        documentBuilderFactory.setNamespaceAware(true);
-        documentBuilderFactory.setXIncludeAware(false);
-        documentBuilderFactory.setExpandEntityReferences(false);
-        try {
-            documentBuilderFactory
-                    .setFeature(Constants.SAX_FEATURE_PREFIX + Constants.EXTERNAL_GENERAL_ENTITIES_FEATURE, false);
-            documentBuilderFactory
-                    .setFeature(Constants.SAX_FEATURE_PREFIX + Constants.EXTERNAL_PARAMETER_ENTITIES_FEATURE, false);
-            documentBuilderFactory
-                    .setFeature(Constants.XERCES_FEATURE_PREFIX + Constants.LOAD_EXTERNAL_DTD_FEATURE, false);
-            documentBuilderFactory.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+    /**
+     * Serializes a DOM element as UTF-8 straight into the given stream.
+     *
+     * @param element        element to serialize
+     * @param outputStream   stream to write to
+     * @param xmlDeclaration whether to start with an XML declaration, which has to be left out when the element is
+     *                       embedded in an enclosing document
+     * @throws SSOAgentException if the LS DOM implementation cannot be loaded
+     */
+    public static void serialize(Element element, OutputStream outputStream, boolean xmlDeclaration)
+            throws SSOAgentException {
 
-        } catch (ParserConfigurationException e) {
-            LOGGER.log(Level.SEVERE,
-                       "Failed to load XML Processor Feature " + Constants.EXTERNAL_GENERAL_ENTITIES_FEATURE + " or " +
-                       Constants.EXTERNAL_PARAMETER_ENTITIES_FEATURE + " or " + Constants.LOAD_EXTERNAL_DTD_FEATURE +
-                       " or secure-processing.");
+        DOMImplementationLS impl = getDOMImplementationLS();
+        LSSerializer writer = idleLSSerializers.poll();
+        if (writer == null) {
+            writer = impl.createLSSerializer();
+        }
+        writer.getDomConfig().setParameter("xml-declaration", xmlDeclaration);
+        LSOutput output = impl.createLSOutput();
+        output.setEncoding("UTF-8");
+        output.setByteStream(outputStream);
+        // A serializer that failed is not reused, and one that does not fit the pool is discarded.
+        if (writer.write(element, output)) {
+            idleLSSerializers.offer(writer);
         }
+    }
 
-        org.apache.xerces.util.SecurityManager securityManager = new SecurityManager();
-        securityManager.setEntityExpansionLimit(ENTITY_EXPANSION_LIMIT);
-        documentBuilderFactory
-                .setAttribute(Constants.XERCES_PROPERTY_PREFIX + Constants.SECURITY_MANAGER_PROPERTY, securityManager);
+    private static DOMImplementationLS getDOMImplementationLS() throws SSOAgentException {
 
-        try {
-            documentBuilderFactory.setIgnoringComments(true);
-            Document document = getDocument(documentBuilderFactory, saml2SSOString);
-            if (isSignedWithComments(document)) {
-                documentBuilderFactory.setIgnoringComments(false);
-                document = getDocument(documentBuilderFactory, saml2SSOString);
+        DOMImplementationLS impl = domImplementationLS;
+        if (impl == null) {
+            // DOMImplementationRegistry.newInstance() scans the class path for DOM implementations.
+            try {
+                impl = (DOMImplementationLS) DOMImplementationRegistry.newInstance().getDOMImplementation("LS");
+            } catch (ClassNotFoundException e) {
+                throw new SSOAgentException("Error loading the LS DOM implementation", e);
+            } catch (InstantiationException e) {
+                throw new SSOAgentException("Error loading the LS DOM implementation", e);
+            } catch (IllegalAccessException e) {
+                throw new SSOAgentException("Error loading the LS DOM implementation", e);
             }
-            Element element = document.getDocumentElement();
-            UnmarshallerFactory unmarshallerFactory = Configuration.getUnmarshallerFactory();
-            Unmarshaller unmarshaller = unmarshallerFactory.getUnmarshaller(element);
-            return unmarshaller.unmarshall(element);
+            domImplementationLS = impl;
+        }
+        return impl;
+    }
+
+    public static XMLObject unmarshall(String saml2SSOString) throws SSOAgentException {
+
+        return unmarshall(saml2SSOString.getBytes());
+    }
+
+    /**
+     * Unmarshall a SAML2 message from its decoded bytes, without an intermediate String.
+     *
+     * @param saml2SSOBytes decoded SAML2 message
+     * @return unmarshalled SAML2 object
+     * @throws SSOAgentException if the message cannot be parsed or unmarshalled
+     */
+    public static XMLObject unmarshall(byte[] saml2SSOBytes) throws SSOAgentException {
+
+        return unmarshall(parse(saml2SSOBytes).getDocumentElement());
+    }
+
+    /**
+     * Parse a SAML2 message, or a SOAP envelope carrying one, into a DOM document using a secure pooled builder.
+     *
+     * @param saml2SSOBytes message bytes
+     * @return parsed document
+     * @throws SSOAgentException if the message cannot be parsed
+     */
+    public static Document parse(byte[] saml2SSOBytes) throws SSOAgentException {
+
+        return parse(saml2SSOBytes, SSOAgentMessageScanner.scan(saml2SSOBytes));
+    }
+
+    private static Document parse(byte[] saml2SSOBytes, SSOAgentMessageScanner.ScanResult scanResult)
+            throws SSOAgentException {
+
+        try {
+            // Comments are preserved only if the assertion is signed with the
+            // 'http://www.w3.org/2001/10/xml-exc-c14n#WithComments' transform.
+            boolean isSignedWithComments = scanResult.isSignedWithComments();
+            return getDocument(SSOAgentDocumentBuilderPool.getInstance(!isSignedWithComments), saml2SSOBytes);
         } catch (ParserConfigurationException e) {
             throw new SSOAgentException("Error in unmarshalling SAML2SSO Request from the encoded String", e);
-        } catch (UnmarshallingException e) {
-            throw new SSOAgentException("Error in unmarshalling SAML2SSO Request from the encoded String", e);
         } catch (SAXException e) {
             throw new SSOAgentException("Error in unmarshalling SAML2SSO Request from the encoded String", e);
         } catch (IOException e) {
             throw new SSOAgentException("Error in unmarshalling SAML2SSO Request from the encoded String", e);
         }
-
     }
 
     /**
-     * Return whether SAML Assertion has the canonicalization method
-     * set to 'http://www.w3.org/2001/10/xml-exc-c14n#WithComments'.
+     * Unmarshall a SAML2 object from an element of an already parsed document.
      *
-     * @param document
-     * @return true if canonicalization method equals to 'http://www.w3.org/2001/10/xml-exc-c14n#WithComments'
+     * @param element DOM element of the SAML2 object
+     * @return unmarshalled SAML2 object
+     * @throws SSOAgentException if the element cannot be unmarshalled
      */
-    private static boolean isSignedWithComments(Document document) {
-
-        XPath xPath = XPathFactory.newInstance().newXPath();
-        try {
-            String assertionId = (String) xPath.compile("//*[local-name()='Assertion']/@ID")
-                    .evaluate(document, XPathConstants.STRING);
+    public static XMLObject unmarshall(Element element) throws SSOAgentException {
 
-            if (StringUtils.isBlank(assertionId)) {
-                return false;
-            }
+        doBootstrap();
 
-            NodeList nodeList = ((NodeList) xPath.compile(
-                    "//*[local-name()='Assertion']" +
-                            "/*[local-name()='Signature']" +
-                            "/*[local-name()='SignedInfo']" +
-                            "/*[local-name()='Reference'][@URI='#" + assertionId + "']" +
-                            "/*[local-name()='Transforms']" +
-                            "/*[local-name()='Transform']" +
-                            "[@Algorithm='http://www.w3.org/2001/10/xml-exc-c14n#WithComments']")
-                    .evaluate(document, XPathConstants.NODESET));
-            return nodeList != null && nodeList.getLength() > 0;
-        } catch (XPathExpressionException e) {
-            String message = "Failed to find the canonicalization algorithm of the assertion. Defaulting to: " +
-                    "http://www.w3.org/2001/10/xml-exc-c14n#";
-            LOGGER.log(Level.WARNING, message);
-            return false;
+        UnmarshallerFactory unmarshallerFactory = Configuration.getUnmarshallerFactory();
+        Unmarshaller unmarshaller = unmarshallerFactory.getUnmarshaller(element);
+        if (unmarshaller == null) {
+            throw new SSOAgentException("No unmarshaller registered for the element: " + element.getNamespaceURI() +
+                    ":" + element.getLocalName());
+        }
+        try {
+            return unmarshaller.unmarshall(element);
+        } catch (UnmarshallingException e) {
+            throw new SSOAgentException("Error in unmarshalling SAML2SSO Request from the encoded String", e);
         }
     }
 
-    private static Document getDocument(DocumentBuilderFactory documentBuilderFactory, String samlString)
+    private static Document getDocument(SSOAgentDocumentBuilderPool documentBuilderPool, byte[] samlBytes)
             throws IOException, SAXException, ParserConfigurationException {
 
-        DocumentBuilder docBuilder = documentBuilderFactory.newDocumentBuilder();
-        ByteArrayInputStream inputStream = new ByteArrayInputStream(samlString.getBytes());
-        return docBuilder.parse(inputStream);
+        ByteArrayInputStream inputStream = new ByteArrayInputStream(samlBytes);
+        return documentBuilderPool.parse(inputStream);
     }
 }
@@ -0,0 +1,205 @@
+/*
+ * Copyright (c) 2018, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.wso2.carbon.identity.sso.agent;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Minimal benchmark harness for the tests in the 'benchmark' group. It reports the average time and the bytes
+ * allocated per operation on the measuring thread, or the aggregate throughput of several threads.
+ * <p>
+ * The numbers are only comparable between runs on the same JVM and machine. They are meant to compare an old
+ * and a new code path side by side, not to be quoted as absolute figures.
+ */
+public final class SSOAgentBenchmark {
+
+    public static final String GROUP = "benchmark";
+
+    private static final com.sun.management.ThreadMXBean THREAD_MX_BEAN =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private SSOAgentBenchmark() {}
+
+    /**
+     * Operation under measurement.
+     */
+    public interface Operation {
+
+        void run() throws Exception;
+    }
+
+    /**
+     * Runs the operation on the calling thread, first to warm up and then to measure.
+     *
+     * @param name       label of the measurement
+     * @param iterations number of measured runs, the same number of runs is used for warming up
+     * @param operation  operation under measurement
+     * @return measured result
+     * @throws Exception if the operation fails
+     */
+    public static Result measure(String name, int iterations, Operation operation) throws Exception {
+
+        for (int i = 0; i < iterations; i++) {
+            operation.run();
+        }
+        long threadId = Thread.currentThread().getId();
+        long allocatedBefore = THREAD_MX_BEAN.getThreadAllocatedBytes(threadId);
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            operation.run();
+        }
+        long elapsed = System.nanoTime() - start;
+        long allocated = THREAD_MX_BEAN.getThreadAllocatedBytes(threadId) - allocatedBefore;
+        Result result = new Result(name, iterations, elapsed, allocated);
+        report(result);
+        return result;
+    }
+
+    /**
+     * Runs the operation from several threads for a fixed duration, after a warm up of the same duration.
+     *
+     * @param name           label of the measurement
+     * @param threads        number of threads running the operation
+     * @param durationMillis measured duration
+     * @param operation      operation under measurement
+     * @return measured result, allocation is not tracked for concurrent runs
+     * @throws Exception if the operation fails
+     */
+    public static Result measureConcurrent(String name, int threads, long durationMillis, Operation operation)
+            throws Exception {
+
+        runConcurrent(threads, durationMillis, operation);
+        long start = System.nanoTime();
+        long operations = runConcurrent(threads, durationMillis, operation);
+        Result result = new Result(name, operations, System.nanoTime() - start, -1L);
+        report(result);
+        return result;
+    }
+
+    private static long runConcurrent(int threads, final long durationMillis, final Operation operation)
+            throws Exception {
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            final CountDownLatch start = new CountDownLatch(1);
+            List<Future<Long>> counts = new ArrayList<Future<Long>>(threads);
+            for (int i = 0; i < threads; i++) {
+                counts.add(executor.submit(new Callable<Long>() {
+                    @Override
+                    public Long call() throws Exception {
+
+                        start.await();
+                        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(durationMillis);
+                        long count = 0;
+                        while (System.nanoTime() < deadline) {
+                            operation.run();
+                            count++;
+                        }
+                        return count;
+                    }
+                }));
+            }
+            start.countDown();
+            long total = 0;
+            for (Future<Long> count : counts) {
+                total += count.get();
+            }
+            return total;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Reports a measured quantity that is not a rate, such as a message size.
+     *
+     * @param name  label of the measurement
+     * @param value measured value
+     * @param unit  unit of the value
+     */
+    public static void report(String name, long value, String unit) {
+
+        System.out.println("[benchmark] " + String.format(Locale.ENGLISH, "%-48s %12d %s", name, value, unit));
+    }
+
+    private static void report(Result result) {
+
+        System.out.println("[benchmark] " + result);
+    }
+
+    /**
+     * Outcome of a measurement.
+     */
+    public static final class Result {
+
+        private final String name;
+        private final long operations;
+        private final long elapsedNanos;
+        private final long allocatedBytes;
+
+        private Result(String name, long operations, long elapsedNanos, long allocatedBytes) {
+
+            this.name = name;
+            this.operations = operations;
+            this.elapsedNanos = elapsedNanos;
+            this.allocatedBytes = allocatedBytes;
+        }
+
+        public double getOperationsPerSecond() {
+
+            return operations * 1e9 / elapsedNanos;
+        }
+
+        public double getNanosPerOperation() {
+
+            return (double) elapsedNanos / operations;
+        }
+
+        /**
+         * Returns the bytes allocated per operation, or -1 if allocation was not tracked.
+         *
+         * @return bytes allocated per operation
+         */
+        public long getBytesPerOperation() {
+
+            return allocatedBytes < 0 ? -1L : allocatedBytes / operations;
+        }
+
+        @Override
+        public String toString() {
+
+            String text = String.format(Locale.ENGLISH, "%-48s %12.0f ops/s %12.0f ns/op", name,
+                    getOperationsPerSecond(), getNanosPerOperation());
+            if (allocatedBytes >= 0) {
+                text += String.format(Locale.ENGLISH, " %10d B/op", getBytesPerOperation());
+            }
+            return text;
+        }
+    }
+}
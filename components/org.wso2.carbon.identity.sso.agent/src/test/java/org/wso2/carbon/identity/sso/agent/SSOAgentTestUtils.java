@@ -0,0 +1,256 @@
+/*
+ * Copyright (c) 2018, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.wso2.carbon.identity.sso.agent;
+
+import org.bouncycastle.x509.X509V1CertificateGenerator;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.opensaml.xml.util.Base64;
+import org.wso2.carbon.identity.sso.agent.bean.LoggedInSessionBean;
+import org.wso2.carbon.identity.sso.agent.bean.SSOAgentConfig;
+import org.wso2.carbon.identity.sso.agent.exception.SSOAgentException;
+import org.wso2.carbon.identity.sso.agent.security.SSOAgentX509Credential;
+import org.wso2.carbon.identity.sso.agent.util.SSOAgentConstants;
+
+import java.math.BigInteger;
+import java.nio.charset.Charset;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.cert.X509Certificate;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import javax.security.auth.x500.X500Principal;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpSession;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Shared fixtures for the SSO agent tests: an unsigned SAML2 configuration, SAML2 Responses built from a
+ * template and mocked HTTP requests.
+ */
+public final class SSOAgentTestUtils {
+
+    public static final String SP_ENTITY_ID = "travelocity.com";
+    public static final String IDP_ENTITY_ID = "localhost";
+    public static final String IDP_URL = "https://localhost:9443/samlsso";
+    public static final String ACS_URL = "http://localhost:8080/travelocity.com/home.jsp";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private SSOAgentTestUtils() {}
+
+    /**
+     * Returns the properties of a SAML2 SP that does not sign or encrypt anything, so that no key store is needed.
+     *
+     * @return agent properties
+     */
+    public static Properties getSAML2Properties() {
+
+        Properties properties = new Properties();
+        properties.setProperty(SSOAgentConstants.SSOAgentConfig.ENABLE_SAML2_SSO_LOGIN, "true");
+        properties.setProperty(SSOAgentConstants.SSOAgentConfig.SAML2_SSO_URL, "samlsso");
+        properties.setProperty(SSOAgentConstants.SSOAgentConfig.SAML2.SP_ENTITY_ID, SP_ENTITY_ID);
+        properties.setProperty(SSOAgentConstants.SSOAgentConfig.SAML2.ACS_URL, ACS_URL);
+        properties.setProperty(SSOAgentConstants.SSOAgentConfig.SAML2.IDP_ENTITY_ID, IDP_ENTITY_ID);
+        properties.setProperty(SSOAgentConstants.SSOAgentConfig.SAML2.IDP_URL, IDP_URL);
+        properties.setProperty(SSOAgentConstants.SSOAgentConfig.SAML2.ENABLE_SLO, "true");
+        properties.setProperty(SSOAgentConstants.SSOAgentConfig.SAML2.SLO_URL, "logout");
+        properties.setProperty(SSOAgentConstants.SSOAgentConfig.SAML2.ENABLE_RESPONSE_SIGNING, "false");
+        properties.setProperty(SSOAgentConstants.SSOAgentConfig.SAML2.ENABLE_ASSERTION_SIGNING, "false");
+        properties.setProperty(SSOAgentConstants.SSOAgentConfig.SAML2.ENABLE_ASSERTION_ENCRYPTION, "false");
+        properties.setProperty(SSOAgentConstants.SSOAgentConfig.SAML2.ENABLE_REQUEST_SIGNING, "false");
+        return properties;
+    }
+
+    /**
+     * Creates and verifies an agent configuration from the given properties.
+     *
+     * @param properties agent properties
+     * @return agent configuration
+     * @throws SSOAgentException if the configuration is not valid
+     */
+    public static SSOAgentConfig createConfig(Properties properties) throws SSOAgentException {
+
+        SSOAgentConfig config = new SSOAgentConfig();
+        config.initConfig(properties);
+        config.verifyConfig();
+        return config;
+    }
+
+    /**
+     * Builds an unsigned SAML2 Response for the test SP.
+     *
+     * @param responseId          ID of the Response and, with a suffix, of the Assertion
+     * @param subject             NameID of the subject
+     * @param sessionIndex        IdP session index
+     * @param sessionNotOnOrAfter SessionNotOnOrAfter of the AuthnStatement, or null
+     * @return the Response XML
+     */
+    public static String buildResponseXML(String responseId, String subject, String sessionIndex,
+                                          DateTime sessionNotOnOrAfter) {
+
+        DateTime now = new DateTime(DateTimeZone.UTC);
+        String issueInstant = now.toString();
+        String notOnOrAfter = now.plusMinutes(5).toString();
+        StringBuilder xml = new StringBuilder();
+        xml.append("<saml2p:Response xmlns:saml2p=\"urn:oasis:names:tc:SAML:2.0:protocol\" ")
+                .append("Destination=\"").append(ACS_URL).append("\" ID=\"").append(responseId)
+                .append("\" IssueInstant=\"").append(issueInstant).append("\" Version=\"2.0\">")
+                .append("<saml2:Issuer xmlns:saml2=\"urn:oasis:names:tc:SAML:2.0:assertion\">")
+                .append(IDP_ENTITY_ID).append("</saml2:Issuer>")
+                .append("<saml2p:Status><saml2p:StatusCode Value=\"")
+                .append(SSOAgentConstants.SAML2SSO.SUCCESS_CODE).append("\"/></saml2p:Status>")
+                .append("<saml2:Assertion xmlns:saml2=\"urn:oasis:names:tc:SAML:2.0:assertion\" ID=\"")
+                .append(responseId).append("-a\" IssueInstant=\"").append(issueInstant).append("\" Version=\"2.0\">")
+                .append("<saml2:Issuer>").append(IDP_ENTITY_ID).append("</saml2:Issuer>")
+                .append("<saml2:Subject><saml2:NameID>").append(subject).append("</saml2:NameID></saml2:Subject>")
+                .append("<saml2:Conditions NotBefore=\"").append(now.minusMinutes(1).toString())
+                .append("\" NotOnOrAfter=\"").append(notOnOrAfter).append("\">")
+                .append("<saml2:AudienceRestriction><saml2:Audience>").append(SP_ENTITY_ID)
+                .append("</saml2:Audience></saml2:AudienceRestriction></saml2:Conditions>")
+                .append("<saml2:AuthnStatement AuthnInstant=\"").append(issueInstant)
+                .append("\" SessionIndex=\"").append(sessionIndex).append("\"");
+        if (sessionNotOnOrAfter != null) {
+            xml.append(" SessionNotOnOrAfter=\"").append(sessionNotOnOrAfter.withZone(DateTimeZone.UTC)).append("\"");
+        }
+        xml.append("><saml2:AuthnContext><saml2:AuthnContextClassRef>")
+                .append("urn:oasis:names:tc:SAML:2.0:ac:classes:Password")
+                .append("</saml2:AuthnContextClassRef></saml2:AuthnContext></saml2:AuthnStatement>")
+                .append("<saml2:AttributeStatement><saml2:Attribute Name=\"email\"><saml2:AttributeValue>")
+                .append(subject).append("@example.com</saml2:AttributeValue></saml2:Attribute>")
+                .append("</saml2:AttributeStatement></saml2:Assertion></saml2p:Response>");
+        return xml.toString();
+    }
+
+    /**
+     * Builds an unsigned SAML2 Response for the test SP, encoded for the HTTP POST binding.
+     *
+     * @param responseId          ID of the Response
+     * @param subject             NameID of the subject
+     * @param sessionIndex        IdP session index
+     * @param sessionNotOnOrAfter SessionNotOnOrAfter of the AuthnStatement, or null
+     * @return the base64 encoded Response
+     */
+    public static String buildEncodedResponse(String responseId, String subject, String sessionIndex,
+                                              DateTime sessionNotOnOrAfter) {
+
+        return Base64.encodeBytes(buildResponseXML(responseId, subject, sessionIndex, sessionNotOnOrAfter)
+                .getBytes(UTF_8), Base64.DONT_BREAK_LINES);
+    }
+
+    /**
+     * Creates an SP credential with a fresh RSA key pair and a self signed certificate.
+     *
+     * @return SP credential
+     * @throws Exception if the key pair or the certificate cannot be generated
+     */
+    public static SSOAgentX509Credential createCredential() throws Exception {
+
+        KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("RSA");
+        keyPairGenerator.initialize(2048);
+        final KeyPair keyPair = keyPairGenerator.generateKeyPair();
+        X500Principal name = new X500Principal("CN=" + SP_ENTITY_ID);
+        long now = System.currentTimeMillis();
+        X509V1CertificateGenerator certificateGenerator = new X509V1CertificateGenerator();
+        certificateGenerator.setSerialNumber(BigInteger.valueOf(now));
+        certificateGenerator.setIssuerDN(name);
+        certificateGenerator.setSubjectDN(name);
+        certificateGenerator.setNotBefore(new Date(now - 60000L));
+        certificateGenerator.setNotAfter(new Date(now + 3600000L));
+        certificateGenerator.setPublicKey(keyPair.getPublic());
+        certificateGenerator.setSignatureAlgorithm("SHA256withRSA");
+        final X509Certificate certificate = certificateGenerator.generate(keyPair.getPrivate());
+        return new SSOAgentX509Credential() {
+            @Override
+            public PublicKey getPublicKey() {
+
+                return keyPair.getPublic();
+            }
+
+            @Override
+            public PrivateKey getPrivateKey() {
+
+                return keyPair.getPrivate();
+            }
+
+            @Override
+            public X509Certificate getEntityCertificate() {
+
+                return certificate;
+            }
+        };
+    }
+
+    /**
+     * Creates a session that is logged in to the given IdP session.
+     *
+     * @param sessionIndex IdP session index
+     * @return logged in session
+     */
+    public static TestHttpSession createLoggedInSession(String sessionIndex) {
+
+        LoggedInSessionBean sessionBean = new LoggedInSessionBean();
+        sessionBean.setSAML2SSO(sessionBean.new SAML2SSO());
+        sessionBean.getSAML2SSO().setSubjectId("admin");
+        sessionBean.getSAML2SSO().setSessionIndex(sessionIndex);
+        TestHttpSession session = new TestHttpSession();
+        session.setAttribute(SSOAgentConstants.SESSION_BEAN_NAME, sessionBean);
+        return session;
+    }
+
+    /**
+     * Mocks a request carrying the given parameters and bound to the given session.
+     *
+     * @param session    session returned by getSession, or null if the request has none
+     * @param parameters request parameters
+     * @return mocked request
+     */
+    public static HttpServletRequest mockRequest(HttpSession session, Map<String, String> parameters) {
+
+        HttpServletRequest request = mock(HttpServletRequest.class);
+        for (Map.Entry<String, String> parameter : parameters.entrySet()) {
+            when(request.getParameter(parameter.getKey())).thenReturn(parameter.getValue());
+        }
+        when(request.getSession()).thenReturn(session);
+        when(request.getSession(true)).thenReturn(session);
+        when(request.getSession(false)).thenReturn(session);
+        return request;
+    }
+
+    /**
+     * Mocks an ACS request posting the given SAML2 Response.
+     *
+     * @param session         session of the request
+     * @param encodedResponse base64 encoded Response
+     * @return mocked request
+     */
+    public static HttpServletRequest mockResponsePost(HttpSession session, String encodedResponse) {
+
+        Map<String, String> parameters = new HashMap<String, String>();
+        parameters.put(SSOAgentConstants.SAML2SSO.HTTP_POST_PARAM_SAML2_RESP, encodedResponse);
+        return mockRequest(session, parameters);
+    }
+}
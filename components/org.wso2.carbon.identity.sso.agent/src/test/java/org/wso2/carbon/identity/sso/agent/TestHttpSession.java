@@ -0,0 +1,177 @@
+/*
+ * Copyright (c) 2018, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.wso2.carbon.identity.sso.agent;
+
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.servlet.ServletContext;
+import javax.servlet.http.HttpSession;
+import javax.servlet.http.HttpSessionContext;
+
+/**
+ * Minimal thread safe {@link HttpSession} for tests. A real class is used instead of a mock so that the session
+ * can be reclaimed by the garbage collector once the test drops it.
+ */
+public class TestHttpSession implements HttpSession {
+
+    private final String id = UUID.randomUUID().toString();
+    private final long creationTime = System.currentTimeMillis();
+    private final Map<String, Object> attributes = new ConcurrentHashMap<String, Object>();
+    private volatile int maxInactiveInterval = -1;
+    private volatile boolean invalidated = false;
+
+    @Override
+    public long getCreationTime() {
+
+        return creationTime;
+    }
+
+    @Override
+    public String getId() {
+
+        return id;
+    }
+
+    @Override
+    public long getLastAccessedTime() {
+
+        return creationTime;
+    }
+
+    @Override
+    public ServletContext getServletContext() {
+
+        return null;
+    }
+
+    @Override
+    public void setMaxInactiveInterval(int interval) {
+
+        this.maxInactiveInterval = interval;
+    }
+
+    @Override
+    public int getMaxInactiveInterval() {
+
+        return maxInactiveInterval;
+    }
+
+    @Override
+    @Deprecated
+    public HttpSessionContext getSessionContext() {
+
+        return null;
+    }
+
+    @Override
+    public Object getAttribute(String name) {
+
+        checkValid();
+        return attributes.get(name);
+    }
+
+    @Override
+    @Deprecated
+    public Object getValue(String name) {
+
+        return getAttribute(name);
+    }
+
+    @Override
+    public Enumeration<String> getAttributeNames() {
+
+        checkValid();
+        return Collections.enumeration(attributes.keySet());
+    }
+
+    @Override
+    @Deprecated
+    public String[] getValueNames() {
+
+        checkValid();
+        return attributes.keySet().toArray(new String[0]);
+    }
+
+    @Override
+    public void setAttribute(String name, Object value) {
+
+        checkValid();
+        if (value == null) {
+            attributes.remove(name);
+        } else {
+            attributes.put(name, value);
+        }
+    }
+
+    @Override
+    @Deprecated
+    public void putValue(String name, Object value) {
+
+        setAttribute(name, value);
+    }
+
+    @Override
+    public void removeAttribute(String name) {
+
+        checkValid();
+        attributes.remove(name);
+    }
+
+    @Override
+    @Deprecated
+    public void removeValue(String name) {
+
+        removeAttribute(name);
+    }
+
+    @Override
+    public void invalidate() {
+
+        checkValid();
+        invalidated = true;
+        attributes.clear();
+    }
+
+    @Override
+    public boolean isNew() {
+
+        return false;
+    }
+
+    /**
+     * Returns whether {@link #invalidate()} has been called on this session.
+     *
+     * @return true if the session is invalidated
+     */
+    public boolean isInvalidated() {
+
+        return invalidated;
+    }
+
+    private void checkValid() {
+
+        if (invalidated) {
+            throw new IllegalStateException("Session " + id + " is already invalidated");
+        }
+    }
+}
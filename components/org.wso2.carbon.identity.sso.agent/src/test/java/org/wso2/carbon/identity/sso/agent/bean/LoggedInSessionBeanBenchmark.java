@@ -0,0 +1,171 @@
+/*
+ * Copyright (c) 2018, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.wso2.carbon.identity.sso.agent.bean;
+
+import org.joda.time.DateTime;
+import org.opensaml.saml2.core.Assertion;
+import org.opensaml.saml2.core.Response;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+import org.wso2.carbon.identity.sso.agent.SSOAgentBenchmark;
+import org.wso2.carbon.identity.sso.agent.SSOAgentTestUtils;
+import org.wso2.carbon.identity.sso.agent.util.SSOAgentUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * Compares replicating a logged in session in the format LoggedInSessionBean used before it was versioned, which
+ * unmarshalled the Response and the Assertion on every read, against the versioned format, which keeps them as
+ * bytes until they are asked for.
+ */
+public class LoggedInSessionBeanBenchmark {
+
+    private static final int ITERATIONS = 5000;
+
+    private LoggedInSessionBean bean;
+    private LegacyLoggedInSessionBean legacy;
+
+    @BeforeClass(alwaysRun = true)
+    public void setUp() throws Exception {
+
+        SSOAgentUtils.doBootstrap();
+        String response = SSOAgentTestUtils.buildResponseXML("_benchmark", "admin", "benchmark-index",
+                new DateTime().plusHours(8));
+        String assertion = response.substring(response.indexOf("<saml2:Assertion"),
+                response.indexOf("</saml2p:Response>"));
+        Map<String, String> attributes = new HashMap<String, String>();
+        attributes.put("email", "admin@example.com");
+        attributes.put("role", "Internal/everyone,admin");
+
+        bean = new LoggedInSessionBean();
+        bean.setSAML2SSO(bean.new SAML2SSO());
+        bean.getSAML2SSO().setSubjectId("admin");
+        bean.getSAML2SSO().setSessionIndex("benchmark-index");
+        bean.getSAML2SSO().setResponseString(response);
+        bean.getSAML2SSO().setAssertionString(assertion);
+        bean.getSAML2SSO().setSubjectAttributes(attributes);
+
+        legacy = new LegacyLoggedInSessionBean();
+        legacy.saml2SSO = new LegacySAML2SSO();
+        legacy.saml2SSO.subjectId = "admin";
+        legacy.saml2SSO.sessionIndex = "benchmark-index";
+        legacy.saml2SSO.responseString = response;
+        legacy.saml2SSO.assertionString = assertion;
+        legacy.saml2SSO.subjectAttributes = attributes;
+    }
+
+    @Test(groups = SSOAgentBenchmark.GROUP)
+    public void benchmarkReplication() throws Exception {
+
+        assertEquals(LoggedInSessionBeanTest.copy(bean).getSAML2SSO().getAssertion().getID(), "_benchmark-a");
+        SSOAgentBenchmark.report("session bytes, unversioned format", serialize(legacy).length, "B");
+        SSOAgentBenchmark.report("session bytes, versioned format", LoggedInSessionBeanTest.serialize(bean).length,
+                "B");
+
+        SSOAgentBenchmark.Result unversioned = SSOAgentBenchmark.measure("session replication, unversioned format",
+                ITERATIONS, new SSOAgentBenchmark.Operation() {
+                    @Override
+                    public void run() throws Exception {
+
+                        new ObjectInputStream(new ByteArrayInputStream(serialize(legacy))).readObject();
+                    }
+                });
+        SSOAgentBenchmark.Result versioned = SSOAgentBenchmark.measure("session replication, versioned format",
+                ITERATIONS, new SSOAgentBenchmark.Operation() {
+                    @Override
+                    public void run() throws Exception {
+
+                        LoggedInSessionBeanTest.copy(bean);
+                    }
+                });
+        assertTrue(versioned.getBytesPerOperation() < unversioned.getBytesPerOperation());
+    }
+
+    private static byte[] serialize(Object object) throws IOException {
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(object);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * LoggedInSessionBean as it was before the format was versioned.
+     */
+    private static class LegacyLoggedInSessionBean implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private LoggedInSessionBean.OpenID openId;
+        private LegacySAML2SSO saml2SSO;
+    }
+
+    /**
+     * LoggedInSessionBean.SAML2SSO as it was before the format was versioned. The fields that are not written by
+     * writeObject are kept, as they were still listed in the class descriptor of the stream.
+     */
+    private static class LegacySAML2SSO implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private String subjectId;
+        private Response response;
+        private String responseString;
+        private Assertion assertion;
+        private String assertionString;
+        private LoggedInSessionBean.AccessTokenResponseBean accessTokenResponseBean;
+        private String sessionIndex;
+        private Map<String, String> subjectAttributes;
+
+        private void writeObject(ObjectOutputStream stream) throws IOException {
+
+            stream.writeObject(subjectId);
+            stream.writeObject(responseString);
+            stream.writeObject(assertionString);
+            stream.writeObject(sessionIndex);
+            stream.writeObject("");
+            stream.writeObject(subjectAttributes);
+        }
+
+        @SuppressWarnings("unchecked")
+        private void readObject(ObjectInputStream stream) throws Exception {
+
+            subjectId = (String) stream.readObject();
+            responseString = (String) stream.readObject();
+            response = (Response) SSOAgentUtils.unmarshall(responseString);
+            assertionString = (String) stream.readObject();
+            assertion = (Assertion) SSOAgentUtils.unmarshall(assertionString);
+            sessionIndex = (String) stream.readObject();
+            stream.readObject();
+            subjectAttributes = (Map<String, String>) stream.readObject();
+        }
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright (c) 2018, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.wso2.carbon.identity.sso.agent.bean;
+
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+import org.wso2.carbon.identity.sso.agent.util.SSOAgentUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Collections;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+
+public class LoggedInSessionBeanTest {
+
+    /**
+     * Session bean serialized by an agent that predates the versioned format, holding the Response '_legacy' with
+     * the Assertion '_legacy-a'.
+     */
+    static final String LEGACY_SESSION_BEAN = "/legacy-session-bean.ser";
+
+    @BeforeClass(alwaysRun = true)
+    public void setUp() throws Exception {
+
+        SSOAgentUtils.doBootstrap();
+    }
+
+    @Test
+    public void testReadLegacyFormat() throws Exception {
+
+        LoggedInSessionBean bean;
+        try (InputStream in = getClass().getResourceAsStream(LEGACY_SESSION_BEAN)) {
+            bean = (LoggedInSessionBean) new ObjectInputStream(in).readObject();
+        }
+
+        LoggedInSessionBean.SAML2SSO saml2SSO = bean.getSAML2SSO();
+        assertEquals(saml2SSO.getSubjectId(), "admin");
+        assertEquals(saml2SSO.getSessionIndex(), "legacy-index");
+        assertEquals(saml2SSO.getSubjectAttributes(), Collections.singletonMap("email", "admin@example.com"));
+        assertEquals(saml2SSO.getRetentionPolicy(), LoggedInSessionBean.SAML2RetentionPolicy.ALL);
+        assertNull(saml2SSO.getAccessTokenResponseBean());
+        assertEquals(saml2SSO.getSAMLResponse().getID(), "_legacy");
+        assertEquals(saml2SSO.getAssertion().getID(), "_legacy-a");
+        assertNull(bean.getOpenId());
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+
+        LoggedInSessionBean bean;
+        try (InputStream in = getClass().getResourceAsStream(LEGACY_SESSION_BEAN)) {
+            bean = (LoggedInSessionBean) new ObjectInputStream(in).readObject();
+        }
+        bean.getSAML2SSO().setRetentionPolicy(LoggedInSessionBean.SAML2RetentionPolicy.ASSERTION);
+
+        LoggedInSessionBean copy = copy(bean);
+
+        LoggedInSessionBean.SAML2SSO saml2SSO = copy.getSAML2SSO();
+        assertEquals(saml2SSO.getSubjectId(), "admin");
+        assertEquals(saml2SSO.getSessionIndex(), "legacy-index");
+        assertEquals(saml2SSO.getSubjectAttributes(), Collections.singletonMap("email", "admin@example.com"));
+        assertEquals(saml2SSO.getRetentionPolicy(), LoggedInSessionBean.SAML2RetentionPolicy.ASSERTION);
+        assertNull(saml2SSO.getSAMLResponse());
+        assertEquals(saml2SSO.getAssertion().getID(), "_legacy-a");
+    }
+
+    static LoggedInSessionBean copy(LoggedInSessionBean bean) throws IOException, ClassNotFoundException {
+
+        return (LoggedInSessionBean) new ObjectInputStream(new ByteArrayInputStream(serialize(bean))).readObject();
+    }
+
+    static byte[] serialize(LoggedInSessionBean bean) throws IOException {
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(bean);
+        }
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2018, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.wso2.carbon.identity.sso.agent.saml;
+
+import org.joda.time.DateTime;
+import org.opensaml.xml.util.Base64;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+import org.wso2.carbon.identity.sso.agent.SSOAgentBenchmark;
+import org.wso2.carbon.identity.sso.agent.SSOAgentTestUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * Compares the HTTP-Redirect encoding of an AuthnRequest as SAML2SSOManager.encodeRequestMessage used to do it,
+ * with a new Deflater and intermediate Strings per message, against {@link SAML2RedirectEncoder}.
+ */
+public class SAML2RedirectEncoderBenchmark {
+
+    private static final int ITERATIONS = 50000;
+
+    private byte[] authnRequest;
+
+    @BeforeClass(alwaysRun = true)
+    public void setUp() throws Exception {
+
+        authnRequest = new SAML2AuthnRequestTemplate(SSOAgentTestUtils.createConfig(
+                SSOAgentTestUtils.getSAML2Properties()).getSAML2())
+                .buildAuthnRequestXML("_0123456789abcdef0123456789abcdef", new DateTime(), false, false);
+    }
+
+    @Test(groups = SSOAgentBenchmark.GROUP)
+    public void benchmarkEncode() throws Exception {
+
+        assertEquals(URLDecoder.decode(SAML2RedirectEncoder.getInstance().encode(authnRequest), "UTF-8"),
+                URLDecoder.decode(encodeWithNewDeflater(authnRequest), "UTF-8"));
+
+        SSOAgentBenchmark.Result perCall = SSOAgentBenchmark.measure("redirect encode, Deflater per message",
+                ITERATIONS, new SSOAgentBenchmark.Operation() {
+                    @Override
+                    public void run() throws Exception {
+
+                        encodeWithNewDeflater(authnRequest);
+                    }
+                });
+        SSOAgentBenchmark.Result pooled = SSOAgentBenchmark.measure("redirect encode, SAML2RedirectEncoder",
+                ITERATIONS, new SSOAgentBenchmark.Operation() {
+                    @Override
+                    public void run() throws Exception {
+
+                        SAML2RedirectEncoder.getInstance().encode(authnRequest);
+                    }
+                });
+        assertTrue(pooled.getBytesPerOperation() < perCall.getBytesPerOperation());
+    }
+
+    /**
+     * The redirect branch of SAML2SSOManager.encodeRequestMessage before the encoder was introduced, starting
+     * from the serialized message.
+     */
+    private static String encodeWithNewDeflater(byte[] message) throws Exception {
+
+        String xml = new String(message, "UTF-8");
+        Deflater deflater = new Deflater(Deflater.DEFLATED, true);
+        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+        DeflaterOutputStream deflaterOutputStream = new DeflaterOutputStream(byteArrayOutputStream, deflater);
+        deflaterOutputStream.write(xml.getBytes("UTF-8"));
+        deflaterOutputStream.close();
+        String encodedRequestMessage = Base64.encodeBytes(byteArrayOutputStream.toByteArray(),
+                Base64.DONT_BREAK_LINES);
+        return URLEncoder.encode(encodedRequestMessage, "UTF-8").trim();
+    }
+}
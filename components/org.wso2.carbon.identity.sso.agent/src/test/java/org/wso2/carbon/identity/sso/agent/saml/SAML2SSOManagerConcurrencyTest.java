@@ -0,0 +1,214 @@
+/*
+ * Copyright (c) 2018, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.wso2.carbon.identity.sso.agent.saml;
+
+import org.joda.time.DateTime;
+import org.opensaml.xml.util.Base64;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+import org.wso2.carbon.identity.sso.agent.SSOAgentTestUtils;
+import org.wso2.carbon.identity.sso.agent.TestHttpSession;
+import org.wso2.carbon.identity.sso.agent.bean.LoggedInSessionBean;
+import org.wso2.carbon.identity.sso.agent.bean.SSOAgentConfig;
+import org.wso2.carbon.identity.sso.agent.util.SSOAgentConstants;
+
+import java.io.ByteArrayOutputStream;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Inflater;
+import javax.servlet.http.HttpServletRequest;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * Stress tests for a single {@link SAML2SSOManager} shared by many request threads.
+ */
+public class SAML2SSOManagerConcurrencyTest {
+
+    private static final int THREADS = 16;
+    private static final int REQUESTS = 2000;
+
+    private SSOAgentConfig config;
+    private SAML2SSOManager manager;
+
+    @BeforeClass
+    public void setUp() throws Exception {
+
+        config = SSOAgentTestUtils.createConfig(SSOAgentTestUtils.getSAML2Properties());
+        manager = new SAML2SSOManager(config);
+    }
+
+    @AfterClass
+    public void tearDown() {
+
+        manager.close();
+    }
+
+    @Test
+    public void testParallelACSPosts() throws Exception {
+
+        final List<TestHttpSession> sessions = new ArrayList<TestHttpSession>(REQUESTS);
+        List<Callable<Void>> posts = new ArrayList<Callable<Void>>(REQUESTS);
+        final CountDownLatch start = new CountDownLatch(1);
+        for (int i = 0; i < REQUESTS; i++) {
+            final TestHttpSession session = new TestHttpSession();
+            sessions.add(session);
+            final String encodedResponse = SSOAgentTestUtils.buildEncodedResponse("_response" + i, "user" + i,
+                    "session" + i, new DateTime().plusHours(1));
+            posts.add(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+
+                    start.await();
+                    manager.processResponse(SSOAgentTestUtils.mockResponsePost(session, encodedResponse), null);
+                    return null;
+                }
+            });
+        }
+
+        for (Future<Void> result : runConcurrently(posts, start)) {
+            result.get();
+        }
+        for (int i = 0; i < REQUESTS; i++) {
+            LoggedInSessionBean sessionBean = (LoggedInSessionBean) sessions.get(i)
+                    .getAttribute(SSOAgentConstants.SESSION_BEAN_NAME);
+            assertNotNull(sessionBean, "Session " + i + " was not logged in");
+            assertEquals(sessionBean.getSAML2SSO().getSubjectId(), "user" + i);
+            assertEquals(sessionBean.getSAML2SSO().getSessionIndex(), "session" + i);
+        }
+    }
+
+    @Test
+    public void testDoublePostedResponse() throws Exception {
+
+        final List<TestHttpSession> sessions = new ArrayList<TestHttpSession>(THREADS);
+        List<Callable<Void>> posts = new ArrayList<Callable<Void>>(THREADS);
+        final CountDownLatch start = new CountDownLatch(1);
+        final String encodedResponse = SSOAgentTestUtils.buildEncodedResponse("_double", "user", "session",
+                new DateTime().plusHours(1));
+        for (int i = 0; i < THREADS; i++) {
+            final TestHttpSession session = new TestHttpSession();
+            sessions.add(session);
+            posts.add(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+
+                    start.await();
+                    manager.processResponse(SSOAgentTestUtils.mockResponsePost(session, encodedResponse), null);
+                    return null;
+                }
+            });
+        }
+
+        for (Future<Void> result : runConcurrently(posts, start)) {
+            result.get();
+        }
+        // Sessions logged in with the same Response must not share a session bean.
+        Set<LoggedInSessionBean> sessionBeans = Collections.newSetFromMap(
+                new IdentityHashMap<LoggedInSessionBean, Boolean>());
+        for (TestHttpSession session : sessions) {
+            LoggedInSessionBean sessionBean = (LoggedInSessionBean) session
+                    .getAttribute(SSOAgentConstants.SESSION_BEAN_NAME);
+            assertNotNull(sessionBean);
+            assertEquals(sessionBean.getSAML2SSO().getSubjectId(), "user");
+            assertTrue(sessionBeans.add(sessionBean));
+        }
+    }
+
+    @Test
+    public void testPerRequestPassiveAuthn() throws Exception {
+
+        List<Callable<Void>> redirects = new ArrayList<Callable<Void>>(REQUESTS);
+        final CountDownLatch start = new CountDownLatch(1);
+        for (int i = 0; i < REQUESTS; i++) {
+            final boolean isPassive = i % 2 == 0;
+            redirects.add(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+
+                    start.await();
+                    HttpServletRequest request = SSOAgentTestUtils.mockRequest(null,
+                            Collections.<String, String>emptyMap());
+                    String authnRequest = decodeRedirectRequest(manager.buildRedirectRequest(request, false,
+                            isPassive));
+                    assertEquals(authnRequest.contains("IsPassive=\"true\""), isPassive, authnRequest);
+                    return null;
+                }
+            });
+        }
+
+        for (Future<Void> result : runConcurrently(redirects, start)) {
+            result.get();
+        }
+        assertFalse(config.getSAML2().isPassiveAuthn());
+    }
+
+    private static List<Future<Void>> runConcurrently(List<Callable<Void>> tasks, CountDownLatch start)
+            throws InterruptedException {
+
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<Future<Void>> results = new ArrayList<Future<Void>>(tasks.size());
+            for (Callable<Void> task : tasks) {
+                results.add(executor.submit(task));
+            }
+            start.countDown();
+            return results;
+        } finally {
+            executor.shutdown();
+            assertTrue(executor.awaitTermination(2, TimeUnit.MINUTES));
+        }
+    }
+
+    private static String decodeRedirectRequest(String redirectUrl) throws Exception {
+
+        String query = redirectUrl.substring(redirectUrl.indexOf('?') + 1);
+        for (String param : query.split("&")) {
+            if (param.startsWith(SSOAgentConstants.SAML2SSO.HTTP_POST_PARAM_SAML2_AUTH_REQ + "=")) {
+                byte[] deflated = Base64.decode(URLDecoder.decode(param.substring(param.indexOf('=') + 1),
+                        "UTF-8"));
+                Inflater inflater = new Inflater(true);
+                inflater.setInput(deflated);
+                ByteArrayOutputStream xml = new ByteArrayOutputStream();
+                byte[] buffer = new byte[1024];
+                while (!inflater.finished()) {
+                    xml.write(buffer, 0, inflater.inflate(buffer));
+                }
+                inflater.end();
+                return xml.toString("UTF-8");
+            }
+        }
+        throw new AssertionError("No SAMLRequest in " + redirectUrl);
+    }
+}
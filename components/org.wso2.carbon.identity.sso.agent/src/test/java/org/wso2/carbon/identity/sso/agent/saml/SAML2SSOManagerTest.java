@@ -0,0 +1,276 @@
+/*
+ * Copyright (c) 2018, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.wso2.carbon.identity.sso.agent.saml;
+
+import org.joda.time.DateTime;
+import org.opensaml.xml.util.Base64;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+import org.wso2.carbon.identity.sso.agent.SSOAgentTestUtils;
+import org.wso2.carbon.identity.sso.agent.TestHttpSession;
+import org.wso2.carbon.identity.sso.agent.bean.LoggedInSessionBean;
+import org.wso2.carbon.identity.sso.agent.bean.SSOAgentConfig;
+import org.wso2.carbon.identity.sso.agent.exception.SSOAgentException;
+import org.wso2.carbon.identity.sso.agent.internal.SSOAgentServiceComponent;
+import org.wso2.carbon.identity.sso.agent.security.X509CredentialImpl;
+import org.wso2.carbon.identity.sso.agent.session.management.SSOAgentSessionManager;
+import org.wso2.carbon.identity.sso.agent.session.management.cluster.ClusterSessionIndex;
+import org.wso2.carbon.identity.sso.agent.session.management.cluster.JDBCSessionIndexStore;
+import org.wso2.carbon.identity.sso.agent.util.SSOAgentConstants;
+import org.wso2.carbon.user.api.RealmConfiguration;
+import org.wso2.carbon.user.api.UserRealm;
+import org.wso2.carbon.user.core.UserStoreManager;
+import org.wso2.carbon.user.core.service.RealmService;
+
+import java.lang.reflect.Method;
+import java.nio.charset.Charset;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNotSame;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+
+public class SAML2SSOManagerTest {
+
+    private static final String SESSION_INDEX_URL = "jdbc:h2:mem:sso-agent-manager-reload;DB_CLOSE_DELAY=-1";
+
+    private SAML2SSOManager manager;
+
+    @BeforeClass
+    public void setUp() throws Exception {
+
+        manager = new SAML2SSOManager(SSOAgentTestUtils.createConfig(SSOAgentTestUtils.getSAML2Properties()));
+    }
+
+    @AfterClass
+    public void tearDown() {
+
+        manager.close();
+    }
+
+    @Test
+    public void testProcessResponse() throws Exception {
+
+        TestHttpSession session = new TestHttpSession();
+        manager.processResponse(SSOAgentTestUtils.mockResponsePost(session, SSOAgentTestUtils
+                .buildEncodedResponse("_plain", "admin", "plain", new DateTime().plusHours(1))), null);
+        assertNotNull(session.getAttribute(SSOAgentConstants.SESSION_BEAN_NAME));
+    }
+
+    @Test
+    public void testAttributeValues() throws Exception {
+
+        assertEquals(getSubjectAttributes("_attributes").get("role"), " admin ,everyone");
+        assertEquals(getSubjectAttributes("_attributes").get("email"), "admin@example.com");
+
+        // A user store without a MultiAttributeSeparator concatenates the values.
+        RealmConfiguration realmConfiguration = mock(RealmConfiguration.class);
+        UserStoreManager userStoreManager = mock(UserStoreManager.class);
+        when(userStoreManager.getRealmConfiguration()).thenReturn(realmConfiguration);
+        UserRealm userRealm = mock(UserRealm.class);
+        when(userRealm.getUserStoreManager()).thenReturn(userStoreManager);
+        RealmService realmService = mock(RealmService.class);
+        when(realmService.getTenantUserRealm(anyInt())).thenReturn(userRealm);
+        Method setRealmService = SSOAgentServiceComponent.class.getDeclaredMethod("setRealmService",
+                RealmService.class);
+        Method unsetRealmService = SSOAgentServiceComponent.class.getDeclaredMethod("unsetRealmService",
+                RealmService.class);
+        setRealmService.setAccessible(true);
+        unsetRealmService.setAccessible(true);
+        SSOAgentServiceComponent serviceComponent = new SSOAgentServiceComponent();
+        setRealmService.invoke(serviceComponent, realmService);
+        try {
+            assertEquals(getSubjectAttributes("_joined").get("role"), " admin everyone");
+        } finally {
+            unsetRealmService.invoke(serviceComponent, realmService);
+        }
+    }
+
+    @Test
+    public void testSessionNotOnOrAfterEnforcedOnlyWhenConfigured() throws Exception {
+
+        Properties properties = SSOAgentTestUtils.getSAML2Properties();
+        properties.setProperty(SSOAgentConstants.SSOAgentConfig.SAML2.ENFORCE_SESSION_NOT_ON_OR_AFTER, "true");
+        SAML2SSOManager enforcingManager = new SAML2SSOManager(SSOAgentTestUtils.createConfig(properties));
+        try {
+            DateTime sessionNotOnOrAfter = new DateTime().plusSeconds(1);
+            TestHttpSession session = new TestHttpSession();
+            manager.processResponse(SSOAgentTestUtils.mockResponsePost(session, SSOAgentTestUtils
+                    .buildEncodedResponse("_lenient", "admin", "lenient", sessionNotOnOrAfter)), null);
+            TestHttpSession enforcedSession = new TestHttpSession();
+            enforcingManager.processResponse(SSOAgentTestUtils.mockResponsePost(enforcedSession, SSOAgentTestUtils
+                    .buildEncodedResponse("_enforced", "admin", "enforced", sessionNotOnOrAfter)), null);
+
+            Thread.sleep(sessionNotOnOrAfter.getMillis() - System.currentTimeMillis() + 1100L);
+            SSOAgentSessionManager.sweep(System.currentTimeMillis());
+
+            assertTrue(enforcedSession.isInvalidated());
+            assertFalse(session.isInvalidated());
+            // The session stays reachable by a single logout request.
+            assertTrue(SSOAgentSessionManager.invalidateAllSessions("lenient").contains(session));
+        } finally {
+            enforcingManager.close();
+        }
+    }
+
+    @Test
+    public void testCloseInFavourOfSuccessor() throws Exception {
+
+        SAML2SSOManager previous = new SAML2SSOManager(SSOAgentTestUtils.createConfig(getClusterProperties("old")));
+        SAML2SSOManager successor = null;
+        try {
+            TestHttpSession session = new TestHttpSession();
+            previous.processResponse(SSOAgentTestUtils.mockResponsePost(session, SSOAgentTestUtils
+                    .buildEncodedResponse("_reload", "admin", "reload", new DateTime().plusHours(1))), null);
+            awaitNodeIds("reload", Collections.singleton("old"));
+
+            // A request still in progress keeps the previous manager and its session index open.
+            assertTrue(previous.acquire());
+            successor = new SAML2SSOManager(SSOAgentTestUtils.createConfig(getClusterProperties("new")));
+            previous.close(successor);
+            assertFalse(previous.acquire());
+            assertEquals(getNodeIds("reload"), Collections.singleton("old"));
+
+            // Once the request is done, the sessions are moved to the index of the new manager.
+            previous.release();
+            awaitNodeIds("reload", Collections.singleton("new"));
+        } finally {
+            previous.close();
+            if (successor != null) {
+                successor.close();
+            }
+            SSOAgentSessionManager.invalidateAllSessions("reload");
+        }
+    }
+
+    @Test
+    public void testSigningCredentialPerConfig() throws Exception {
+
+        SSOAgentConfig config = SSOAgentTestUtils.createConfig(SSOAgentTestUtils.getSAML2Properties());
+        config.getSAML2().setSSOAgentX509Credential(SSOAgentTestUtils.createCredential());
+        SSOAgentConfig otherConfig = SSOAgentTestUtils.createConfig(SSOAgentTestUtils.getSAML2Properties());
+        otherConfig.getSAML2().setSSOAgentX509Credential(SSOAgentTestUtils.createCredential());
+        SAML2SSOManager manager = new SAML2SSOManager(config);
+        SAML2SSOManager otherManager = new SAML2SSOManager(otherConfig);
+
+        X509CredentialImpl credential = manager.getSigningCredential();
+        assertSame(otherManager.getSigningCredential().getPrivateKey(),
+                otherConfig.getSAML2().getSSOAgentX509Credential().getPrivateKey());
+        assertSame(manager.getSigningCredential(), credential);
+        assertSame(credential.getPrivateKey(), config.getSAML2().getSSOAgentX509Credential().getPrivateKey());
+
+        config.getSAML2().setSSOAgentX509Credential(SSOAgentTestUtils.createCredential());
+        assertNotSame(manager.getSigningCredential(), credential);
+        manager.close();
+        otherManager.close();
+    }
+
+    @Test(expectedExceptions = SSOAgentException.class,
+            expectedExceptionsMessageRegExp = "Error occurred while processing SAML2 response\\.")
+    public void testRejectWrappedAssertion() throws Exception {
+
+        String response = SSOAgentTestUtils.buildResponseXML("_wrapped", "admin", "wrapped",
+                new DateTime().plusHours(1));
+        String assertion = response.substring(response.indexOf("<saml2:Assertion"),
+                response.indexOf("</saml2p:Response>"));
+        String evilAssertion = assertion.replace("_wrapped-a", "_evil-a").replace(">admin<", ">attacker<");
+        String wrapped = response.replace("<saml2p:Status>", "<saml2p:Extensions>" + evilAssertion +
+                "</saml2p:Extensions><saml2p:Status>");
+
+        TestHttpSession session = new TestHttpSession();
+        try {
+            manager.processResponse(SSOAgentTestUtils.mockResponsePost(session, Base64.encodeBytes(
+                    wrapped.getBytes(Charset.forName("UTF-8")), Base64.DONT_BREAK_LINES)), null);
+        } finally {
+            assertNull(session.getAttribute(SSOAgentConstants.SESSION_BEAN_NAME));
+        }
+    }
+
+    private Map<String, String> getSubjectAttributes(String responseId) throws Exception {
+
+        // Values keep their whitespace, and text split by a comment is read as a whole.
+        String response = SSOAgentTestUtils.buildResponseXML(responseId, "admin", responseId,
+                new DateTime().plusHours(1)).replace("</saml2:AttributeStatement>", "<saml2:Attribute Name=\"role\">" +
+                "<saml2:AttributeValue xmlns:xs=\"http://www.w3.org/2001/XMLSchema\" " +
+                "xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\" xsi:type=\"xs:string\"> admin " +
+                "</saml2:AttributeValue><saml2:AttributeValue>every<!-- split -->one</saml2:AttributeValue>" +
+                "</saml2:Attribute></saml2:AttributeStatement>");
+        TestHttpSession session = new TestHttpSession();
+        manager.processResponse(SSOAgentTestUtils.mockResponsePost(session, Base64.encodeBytes(
+                response.getBytes(Charset.forName("UTF-8")), Base64.DONT_BREAK_LINES)), null);
+        return ((LoggedInSessionBean) session.getAttribute(SSOAgentConstants.SESSION_BEAN_NAME)).getSAML2SSO()
+                .getSubjectAttributes();
+    }
+
+    private static Properties getClusterProperties(String nodeId) {
+
+        Properties properties = SSOAgentTestUtils.getSAML2Properties();
+        String prefix = SSOAgentConstants.SSOAgentConfig.SAML2.SESSION_INDEX_STORE_PROPERTY_PREFIX;
+        properties.setProperty(SSOAgentConstants.SSOAgentConfig.SAML2.SESSION_INDEX_STORE,
+                JDBCSessionIndexStore.class.getName());
+        properties.setProperty(prefix + JDBCSessionIndexStore.URL, SESSION_INDEX_URL);
+        properties.setProperty(prefix + JDBCSessionIndexStore.USERNAME, "sa");
+        properties.setProperty(prefix + JDBCSessionIndexStore.PASSWORD, "");
+        properties.setProperty(prefix + JDBCSessionIndexStore.DRIVER, "org.h2.Driver");
+        properties.setProperty(prefix + ClusterSessionIndex.NODE_ID, nodeId);
+        properties.setProperty(prefix + ClusterSessionIndex.POLL_INTERVAL, "3600");
+        return properties;
+    }
+
+    private static void awaitNodeIds(String sessionIndex, Set<String> nodeIds) throws Exception {
+
+        for (int i = 0; i < 50 && !getNodeIds(sessionIndex).equals(nodeIds); i++) {
+            Thread.sleep(100L);
+        }
+        assertEquals(getNodeIds(sessionIndex), nodeIds);
+    }
+
+    private static Set<String> getNodeIds(String sessionIndex) throws Exception {
+
+        Set<String> nodeIds = new HashSet<String>();
+        try (Connection connection = DriverManager.getConnection(SESSION_INDEX_URL, "sa", "");
+             PreparedStatement select = connection.prepareStatement(
+                     "SELECT NODE_ID FROM SSO_AGENT_SESSION_INDEX WHERE SESSION_INDEX = ?")) {
+            select.setString(1, sessionIndex);
+            try (ResultSet resultSet = select.executeQuery()) {
+                while (resultSet.next()) {
+                    nodeIds.add(resultSet.getString(1));
+                }
+            }
+        }
+        return nodeIds;
+    }
+}
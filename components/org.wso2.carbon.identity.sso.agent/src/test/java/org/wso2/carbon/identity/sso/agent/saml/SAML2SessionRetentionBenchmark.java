@@ -0,0 +1,98 @@
+/*
+ * Copyright (c) 2018, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.wso2.carbon.identity.sso.agent.saml;
+
+import org.joda.time.DateTime;
+import org.testng.annotations.Test;
+import org.wso2.carbon.identity.sso.agent.SSOAgentBenchmark;
+import org.wso2.carbon.identity.sso.agent.SSOAgentTestUtils;
+import org.wso2.carbon.identity.sso.agent.TestHttpSession;
+import org.wso2.carbon.identity.sso.agent.bean.LoggedInSessionBean;
+import org.wso2.carbon.identity.sso.agent.session.management.SSOAgentSessionManager;
+import org.wso2.carbon.identity.sso.agent.util.SSOAgentConstants;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import static org.testng.Assert.assertTrue;
+
+/**
+ * Measures the heap retained by a logged in session under each SAML2 session retention policy. Sessions are
+ * logged in through {@link SAML2SSOManager#processResponse}, kept alive, and the used heap after a full collection
+ * is compared with the used heap before the logins.
+ */
+public class SAML2SessionRetentionBenchmark {
+
+    private static final int SESSIONS = 2000;
+
+    @Test(groups = SSOAgentBenchmark.GROUP)
+    public void benchmarkRetainedHeap() throws Exception {
+
+        // The first run warms up the parser pools and loads the classes, so that they are not counted.
+        retainedBytesPerSession(LoggedInSessionBean.SAML2RetentionPolicy.ALL);
+        long all = retainedBytesPerSession(LoggedInSessionBean.SAML2RetentionPolicy.ALL);
+        long assertion = retainedBytesPerSession(LoggedInSessionBean.SAML2RetentionPolicy.ASSERTION);
+        long attributes = retainedBytesPerSession(LoggedInSessionBean.SAML2RetentionPolicy.ATTRIBUTES);
+        SSOAgentBenchmark.report("retained heap per session, ALL", all, "B");
+        SSOAgentBenchmark.report("retained heap per session, ASSERTION", assertion, "B");
+        SSOAgentBenchmark.report("retained heap per session, ATTRIBUTES", attributes, "B");
+        assertTrue(assertion < all);
+        assertTrue(attributes < assertion);
+    }
+
+    private static long retainedBytesPerSession(LoggedInSessionBean.SAML2RetentionPolicy policy) throws Exception {
+
+        Properties properties = SSOAgentTestUtils.getSAML2Properties();
+        properties.setProperty(SSOAgentConstants.SSOAgentConfig.SAML2.SESSION_RETENTION_POLICY, policy.name());
+        SAML2SSOManager manager = new SAML2SSOManager(SSOAgentTestUtils.createConfig(properties));
+        List<String> encodedResponses = new ArrayList<String>(SESSIONS);
+        List<TestHttpSession> sessions = new ArrayList<TestHttpSession>(SESSIONS);
+        for (int i = 0; i < SESSIONS; i++) {
+            encodedResponses.add(SSOAgentTestUtils.buildEncodedResponse("_retention-" + policy + i, "user" + i,
+                    "retention-" + policy + i, new DateTime().plusHours(1)));
+            sessions.add(new TestHttpSession());
+        }
+        try {
+            long before = usedHeap();
+            for (int i = 0; i < SESSIONS; i++) {
+                manager.processResponse(SSOAgentTestUtils.mockResponsePost(sessions.get(i),
+                        encodedResponses.get(i)), null);
+            }
+            long after = usedHeap();
+            return (after - before) / SESSIONS;
+        } finally {
+            for (int i = 0; i < SESSIONS; i++) {
+                SSOAgentSessionManager.invalidateAllSessions("retention-" + policy + i);
+            }
+            manager.close();
+        }
+    }
+
+    private static long usedHeap() throws InterruptedException {
+
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(100L);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
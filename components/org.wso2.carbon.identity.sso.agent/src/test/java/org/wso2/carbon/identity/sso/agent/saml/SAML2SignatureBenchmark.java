@@ -0,0 +1,134 @@
+/*
+ * Copyright (c) 2018, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.wso2.carbon.identity.sso.agent.saml;
+
+import org.apache.xml.security.c14n.Canonicalizer;
+import org.apache.xml.security.signature.XMLSignature;
+import org.opensaml.saml2.core.LogoutRequest;
+import org.opensaml.xml.Configuration;
+import org.opensaml.xml.XMLObjectBuilderFactory;
+import org.opensaml.xml.io.Marshaller;
+import org.opensaml.xml.security.x509.X509Credential;
+import org.opensaml.xml.signature.KeyInfo;
+import org.opensaml.xml.signature.Signature;
+import org.opensaml.xml.signature.Signer;
+import org.opensaml.xml.signature.X509Certificate;
+import org.opensaml.xml.signature.X509Data;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+import org.wso2.carbon.identity.sso.agent.SSOAgentBenchmark;
+import org.wso2.carbon.identity.sso.agent.SSOAgentTestUtils;
+import org.wso2.carbon.identity.sso.agent.bean.SSOAgentConfig;
+import org.wso2.carbon.identity.sso.agent.security.X509CredentialImpl;
+import org.wso2.carbon.identity.sso.agent.util.SSOAgentUtils;
+
+import java.util.Collections;
+
+/**
+ * Signs LogoutRequests the way SSOAgentUtils.setSignatureValue used to, re-running the XML security
+ * initialization and re-encoding the certificate for each signature, and the way it does now, with the cached
+ * credential, with and without ds:KeyInfo.
+ */
+public class SAML2SignatureBenchmark {
+
+    private static final int ITERATIONS = 2000;
+
+    private SSOAgentConfig config;
+    private SAML2SSOManager manager;
+
+    @BeforeClass(alwaysRun = true)
+    public void setUp() throws Exception {
+
+        config = SSOAgentTestUtils.createConfig(SSOAgentTestUtils.getSAML2Properties());
+        config.getSAML2().setSSOAgentX509Credential(SSOAgentTestUtils.createCredential());
+        manager = new SAML2SSOManager(config);
+    }
+
+    @AfterClass(alwaysRun = true)
+    public void tearDown() {
+
+        manager.close();
+    }
+
+    @Test(groups = SSOAgentBenchmark.GROUP)
+    public void benchmarkSign() throws Exception {
+
+        final String algorithm = XMLSignature.ALGO_ID_SIGNATURE_RSA_SHA256;
+        SSOAgentBenchmark.measure("sign, init and encode per signature", ITERATIONS,
+                new SSOAgentBenchmark.Operation() {
+                    @Override
+                    public void run() throws Exception {
+
+                        signPerCall(manager.buildLogoutRequest("admin", "session"), algorithm,
+                                new X509CredentialImpl(config.getSAML2().getSSOAgentX509Credential()));
+                    }
+                });
+        SSOAgentBenchmark.measure("sign, cached credential with KeyInfo", ITERATIONS,
+                new SSOAgentBenchmark.Operation() {
+                    @Override
+                    public void run() throws Exception {
+
+                        SSOAgentUtils.setSignatureValue(manager.buildLogoutRequest("admin", "session"), algorithm,
+                                manager.getSigningCredential(), true);
+                    }
+                });
+        SSOAgentBenchmark.measure("sign, cached credential without KeyInfo", ITERATIONS,
+                new SSOAgentBenchmark.Operation() {
+                    @Override
+                    public void run() throws Exception {
+
+                        SSOAgentUtils.setSignatureValue(manager.buildLogoutRequest("admin", "session"), algorithm,
+                                manager.getSigningCredential(), false);
+                    }
+                });
+    }
+
+    /**
+     * SSOAgentUtils.setSignatureValue before the XML security library was initialized once and the certificate
+     * encoding was cached.
+     */
+    private static void signPerCall(LogoutRequest request, String algorithm, X509Credential cred)
+            throws Exception {
+
+        XMLObjectBuilderFactory builderFactory = Configuration.getBuilderFactory();
+        Signature signature = (Signature) builderFactory.getBuilder(Signature.DEFAULT_ELEMENT_NAME)
+                .buildObject(Signature.DEFAULT_ELEMENT_NAME);
+        signature.setSigningCredential(cred);
+        signature.setSignatureAlgorithm(algorithm);
+        signature.setCanonicalizationAlgorithm(Canonicalizer.ALGO_ID_C14N_EXCL_OMIT_COMMENTS);
+        KeyInfo keyInfo = (KeyInfo) builderFactory.getBuilder(KeyInfo.DEFAULT_ELEMENT_NAME)
+                .buildObject(KeyInfo.DEFAULT_ELEMENT_NAME);
+        X509Data data = (X509Data) builderFactory.getBuilder(X509Data.DEFAULT_ELEMENT_NAME)
+                .buildObject(X509Data.DEFAULT_ELEMENT_NAME);
+        X509Certificate cert = (X509Certificate) builderFactory.getBuilder(X509Certificate.DEFAULT_ELEMENT_NAME)
+                .buildObject(X509Certificate.DEFAULT_ELEMENT_NAME);
+        cert.setValue(org.apache.xml.security.utils.Base64.encode(cred.getEntityCertificate().getEncoded()));
+        data.getX509Certificates().add(cert);
+        keyInfo.getX509Datas().add(data);
+        signature.setKeyInfo(keyInfo);
+        request.setSignature(signature);
+
+        Marshaller marshaller = Configuration.getMarshallerFactory().getMarshaller(request);
+        marshaller.marshall(request);
+        org.apache.xml.security.Init.init();
+        Signer.signObjects(Collections.singletonList(signature));
+    }
+}
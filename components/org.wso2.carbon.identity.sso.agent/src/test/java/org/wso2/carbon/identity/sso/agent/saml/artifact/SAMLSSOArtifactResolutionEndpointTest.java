@@ -0,0 +1,133 @@
+/*
+ * Copyright (c) 2018, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.wso2.carbon.identity.sso.agent.saml.artifact;
+
+import org.opensaml.saml2.core.ArtifactResponse;
+import org.testng.annotations.Test;
+import org.wso2.carbon.identity.sso.agent.bean.SSOAgentConfig;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotSame;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+public class SAMLSSOArtifactResolutionEndpointTest {
+
+    private static final String URL = "https://localhost:9443/samlartresolve";
+
+    @Test
+    public void testEndpointsPerSettings() throws Exception {
+
+        SAMLSSOArtifactResolutionEndpoint.acquire();
+        SAMLSSOArtifactResolutionEndpoint endpoint;
+        try {
+            endpoint = SAMLSSOArtifactResolutionEndpoint.getInstance(URL, createSAML2(1));
+            assertSame(SAMLSSOArtifactResolutionEndpoint.getInstance(URL, createSAML2(1)), endpoint);
+            endpoint.newOutcome().failure();
+            assertTrue(endpoint.isOpen());
+
+            SAMLSSOArtifactResolutionEndpoint otherEndpoint =
+                    SAMLSSOArtifactResolutionEndpoint.getInstance(URL, createSAML2(2));
+            assertNotSame(otherEndpoint, endpoint);
+            assertFalse(otherEndpoint.isOpen());
+            // Asking for other settings must not reset the circuit another agent is using.
+            assertSame(SAMLSSOArtifactResolutionEndpoint.getInstance(URL, createSAML2(1)), endpoint);
+            assertTrue(endpoint.isOpen());
+        } finally {
+            SAMLSSOArtifactResolutionEndpoint.release();
+        }
+        assertNotSame(SAMLSSOArtifactResolutionEndpoint.getInstance(URL, createSAML2(1)), endpoint);
+    }
+
+    @Test
+    public void testLateResultAfterTimeout() throws Exception {
+
+        SAMLSSOArtifactResolutionEndpoint.acquire();
+        try {
+            SAMLSSOArtifactResolutionEndpoint endpoint =
+                    SAMLSSOArtifactResolutionEndpoint.getInstance(URL, createSAML2(2));
+            final SAMLSSOArtifactResolutionEndpoint.Outcome outcome = endpoint.newOutcome();
+            final CountDownLatch answer = new CountDownLatch(1);
+            final CountDownLatch answered = new CountDownLatch(1);
+            Future<ArtifactResponse> resolution = endpoint.submit(new Callable<ArtifactResponse>() {
+                @Override
+                public ArtifactResponse call() {
+
+                    // Like a blocking socket read, the wait does not end when the resolution is cancelled.
+                    boolean done = false;
+                    while (!done) {
+                        try {
+                            answer.await();
+                            done = true;
+                        } catch (InterruptedException ignored) {
+                        }
+                    }
+                    outcome.success();
+                    answered.countDown();
+                    return null;
+                }
+            }, outcome);
+
+            try {
+                resolution.get(50, TimeUnit.MILLISECONDS);
+                fail("Resolution completed before its deadline");
+            } catch (TimeoutException e) {
+                resolution.cancel(true);
+                SAMLSSOArtifactResolutionEndpoint.getOutcome(resolution).timeout();
+            }
+            answer.countDown();
+            assertTrue(answered.await(5, TimeUnit.SECONDS));
+
+            assertEquals(endpoint.getTimeoutCount(), 1);
+            assertEquals(endpoint.getFailureCount(), 1);
+            // The late success must not have closed the circuit, so one more failure opens it.
+            assertFalse(endpoint.isOpen());
+            endpoint.newOutcome().failure();
+            assertTrue(endpoint.isOpen());
+
+            // Only the first outcome of a resolution counts.
+            SAMLSSOArtifactResolutionEndpoint.Outcome other = endpoint.newOutcome();
+            other.failure();
+            other.failure();
+            other.timeout();
+            assertEquals(endpoint.getFailureCount(), 3);
+            assertEquals(endpoint.getTimeoutCount(), 1);
+        } finally {
+            SAMLSSOArtifactResolutionEndpoint.release();
+        }
+    }
+
+    private SSOAgentConfig.SAML2 createSAML2(int failureThreshold) {
+
+        SSOAgentConfig.SAML2 saml2 = new SSOAgentConfig().getSAML2();
+        saml2.setArtifactResolveMaxConcurrency(SAMLSSOArtifactResolutionEndpoint.DEFAULT_MAX_CONCURRENCY);
+        saml2.setArtifactResolveCircuitBreakerFailureThreshold(failureThreshold);
+        saml2.setArtifactResolveCircuitBreakerOpenDuration(SAMLSSOArtifactResolutionEndpoint.DEFAULT_OPEN_DURATION);
+        return saml2;
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (c) 2018, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.wso2.carbon.identity.sso.agent.saml.artifact;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.joda.time.DateTime;
+import org.opensaml.Configuration;
+import org.opensaml.common.SAMLObjectBuilder;
+import org.opensaml.common.SAMLVersion;
+import org.opensaml.saml2.core.Artifact;
+import org.opensaml.saml2.core.ArtifactResolve;
+import org.opensaml.saml2.core.Issuer;
+import org.opensaml.xml.XMLObjectBuilderFactory;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+import org.wso2.carbon.identity.sso.agent.SSOAgentBenchmark;
+import org.wso2.carbon.identity.sso.agent.SSOAgentTestUtils;
+import org.wso2.carbon.identity.sso.agent.bean.SSOAgentConfig;
+import org.wso2.carbon.identity.sso.agent.util.SSOAgentUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+
+import static org.testng.Assert.assertTrue;
+
+/**
+ * Compares building the SOAP request of an unsigned ArtifactResolve as SAMLSSOArtifactResolutionService used to do
+ * it, with OpenSAML builders looked up per request, a marshalled String and a StringEntity, against
+ * {@link SAMLSSOArtifactResolveTemplate}. Each operation writes the entity the way the HTTP client sends it.
+ */
+public class SAMLSSOArtifactResolveTemplateBenchmark {
+
+    private static final int ITERATIONS = 20000;
+    private static final String ID = "_0123456789abcdef0123456789abcdef";
+    private static final String SAML_ART = "AAQAAMFbLinlXaCM+FIxiDwGOLAy2T71gbpO7ZhNzAgEANlB90ECfpNEVLg=";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private SSOAgentConfig.SAML2 saml2;
+    private SAMLSSOArtifactResolveTemplate template;
+    private SAMLSSOSoapMessageService soapMessageService;
+    private DateTime issueInstant;
+
+    @BeforeClass(alwaysRun = true)
+    public void setUp() throws Exception {
+
+        SSOAgentUtils.doBootstrap();
+        saml2 = SSOAgentTestUtils.createConfig(SSOAgentTestUtils.getSAML2Properties()).getSAML2();
+        template = new SAMLSSOArtifactResolveTemplate(saml2);
+        soapMessageService = new SAMLSSOSoapMessageService(saml2);
+        issueInstant = new DateTime();
+    }
+
+    @Test(groups = SSOAgentBenchmark.GROUP)
+    public void benchmarkArtifactResolveRequest() throws Exception {
+
+        String marshalled = new String(write(buildWithStringEntity()), UTF_8);
+        String streamed = new String(write(template.createEntity(ID, issueInstant, SAML_ART)), UTF_8);
+        assertTrue(marshalled.contains(SAML_ART) && streamed.contains(SAML_ART));
+        assertTrue(marshalled.contains(ID) && streamed.contains(ID));
+        SSOAgentBenchmark.report("ArtifactResolve request, marshalled", marshalled.getBytes(UTF_8).length, "B");
+        SSOAgentBenchmark.report("ArtifactResolve request, template", streamed.getBytes(UTF_8).length, "B");
+
+        SSOAgentBenchmark.Result perRequest = SSOAgentBenchmark.measure("ArtifactResolve, builders and marshalling",
+                ITERATIONS, new SSOAgentBenchmark.Operation() {
+                    @Override
+                    public void run() throws Exception {
+
+                        write(buildWithStringEntity());
+                    }
+                });
+        SSOAgentBenchmark.Result templated = SSOAgentBenchmark.measure("ArtifactResolve, template",
+                ITERATIONS, new SSOAgentBenchmark.Operation() {
+                    @Override
+                    public void run() throws Exception {
+
+                        write(template.createEntity(ID, issueInstant, SAML_ART));
+                    }
+                });
+        assertTrue(templated.getBytesPerOperation() < perRequest.getBytesPerOperation());
+    }
+
+    /**
+     * The request as SAMLSSOArtifactResolutionService built it before the template was introduced.
+     */
+    @SuppressWarnings("unchecked")
+    private HttpEntity buildWithStringEntity() throws Exception {
+
+        XMLObjectBuilderFactory builderFactory = Configuration.getBuilderFactory();
+        SAMLObjectBuilder<ArtifactResolve> artifactResolveBuilder =
+                (SAMLObjectBuilder<ArtifactResolve>) builderFactory.getBuilder(ArtifactResolve.DEFAULT_ELEMENT_NAME);
+        ArtifactResolve artifactResolve = artifactResolveBuilder.buildObject();
+        artifactResolve.setVersion(SAMLVersion.VERSION_20);
+        artifactResolve.setID(ID);
+        artifactResolve.setIssueInstant(issueInstant);
+        SAMLObjectBuilder<Artifact> artifactBuilder =
+                (SAMLObjectBuilder<Artifact>) builderFactory.getBuilder(Artifact.DEFAULT_ELEMENT_NAME);
+        Artifact artifact = artifactBuilder.buildObject();
+        artifact.setArtifact(SAML_ART);
+        SAMLObjectBuilder<Issuer> issuerBuilder =
+                (SAMLObjectBuilder<Issuer>) builderFactory.getBuilder(Issuer.DEFAULT_ELEMENT_NAME);
+        Issuer issuer = issuerBuilder.buildObject();
+        issuer.setValue(saml2.getSPEntityId());
+        artifactResolve.setIssuer(issuer);
+        artifactResolve.setArtifact(artifact);
+
+        String envelope = SSOAgentUtils.marshall(soapMessageService.buildSOAPMessage(artifactResolve));
+        return new StringEntity(envelope, ContentType.create("text/xml", UTF_8));
+    }
+
+    private static byte[] write(HttpEntity entity) throws Exception {
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(1024);
+        entity.writeTo(bytes);
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2018, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.wso2.carbon.identity.sso.agent.saml.artifact;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotSame;
+import static org.testng.Assert.assertSame;
+
+public class SAMLSSOHttpClientPoolTest {
+
+    private HttpServer server;
+    private String url;
+
+    @BeforeClass
+    public void setUp() throws Exception {
+
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+
+                exchange.sendResponseHeaders(200, -1);
+                exchange.close();
+            }
+        });
+        server.start();
+        url = "http://localhost:" + server.getAddress().getPort() + "/artifact";
+    }
+
+    @AfterClass
+    public void tearDown() {
+
+        server.stop(0);
+    }
+
+    @Test
+    public void testClientsPerSettings() throws Exception {
+
+        SAMLSSOHttpClientPool.acquire();
+        SAMLSSOHttpClientPool.acquire();
+        try {
+            CloseableHttpClient client = SAMLSSOHttpClientPool.getHttpClient(url, 5, 10, 1000, 1000);
+            assertSame(SAMLSSOHttpClientPool.getHttpClient(url, 5, 10, 1000, 1000), client);
+
+            CloseableHttpClient otherClient = SAMLSSOHttpClientPool.getHttpClient(url, 5, 10, 1000, 2000);
+            assertNotSame(otherClient, client);
+            // Asking for other settings must not close the client another agent is using.
+            assertEquals(get(client), 200);
+            assertEquals(get(otherClient), 200);
+            assertSame(SAMLSSOHttpClientPool.getHttpClient(url, 5, 10, 1000, 1000), client);
+
+            SAMLSSOHttpClientPool.release();
+            assertEquals(get(client), 200);
+            assertEquals(SAMLSSOHttpClientPool.getClientCount(), 2);
+        } finally {
+            SAMLSSOHttpClientPool.release();
+        }
+        assertEquals(SAMLSSOHttpClientPool.getClientCount(), 0);
+    }
+
+    private int get(CloseableHttpClient client) throws IOException {
+
+        try (CloseableHttpResponse response = client.execute(new HttpGet(url))) {
+            return response.getStatusLine().getStatusCode();
+        }
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (c) 2018, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.wso2.carbon.identity.sso.agent.session.management;
+
+import org.testng.annotations.Test;
+import org.wso2.carbon.identity.sso.agent.SSOAgentTestUtils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import javax.servlet.http.HttpSession;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * Multi-threaded stress test of the SLO session index. Threads keep adding sessions to a small set of IdP
+ * session indexes while removing half of them again, so that additions regularly race with the removal of the
+ * last session of an index. At the end the index must hold exactly the sessions that were not removed.
+ */
+public class SSOAgentSessionManagerStressTest {
+
+    private static final int THREADS = 16;
+    private static final int OPERATIONS_PER_THREAD = 10000;
+    private static final int SESSION_INDEXES = 4;
+
+    @Test
+    public void testConcurrentAddAndRemove() throws Exception {
+
+        final String prefix = "stress-" + System.nanoTime() + "-";
+        final Set<HttpSession> expected =
+                Collections.newSetFromMap(new ConcurrentHashMap<HttpSession, Boolean>());
+        long sessionCountBefore = SSOAgentSessionManager.getSessionCount();
+        final CountDownLatch start = new CountDownLatch(1);
+
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        List<Future<Void>> results = new ArrayList<Future<Void>>(THREADS);
+        for (int t = 0; t < THREADS; t++) {
+            final long seed = t;
+            results.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+
+                    Random random = new Random(seed);
+                    start.await();
+                    for (int i = 0; i < OPERATIONS_PER_THREAD; i++) {
+                        HttpSession session = SSOAgentTestUtils.createLoggedInSession(
+                                prefix + random.nextInt(SESSION_INDEXES));
+                        SSOAgentSessionManager.addAuthenticatedSession(session);
+                        if (random.nextBoolean()) {
+                            SSOAgentSessionManager.invalidateSession(session);
+                        } else {
+                            expected.add(session);
+                        }
+                    }
+                    return null;
+                }
+            }));
+        }
+        start.countDown();
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(2, TimeUnit.MINUTES));
+        for (Future<Void> result : results) {
+            result.get();
+        }
+
+        assertEquals(SSOAgentSessionManager.getSessionCount() - sessionCountBefore, expected.size());
+        Set<HttpSession> indexed = new HashSet<HttpSession>();
+        for (int i = 0; i < SESSION_INDEXES; i++) {
+            for (HttpSession session : SSOAgentSessionManager.invalidateAllSessions(prefix + i)) {
+                assertTrue(indexed.add(session), "Session returned twice");
+            }
+        }
+        assertEquals(indexed.size(), expected.size(), "Sessions leaked or lost");
+        assertEquals(indexed, expected);
+        assertEquals(SSOAgentSessionManager.getSessionCount(), sessionCountBefore);
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright (c) 2018, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.wso2.carbon.identity.sso.agent.session.management;
+
+import org.testng.annotations.Test;
+import org.wso2.carbon.identity.sso.agent.SSOAgentTestUtils;
+import org.wso2.carbon.identity.sso.agent.TestHttpSession;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+public class SSOAgentSessionManagerTest {
+
+    @Test
+    public void testSweepInvalidatesSessionAfterSessionNotOnOrAfter() throws Exception {
+
+        long sessionNotOnOrAfter = System.currentTimeMillis() + 1000L;
+        TestHttpSession ended = SSOAgentTestUtils.createLoggedInSession("sweep-ended");
+        TestHttpSession alive = SSOAgentTestUtils.createLoggedInSession("sweep-alive");
+        SSOAgentSessionManager.addAuthenticatedSession(ended, sessionNotOnOrAfter);
+        SSOAgentSessionManager.addAuthenticatedSession(alive, sessionNotOnOrAfter + 3600000L);
+
+        Thread.sleep(sessionNotOnOrAfter - System.currentTimeMillis() + 1100L);
+        SSOAgentSessionManager.sweep(System.currentTimeMillis());
+
+        assertTrue(ended.isInvalidated());
+        assertTrue(SSOAgentSessionManager.invalidateAllSessions("sweep-ended").isEmpty());
+        assertFalse(alive.isInvalidated());
+        assertTrue(SSOAgentSessionManager.invalidateAllSessions("sweep-alive").contains(alive));
+    }
+
+    @Test
+    public void testSweeperIsStoppedByLastUser() {
+
+        SSOAgentSessionManager.acquire();
+        SSOAgentSessionManager.acquire();
+        try {
+            TestHttpSession session = SSOAgentTestUtils.createLoggedInSession("release");
+            SSOAgentSessionManager.addAuthenticatedSession(session);
+            assertTrue(SSOAgentSessionManager.isSweeperRunning());
+
+            SSOAgentSessionManager.release();
+            assertTrue(SSOAgentSessionManager.isSweeperRunning());
+        } finally {
+            SSOAgentSessionManager.release();
+        }
+        assertFalse(SSOAgentSessionManager.isSweeperRunning());
+        SSOAgentSessionManager.invalidateAllSessions("release");
+    }
+
+    @Test
+    public void testWeakSessionIsEvictedAfterGarbageCollection() throws Exception {
+
+        long collected = SSOAgentSessionManager.getCollectedEvictionCount();
+        addWeakSession("weak-collected");
+        TestHttpSession strong = SSOAgentTestUtils.createLoggedInSession("weak-strong");
+        SSOAgentSessionManager.addAuthenticatedSession(strong, -1L, false, null);
+
+        for (int i = 0; i < 50 && SSOAgentSessionManager.getCollectedEvictionCount() == collected; i++) {
+            System.gc();
+            Thread.sleep(100L);
+            SSOAgentSessionManager.drainCollectedSessions();
+        }
+
+        assertEquals(SSOAgentSessionManager.getCollectedEvictionCount(), collected + 1);
+        assertTrue(SSOAgentSessionManager.invalidateAllSessions("weak-collected").isEmpty());
+        assertTrue(SSOAgentSessionManager.invalidateAllSessions("weak-strong").contains(strong));
+    }
+
+    private static void addWeakSession(String sessionIndex) {
+
+        SSOAgentSessionManager.addAuthenticatedSession(SSOAgentTestUtils.createLoggedInSession(sessionIndex), -1L,
+                true, null);
+    }
+}
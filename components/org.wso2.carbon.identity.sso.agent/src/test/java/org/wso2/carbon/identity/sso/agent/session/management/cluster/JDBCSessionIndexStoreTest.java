@@ -0,0 +1,252 @@
+/*
+ * Copyright (c) 2018, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.wso2.carbon.identity.sso.agent.session.management.cluster;
+
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+import org.wso2.carbon.identity.sso.agent.SSOAgentTestUtils;
+import org.wso2.carbon.identity.sso.agent.TestHttpSession;
+import org.wso2.carbon.identity.sso.agent.bean.SSOAgentConfig;
+import org.wso2.carbon.identity.sso.agent.session.management.SSOAgentSessionManager;
+import org.wso2.carbon.identity.sso.agent.util.SSOAgentConstants;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+public class JDBCSessionIndexStoreTest {
+
+    private static final String URL = "jdbc:h2:mem:sso-agent-session-index;DB_CLOSE_DELAY=-1";
+
+    private JDBCSessionIndexStore store;
+
+    @BeforeClass
+    public void setUp() throws Exception {
+
+        store = new JDBCSessionIndexStore();
+        store.init(getProperties("store"));
+    }
+
+    @AfterClass
+    public void tearDown() {
+
+        store.close();
+    }
+
+    @Test
+    public void testLogout() throws Exception {
+
+        SessionIndexRecord first = new SessionIndexRecord("jdbc-logout", "node1", "session1", 1000L);
+        SessionIndexRecord second = new SessionIndexRecord("jdbc-logout", "node2", "session2", 1000L);
+        store.addSessions(Arrays.asList(first, second));
+        // Recording a session twice must not violate the primary key.
+        store.addSessions(Collections.singletonList(first));
+        store.removeSessions(Collections.singletonList(second));
+        assertEquals(countSessions("jdbc-logout"), 1);
+
+        assertEquals(store.logout("jdbc-logout", 5000L), Collections.singleton("node1"));
+        assertEquals(countSessions("jdbc-logout"), 0);
+        assertTrue(store.getLoggedOutSessionIndexes(5000L).contains("jdbc-logout"));
+        assertFalse(store.getLoggedOutSessionIndexes(5001L).contains("jdbc-logout"));
+
+        store.purgeLogouts(5001L);
+        assertFalse(store.getLoggedOutSessionIndexes(0L).contains("jdbc-logout"));
+    }
+
+    @Test
+    public void testRemoteLogout() throws Exception {
+
+        JDBCSessionIndexStore node1Store = new JDBCSessionIndexStore();
+        node1Store.init(getProperties("node1"));
+        ClusterSessionIndex node1 = new ClusterSessionIndex(node1Store, null, getProperties("node1"));
+        JDBCSessionIndexStore node2Store = new JDBCSessionIndexStore();
+        node2Store.init(getProperties("node2"));
+        ClusterSessionIndex node2 = new ClusterSessionIndex(node2Store, null, getProperties("node2"));
+        try {
+            TestHttpSession session = SSOAgentTestUtils.createLoggedInSession("jdbc-remote");
+            SSOAgentSessionManager.addAuthenticatedSession(session, -1L, false, node2);
+            for (int i = 0; i < 50 && countSessions("jdbc-remote") == 0; i++) {
+                Thread.sleep(100L);
+            }
+            assertEquals(countSessions("jdbc-remote"), 1);
+
+            long logoutTime = System.currentTimeMillis();
+            node1.logout("jdbc-remote");
+            assertFalse(session.isInvalidated());
+            node2.poll(logoutTime);
+            assertTrue(session.isInvalidated());
+        } finally {
+            node1.close();
+            node2.close();
+        }
+    }
+
+    @Test
+    public void testBroadcastLogout() throws Exception {
+
+        ClusterSessionIndex node1 = ClusterSessionIndex.create(getBroadcastConfig("broadcast1").getSAML2());
+        ClusterSessionIndex node2 = ClusterSessionIndex.create(getBroadcastConfig("broadcast2").getSAML2());
+        try {
+            TestHttpSession session = SSOAgentTestUtils.createLoggedInSession("jdbc-broadcast");
+            SSOAgentSessionManager.addAuthenticatedSession(session, -1L, false, node2);
+            for (int i = 0; i < 50 && countSessions("jdbc-broadcast") == 0; i++) {
+                Thread.sleep(100L);
+            }
+            assertEquals(countSessions("jdbc-broadcast"), 1);
+
+            // The logout reaches node2 through the broadcaster, without node2 polling the store.
+            node1.logout("jdbc-broadcast");
+            assertTrue(session.isInvalidated());
+        } finally {
+            node1.close();
+            node2.close();
+        }
+    }
+
+    @Test
+    public void testConcurrentLogout() throws Exception {
+
+        final JDBCSessionIndexStore otherStore = new JDBCSessionIndexStore();
+        otherStore.init(getProperties("other"));
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            for (int i = 0; i < 100; i++) {
+                final String sessionIndex = "jdbc-concurrent-" + i;
+                final CountDownLatch start = new CountDownLatch(1);
+                Future<Set<String>> first = executor.submit(new Callable<Set<String>>() {
+                    @Override
+                    public Set<String> call() throws Exception {
+
+                        start.await();
+                        return store.logout(sessionIndex, 1000L);
+                    }
+                });
+                Future<Set<String>> second = executor.submit(new Callable<Set<String>>() {
+                    @Override
+                    public Set<String> call() throws Exception {
+
+                        start.await();
+                        return otherStore.logout(sessionIndex, 2000L);
+                    }
+                });
+                start.countDown();
+                // Both nodes logging out the same index must succeed, whichever records the logout first.
+                first.get();
+                second.get();
+                assertTrue(store.getLoggedOutSessionIndexes(1000L).contains(sessionIndex));
+            }
+        } finally {
+            executor.shutdownNow();
+            otherStore.close();
+        }
+    }
+
+    /**
+     * Delivers logouts directly to the cluster session indexes of the nodes in this JVM.
+     */
+    public static class LoopbackBroadcaster implements SessionLogoutBroadcaster {
+
+        private static final Map<String, ClusterSessionIndex> NODES =
+                new ConcurrentHashMap<String, ClusterSessionIndex>();
+
+        private String nodeId;
+
+        @Override
+        public void init(Properties properties, ClusterSessionIndex clusterIndex) {
+
+            nodeId = properties.getProperty(ClusterSessionIndex.NODE_ID);
+            NODES.put(nodeId, clusterIndex);
+        }
+
+        @Override
+        public void broadcast(String sessionIndex, Set<String> nodeIds) {
+
+            for (String target : nodeIds) {
+                ClusterSessionIndex clusterIndex = NODES.get(target);
+                if (clusterIndex != null) {
+                    clusterIndex.onRemoteLogout(sessionIndex);
+                }
+            }
+        }
+
+        @Override
+        public void close() {
+
+            NODES.remove(nodeId);
+        }
+    }
+
+    private static SSOAgentConfig getBroadcastConfig(String nodeId) throws Exception {
+
+        Properties properties = SSOAgentTestUtils.getSAML2Properties();
+        properties.setProperty(SSOAgentConstants.SSOAgentConfig.SAML2.SESSION_INDEX_STORE,
+                JDBCSessionIndexStore.class.getName());
+        properties.setProperty(SSOAgentConstants.SSOAgentConfig.SAML2.SESSION_LOGOUT_BROADCASTER,
+                LoopbackBroadcaster.class.getName());
+        Properties storeProperties = getProperties(nodeId);
+        for (String name : storeProperties.stringPropertyNames()) {
+            properties.setProperty(SSOAgentConstants.SSOAgentConfig.SAML2.SESSION_INDEX_STORE_PROPERTY_PREFIX + name,
+                    storeProperties.getProperty(name));
+        }
+        return SSOAgentTestUtils.createConfig(properties);
+    }
+
+    private static Properties getProperties(String nodeId) {
+
+        Properties properties = new Properties();
+        properties.setProperty(JDBCSessionIndexStore.URL, URL);
+        properties.setProperty(JDBCSessionIndexStore.USERNAME, "sa");
+        properties.setProperty(JDBCSessionIndexStore.PASSWORD, "");
+        properties.setProperty(JDBCSessionIndexStore.DRIVER, "org.h2.Driver");
+        properties.setProperty(ClusterSessionIndex.NODE_ID, nodeId);
+        properties.setProperty(ClusterSessionIndex.POLL_INTERVAL, "3600");
+        return properties;
+    }
+
+    private static int countSessions(String sessionIndex) throws Exception {
+
+        try (Connection connection = DriverManager.getConnection(URL, "sa", "");
+             PreparedStatement select = connection.prepareStatement(
+                     "SELECT COUNT(*) FROM SSO_AGENT_SESSION_INDEX WHERE SESSION_INDEX = ?")) {
+            select.setString(1, sessionIndex);
+            try (ResultSet resultSet = select.executeQuery()) {
+                resultSet.next();
+                return resultSet.getInt(1);
+            }
+        }
+    }
+}
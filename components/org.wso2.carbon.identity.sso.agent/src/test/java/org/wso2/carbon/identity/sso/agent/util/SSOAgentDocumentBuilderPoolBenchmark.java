@@ -0,0 +1,101 @@
+/*
+ * Copyright (c) 2018, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.wso2.carbon.identity.sso.agent.util;
+
+import org.apache.xerces.impl.Constants;
+import org.apache.xerces.util.SecurityManager;
+import org.joda.time.DateTime;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+import org.wso2.carbon.identity.sso.agent.SSOAgentBenchmark;
+import org.wso2.carbon.identity.sso.agent.SSOAgentTestUtils;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.Charset;
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import static org.testng.Assert.assertTrue;
+
+/**
+ * Compares parsing a SAML2 Response with a freshly configured secure DocumentBuilderFactory per message, as
+ * SSOAgentUtils.unmarshall used to do, against the pooled pre-hardened builders.
+ */
+public class SSOAgentDocumentBuilderPoolBenchmark {
+
+    private static final int ITERATIONS = 20000;
+
+    private byte[] responseBytes;
+
+    @BeforeClass(alwaysRun = true)
+    public void setUp() {
+
+        responseBytes = SSOAgentTestUtils.buildResponseXML("_response", "admin", "session", new DateTime()
+                .plusHours(1)).getBytes(Charset.forName("UTF-8"));
+    }
+
+    @Test(groups = SSOAgentBenchmark.GROUP)
+    public void benchmarkParse() throws Exception {
+
+        SSOAgentBenchmark.Result perCall = SSOAgentBenchmark.measure("parse, factory per message", ITERATIONS,
+                new SSOAgentBenchmark.Operation() {
+                    @Override
+                    public void run() throws Exception {
+
+                        createSecureDocumentBuilderFactory().newDocumentBuilder()
+                                .parse(new ByteArrayInputStream(responseBytes));
+                    }
+                });
+        final SSOAgentDocumentBuilderPool pool = SSOAgentDocumentBuilderPool.getInstance(true);
+        SSOAgentBenchmark.Result pooled = SSOAgentBenchmark.measure("parse, pooled builder", ITERATIONS,
+                new SSOAgentBenchmark.Operation() {
+                    @Override
+                    public void run() throws Exception {
+
+                        pool.parse(new ByteArrayInputStream(responseBytes));
+                    }
+                });
+        assertTrue(pooled.getBytesPerOperation() < perCall.getBytesPerOperation());
+    }
+
+    /**
+     * The factory set up of SSOAgentUtils.unmarshall before the builders were pooled.
+     */
+    private static DocumentBuilderFactory createSecureDocumentBuilderFactory() throws Exception {
+
+        DocumentBuilderFactory documentBuilderFactory = DocumentBuilderFactory.newInstance();
+        documentBuilderFactory.setNamespaceAware(true);
+        documentBuilderFactory.setXIncludeAware(false);
+        documentBuilderFactory.setExpandEntityReferences(false);
+        documentBuilderFactory
+                .setFeature(Constants.SAX_FEATURE_PREFIX + Constants.EXTERNAL_GENERAL_ENTITIES_FEATURE, false);
+        documentBuilderFactory
+                .setFeature(Constants.SAX_FEATURE_PREFIX + Constants.EXTERNAL_PARAMETER_ENTITIES_FEATURE, false);
+        documentBuilderFactory
+                .setFeature(Constants.XERCES_FEATURE_PREFIX + Constants.LOAD_EXTERNAL_DTD_FEATURE, false);
+        documentBuilderFactory.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+        SecurityManager securityManager = new SecurityManager();
+        securityManager.setEntityExpansionLimit(0);
+        documentBuilderFactory
+                .setAttribute(Constants.XERCES_PROPERTY_PREFIX + Constants.SECURITY_MANAGER_PROPERTY, securityManager);
+        documentBuilderFactory.setIgnoringComments(true);
+        return documentBuilderFactory;
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright (c) 2018, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.wso2.carbon.identity.sso.agent.util;
+
+import org.testng.annotations.Test;
+import org.wso2.carbon.identity.sso.agent.SSOAgentBenchmark;
+
+import java.security.SecureRandom;
+import java.util.Random;
+
+/**
+ * Multi-threaded throughput of SAML ID generation: the shared java.util.Random SSOAgentUtils.createID used to
+ * draw from, a single shared SecureRandom, and the striped {@link SSOAgentIDGenerator}.
+ */
+public class SSOAgentIDGeneratorBenchmark {
+
+    private static final long DURATION_MILLIS = 2000L;
+    private static final int[] THREADS = {1, 4, 16};
+    private static final char[] CHAR_MAPPING =
+            {'a', 'b', 'c', 'd', 'e', 'f', 'g', 'h', 'i', 'j', 'k', 'l', 'm', 'n', 'o', 'p'};
+
+    private static final Random RANDOM = new Random();
+    private static final SecureRandom SECURE_RANDOM = new SecureRandom();
+
+    @Test(groups = SSOAgentBenchmark.GROUP)
+    public void benchmarkGenerateID() throws Exception {
+
+        for (int threads : THREADS) {
+            SSOAgentBenchmark.measureConcurrent("createID, shared Random, " + threads + " threads", threads,
+                    DURATION_MILLIS, new SSOAgentBenchmark.Operation() {
+                        @Override
+                        public void run() {
+
+                            createID(RANDOM);
+                        }
+                    });
+            SSOAgentBenchmark.measureConcurrent("createID, shared SecureRandom, " + threads + " threads", threads,
+                    DURATION_MILLIS, new SSOAgentBenchmark.Operation() {
+                        @Override
+                        public void run() {
+
+                            createID(SECURE_RANDOM);
+                        }
+                    });
+            SSOAgentBenchmark.measureConcurrent("SSOAgentIDGenerator, " + threads + " threads", threads,
+                    DURATION_MILLIS, new SSOAgentBenchmark.Operation() {
+                        @Override
+                        public void run() {
+
+                            SSOAgentIDGenerator.getInstance().generateID();
+                        }
+                    });
+        }
+    }
+
+    /**
+     * SSOAgentUtils.createID before the ID generator was introduced.
+     */
+    private static String createID(Random random) {
+
+        byte[] bytes = new byte[20];
+        random.nextBytes(bytes);
+        char[] chars = new char[40];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[i * 2] = CHAR_MAPPING[(bytes[i] >> 4) & 0x0f];
+            chars[i * 2 + 1] = CHAR_MAPPING[bytes[i] & 0x0f];
+        }
+        return String.valueOf(chars);
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright (c) 2018, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.wso2.carbon.identity.sso.agent.util;
+
+import org.joda.time.DateTime;
+import org.testng.annotations.Test;
+import org.wso2.carbon.identity.sso.agent.SSOAgentTestUtils;
+import org.wso2.carbon.identity.sso.agent.exception.SSOAgentException;
+
+import java.nio.charset.Charset;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+public class SSOAgentMessageScannerTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String WITH_COMMENTS = "http://www.w3.org/2001/10/xml-exc-c14n#WithComments";
+
+    @Test
+    public void testScanPlainResponse() throws Exception {
+
+        SSOAgentMessageScanner.ScanResult result = SSOAgentMessageScanner.scan(response().getBytes(UTF_8));
+        assertEquals(result.getAssertionId(), "_response-a");
+        assertFalse(result.isSignedWithComments());
+    }
+
+    @Test(expectedExceptions = SSOAgentException.class)
+    public void testRejectMalformedMessage() throws Exception {
+
+        String response = response();
+        SSOAgentMessageScanner.scan(response.substring(0, response.indexOf("</saml2:Assertion>")).getBytes(UTF_8));
+    }
+
+    @Test
+    public void testScanSignedWithComments() throws Exception {
+
+        String response = response();
+        String signature = "<ds:Signature xmlns:ds=\"http://www.w3.org/2000/09/xmldsig#\"><ds:SignedInfo>" +
+                "<ds:Reference URI=\"#_response-a\"><ds:Transforms><ds:Transform Algorithm=\"" + WITH_COMMENTS +
+                "\"/></ds:Transforms></ds:Reference></ds:SignedInfo></ds:Signature>";
+        int issuerEnd = response.indexOf("</saml2:Issuer>", response.indexOf("<saml2:Assertion")) +
+                "</saml2:Issuer>".length();
+        String signed = response.substring(0, issuerEnd) + signature + response.substring(issuerEnd);
+
+        assertTrue(SSOAgentMessageScanner.scan(signed.getBytes(UTF_8)).isSignedWithComments());
+        assertFalse(SSOAgentMessageScanner.scan(signed.replace("#_response-a", "#_other").getBytes(UTF_8))
+                .isSignedWithComments());
+    }
+
+    private static String response() {
+
+        return SSOAgentTestUtils.buildResponseXML("_response", "admin", "session", new DateTime().plusHours(1));
+    }
+}
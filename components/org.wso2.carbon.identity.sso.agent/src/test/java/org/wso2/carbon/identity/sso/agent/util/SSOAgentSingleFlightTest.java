@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) 2018, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.wso2.carbon.identity.sso.agent.util;
+
+import org.testng.annotations.Test;
+import org.wso2.carbon.identity.sso.agent.exception.SSOAgentException;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+public class SSOAgentSingleFlightTest {
+
+    @Test
+    public void testResultOnlyForCallersInFlight() throws Exception {
+
+        final SSOAgentSingleFlight<String, Object> singleFlight = new SSOAgentSingleFlight<String, Object>(16, 5000);
+        final AtomicInteger executions = new AtomicInteger();
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch finish = new CountDownLatch(1);
+        final Object result = new Object();
+        final SSOAgentSingleFlight.Work<Object> work = new SSOAgentSingleFlight.Work<Object>() {
+            @Override
+            public Object execute() throws SSOAgentException {
+
+                executions.incrementAndGet();
+                started.countDown();
+                try {
+                    finish.await();
+                } catch (InterruptedException e) {
+                    throw new SSOAgentException("Interrupted", e);
+                }
+                return result;
+            }
+        };
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Callable<Object> call = new Callable<Object>() {
+                @Override
+                public Object call() throws Exception {
+
+                    return singleFlight.execute("response", work);
+                }
+            };
+            Future<Object> first = executor.submit(call);
+            assertTrue(started.await(5, TimeUnit.SECONDS));
+            Future<Object> joiner = executor.submit(call);
+            // Give the second caller time to join the flight before it completes.
+            Thread.sleep(200);
+            finish.countDown();
+            assertSame(first.get(5, TimeUnit.SECONDS), result);
+            assertSame(joiner.get(5, TimeUnit.SECONDS), result);
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals(executions.get(), 1);
+        assertEquals(singleFlight.size(), 0);
+
+        // A completed flight is forgotten, so a replay runs the work again instead of receiving the result.
+        singleFlight.execute("response", work);
+        assertEquals(executions.get(), 2);
+        assertEquals(singleFlight.size(), 0);
+    }
+
+    @Test
+    public void testFailureNotRetained() throws Exception {
+
+        SSOAgentSingleFlight<String, Object> singleFlight = new SSOAgentSingleFlight<String, Object>(16, 5000);
+        final AtomicInteger executions = new AtomicInteger();
+        SSOAgentSingleFlight.Work<Object> work = new SSOAgentSingleFlight.Work<Object>() {
+            @Override
+            public Object execute() throws SSOAgentException {
+
+                executions.incrementAndGet();
+                throw new SSOAgentException("Invalid response");
+            }
+        };
+        for (int i = 0; i < 2; i++) {
+            try {
+                singleFlight.execute("response", work);
+                fail("Failure was not propagated");
+            } catch (SSOAgentException e) {
+                assertEquals(e.getMessage(), "Invalid response");
+            }
+        }
+        assertEquals(executions.get(), 2);
+        assertEquals(singleFlight.size(), 0);
+    }
+}
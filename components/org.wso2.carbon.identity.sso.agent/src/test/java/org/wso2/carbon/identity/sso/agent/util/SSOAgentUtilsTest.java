@@ -0,0 +1,68 @@
+/*
+ * Copyright (c) 2018, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.identity.sso.agent.util;
+
+import org.apache.xml.security.signature.XMLSignature;
+import org.opensaml.xml.util.Base64;
+import org.testng.annotations.Test;
+import org.wso2.carbon.identity.sso.agent.SSOAgentTestUtils;
+import org.wso2.carbon.identity.sso.agent.security.X509CredentialImpl;
+
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.Charset;
+import java.security.Signature;
+
+import static org.testng.Assert.assertNotSame;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+
+public class SSOAgentUtilsTest {
+
+    @Test
+    public void testRedirectSignatureWithAlgorithm() throws Exception {
+
+        X509CredentialImpl credential = new X509CredentialImpl(SSOAgentTestUtils.createCredential());
+        String algorithm = XMLSignature.ALGO_ID_SIGNATURE_RSA_SHA256;
+        StringBuilder httpQueryString = new StringBuilder("SAMLRequest=request&RelayState=state");
+        SSOAgentUtils.addDeflateSignatureToHTTPQueryString(httpQueryString, credential, algorithm);
+
+        String query = httpQueryString.toString();
+        int signatureStart = query.indexOf("&Signature=");
+        assertTrue(query.substring(0, signatureStart).endsWith("&SigAlg=" + URLEncoder.encode(algorithm, "UTF-8")));
+        Signature signature = Signature.getInstance("SHA256withRSA");
+        signature.initVerify(credential.getPublicKey());
+        signature.update(query.substring(0, signatureStart).getBytes(Charset.forName("UTF-8")));
+        assertTrue(signature.verify(Base64.decode(URLDecoder.decode(
+                query.substring(signatureStart + "&Signature=".length()), "UTF-8"))));
+    }
+
+    @Test
+    public void testRedirectSignerIsReused() throws Exception {
+
+        X509CredentialImpl credential = new X509CredentialImpl(SSOAgentTestUtils.createCredential());
+        String algorithm = XMLSignature.ALGO_ID_SIGNATURE_RSA_SHA1;
+        assertSame(SSOAgentUtils.getRedirectSigner(credential.getPrivateKey(), algorithm),
+                SSOAgentUtils.getRedirectSigner(credential.getPrivateKey(), algorithm));
+
+        X509CredentialImpl otherCredential = new X509CredentialImpl(SSOAgentTestUtils.createCredential());
+        assertNotSame(SSOAgentUtils.getRedirectSigner(otherCredential.getPrivateKey(), algorithm),
+                SSOAgentUtils.getRedirectSigner(credential.getPrivateKey(), algorithm));
+    }
+}